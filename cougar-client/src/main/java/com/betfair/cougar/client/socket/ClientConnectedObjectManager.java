@@ -24,7 +24,9 @@ import com.betfair.cougar.core.api.exception.ServerFaultCode;
 import com.betfair.cougar.core.impl.ev.ConnectedResponseImpl;
 import com.betfair.cougar.logging.CougarLogger;
 import com.betfair.cougar.logging.CougarLoggingUtils;
+import com.betfair.cougar.netutil.nio.CougarProtocol;
 import com.betfair.cougar.netutil.nio.HeapDelta;
+import com.betfair.cougar.netutil.nio.HeapResumption;
 import com.betfair.cougar.netutil.nio.NioLogger;
 import com.betfair.cougar.netutil.nio.NioUtils;
 import com.betfair.cougar.netutil.nio.TerminateSubscription;
@@ -37,8 +39,11 @@ import com.betfair.platform.virtualheap.ImmutableHeap;
 import com.betfair.platform.virtualheap.conflate.Conflater;
 import org.apache.mina.common.IoSession;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
@@ -55,34 +60,34 @@ public class ClientConnectedObjectManager {
 
     private ConcurrentHashMap<String, ConnectedHeaps> heapsByServer = new ConcurrentHashMap<String, ConnectedHeaps>();
     private NioLogger nioLogger;
-    private BlockingDeque<String> sessionsWithUpdates = new LinkedBlockingDeque<String>();
 
-    private final List<ConnectedObjectPuller> pullers = new ArrayList<ConnectedObjectPuller>();
+    // each heap is always processed by the same executor, so its deltas are applied in order
+    private volatile ExecutorService[] heapExecutors = new ExecutorService[0];
+    private ScheduledExecutorService scheduler;
     private int numProcessingThreads;
     private long maxInitialPopulationWait;
 
     private final Lock heapSubMutationLock = new ReentrantLock();
     private long pullerAwaitTimeout;
     private long missingDeltaTimeout;
-    private int maxDeltaQueue;
-    private final Lock queueHealthCheckLock = new ReentrantLock();
+    private int deltaBufferCapacity = HeapState.DEFAULT_DELTA_BUFFER_CAPACITY;
 
     private Conflater newListenerConflater;
 
     private CougarObjectIOFactory objectIOFactory;
 
-    private static final AtomicLong initialPopulationThreadIdSource = new AtomicLong();
+    private static final String HEAP_RESUMPTIONS_OFFERED_ATTR_NAME = "ClientConnectedObjectManager.heapResumptionsOffered";
+
+    private long resumptionWindow;
+    // heaps from closed sessions which the server may be able to catch up, by server address, then heap uri
+    private final Map<String, Map<String, ResumableHeap>> resumableHeaps = new HashMap<String, Map<String, ResumableHeap>>();
+    private final AtomicLong resumedHeapCount = new AtomicLong();
 
     // exposed for testing
     ConcurrentHashMap<String, ConnectedHeaps> getHeapsByServer() {
         return heapsByServer;
     }
 
-    // exposed for testing
-    BlockingDeque<String> getSessionsWithUpdates() {
-        return sessionsWithUpdates;
-    }
-
     public Lock getHeapSubMutationLock() {
         return heapSubMutationLock;
     }
@@ -95,6 +100,9 @@ public class ClientConnectedObjectManager {
         this.maxInitialPopulationWait = maxInitialPopulationWait;
     }
 
+    /**
+     * How often (in ms) the delta queue of each heap is checked for deltas which have waited too long for a missing one.
+     */
     public void setPullerAwaitTimeout(long pullerAwaitTimeout) {
         this.pullerAwaitTimeout = pullerAwaitTimeout;
     }
@@ -103,8 +111,36 @@ public class ClientConnectedObjectManager {
         this.missingDeltaTimeout = missingDeltaTimeout;
     }
 
-    public void setMaxDeltaQueue(int maxDeltaQueue) {
-        this.maxDeltaQueue = maxDeltaQueue;
+    /**
+     * How far ahead of the next expected update id a delta may arrive before we assume the missing one has been lost.
+     */
+    public void setDeltaBufferCapacity(int deltaBufferCapacity) {
+        this.deltaBufferCapacity = deltaBufferCapacity;
+    }
+
+    /**
+     * How long in ms to keep the heaps from a closed session, so that a new session to the same server can resume
+     * them from the last update seen rather than fetching them again. 0 disables resumption.
+     */
+    public void setResumptionWindow(long resumptionWindow) {
+        this.resumptionWindow = resumptionWindow;
+    }
+
+    public long getResumedHeapCount() {
+        return resumedHeapCount.get();
+    }
+
+    public int getRetainedHeapCount() {
+        heapSubMutationLock.lock();
+        try {
+            int ret = 0;
+            for (Map<String, ResumableHeap> heapsForAddress : resumableHeaps.values()) {
+                ret += heapsForAddress.size();
+            }
+            return ret;
+        } finally {
+            heapSubMutationLock.unlock();
+        }
     }
 
     public void setObjectIOFactory(CougarObjectIOFactory objectIOFactory) {
@@ -121,19 +157,49 @@ public class ClientConnectedObjectManager {
     }
 
     public void start() {
-        for (int i = 0; i < numProcessingThreads; i++) {
-            ConnectedObjectPuller puller = new ConnectedObjectPuller();
-            pullers.add(puller);
-            new Thread(puller, "ConnectedObjectPuller-" + (i + 1)).start();
+        ExecutorService[] executors = new ExecutorService[Math.max(1, numProcessingThreads)];
+        for (int i = 0; i < executors.length; i++) {
+            final String threadName = "ConnectedObjectPuller-" + (i + 1);
+            executors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, threadName);
+                }
+            });
         }
+        heapExecutors = executors;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ConnectedObjectScheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkQueueHealth();
+            }
+        }, pullerAwaitTimeout, pullerAwaitTimeout, TimeUnit.MILLISECONDS);
     }
 
     public void stop() {
-        for (ConnectedObjectPuller puller : pullers) {
-            puller.stop();
+        for (ExecutorService executor : heapExecutors) {
+            executor.shutdown();
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
         }
     }
 
+    private ExecutorService getExecutor(HeapState heapState) {
+        ExecutorService[] executors = heapExecutors;
+        int h = heapState.getHeapUri().hashCode();
+        h ^= (h >>> 16);
+        return executors[(h & 0x7fffffff) % executors.length];
+    }
+
     public void setNioLogger(NioLogger nioLogger) {
         this.nioLogger = nioLogger;
     }
@@ -168,11 +234,30 @@ public class ClientConnectedObjectManager {
             heapSubMutationLock.unlock();
         }
 
+        // resumed heap, we already have its state from the previous session
+        if (newHeapSubscription.isResumed()) {
+            HeapState resumedState = takeOfferedHeap(currentSession, newHeapSubscription.getUri());
+            if (resumedState == null || !heaps.adoptHeap(newHeapSubscription.getHeapId(), resumedState)) {
+                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, currentSession, "Server resumed heap %s which we didn't offer - closing session", newHeapSubscription.getUri());
+                logger.log(Level.WARNING, "Server resumed heap " + newHeapSubscription.getUri() + " which we didn't offer - closing session");
+                observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.FrameworkError, "Server resumed heap " + newHeapSubscription.getUri() + " which we didn't offer")));
+                currentSession.close();
+                return;
+            }
+            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, currentSession, "Resumed heap, heapId = %s, heapUrl = %s, lastUpdateId = %s", newHeapSubscription.getHeapId(), newHeapSubscription.getUri(), resumedState.getLastDeltaId());
+            resumedHeapCount.incrementAndGet();
+            Subscription sub = resumedState.addSubscription(this, currentSession, newHeapSubscription.getHeapId(), newHeapSubscription.getSubscriptionId());
+            observer.onResult(new ExecutionResult(new ConnectedResponseImpl(resumedState.getHeap(), sub)));
+            return;
+        }
+
         // new heap
         boolean newHeap = false;
         if (newHeapSubscription.getUri() != null) {
             nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, currentSession, "Received a new heap definition, heapId = %s, heapUrl = %s", newHeapSubscription.getHeapId(), newHeapSubscription.getUri());
-            newHeap = heaps.addHeap(newHeapSubscription.getHeapId(), newHeapSubscription.getUri());
+            // the server sent the full state, so anything we kept from a previous session is of no further use
+            takeOfferedHeap(currentSession, newHeapSubscription.getUri());
+            newHeap = heaps.addHeap(newHeapSubscription.getHeapId(), newHeapSubscription.getUri(), newHeapSubscription.getEpoch());
             if (!newHeap) {
                 nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, currentSession, "Received a new heap definition, heapId = %s, even though we know about the heap already!", newHeapSubscription.getHeapId());
             }
@@ -198,48 +283,66 @@ public class ClientConnectedObjectManager {
                     currentSession.close();
                 }
             } else {
-                // split this off into it's own thread since the mina docs lie and we only have one ioprocessor thread and if we don't fork we'd block forever
-                final ConnectedHeaps finalHeaps = heaps;
-                new Thread(new Runnable() {
+                // wait for the initial state on the heap's own executor, so we see it in order with the deltas
+                awaitInitialPopulation(currentSession, heaps, heapState, newHeapSubscription, preExistingHeap, observer);
+            }
+        }
+    }
+
+    private void awaitInitialPopulation(IoSession session, final ConnectedHeaps heaps, final HeapState heapState, NewHeapSubscription newHeapSubscription,
+                                        boolean preExistingHeap, ExecutionObserver observer) {
+        final InitialPopulationWaiter waiter = new InitialPopulationWaiter(session, newHeapSubscription, preExistingHeap, observer);
+        final ExecutorService executor = getExecutor(heapState);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (heapState.haveSeenInitialUpdate()) {
+                    initialPopulationComplete(waiter, heapState);
+                    return;
+                }
+                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, waiter.session, "Waiting for initial heap population, heapUrl = %s", heapState.getHeapUri());
+                heaps.addInitialPopulationWaiter(waiter.heapId, waiter);
+                scheduler.schedule(new Runnable() {
                     @Override
                     public void run() {
-                        boolean resultSent = false;
-                        // now we've got the heap
-                        CountDownLatch initialPopulationLatch = finalHeaps.getInitialPopulationLatch(newHeapSubscription.getHeapId());
-                        try {
-                            boolean populated = false;
-                            if (initialPopulationLatch != null) {
-                                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, currentSession, "Waiting for initial heap population, heapUrl = %s", newHeapSubscription.getUri());
-                                populated = initialPopulationLatch.await(maxInitialPopulationWait, TimeUnit.MILLISECONDS);
-                                finalHeaps.removeInitialPopulationLatch(newHeapSubscription.getHeapId());
-                            } else {
-                                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, currentSession, "Initial heap population, heapUrl = %s", newHeapSubscription.getUri());
-
-                            }
-                            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, currentSession, "Returning heap to client, heapUrl = %s", newHeapSubscription.getUri());
-                            if (populated) {
-                                observer.onResult(new ExecutionResult(new ConnectedResponseImpl(heapState.getHeap(), heapState.addSubscription(ClientConnectedObjectManager.this, currentSession, newHeapSubscription.getHeapId(), newHeapSubscription.getSubscriptionId()))));
-                                resultSent = true;
-                            }
-                        } catch (InterruptedException e) {
-                            // we got interrupted waiting for the response, oh well..
-                        } catch (RuntimeException e) {
-                            logger.log(Level.WARNING, "Error processing initial heap population, treating as a failure", e);
-                        } finally {
-                            if (!resultSent) {
-                                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, currentSession, "Didn't get initial population message for heap, heapUrl = %s", newHeapSubscription.getUri());
-                                // we don't worry about the case where it was a preExisting heap since the thread where it wasn't received will deal with it
-                                if (!preExistingHeap) {
-                                    terminateSubscriptions(currentSession, newHeapSubscription.getHeapId(), Subscription.CloseReason.INTERNAL_ERROR);
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!waiter.done) {
+                                    heaps.removeInitialPopulationWaiter(waiter.heapId, waiter);
+                                    initialPopulationFailed(waiter);
                                 }
-                                logger.log(Level.WARNING, "Didn't get initial population message for heap id = " + newHeapSubscription.getHeapId());
-                                observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.FrameworkError, "Didn't get initial population message for heap id = " + newHeapSubscription.getHeapId())));
                             }
-                        }
+                        });
                     }
-                }, "SubscriptionResponseHandler-InitialPopulation-" + initialPopulationThreadIdSource.incrementAndGet() + "-" + heapState.getHeapUri()).start();
+                }, maxInitialPopulationWait, TimeUnit.MILLISECONDS);
             }
+        });
+    }
+
+    // only called on the heap's executor
+    private void initialPopulationComplete(InitialPopulationWaiter waiter, HeapState heapState) {
+        waiter.done = true;
+        try {
+            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, waiter.session, "Returning heap to client, heapUrl = %s", heapState.getHeapUri());
+            Subscription sub = heapState.addSubscription(this, waiter.session, waiter.heapId, waiter.subscriptionId);
+            waiter.observer.onResult(new ExecutionResult(new ConnectedResponseImpl(heapState.getHeap(), sub)));
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Error processing initial heap population, treating as a failure", e);
+            initialPopulationFailed(waiter);
+        }
+    }
+
+    // only called on the heap's executor
+    private void initialPopulationFailed(InitialPopulationWaiter waiter) {
+        waiter.done = true;
+        nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, waiter.session, "Didn't get initial population message for heap, heapId = %s", waiter.heapId);
+        // we don't worry about the case where it was a preExisting heap since the waiter which added it will deal with it
+        if (!waiter.preExistingHeap) {
+            terminateSubscriptions(waiter.session, waiter.heapId, Subscription.CloseReason.INTERNAL_ERROR);
         }
+        logger.log(Level.WARNING, "Didn't get initial population message for heap id = " + waiter.heapId);
+        waiter.observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.FrameworkError, "Didn't get initial population message for heap id = " + waiter.heapId)));
     }
 
     public void sessionTerminated(IoSession session) {
@@ -271,128 +374,134 @@ public class ClientConnectedObjectManager {
         }
 
         heapState.queueUpdate(payload);
-        heaps.queueUpdatedHeap(payload.getHeapId());
-        sessionsWithUpdates.add(NioUtils.getSessionId(session));
-    }
-
-    private class ConnectedObjectPuller implements Runnable {
-        private volatile boolean running = true;
-
-        public void run() {
-            while (running) {
-                try {
-                    String sessionId = sessionsWithUpdates.pollFirst(pullerAwaitTimeout, TimeUnit.MILLISECONDS);
-                    if (sessionId != null) {
-                        nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Found session with queued heap update");
-                        ConnectedHeaps heaps = heapsByServer.get(sessionId);
-                        if (heaps != null) { // session could have died..
-                            Long heapId = heaps.pollNextHeapId();
-                            if (heapId != null) {
-                                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Queued heap update found for heapId = %s", heapId);
-                                HeapState state = heaps.getHeapState(heapId);
-                                if (state != null) {
-                                    Lock lock = state.getHeapUpdateLock();
-                                    lock.lock();
-                                    try {
-                                        // right, now apply all updates in sequential order, until we hit a gap
-                                        HeapDelta delta = state.peekNextDelta();
-                                        if (delta == null) {
-                                            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "All contiguous deltas already processed for heapId = %s", heapId);
-                                        }
-                                        while (delta != null) {
-                                            // take a copy now, so we can use it in the initial update processing later...
-                                            HeapDelta currentDelta = delta;
-                                            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Applying delta %s for heapId = %s", currentDelta.getUpdateId(), heapId);
-                                            if (currentDelta.containsHeapTermination()) {
-                                                heapSubMutationLock.lock();
-                                                try {
-                                                    currentDelta.applyTo(state.getHeap().asListener());
-                                                    state.popNextDelta();
-
-                                                    nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Found heap termination in delta %s for heapId = %s", currentDelta.getUpdateId(), heapId);
-                                                    terminateSubscriptions(sessionId, heapId, Subscription.CloseReason.REQUESTED_BY_PUBLISHER);
-
-                                                    delta = null;
-                                                } finally {
-                                                    heapSubMutationLock.unlock();
-                                                }
-                                            } else {
-                                                currentDelta.applyTo(state.getHeap().asListener());
-                                                state.popNextDelta();
-                                                delta = state.peekNextDelta();
-                                            }
-                                            if (currentDelta.containsFirstUpdate()) {
-                                                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Found initial update in delta for heapId = %s", heapId);
-                                                // basically we got the first update
-                                                CountDownLatch latch = heaps.getInitialPopulationLatch(heapId);
-                                                if (latch != null) {
-                                                    latch.countDown();
-                                                }
-                                            }
-                                        }
-                                    } catch (Exception e) {
-                                        // something's gone a bit wrong. abort this client now..
-                                        logger.log(Level.WARNING, "Error processing update", e);
-                                        nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Error occurred processing update for heapId = %s, terminating heap", heapId);
-                                        terminateSubscriptions(sessionId, heapId, Subscription.CloseReason.INTERNAL_ERROR);
-                                    } finally {
-                                        lock.unlock();
-                                    }
-                                } else {
-                                    nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Received updated for unknown heap, id = %s, assuming it's already been processed by another thread",  heapId);
-                                }
-                            } else {
-                                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Queued heap update already processed by another thread");
-                            }
-                        } else {
+        scheduleDeltaProcessing(NioUtils.getSessionId(session), heaps, payload.getHeapId(), heapState);
+    }
 
-                            if (nioLogger.isLogging(NioLogger.LoggingLevel.TRANSPORT)) {
-                                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "No heaps found for session, they must have been terminated");
-                            }
+    private void scheduleDeltaProcessing(final String sessionId, final ConnectedHeaps heaps, final long heapId, final HeapState heapState) {
+        // one run applies everything queued so far, so there's no need for one per delta
+        if (heapState.markProcessingScheduled()) {
+            getExecutor(heapState).execute(new Runnable() {
+                @Override
+                public void run() {
+                    processQueuedDeltas(sessionId, heaps, heapId, heapState);
+                }
+            });
+        }
+    }
+
+    // only called on the heap's executor
+    private void processQueuedDeltas(String sessionId, ConnectedHeaps heaps, long heapId, HeapState state) {
+        // anything queued from now on will need another run
+        state.processingStarted();
+        if (heaps.getHeapState(heapId) != state) {
+            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Received update for terminated heap, id = %s",  heapId);
+            return;
+        }
+        Lock lock = state.getHeapUpdateLock();
+        lock.lock();
+        try {
+            // right, now apply all updates in sequential order, until we hit a gap
+            HeapDelta delta = state.peekNextDelta();
+            if (delta == null) {
+                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "All contiguous deltas already processed for heapId = %s", heapId);
+            }
+            while (delta != null) {
+                // take a copy now, so we can use it in the initial update processing later...
+                HeapDelta currentDelta = delta;
+                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Applying delta %s for heapId = %s", currentDelta.getUpdateId(), heapId);
+                if (currentDelta.containsHeapTermination()) {
+                    heapSubMutationLock.lock();
+                    try {
+                        currentDelta.applyTo(state.getHeap().asListener());
+                        state.popNextDelta();
+
+                        nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Found heap termination in delta %s for heapId = %s", currentDelta.getUpdateId(), heapId);
+                        terminateSubscriptions(sessionId, heapId, Subscription.CloseReason.REQUESTED_BY_PUBLISHER);
+
+                        delta = null;
+                    } finally {
+                        heapSubMutationLock.unlock();
+                    }
+                } else {
+                    currentDelta.applyTo(state.getHeap().asListener());
+                    state.popNextDelta();
+                    delta = state.peekNextDelta();
+                }
+                if (currentDelta.containsFirstUpdate()) {
+                    nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Found initial update in delta for heapId = %s", heapId);
+                    // basically we got the first update
+                    for (InitialPopulationWaiter waiter : heaps.takeInitialPopulationWaiters(heapId)) {
+                        if (!waiter.done) {
+                            initialPopulationComplete(waiter, state);
                         }
                     }
-                    // now just have a quick peek at each heap state and check it's queue health
-                    // This could be a nasty bottleneck, so we'll only allow one thread to do this at a time, the others can get on with processing work..
-                    if (queueHealthCheckLock.tryLock()) {
-                        try {
-                            for (String sessId : new ArrayList<String>(heapsByServer.keySet())) {
-                                ConnectedHeaps heaps = heapsByServer.get(sessId);
-                                for (Long heapId : heaps.getAllHeapIds()) {
-                                    HeapState state = heaps.getHeapState(heapId);
-                                    if (state != null) {
-                                        HeapState.QueueHealth health = state.checkDeltaQueueHealth(maxDeltaQueue, missingDeltaTimeout);
-                                        if (health != HeapState.QueueHealth.HEALTHY) {
-                                            switch (health) {
-                                                case QUEUE_TOO_LONG:
-                                                    nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessId, "Queued up too many changes looking for next update for heapId = %s, terminating heap", heapId);
-                                                    break;
-                                                case WAITED_TOO_LONG:
-                                                    nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessId, "Waited too long for next update for heapId = %s, terminating heap", heapId);
-                                                    break;
-                                                default:
-                                                    logger.log(Level.WARNING, "Unrecognized health for queue: " + health);
-                                            }
-                                            terminateSubscriptions(sessId, heapId, Subscription.CloseReason.INTERNAL_ERROR);
-                                        }
-                                    } else {
-                                        logger.log(Level.WARNING, "Couldn't find heap state for heapId: " + heapId);
-                                    }
-                                }
+                }
+            }
+            // a delta this far beyond a gap means we've lost the missing one, no need to wait for the health check
+            if (state.isOverflowed()) {
+                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Queued up too many changes looking for next update for heapId = %s, terminating heap", heapId);
+                terminateSubscriptions(sessionId, heapId, Subscription.CloseReason.INTERNAL_ERROR);
+            }
+        } catch (Exception e) {
+            // something's gone a bit wrong. abort this client now..
+            logger.log(Level.WARNING, "Error processing update", e);
+            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessionId, "Error occurred processing update for heapId = %s, terminating heap", heapId);
+            terminateSubscriptions(sessionId, heapId, Subscription.CloseReason.INTERNAL_ERROR);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // have a quick peek at each heap state and check its queue health
+    private void checkQueueHealth() {
+        try {
+            for (String sessId : new ArrayList<String>(heapsByServer.keySet())) {
+                ConnectedHeaps heaps = heapsByServer.get(sessId);
+                if (heaps == null) {
+                    continue;
+                }
+                for (Long heapId : heaps.getAllHeapIds()) {
+                    HeapState state = heaps.getHeapState(heapId);
+                    if (state != null) {
+                        HeapState.QueueHealth health = state.checkDeltaQueueHealth(missingDeltaTimeout);
+                        if (health != HeapState.QueueHealth.HEALTHY) {
+                            switch (health) {
+                                case QUEUE_TOO_LONG:
+                                    nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessId, "Queued up too many changes looking for next update for heapId = %s, terminating heap", heapId);
+                                    break;
+                                case WAITED_TOO_LONG:
+                                    nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, sessId, "Waited too long for next update for heapId = %s, terminating heap", heapId);
+                                    break;
+                                default:
+                                    logger.log(Level.WARNING, "Unrecognized health for queue: " + health);
                             }
-                        } finally {
-                            queueHealthCheckLock.unlock();
+                            terminateSubscriptions(sessId, heapId, Subscription.CloseReason.INTERNAL_ERROR);
                         }
                     }
-                } catch (InterruptedException ie) {
-                    // ignore, we'll go around the loop again and wait on the poll again
-                } catch (Exception e) {
-                    logger.log(Level.WARNING, "Error processing update", e);
                 }
             }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error checking delta queue health", e);
         }
+    }
 
-        public void stop() {
-            running = false;
+    /**
+     * A subscription waiting for the initial state of its heap. Only accessed on the heap's executor.
+     */
+    private static class InitialPopulationWaiter {
+        private final IoSession session;
+        private final long heapId;
+        private final String subscriptionId;
+        private final boolean preExistingHeap;
+        private final ExecutionObserver observer;
+        private boolean done;
+
+        private InitialPopulationWaiter(IoSession session, NewHeapSubscription newHeapSubscription, boolean preExistingHeap, ExecutionObserver observer) {
+            this.session = session;
+            this.heapId = newHeapSubscription.getHeapId();
+            this.subscriptionId = newHeapSubscription.getSubscriptionId();
+            this.preExistingHeap = preExistingHeap;
+            this.observer = observer;
         }
     }
 
@@ -469,6 +578,9 @@ public class ClientConnectedObjectManager {
             ConnectedHeaps heaps = heapsByServer.get(sessionId);
             // it's possible that this session hasn't been used for push at all..
             if (heaps != null) {
+                if (reason == Subscription.CloseReason.CONNECTION_CLOSED && supportsHeapResumption(session)) {
+                    retainResumableHeaps(session, heaps);
+                }
                 heaps.terminateAllHeaps(reason);
                 heapsByServer.remove(sessionId);
                 if (nioLogger.isLogging(NioLogger.LoggingLevel.TRANSPORT)) {
@@ -480,23 +592,154 @@ public class ClientConnectedObjectManager {
         }
     }
 
+    private boolean supportsHeapResumption(IoSession session) {
+        Byte protocolVersion = (Byte) session.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME);
+        return resumptionWindow > 0 && protocolVersion != null && protocolVersion >= CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION;
+    }
+
+    // note, you must have the heap sub mutation lock before calling this method
+    private void retainResumableHeaps(IoSession session, ConnectedHeaps heaps) {
+        final String address = NioUtils.getRemoteAddressUrl(session);
+        Map<String, ResumableHeap> heapsForAddress = resumableHeaps.get(address);
+        if (heapsForAddress == null) {
+            heapsForAddress = new HashMap<String, ResumableHeap>();
+            resumableHeaps.put(address, heapsForAddress);
+        }
+        // anything left over from an earlier session which never got offered is too old now
+        removeExpiredResumableHeaps(heapsForAddress);
+        for (Long heapId : heaps.getAllHeapIds()) {
+            HeapState state = heaps.getHeapState(heapId);
+            if (state != null && state.haveSeenInitialUpdate()) {
+                state.clearQueuedDeltas();
+                heapsForAddress.put(state.getHeapUri(), new ResumableHeap(heapId, state));
+                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Retaining heap %s for resumption from updateId = %s", state.getHeapUri(), state.getLastDeltaId());
+            }
+        }
+        // the server may never come back, so don't hang on to them beyond the window
+        if (scheduler != null) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expireResumableHeaps(address);
+                }
+            }, resumptionWindow, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void expireResumableHeaps(String address) {
+        heapSubMutationLock.lock();
+        try {
+            Map<String, ResumableHeap> heapsForAddress = resumableHeaps.get(address);
+            if (heapsForAddress != null) {
+                removeExpiredResumableHeaps(heapsForAddress);
+                if (heapsForAddress.isEmpty()) {
+                    resumableHeaps.remove(address);
+                }
+            }
+        } finally {
+            heapSubMutationLock.unlock();
+        }
+    }
+
+    // note, you must have the heap sub mutation lock before calling this method
+    private void removeExpiredResumableHeaps(Map<String, ResumableHeap> heapsForAddress) {
+        long oldestRetained = System.currentTimeMillis() - resumptionWindow;
+        Iterator<ResumableHeap> it = heapsForAddress.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().retainedAt <= oldestRetained) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Tells the server about the heaps we kept from a previous session to the same address, so it can resume them
+     * rather than sending their full state. Only done once per session, before its first subscription.
+     */
+    public void offerResumableHeaps(IoSession session) throws IOException {
+        if (!supportsHeapResumption(session) || session.containsAttribute(HEAP_RESUMPTIONS_OFFERED_ATTR_NAME)) {
+            return;
+        }
+        Map<String, ResumableHeap> offered = new HashMap<String, ResumableHeap>();
+        heapSubMutationLock.lock();
+        try {
+            if (session.containsAttribute(HEAP_RESUMPTIONS_OFFERED_ATTR_NAME)) {
+                return;
+            }
+            session.setAttribute(HEAP_RESUMPTIONS_OFFERED_ATTR_NAME, offered);
+            Map<String, ResumableHeap> heapsForAddress = resumableHeaps.remove(NioUtils.getRemoteAddressUrl(session));
+            if (heapsForAddress != null) {
+                long oldestRetained = System.currentTimeMillis() - resumptionWindow;
+                for (Map.Entry<String, ResumableHeap> entry : heapsForAddress.entrySet()) {
+                    if (entry.getValue().retainedAt > oldestRetained) {
+                        offered.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        } finally {
+            heapSubMutationLock.unlock();
+        }
+        for (Map.Entry<String, ResumableHeap> entry : offered.entrySet()) {
+            ResumableHeap heap = entry.getValue();
+            long lastUpdateId;
+            // make sure we're not offering from part way through applying a delta
+            Lock lock = heap.state.getHeapUpdateLock();
+            lock.lock();
+            try {
+                lastUpdateId = heap.state.getLastDeltaId();
+            } finally {
+                lock.unlock();
+            }
+            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Offering to resume heap %s from updateId = %s", entry.getKey(), lastUpdateId);
+            NioUtils.writeEventMessageToSession(session, new HeapResumption(entry.getKey(), heap.heapId, heap.state.getEpoch(), lastUpdateId), objectIOFactory);
+        }
+    }
+
+    private HeapState takeOfferedHeap(IoSession session, String uri) {
+        @SuppressWarnings("unchecked")
+        Map<String, ResumableHeap> offered = (Map<String, ResumableHeap>) session.getAttribute(HEAP_RESUMPTIONS_OFFERED_ATTR_NAME);
+        if (offered == null || uri == null) {
+            return null;
+        }
+        heapSubMutationLock.lock();
+        try {
+            ResumableHeap heap = offered.remove(uri);
+            return heap != null ? heap.state : null;
+        } finally {
+            heapSubMutationLock.unlock();
+        }
+    }
+
+    private static class ResumableHeap {
+        private final long heapId;
+        private final HeapState state;
+        private final long retainedAt = System.currentTimeMillis();
+
+        private ResumableHeap(long heapId, HeapState state) {
+            this.heapId = heapId;
+            this.state = state;
+        }
+    }
+
     /**
      * Represents a set of heaps that are shared with a single server.
      */
     public class ConnectedHeaps {
         private Map<Long, HeapState> heapStates = new HashMap<Long, HeapState>();
-        private Map<Long, CountDownLatch> initialLatches = new HashMap<Long, CountDownLatch>();
-        private BlockingDeque<Long> heapsWithUpdates = new LinkedBlockingDeque<Long>();
-        private AtomicLong queueLength = new AtomicLong();
+        private Map<Long, List<InitialPopulationWaiter>> initialPopulationWaiters = new ConcurrentHashMap<Long, List<InitialPopulationWaiter>>();
 
         // returns true if a new heap was added
         public boolean addHeap(long heapId, String uri) {
+            return addHeap(heapId, uri, 0);
+        }
+
+        // returns true if a new heap was added
+        public boolean addHeap(long heapId, String uri, long epoch) {
             heapSubMutationLock.lock();
             try {
                 if (!heapStates.containsKey(heapId)) {
                     Heap heap = new ImmutableHeap(uri, newListenerConflater);
-                    initialLatches.put(heapId, new CountDownLatch(1));
-                    heapStates.put(heapId, new HeapState(heap));
+                    heapStates.put(heapId, new HeapState(heap, epoch, deltaBufferCapacity));
                     return true;
                 }
                 return false;
@@ -505,34 +748,46 @@ public class ClientConnectedObjectManager {
             }
         }
 
-        public CountDownLatch getInitialPopulationLatch(long heapId) {
-            return initialLatches.get(heapId);
-        }
-
-        public void removeInitialPopulationLatch(long heapId) {
+        // returns true if the already populated heap was added
+        public boolean adoptHeap(long heapId, HeapState state) {
             heapSubMutationLock.lock();
             try {
-                initialLatches.remove(heapId);
+                if (!heapStates.containsKey(heapId)) {
+                    heapStates.put(heapId, state);
+                    return true;
+                }
+                return false;
             } finally {
                 heapSubMutationLock.unlock();
             }
         }
 
-        public HeapState getHeapState(long heapId) {
-            return heapStates.get(heapId);
+        // only called on the heap's executor
+        void addInitialPopulationWaiter(long heapId, InitialPopulationWaiter waiter) {
+            List<InitialPopulationWaiter> waiters = initialPopulationWaiters.get(heapId);
+            if (waiters == null) {
+                waiters = new ArrayList<InitialPopulationWaiter>();
+                initialPopulationWaiters.put(heapId, waiters);
+            }
+            waiters.add(waiter);
         }
 
-        public Long pollNextHeapId() {
-            Long ret = heapsWithUpdates.pollFirst();
-            if (ret != null) {
-                queueLength.decrementAndGet();
+        // only called on the heap's executor
+        void removeInitialPopulationWaiter(long heapId, InitialPopulationWaiter waiter) {
+            List<InitialPopulationWaiter> waiters = initialPopulationWaiters.get(heapId);
+            if (waiters != null) {
+                waiters.remove(waiter);
             }
-            return ret;
         }
 
-        public void queueUpdatedHeap(long heapId) {
-            heapsWithUpdates.add(heapId);
-            queueLength.incrementAndGet();
+        // only called on the heap's executor
+        List<InitialPopulationWaiter> takeInitialPopulationWaiters(long heapId) {
+            List<InitialPopulationWaiter> waiters = initialPopulationWaiters.remove(heapId);
+            return waiters != null ? waiters : Collections.<InitialPopulationWaiter>emptyList();
+        }
+
+        public HeapState getHeapState(long heapId) {
+            return heapStates.get(heapId);
         }
 
         public void terminateHeap(long heapId, Subscription.CloseReason reason) {
@@ -542,7 +797,8 @@ public class ClientConnectedObjectManager {
                 if (state != null) {
                     state.terminateAllSubscriptions(reason);
                 }
-                initialLatches.remove(heapId);
+                // anyone still waiting for the initial state will now time out
+                initialPopulationWaiters.remove(heapId);
             } finally {
                 heapSubMutationLock.unlock();
             }
@@ -578,7 +834,14 @@ public class ClientConnectedObjectManager {
         }
 
         public long getQueueLength() {
-            return queueLength.get();
+            long ret = 0;
+            for (Long heapId : getAllHeapIds()) {
+                HeapState state = heapStates.get(heapId);
+                if (state != null) {
+                    ret += state.getQueuedDeltaCount();
+                }
+            }
+            return ret;
         }
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.client.socket;
+
+import com.betfair.cougar.core.api.ev.OperationDefinition;
+import com.betfair.cougar.marshalling.api.socket.OperationHeader;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ids this client has allocated to operations on a session, from protocol version 6. An id carries the full
+ * operation key and parameter names until a request using it has succeeded, at which point the server is known to
+ * have resolved it and later requests send only the id. Sending the definition more than once is harmless, so two
+ * requests racing to be first don't need coordinating.
+ */
+class ClientOperationIdTable {
+
+    static final String SESSION_KEY = ClientOperationIdTable.class.getName();
+
+    // operation definitions are singletons, so identity based hashing is all that's needed here
+    private final ConcurrentMap<OperationDefinition, OperationId> ids = new ConcurrentHashMap<OperationDefinition, OperationId>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * @return the id for the operation, or null if this session has run out of ids
+     */
+    OperationId getOperationId(OperationDefinition operationDefinition) {
+        OperationId ret = ids.get(operationDefinition);
+        if (ret == null) {
+            if (nextId.get() >= OperationHeader.MAX_OPERATION_IDS) {
+                return null;
+            }
+            int id = nextId.getAndIncrement();
+            if (id >= OperationHeader.MAX_OPERATION_IDS) {
+                return null;
+            }
+            ret = new OperationId(id);
+            OperationId existing = ids.putIfAbsent(operationDefinition, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        return ret;
+    }
+
+    static class OperationId {
+        private final int id;
+        private volatile boolean knownToServer;
+
+        OperationId(int id) {
+            this.id = id;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        boolean isKnownToServer() {
+            return knownToServer;
+        }
+
+        void setKnownToServer() {
+            knownToServer = true;
+        }
+    }
+}
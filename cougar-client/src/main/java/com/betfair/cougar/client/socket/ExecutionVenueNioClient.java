@@ -28,6 +28,7 @@ import com.betfair.cougar.core.api.exception.ServerFaultCode;
 import com.betfair.cougar.core.api.transcription.Parameter;
 import com.betfair.cougar.logging.CougarLogger;
 import com.betfair.cougar.logging.CougarLoggingUtils;
+import com.betfair.cougar.marshalling.api.socket.OperationHeader;
 import com.betfair.cougar.marshalling.api.socket.RemotableMethodInvocationMarshaller;
 import com.betfair.cougar.netutil.nio.*;
 import com.betfair.cougar.netutil.nio.message.EventMessage;
@@ -41,7 +42,6 @@ import com.betfair.cougar.transport.api.protocol.socket.InvocationResponse;
 import com.betfair.cougar.util.JMXReportingThreadPoolExecutor;
 import com.betfair.cougar.util.jmx.JMXControl;
 import com.caucho.hessian.io.HessianProtocolException;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.mina.common.*;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.InitializingBean;
@@ -50,13 +50,21 @@ import org.springframework.context.ApplicationContextAware;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 import javax.net.ssl.SSLException;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
@@ -68,6 +76,8 @@ public class ExecutionVenueNioClient extends AbstractClientTransport implements
     private static final int DEFAULT_HANDSHAKE_RESPONSE_TIMEOUT = 5000;
     private static final int DEFAULT_RECONNECT_INTERVAL = 5000;
     private static final int DEFAULT_SESSION_RECYCLE_INTERVAL = 86400000;
+    // how many times to ask the session factory for a session other than the one a hedged call was first sent on
+    private static final int MAX_HEDGE_SESSION_ATTEMPTS = 3;
 
 
     private final IoSessionFactory sessionFactory;
@@ -80,6 +90,11 @@ public class ExecutionVenueNioClient extends AbstractClientTransport implements
     private ApplicationContext applicationContext;
     private boolean hardFailEnumDeserialisation;
     private RPCTimeoutChecker rpcTimeoutChecker;
+    private final SerialisationBufferPool serialisationBufferPool;
+    private final HedgingPolicy hedgingPolicy = new HedgingPolicy();
+    private final ScheduledExecutorService hedgeScheduler;
+    // hedges are only timed on the scheduler, a slow send mustn't hold up everyone else's hedges
+    private Executor hedgeExecutor;
 
     public ExecutionVenueNioClient(NioLogger logger, NioConfig nioConfig, CougarObjectIOFactory objectIOFactory, ClientConnectedObjectManager connectedObjectManager, ClientSocketTransportInfo clientSocketTransportInfo, String addressList,
                                    JMXReportingThreadPoolExecutor ioExecutorService, JMXReportingThreadPoolExecutor reconnectExecutor, NetworkAddressResolver addressResolver) {
@@ -96,6 +111,7 @@ public class ExecutionVenueNioClient extends AbstractClientTransport implements
                 nioConfig, ioHandler, sessionCloseListener, reconnectInterval, handshakeResponseTimeout, sessionRecycleInterval, addressResolver);
         this.addressList = addressList;
         this.objectIOFactory = objectIOFactory;
+        this.serialisationBufferPool = nioConfig.getSerialisationBufferPool();
         if (clientSocketTransportInfo != null) {
             addListener(clientSocketTransportInfo);
         }
@@ -105,6 +121,22 @@ public class ExecutionVenueNioClient extends AbstractClientTransport implements
             addListener(rpcTimeoutChecker);
         }
         this.connectedObjectManager = connectedObjectManager;
+        this.hedgeScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Socket-Client-Hedger");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Socket-Client-Hedge-Sender");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     public IoSessionFactory getSessionFactory() {
@@ -189,13 +221,25 @@ public class ExecutionVenueNioClient extends AbstractClientTransport implements
         public void messageReceived(final IoSession session, final Object message) throws Exception {
             RequestResponseManager requestResponseManager = (RequestResponseManager) session.getAttribute(RequestResponseManager.SESSION_KEY);
             if (message instanceof ResponseMessage) {
-                if (requestResponseManager != null) {
-                    requestResponseManager.messageReceived(session, message);
+                // response handlers deserialise synchronously, so the payload can be released once they're done
+                try {
+                    if (requestResponseManager != null) {
+                        requestResponseManager.messageReceived(session, message);
+                    }
+                }
+                finally {
+                    ((ResponseMessage) message).release();
                 }
             } else if (message instanceof EventMessage) {
                 EventMessage em = (EventMessage) message;
-                CougarObjectInput input = objectIOFactory.newCougarObjectInput(new ByteArrayInputStream(em.getPayload()), CougarProtocol.getProtocolVersion(session));
-                Object payload = input.readObject();
+                Object payload;
+                try {
+                    CougarObjectInput input = objectIOFactory.newCougarObjectInput(em.getPayloadInputStream(), CougarProtocol.getProtocolVersion(session));
+                    payload = input.readObject();
+                }
+                finally {
+                    em.release();
+                }
                 if (payload instanceof HeapDelta) {
                     connectedObjectManager.applyDelta(session, (HeapDelta) payload);
                 } else if (payload instanceof TerminateSubscription) {
@@ -287,89 +331,341 @@ public class ExecutionVenueNioClient extends AbstractClientTransport implements
                 }
                 observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.FrameworkError,
                         "This Client is not connected to a server so this call cannot be completed!")));
+            } else if (isHedgeable(def)) {
+                new HedgedCall(ctx, def, args, observer, timeConstraints).start(session);
             } else {
                 try {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    byte protocolVersion = CougarProtocol.getProtocolVersion(session);
-                    final CougarObjectOutput out = objectIOFactory.newCougarObjectOutput(baos, protocolVersion);
+                    sendRequest(session, ctx, def, args, observer, timeConstraints);
+                } catch (Throwable e) {
+                    observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.FrameworkError,
+                            "An exception occurred with remote method call", e)));
+                }
+            }
+        }
+    }
 
-//                    addObserver(correlationId, def.getReturnType(), observer);
-                    marshaller.writeInvocationRequest(new InvocationRequest() {
+    private boolean isHedgeable(OperationDefinition def) {
+        return def.isIdempotent()
+                && def.getOperationKey().getType() == OperationKey.Type.Request
+                && hedgingPolicy.isEnabled();
+    }
 
-                        @Override
-                        public Object[] getArgs() {
-                            return args;
-                        }
+    /**
+     * Serialises the invocation and sends it over the given session.
+     *
+     * @return the correlation id of the request
+     */
+    private long sendRequest(final IoSession session, final ExecutionContext ctx, final OperationDefinition def, final Object[] args,
+                             final ExecutionObserver observer, final TimeConstraints timeConstraints) throws IOException {
+        RequestResponseManager requestResponseManager = (RequestResponseManager) session.getAttribute(RequestResponseManager.SESSION_KEY);
+        if (requestResponseManager == null) {
+            throw new SessionUnavailableException("Session has no request response manager, most likely it has been closed", null);
+        }
+        PooledByteArrayOutputStream baos = new PooledByteArrayOutputStream(serialisationBufferPool);
+        byte protocolVersion = CougarProtocol.getProtocolVersion(session);
+        final CougarObjectOutput out = objectIOFactory.newCougarObjectOutput(baos, protocolVersion);
+        final ClientOperationIdTable.OperationId operationId = protocolVersion >= CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS
+                ? getOperationIdTable(session).getOperationId(def) : null;
+        if (connectedObjectManager != null && def.getOperationKey().getType() == OperationKey.Type.ConnectedObject
+                && protocolVersion >= CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION) {
+            // must reach the server ahead of the subscription request
+            connectedObjectManager.offerResumableHeaps(session);
+        }
 
-                        @Override
-                        public ExecutionContext getExecutionContext() {
-                            return ctx;
-                        }
+        marshaller.writeInvocationRequest(new InvocationRequest() {
 
-                        @Override
-                        public OperationKey getOperationKey() {
-                            return def.getOperationKey();
-                        }
+            @Override
+            public Object[] getArgs() {
+                return args;
+            }
 
-                        @Override
-                        public Parameter[] getParameters() {
-                            return def.getParameters();
-                        }
+            @Override
+            public ExecutionContext getExecutionContext() {
+                return ctx;
+            }
 
-                        @Override
-                        public TimeConstraints getTimeConstraints() {
-                            return timeConstraints;
-                        }
-                    }, out, getIdentityResolver(), protocolVersion);
-                    out.close();
-
-                    ((RequestResponseManager) session.getAttribute(RequestResponseManager.SESSION_KEY)).sendRequest(baos.toByteArray(), new RequestResponseManager.ResponseHandler() {
-                        @Override
-                        public void responseReceived(ResponseMessage message) {
-                            CougarObjectInput in = objectIOFactory.newCougarObjectInput(new ByteArrayInputStream(message.getPayload()), CougarProtocol.getProtocolVersion(session));
-
-                            try {
-                                EnumUtils.setHardFailureForThisThread(hardFailEnumDeserialisation);
-                                InvocationResponse response = marshaller.readInvocationResponse(def.getReturnType(), in);
-                                // connected object calls need some additional setup prior to responding to the observer
-                                if (def.getOperationKey().getType() == OperationKey.Type.ConnectedObject && response.isSuccess()) {
-                                    connectedObjectManager.handleSubscriptionResponse(session, response, observer);
-                                }
-                                else {
-                                    response.recreate(observer, def.getReturnType(), message.getPayload().length);
-                                }
-                            } catch (Exception e) {
-                                observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.BinDeserialisationParseFailure, "Unable to deserialise response, closing session", e)));
-                                if (session.isConnected()) {
-                                    logger.log(NioLogger.LoggingLevel.SESSION, session, "Error occurred whilst trying to deserialise response, closing session");
-                                    // it is possible that we never get here
-                                    session.close();
+            @Override
+            public OperationKey getOperationKey() {
+                return def.getOperationKey();
+            }
+
+            @Override
+            public Parameter[] getParameters() {
+                return def.getParameters();
+            }
+
+            @Override
+            public TimeConstraints getTimeConstraints() {
+                return timeConstraints;
+            }
+        }, out, getIdentityResolver(),
+                operationId != null ? operationId.getId() : OperationHeader.NO_OPERATION_ID,
+                operationId != null && !operationId.isKnownToServer(), protocolVersion);
+        out.close();
+
+        try {
+            return dispatchRequest(requestResponseManager, session, baos, def, observer, operationId);
+        } catch (IOException e) {
+            throw new SessionUnavailableException("Unable to send request over session", e);
+        }
+    }
+
+    private long dispatchRequest(RequestResponseManager requestResponseManager, final IoSession session, PooledByteArrayOutputStream baos, final OperationDefinition def,
+                                 final ExecutionObserver observer, final ClientOperationIdTable.OperationId operationId) throws IOException {
+        return requestResponseManager.sendRequest(baos.detachPayloadBuffer(), new RequestResponseManager.ResponseHandler() {
+            @Override
+            public void responseReceived(ResponseMessage message) {
+                CougarObjectInput in = objectIOFactory.newCougarObjectInput(message.getPayloadInputStream(), CougarProtocol.getProtocolVersion(session));
+
+                try {
+                    EnumUtils.setHardFailureForThisThread(hardFailEnumDeserialisation);
+                    InvocationResponse response = marshaller.readInvocationResponse(def.getReturnType(), in);
+                    if (operationId != null && response.isSuccess()) {
+                        operationId.setKnownToServer();
+                    }
+                    // connected object calls need some additional setup prior to responding to the observer
+                    if (def.getOperationKey().getType() == OperationKey.Type.ConnectedObject && response.isSuccess()) {
+                        connectedObjectManager.handleSubscriptionResponse(session, response, observer);
+                    }
+                    else {
+                        response.recreate(observer, def.getReturnType(), message.getPayloadLength());
+                    }
+                } catch (Exception e) {
+                    observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.BinDeserialisationParseFailure, "Unable to deserialise response, closing session", e)));
+                    if (session.isConnected()) {
+                        logger.log(NioLogger.LoggingLevel.SESSION, session, "Error occurred whilst trying to deserialise response, closing session");
+                        // it is possible that we never get here
+                        session.close();
+                    }
+                }
+            }
+
+            @Override
+            public void timedOut() {
+                observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.Timeout, "Exception occurred in Client: Read timed out: "+NioUtils.getRemoteAddressUrl(session))));
+            }
+
+            @Override
+            public void sessionClosed() {
+                observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.RemoteCougarCommunicationFailure, "Connectivity to remote server lost!")));
+            }
+        });
+    }
+
+    private ClientOperationIdTable getOperationIdTable(IoSession session) {
+        ClientOperationIdTable ret = (ClientOperationIdTable) session.getAttribute(ClientOperationIdTable.SESSION_KEY);
+        if (ret == null) {
+            synchronized (session) {
+                ret = (ClientOperationIdTable) session.getAttribute(ClientOperationIdTable.SESSION_KEY);
+                if (ret == null) {
+                    ret = new ClientOperationIdTable();
+                    session.setAttribute(ClientOperationIdTable.SESSION_KEY, ret);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * A call to an idempotent operation which, if no response has arrived within the hedging policy's delay, is
+     * sent again over a different session. Whichever response arrives first is passed on, and the other request is
+     * cancelled. Failures of the transport (time outs, lost sessions) on one request are only passed on if the other
+     * one can't still succeed.
+     */
+    private class HedgedCall {
+        private final ExecutionContext ctx;
+        private final OperationDefinition def;
+        private final Object[] args;
+        private final ExecutionObserver observer;
+        private final TimeConstraints timeConstraints;
+
+        private final AtomicBoolean complete = new AtomicBoolean();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile Attempt primary;
+        private volatile Attempt hedge;
+        private volatile ScheduledFuture<?> hedgeTask;
+
+        private HedgedCall(ExecutionContext ctx, OperationDefinition def, Object[] args, ExecutionObserver observer, TimeConstraints timeConstraints) {
+            this.ctx = ctx;
+            this.def = def;
+            this.args = args;
+            this.observer = observer;
+            this.timeConstraints = timeConstraints;
+        }
+
+        void start(final IoSession session) {
+            hedgingPolicy.hedgeableRequest();
+            primary = new Attempt(session, false);
+            outstanding.incrementAndGet();
+            primary.send();
+
+            long delay = hedgingPolicy.getHedgeDelayMillis();
+            if (delay >= 0 && !complete.get()) {
+                hedgeTask = hedgeScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            hedgeExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    sendHedge(session);
                                 }
-                            }
+                            });
+                        } catch (RejectedExecutionException e) {
+                            // no hedge then, the primary is still outstanding
                         }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
 
-                        @Override
-                        public void timedOut() {
-                            observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.Timeout, "Exception occurred in Client: Read timed out: "+NioUtils.getRemoteAddressUrl(session))));
-                        }
+        private void sendHedge(IoSession primarySession) {
+            if (complete.get()) {
+                return;
+            }
+            IoSession session = null;
+            for (int i = 0; i < MAX_HEDGE_SESSION_ATTEMPTS && (session == null || session == primarySession); i++) {
+                session = sessionFactory.getSession();
+            }
+            if (session == null || session == primarySession) {
+                // nowhere else to send it
+                return;
+            }
+            Attempt attempt = new Attempt(session, true);
+            outstanding.incrementAndGet();
+            hedge = attempt;
+            hedgingPolicy.hedgeSent();
+            attempt.send();
+            // the primary may have answered while this was being sent, in which case it couldn't cancel us
+            if (complete.get()) {
+                attempt.cancel();
+            }
+        }
 
-                        @Override
-                        public void sessionClosed() {
-                            observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.RemoteCougarCommunicationFailure, "Connectivity to remote server lost!")));
-                        }
-                    });
+        private void onResult(Attempt attempt, ExecutionResult result, boolean retryable) {
+            if (complete.get()) {
+                return;
+            }
+            int remaining = outstanding.decrementAndGet();
+            if (retryable && remaining > 0) {
+                // the other request may yet succeed
+                return;
+            }
+            if (complete.compareAndSet(false, true)) {
+                ScheduledFuture<?> task = hedgeTask;
+                if (task != null) {
+                    task.cancel(false);
+                }
+                Attempt other = attempt == primary ? hedge : primary;
+                if (other != null) {
+                    other.cancel();
+                }
+                if (!retryable) {
+                    hedgingPolicy.recordResponseTime(System.currentTimeMillis() - attempt.sentTime);
+                    if (attempt.isHedge) {
+                        hedgingPolicy.hedgeWon();
+                    }
+                }
+                observer.onResult(result);
+            }
+        }
+
+        private class Attempt implements ExecutionObserver {
+            private final IoSession session;
+            private final boolean isHedge;
+            private final long sentTime = System.currentTimeMillis();
+            private volatile long correlationId = -1;
+
+            private Attempt(IoSession session, boolean isHedge) {
+                this.session = session;
+                this.isHedge = isHedge;
+            }
+
+            void send() {
+                try {
+                    correlationId = sendRequest(session, ctx, def, args, this, timeConstraints);
+                } catch (SessionUnavailableException e) {
+                    // another session may still be able to take it
+                    HedgedCall.this.onResult(this, new ExecutionResult(new CougarServiceException(ServerFaultCode.FrameworkError,
+                            "An exception occurred with remote method call", e)), true);
                 } catch (Throwable e) {
-                    observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.FrameworkError,
-                            "An exception occurred with remote method call", e)));
+                    // e.g. the arguments couldn't be serialised, which would fail on any session
+                    HedgedCall.this.onResult(this, new ExecutionResult(new CougarServiceException(ServerFaultCode.FrameworkError,
+                            "An exception occurred with remote method call", e)), false);
+                }
+            }
+
+            void cancel() {
+                long id = correlationId;
+                if (id != -1) {
+                    RequestResponseManager requestResponseManager = (RequestResponseManager) session.getAttribute(RequestResponseManager.SESSION_KEY);
+                    if (requestResponseManager != null) {
+                        requestResponseManager.cancelRequest(id);
+                    }
                 }
             }
+
+            @Override
+            public void onResult(ExecutionResult result) {
+                HedgedCall.this.onResult(this, result, isTransportFailure(result));
+            }
+        }
+    }
+
+    /**
+     * Thrown when a serialised request couldn't be handed to its session, as opposed to failing to be serialised.
+     */
+    private static class SessionUnavailableException extends IOException {
+        private SessionUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static boolean isTransportFailure(ExecutionResult result) {
+        if (!result.isFault()) {
+            return false;
         }
+        ServerFaultCode code = result.getFault().getServerFaultCode();
+        return code == ServerFaultCode.Timeout
+                || code == ServerFaultCode.RemoteCougarCommunicationFailure
+                || code == ServerFaultCode.BinDeserialisationParseFailure;
     }
 
     public void setMarshaller(RemotableMethodInvocationMarshaller marshaller) {
         this.marshaller = marshaller;
     }
 
+    public void setSessionSelector(SessionSelector sessionSelector) {
+        sessionFactory.setSessionSelector(sessionSelector);
+    }
+
+    public void setConnectionsPerEndpoint(int connectionsPerEndpoint) {
+        sessionFactory.setConnectionsPerEndpoint(connectionsPerEndpoint);
+    }
+
+    /**
+     * Executor hedged requests are sent on, once their delay has passed.
+     */
+    public void setHedgeExecutor(Executor hedgeExecutor) {
+        this.hedgeExecutor = hedgeExecutor;
+    }
+
+    public void setHedgingEnabled(boolean hedgingEnabled) {
+        hedgingPolicy.setEnabled(hedgingEnabled);
+    }
+
+    public void setHedgeDelayPercentile(int hedgeDelayPercentile) {
+        hedgingPolicy.setDelayPercentile(hedgeDelayPercentile);
+    }
+
+    public void setHedgeMinDelayMillis(long hedgeMinDelayMillis) {
+        hedgingPolicy.setMinDelayMillis(hedgeMinDelayMillis);
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
     public RemotableMethodInvocationMarshaller getMarshaller() {
         return marshaller;
     }
@@ -426,6 +722,7 @@ public class ExecutionVenueNioClient extends AbstractClientTransport implements
                 for (String instance : instances) {
                     control.registerMBean("CoUGAR.socket.transport.client:name=socketSessionFactory,instance=" + instance, sessionFactory);
                     control.registerMBean("CoUGAR.socket.transport.client:name=socketSessionRecycler,instance=" + instance, sessionFactory.getSessionRecycler());
+                    control.registerMBean("CoUGAR.socket.transport.client:name=socketHedging,instance=" + instance, hedgingPolicy);
                 }
             }
         } catch (Exception ex) {
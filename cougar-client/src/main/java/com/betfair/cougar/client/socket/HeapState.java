@@ -23,28 +23,59 @@ import com.betfair.platform.virtualheap.Heap;
 import org.apache.mina.common.IoSession;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class HeapState {
+    public static final int DEFAULT_DELTA_BUFFER_CAPACITY = 128;
+
     private final Heap heap;
-    private final BlockingQueue<QueuedHeapDelta> queue = new PriorityBlockingQueue<QueuedHeapDelta>(10, HEAP_DELTA_COMPARATOR);
     private final AtomicLong lastUpdateId = new AtomicLong(-1);
     private final Lock heapUpdateLock = new ReentrantLock();
     private final ConcurrentMap<String, ClientSubscription> subscriptions = new ConcurrentHashMap<String, ClientSubscription>();
 
+    // deltas waiting to be applied, each in the slot for the update id it starts at (mod capacity). since update ids
+    // are dense, only the next capacity ids can ever be waiting, so they never collide
+    private final Object bufferLock = new Object();
+    private final HeapDelta[] buffer;
+    private final long[] bufferedAt;
+    private int bufferedCount;
+    private HeapDelta initialDelta;
+    private long initialBufferedAt;
+    private final List<HeapDelta> deltasBeforeInitial = new ArrayList<HeapDelta>();
+    private boolean overflowed;
+    // when we started waiting for the next update id, 0 if there's no gap
+    private long gapSince;
+
     private volatile boolean seenInitialUpdate;
+    private final AtomicBoolean processingScheduled = new AtomicBoolean();
+    private final AtomicLong appliedDeltaCount = new AtomicLong();
+    // identifies the server instance which assigned the heap id, 0 if the server doesn't support heap resumption
+    private final long epoch;
 
     public HeapState(Heap heap) {
+        this(heap, 0, DEFAULT_DELTA_BUFFER_CAPACITY);
+    }
+
+    public HeapState(Heap heap, long epoch, int deltaBufferCapacity) {
+        if (deltaBufferCapacity < 1) {
+            throw new IllegalArgumentException("Delta buffer capacity must be at least 1");
+        }
         this.heap = heap;
+        this.epoch = epoch;
+        this.buffer = new HeapDelta[deltaBufferCapacity];
+        this.bufferedAt = new long[deltaBufferCapacity];
+    }
+
+    public long getEpoch() {
+        return epoch;
     }
 
     public Subscription addSubscription(ClientConnectedObjectManager ccom, IoSession session, long heapId, String subscriptionId) {
@@ -86,7 +117,52 @@ public class HeapState {
     }
 
     public void queueUpdate(HeapDelta payload) {
-        queue.add(new QueuedHeapDelta(payload));
+        long now = System.currentTimeMillis();
+        synchronized (bufferLock) {
+            if (!seenInitialUpdate) {
+                if (isInitialUpdate(payload)) {
+                    initialDelta = payload;
+                    initialBufferedAt = now;
+                } else {
+                    // we can't place these until we know where the initial update leaves us
+                    deltasBeforeInitial.add(payload);
+                }
+                return;
+            }
+            buffer(payload, now);
+        }
+    }
+
+    // note, you must hold the buffer lock before calling this method
+    private void buffer(HeapDelta delta, long now) {
+        long sequence = getSequence(delta);
+        long next = getNextUpdateId();
+        if (sequence < next) {
+            // already applied, most likely covered by a conflated delta
+            return;
+        }
+        if (sequence - next >= buffer.length) {
+            overflowed = true;
+            return;
+        }
+        int slot = slot(sequence);
+        if (buffer[slot] == null) {
+            bufferedCount++;
+        }
+        buffer[slot] = delta;
+        bufferedAt[slot] = now;
+        if (gapSince == 0 && buffer[slot(next)] == null) {
+            gapSince = now;
+        }
+    }
+
+    private static long getSequence(HeapDelta delta) {
+        // a conflated delta replaces all the deltas in its range, so must start at the one we're waiting for
+        return delta.isConflated() ? delta.getFirstUpdateId() : delta.getUpdateId();
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % buffer.length);
     }
 
     public String getHeapUri() {
@@ -94,12 +170,12 @@ public class HeapState {
     }
 
     public HeapDelta peekNextDelta() {
-        QueuedHeapDelta next = queue.peek();
-        return next != null && isNextUpdate(next.delta) ? next.delta : null;
-    }
-
-    private boolean isNextUpdate(HeapDelta delta) {
-        return delta.getUpdateId() == getNextUpdateId() || isInitialUpdate(delta);
+        synchronized (bufferLock) {
+            if (!seenInitialUpdate) {
+                return initialDelta;
+            }
+            return buffer[slot(getNextUpdateId())];
+        }
     }
 
     private boolean isInitialUpdate(HeapDelta delta) {
@@ -129,56 +205,130 @@ public class HeapState {
     }
 
     public HeapDelta popNextDelta() {
-        HeapDelta nextDelta = queue.remove().delta; // We only call this if we know the queue has something
-        seenInitialUpdate |= isInitialUpdate(nextDelta);
-        lastUpdateId.set(nextDelta.getUpdateId());
-        return nextDelta;
+        // We only call this if we know there's a next delta
+        long now = System.currentTimeMillis();
+        synchronized (bufferLock) {
+            HeapDelta nextDelta;
+            if (!seenInitialUpdate) {
+                nextDelta = initialDelta;
+                initialDelta = null;
+                seenInitialUpdate = true;
+                lastUpdateId.set(nextDelta.getUpdateId());
+                for (HeapDelta delta : deltasBeforeInitial) {
+                    buffer(delta, now);
+                }
+                deltasBeforeInitial.clear();
+            } else {
+                long next = getNextUpdateId();
+                int slot = slot(next);
+                nextDelta = buffer[slot];
+                buffer[slot] = null;
+                bufferedCount--;
+                lastUpdateId.set(nextDelta.getUpdateId());
+                // a conflated delta makes anything else in its range redundant
+                long newNext = getNextUpdateId();
+                for (long id = next + 1; id < newNext && id - next < buffer.length; id++) {
+                    int s = slot(id);
+                    if (buffer[s] != null && getSequence(buffer[s]) < newNext) {
+                        buffer[s] = null;
+                        bufferedCount--;
+                    }
+                }
+            }
+            appliedDeltaCount.incrementAndGet();
+            if (bufferedCount == 0 || buffer[slot(getNextUpdateId())] != null) {
+                gapSince = 0;
+            } else {
+                // waiting on another gap, which we've known about since its first delta arrived
+                gapSince = oldestBufferedAt();
+            }
+            return nextDelta;
+        }
     }
 
-    public QueueHealth checkDeltaQueueHealth(int maxQueueSize, long maxWaitTime) {
-        // if the delta queue for a heap grows too long then we've lost a message and need to abort/disconnect
-        if (queue.size() > maxQueueSize) {
-            return QueueHealth.QUEUE_TOO_LONG;
+    // note, you must hold the buffer lock before calling this method
+    private long oldestBufferedAt() {
+        long oldest = initialDelta != null ? initialBufferedAt : Long.MAX_VALUE;
+        if (bufferedCount > 0) {
+            for (int i = 0; i < buffer.length; i++) {
+                if (buffer[i] != null) {
+                    oldest = Math.min(oldest, bufferedAt[i]);
+                }
+            }
         }
+        return oldest;
+    }
+
+    /**
+     * @return true if the caller should schedule processing of the queued deltas, false if it's already scheduled.
+     */
+    public boolean markProcessingScheduled() {
+        return processingScheduled.compareAndSet(false, true);
+    }
+
+    public void processingStarted() {
+        processingScheduled.set(false);
+    }
 
-        QueuedHeapDelta first = queue.peek();
-        if (first != null
-            && first.delta.getUpdateId() > getNextUpdateId()
-            && first.queueTime + maxWaitTime < System.currentTimeMillis()) {
-            // get the time the next update was queued, and check against that timeout..
-            return QueueHealth.WAITED_TOO_LONG;
+    public int getQueuedDeltaCount() {
+        synchronized (bufferLock) {
+            return bufferedCount + deltasBeforeInitial.size() + (initialDelta != null ? 1 : 0);
         }
+    }
 
-        return QueueHealth.HEALTHY;
+    /**
+     * @return how long (in ms) the oldest queued delta has been waiting to be applied, 0 if there's nothing queued.
+     */
+    public long getQueueLag() {
+        synchronized (bufferLock) {
+            long oldest = oldestBufferedAt();
+            return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+        }
     }
 
-    public static enum QueueHealth {
-        HEALTHY,
-        QUEUE_TOO_LONG,
-        WAITED_TOO_LONG
+    public long getAppliedDeltaCount() {
+        return appliedDeltaCount.get();
     }
 
-    private static final Comparator<QueuedHeapDelta> HEAP_DELTA_COMPARATOR = new Comparator<QueuedHeapDelta>() {
-        @Override
-        public int compare(QueuedHeapDelta o1, QueuedHeapDelta o2) {
-            long a = o1.delta.getUpdateId();
-            long b = o2.delta.getUpdateId();
-            if (a > b) {
-                return 1;
-            } else if (b > a) {
-                return -1;
-            } else {
-                return 0;
-            }
+    /**
+     * Discards any deltas which arrived on a previous session but couldn't yet be applied.
+     */
+    public void clearQueuedDeltas() {
+        synchronized (bufferLock) {
+            Arrays.fill(buffer, null);
+            bufferedCount = 0;
+            initialDelta = null;
+            deltasBeforeInitial.clear();
+            overflowed = false;
+            gapSince = 0;
         }
-    };
+    }
 
-    private static final class QueuedHeapDelta {
-        private final long queueTime = System.currentTimeMillis();
-        private final HeapDelta delta;
+    /**
+     * @return true if a delta arrived too far ahead of the next one we're waiting for to be buffered.
+     */
+    public boolean isOverflowed() {
+        synchronized (bufferLock) {
+            return overflowed;
+        }
+    }
 
-        private QueuedHeapDelta(HeapDelta delta) {
-            this.delta = delta;
+    public QueueHealth checkDeltaQueueHealth(long maxWaitTime) {
+        synchronized (bufferLock) {
+            // if too many deltas arrive after a missing one then we've lost a message and need to abort/disconnect
+            if (overflowed) {
+                return QueueHealth.QUEUE_TOO_LONG;
+            }
+            if (gapSince != 0 && gapSince + maxWaitTime < System.currentTimeMillis()) {
+                return QueueHealth.WAITED_TOO_LONG;
+            }
+            return QueueHealth.HEALTHY;
         }
     }
+
+    public static enum QueueHealth {
+        HEALTHY,
+        QUEUE_TOO_LONG,
+        WAITED_TOO_LONG
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.client.socket;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides how long the socket client waits for a response to an idempotent operation before sending a duplicate
+ * (hedge) request over another session, and counts how often it does so.
+ * <p/>
+ * The delay is the configured percentile of recently observed response times, so only the slowest few percent of
+ * calls are hedged. No hedges are sent until enough responses have been seen to estimate it.
+ */
+@ManagedResource
+public class HedgingPolicy {
+
+    static final int SAMPLE_WINDOW = 1024;
+    static final int MIN_SAMPLES = 64;
+    // how many responses between recalculations of the delay
+    static final int RECALCULATION_INTERVAL = 128;
+
+    private volatile boolean enabled;
+    private volatile int delayPercentile = 95;
+    private volatile long minDelayMillis = 5;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLE_WINDOW);
+    private final AtomicInteger sampleCount = new AtomicInteger();
+    private volatile long hedgeDelayMillis = -1;
+
+    private final AtomicLong hedgeableRequests = new AtomicLong();
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * @return how long to wait before hedging, or -1 if hedging shouldn't be done at the moment
+     */
+    public long getHedgeDelayMillis() {
+        return enabled ? hedgeDelayMillis : -1;
+    }
+
+    void recordResponseTime(long millis) {
+        // masked so that wrapping round just looks like a restart
+        int count = sampleCount.incrementAndGet() & Integer.MAX_VALUE;
+        samples.set((count - 1) & (SAMPLE_WINDOW - 1), millis);
+        if (count >= MIN_SAMPLES && (count == MIN_SAMPLES || count % RECALCULATION_INTERVAL == 0)) {
+            recalculate(Math.min(count, SAMPLE_WINDOW));
+        }
+    }
+
+    private void recalculate(int n) {
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        int index = Math.min(n - 1, (int) Math.ceil(n * delayPercentile / 100.0) - 1);
+        hedgeDelayMillis = Math.max(minDelayMillis, sorted[Math.max(0, index)]);
+    }
+
+    void hedgeableRequest() {
+        hedgeableRequests.incrementAndGet();
+    }
+
+    void hedgeSent() {
+        hedgesSent.incrementAndGet();
+    }
+
+    void hedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+
+    @ManagedAttribute
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @ManagedAttribute
+    public int getDelayPercentile() {
+        return delayPercentile;
+    }
+
+    @ManagedAttribute
+    public void setDelayPercentile(int delayPercentile) {
+        if (delayPercentile < 1 || delayPercentile > 100) {
+            throw new IllegalArgumentException("delayPercentile must be between 1 and 100: " + delayPercentile);
+        }
+        this.delayPercentile = delayPercentile;
+    }
+
+    @ManagedAttribute
+    public long getMinDelayMillis() {
+        return minDelayMillis;
+    }
+
+    @ManagedAttribute
+    public void setMinDelayMillis(long minDelayMillis) {
+        this.minDelayMillis = minDelayMillis;
+    }
+
+    @ManagedAttribute
+    public long getCurrentHedgeDelayMillis() {
+        return hedgeDelayMillis;
+    }
+
+    @ManagedAttribute
+    public long getHedgeableRequests() {
+        return hedgeableRequests.get();
+    }
+
+    @ManagedAttribute
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    @ManagedAttribute
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * Percentage of hedgeable requests which had a hedge sent.
+     */
+    @ManagedAttribute
+    public double getHedgeRate() {
+        long requests = hedgeableRequests.get();
+        return requests == 0 ? 0 : (hedgesSent.get() * 100.0) / requests;
+    }
+}
@@ -37,21 +37,24 @@ import java.util.*;
  *
  */
 @ManagedResource
-public class IoSessionFactory {
+public class IoSessionFactory implements SessionSelector.Availability {
 
     private static final Logger log = LoggerFactory.getLogger(IoSessionFactory.class);
     private final NioLogger logger;
 
     private int handshakeResponseTimeout;
     private int reconnectInterval;
+    private volatile int connectionsPerEndpoint = 1;
 
     private final SocketConnector socketConnector;
 
-    private final Object lock = new Object(); // a lock object to protect access to session list and a  counter
-    private volatile int counter = 0;
+    private final Object lock = new Object(); // a lock object to protect access to session list
 
-    // Maintains a list of all endpoints to which connections are established
-    private final Map<SocketAddress, IoSession> sessions = new TreeMap<SocketAddress, IoSession>(new AddressComparator());
+    // Maintains a list of all endpoints to which connections are established, along with those connections
+    private final Map<SocketAddress, List<IoSession>> sessions = new TreeMap<SocketAddress, List<IoSession>>(new AddressComparator());
+    // all the sessions in the map above, replaced whenever it changes, so getSession() doesn't need the lock
+    private volatile IoSession[] sessionSnapshot = new IoSession[0];
+    private volatile SessionSelector sessionSelector = new RoundRobinSessionSelector();
 
     private final IoHandler ioHandler;
     private final IoFutureListener sessionClosedListener;
@@ -115,10 +118,7 @@ public class IoSessionFactory {
     }
 
     public Map<String, String> getConnectedStatus() {
-        List<IoSession> tmp;
-        synchronized (lock) {
-            tmp = new ArrayList<IoSession>(sessions.values());
-        }
+        List<IoSession> tmp = Arrays.asList(sessionSnapshot);
         final HashMap<String, String> result = new HashMap<String, String>();
         for (IoSession session : tmp) {
             final String sessionId = NioUtils.getSessionId(session);
@@ -140,42 +140,62 @@ public class IoSessionFactory {
 
     public void stop() {
         keepRunning = false; // stop all tasks to reconnect
-        ArrayList<IoSession> sessionsSnapshot;
-        synchronized (lock) {
-            sessionsSnapshot = new ArrayList<IoSession>(sessions.values());
-        }
-        for (IoSession session : sessionsSnapshot) {  // close each open session
+        for (IoSession session : sessionSnapshot) {  // close each open session
             close(session);
         }
     }
 
     /**
-     * Rotates via list of currently established sessions
+     * Picks one of the currently established sessions using the configured {@link SessionSelector}
      *
-     * @return an IO session
+     * @return an IO session, or null if none are available
      */
     public IoSession getSession() {
-        synchronized (lock) {
-            if (sessions.isEmpty()) {
-                return null;
-            } else {
-                final Object[] keys = sessions.keySet().toArray();
-                for (int i = 0; i < sessions.size(); i++) { //
-                    counter++;
-                    final int pos = Math.abs(counter % sessions.size());
-                    final IoSession session = sessions.get(keys[pos]);
-                    if (isAvailable(session)) {
-                        return session;
-                    }
-                }
-                return null;
-            }
+        return sessionSelector.select(sessionSnapshot, this);
+    }
+
+    // must be called holding the lock
+    private void addSession(SocketAddress endpoint, IoSession session) {
+        List<IoSession> endpointSessions = sessions.get(endpoint);
+        if (endpointSessions == null) {
+            endpointSessions = new ArrayList<IoSession>(connectionsPerEndpoint);
+            sessions.put(endpoint, endpointSessions);
         }
+        endpointSessions.add(session);
+        updateSessionSnapshot();
+    }
+
+    // must be called holding the lock
+    private boolean removeSession(SocketAddress endpoint, IoSession session) {
+        List<IoSession> endpointSessions = sessions.get(endpoint);
+        if (endpointSessions == null || !endpointSessions.remove(session)) {
+            return false;
+        }
+        if (endpointSessions.isEmpty()) {
+            sessions.remove(endpoint);
+        }
+        updateSessionSnapshot();
+        return true;
+    }
+
+    // must be called holding the lock
+    private int getSessionCount(SocketAddress endpoint) {
+        List<IoSession> endpointSessions = sessions.get(endpoint);
+        return endpointSessions != null ? endpointSessions.size() : 0;
+    }
+
+    // must be called holding the lock
+    private void updateSessionSnapshot() {
+        List<IoSession> all = new ArrayList<IoSession>();
+        for (List<IoSession> endpointSessions : sessions.values()) {
+            all.addAll(endpointSessions);
+        }
+        sessionSnapshot = all.toArray(new IoSession[all.size()]);
     }
 
     /**
-     * Open a new session to the specified address. If session is being
-     * opened does nothing
+     * Opens new sessions to the specified address until there are <code>connectionsPerEndpoint</code> of them.
+     * If sessions are already being opened does nothing
      *
      * @param endpoint
      */
@@ -183,7 +203,8 @@ public class IoSessionFactory {
     public void openSession(SocketAddress endpoint) {
         synchronized (lock) {
             // Submit a reconnect task for this address if one is not already present
-            if (!pendingConnections.containsKey(endpoint)) {
+            final ReconnectTask existing = pendingConnections.get(endpoint);
+            if (existing == null || existing.isStopped()) {
                 final ReconnectTask task = new ReconnectTask(endpoint);
                 pendingConnections.put(endpoint, task);
                 this.reconnectExecutor.submit(task);
@@ -192,31 +213,30 @@ public class IoSessionFactory {
     }
 
     /**
-     * If there is an active session to the specified endpoint, it will be closed
-     * If not the reconnection task for the endpoint will be stopped
+     * Stops any reconnection task for the specified endpoint, and closes
+     * all the active sessions to it
      *
      * @param endpoint
-     * @param reconnect whether to reconnect after closing the current session.
-     *                  Only used if the session is active
+     * @param reconnect whether to reconnect after closing the current sessions.
+     *                  Only used if there are active sessions
      */
     public void closeSession(SocketAddress endpoint, boolean reconnect) {
         synchronized (lock) {
-            // Submit a reconnect task for this address if one is not already present
-            if (pendingConnections.containsKey(endpoint)) {
-                final ReconnectTask task = pendingConnections.get(endpoint);
-                if (task != null) {
-                    task.stop();
-                }
-            } else {
-                final IoSession ioSession = sessions.get(endpoint);
-                if (ioSession != null) {
+            final ReconnectTask task = pendingConnections.get(endpoint);
+            if (task != null) {
+                task.stop();
+            }
+            final List<IoSession> endpointSessions = sessions.get(endpoint);
+            if (endpointSessions != null) {
+                for (IoSession ioSession : new ArrayList<IoSession>(endpointSessions)) {
                     close(ioSession, reconnect);
                 }
             }
         }
     }
 
-    boolean isAvailable(IoSession session) {
+    @Override
+    public boolean isAvailable(IoSession session) {
         return (session.isConnected() // connected
                 && !session.isClosing() // close has not been initiated
                 && !session.containsAttribute(ProtocolMessage.ProtocolMessageType.SUSPEND.name()) // suspend message has not been received
@@ -244,8 +264,7 @@ public class IoSessionFactory {
         boolean sessionRemoved = false;
         final SocketAddress remoteAddress = aSession.getRemoteAddress();
         synchronized (lock) {
-            final IoSession removed = sessions.remove(remoteAddress);
-            sessionRemoved = (removed != null);
+            sessionRemoved = removeSession(remoteAddress, aSession);
         }
 
         if (sessionRemoved) {
@@ -256,7 +275,7 @@ public class IoSessionFactory {
                 }
             } finally {
                 if (reconnect) {
-                    // Submit a reconnect task for this address if one is not already active
+                    // Submit a reconnect task for this address if one is not already active, to replace this session
                     openSession(remoteAddress);
                 }
             }
@@ -304,10 +323,11 @@ public class IoSessionFactory {
     }
 
     // ############################################
+    // Connects to an endpoint until it has connectionsPerEndpoint sessions
     private class ReconnectTask implements Runnable {
 
         private SocketAddress socketAddress;
-        private boolean stop;
+        private volatile boolean stop;
 
         private ReconnectTask(SocketAddress socketAddress) {
             this.socketAddress = socketAddress;
@@ -318,30 +338,39 @@ public class IoSessionFactory {
             IoSession session = null;
 
             long i = 1;
-            while (keepRunning && !stop) {
+            while (true) {
+                synchronized (lock) {
+                    // checked and removed together so a session closing in between can't be left without a replacement
+                    if (!keepRunning || stop || getSessionCount(socketAddress) >= connectionsPerEndpoint) {
+                        if (pendingConnections.get(socketAddress) == this) {
+                            pendingConnections.remove(socketAddress);
+                        }
+                        return;
+                    }
+                }
                 session = IoSessionFactory.this.connect(socketAddress);
                 if (session != null) {
                     synchronized (lock) {
-                        sessions.put(socketAddress, session);
-                        pendingConnections.remove(socketAddress);
+                        addSession(socketAddress, session);
                     }
-                    return;
+                    i = 1;
+                    continue;
                 }
                 try {
                     Thread.sleep((long) (reconnectInterval * (1.0 - Math.pow(0.9, i)) / 0.1)); // based on geometric series sum to plateau 10 times initial value
                     i++;
                 } catch (InterruptedException e) {/*ignored*/}
             }
-
-            synchronized (lock) {
-                pendingConnections.remove(socketAddress);
-            }
         }
 
         // Stop attempting to connect
         public void stop() {
             this.stop = true;
         }
+
+        public boolean isStopped() {
+            return stop;
+        }
     }
 
     @ManagedAttribute
@@ -353,6 +382,31 @@ public class IoSessionFactory {
         this.reconnectInterval = reconnectInterval;
     }
 
+    @ManagedAttribute
+    public int getConnectionsPerEndpoint() {
+        return connectionsPerEndpoint;
+    }
+
+    /**
+     * Sets how many sessions are kept open to each server, so that traffic to a single server can be spread over
+     * several sockets and MINA IO processors. Takes effect for each endpoint the next time a session to it is opened.
+     */
+    public void setConnectionsPerEndpoint(int connectionsPerEndpoint) {
+        if (connectionsPerEndpoint < 1) {
+            throw new IllegalArgumentException("connectionsPerEndpoint must be at least 1: " + connectionsPerEndpoint);
+        }
+        this.connectionsPerEndpoint = connectionsPerEndpoint;
+    }
+
+    @ManagedAttribute
+    public String getSessionSelectorName() {
+        return String.valueOf(sessionSelector);
+    }
+
+    public void setSessionSelector(SessionSelector sessionSelector) {
+        this.sessionSelector = sessionSelector;
+    }
+
     @ManagedAttribute
     public String getHosts() {
         return hosts;
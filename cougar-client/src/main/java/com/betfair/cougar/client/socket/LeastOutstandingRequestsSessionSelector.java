@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.client.socket;
+
+import com.betfair.cougar.netutil.nio.RequestResponseManager;
+import org.apache.mina.common.IoSession;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the available session with the fewest rpc calls awaiting a response, so a server which is slow to respond
+ * gets a correspondingly smaller share of new requests. The scan starts at a rotating offset so that sessions with
+ * equal counts (typically all of them when lightly loaded) are still used in turn.
+ */
+public class LeastOutstandingRequestsSessionSelector implements SessionSelector {
+
+    private final AtomicInteger offset = new AtomicInteger();
+
+    @Override
+    public IoSession select(IoSession[] sessions, Availability availability) {
+        int n = sessions.length;
+        if (n == 0) {
+            return null;
+        }
+        int start = (offset.getAndIncrement() & Integer.MAX_VALUE) % n;
+        IoSession best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            IoSession session = sessions[(start + i) % n];
+            if (!availability.isAvailable(session)) {
+                continue;
+            }
+            int outstanding = getOutstandingRequestCount(session);
+            if (outstanding < bestOutstanding) {
+                best = session;
+                bestOutstanding = outstanding;
+                if (outstanding == 0) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    static int getOutstandingRequestCount(IoSession session) {
+        RequestResponseManager requestResponseManager = (RequestResponseManager) session.getAttribute(RequestResponseManager.SESSION_KEY);
+        return requestResponseManager != null ? requestResponseManager.getOutstandingRequestCount() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return SessionSelectorFactory.LEAST_OUTSTANDING_REQUESTS;
+    }
+}
@@ -24,13 +24,14 @@ import com.betfair.cougar.netutil.nio.NioUtils;
 import com.betfair.cougar.netutil.nio.RequestResponseManager;
 import org.apache.mina.common.IoSession;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
- *
+ * Periodically expires timed out requests on every open session. Sessions come and go rarely compared to how often
+ * we check them, so they're held in a copy on write list, and the check never holds a lock.
  */
 public class RPCTimeoutChecker implements Runnable, HandlerListener {
 
@@ -38,7 +39,7 @@ public class RPCTimeoutChecker implements Runnable, HandlerListener {
 
     private static final AtomicLong rpcTimeoutCheckerThreadId = new AtomicLong();
     private Thread thread;
-    private final List<IoSession> sessions = new LinkedList<IoSession>();
+    private final List<IoSession> sessions = new CopyOnWriteArrayList<IoSession>();
     private volatile boolean running = true;
     private long checkGranularity;
 
@@ -56,13 +57,11 @@ public class RPCTimeoutChecker implements Runnable, HandlerListener {
     public void run() {
         while (running) {
             try {
-                synchronized (sessions) {
-                    for (IoSession session : sessions) {
-                        RequestResponseManager requestResponseManager = (RequestResponseManager) session.getAttribute(RequestResponseManager.SESSION_KEY);
-                        // can happen if we're called before the session has actual completed handshake with server..
-                        if (requestResponseManager != null) {
-                            requestResponseManager.checkForExpiredRequests();
-                        }
+                for (IoSession session : sessions) {
+                    RequestResponseManager requestResponseManager = (RequestResponseManager) session.getAttribute(RequestResponseManager.SESSION_KEY);
+                    // can happen if we're called before the session has actual completed handshake with server..
+                    if (requestResponseManager != null) {
+                        requestResponseManager.checkForExpiredRequests();
                     }
                 }
             }
@@ -86,15 +85,11 @@ public class RPCTimeoutChecker implements Runnable, HandlerListener {
 
     @Override
     public void sessionOpened(IoSession session) {
-        synchronized (sessions) {
-            sessions.add(session);
-        }
+        sessions.add(session);
     }
 
     @Override
     public void sessionClosed(IoSession session) {
-        synchronized (sessions) {
-            sessions.remove(session);
-        }
+        sessions.remove(session);
     }
 }
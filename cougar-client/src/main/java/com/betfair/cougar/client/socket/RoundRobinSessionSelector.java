@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.client.socket;
+
+import org.apache.mina.common.IoSession;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rotates through the available sessions regardless of how busy each one is.
+ */
+public class RoundRobinSessionSelector implements SessionSelector {
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Override
+    public IoSession select(IoSession[] sessions, Availability availability) {
+        int n = sessions.length;
+        for (int i = 0; i < n; i++) {
+            // masked rather than Math.abs so wrapping round doesn't give a negative index
+            final IoSession session = sessions[(counter.getAndIncrement() & Integer.MAX_VALUE) % n];
+            if (availability.isAvailable(session)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return SessionSelectorFactory.ROUND_ROBIN;
+    }
+}
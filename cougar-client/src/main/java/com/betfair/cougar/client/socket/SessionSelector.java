@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.client.socket;
+
+import org.apache.mina.common.IoSession;
+
+/**
+ * Chooses which of the currently established sessions an rpc call should be sent over. Called concurrently for
+ * every request, so implementations should avoid locking.
+ */
+public interface SessionSelector {
+
+    /**
+     * @param sessions the established sessions, in a stable order. Some may not be usable at the moment.
+     * @param availability says which of the sessions may be returned
+     * @return one of the available sessions, or null if there are none
+     */
+    IoSession select(IoSession[] sessions, Availability availability);
+
+    interface Availability {
+        boolean isAvailable(IoSession session);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.client.socket;
+
+/**
+ *
+ */
+public class SessionSelectorFactory {
+
+    public static final String ROUND_ROBIN = "roundRobin";
+    public static final String LEAST_OUTSTANDING_REQUESTS = "leastOutstandingRequests";
+
+    // Valid values are: "roundRobin", "leastOutstandingRequests" or a fully qualified class name
+    private String selector;
+
+    public SessionSelectorFactory(String selector) {
+        this.selector = selector;
+    }
+
+    public SessionSelector getSessionSelector() {
+        if (selector.equals(ROUND_ROBIN)) {
+            return new RoundRobinSessionSelector();
+        }
+        else if (selector.equals(LEAST_OUTSTANDING_REQUESTS)) {
+            return new LeastOutstandingRequestsSessionSelector();
+        }
+        else {
+            try {
+                return (SessionSelector) Class.forName(selector).newInstance();
+            }
+            catch (Exception e) {
+                throw new IllegalStateException("Can't initialise session selector: "+selector, e);
+            }
+        }
+    }
+}
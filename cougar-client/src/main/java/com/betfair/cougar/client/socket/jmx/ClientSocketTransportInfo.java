@@ -166,7 +166,7 @@ public class ClientSocketTransportInfo implements JMXHttpParser, HandlerListener
                 Collections.sort(heapIds);
                 result.append("<table border='1'><tr><th>Heap URI</th>");
                 if (showDetailedSessionBreakdown) {
-                    result.append("<th>Last delta received</th><th>Num subscribers</th>");
+                    result.append("<th>Last delta received</th><th>Num subscribers</th><th>Queued deltas</th><th>Queue lag (ms)</th><th>Deltas applied</th>");
                 }
                 result.append("<th></th></tr>\n");
                 for (Long id : heapIds) {
@@ -177,6 +177,7 @@ public class ClientSocketTransportInfo implements JMXHttpParser, HandlerListener
                         if (showDetailedSessionBreakdown) {
                             // add last delta sent/num subscribers
                             result.append("<td>").append(heapState.getLastDeltaId()).append("</td><td>").append(heapState.getSubscriptionCount()).append("</td>");
+                            result.append("<td>").append(heapState.getQueuedDeltaCount()).append("</td><td>").append(heapState.getQueueLag()).append("</td><td>").append(heapState.getAppliedDeltaCount()).append("</td>");
                         }
                         // add link to connected object detail
                         if (id.equals(heapIdToBreakDown)) {
@@ -79,6 +79,11 @@ public abstract class AbstractClientTest {
         public ParameterType getReturnType() {
             return RETURN_PARAM_TYPE;
         }
+
+        @Override
+        public boolean isIdempotent() {
+            return false;
+        }
     };
 
     private static final OperationKey key = new OperationKey(new ServiceVersion("v1.0"), "UnitTestService", "myUnitTestMethod");
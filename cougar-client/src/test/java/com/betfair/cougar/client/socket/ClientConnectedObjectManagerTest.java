@@ -19,7 +19,9 @@ package com.betfair.cougar.client.socket;
 import com.betfair.cougar.core.api.ev.ConnectedResponse;
 import com.betfair.cougar.core.api.ev.Subscription;
 import com.betfair.cougar.core.api.ev.WaitingObserver;
+import com.betfair.cougar.netutil.nio.CougarProtocol;
 import com.betfair.cougar.netutil.nio.HeapDelta;
+import com.betfair.cougar.netutil.nio.HeapResumption;
 import com.betfair.cougar.netutil.nio.NioLogger;
 import com.betfair.cougar.netutil.nio.NioUtils;
 import com.betfair.cougar.netutil.nio.TerminateSubscription;
@@ -81,7 +83,7 @@ public class ClientConnectedObjectManagerTest {
         subject.setMaxInitialPopulationWait(50L);
         subject.setPullerAwaitTimeout(20L);
         subject.setMissingDeltaTimeout(20L);
-        subject.setMaxDeltaQueue(10);
+        subject.setDeltaBufferCapacity(10);
         subject.setNioLogger(new NioLogger("TRANSPORT"));
         subject.setNumProcessingThreads(numThreads);
         objectIOFactory = mock(CougarObjectIOFactory.class);
@@ -212,6 +214,31 @@ public class ClientConnectedObjectManagerTest {
         assertFalse(sub1.equals(sub2));
     }
 
+    @Test
+    public void manySubscriptionsDontNeedManyThreads() throws Exception {
+        subject.setMaxInitialPopulationWait(5000L);
+        IoSession session = new MyIoSession(String.valueOf(ioSessionId++));
+        int threadsBefore = Thread.activeCount();
+
+        List<WaitingObserver> observers = new ArrayList<WaitingObserver>();
+        for (int i=1; i<=100; i++) {
+            NewHeapSubscription newHeapSubscription = new NewHeapSubscription(i, "sub"+i, "manySubscriptionsDontNeedManyThreads"+i);
+            WaitingObserver observer = new WaitingObserver();
+            subject.handleSubscriptionResponse(session, new InvocationResponseImpl(newHeapSubscription), observer);
+            observers.add(observer);
+        }
+        // all of them are waiting for their initial state, yet nothing has been started for them
+        assertTrue(Thread.activeCount() - threadsBefore < 10);
+
+        for (int i=1; i<=100; i++) {
+            subject.applyDelta(session, new HeapDelta(i, 0, createUpdateList(createInitial())));
+        }
+        for (WaitingObserver observer : observers) {
+            waitForAndAssertNotFault(observer);
+        }
+        assertEquals(100, subject.getHeapsForSession(session).getHeapCount());
+    }
+
     @Test
     public void basicUpdate() throws Exception {
         NewHeapSubscription newHeapSubscription = new NewHeapSubscription(1, "sub1", "basicUpdate");
@@ -1051,6 +1078,103 @@ public class ClientConnectedObjectManagerTest {
         assertTrue(session.getCloseFuture().isClosed());
     }
 
+    @Test
+    public void heapResumedOnNewSession() throws Exception {
+        subject.setResumptionWindow(10000L);
+        CougarObjectOutput out = mock(CougarObjectOutput.class);
+        when(objectIOFactory.newCougarObjectOutput(any(OutputStream.class), anyByte())).thenReturn(out);
+
+        NewHeapSubscription newHeapSubscription = new NewHeapSubscription(1, "sub1", "heapResumedOnNewSession");
+        newHeapSubscription.setEpoch(42);
+        WaitingObserver observer = new WaitingObserver();
+
+        IoSession session1 = new MyIoSession(String.valueOf(ioSessionId++));
+        session1.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION);
+        subject.handleSubscriptionResponse(session1, new InvocationResponseImpl(newHeapSubscription), observer);
+        subject.applyDelta(session1, new HeapDelta(1, 0, createUpdateList(createInitial())));
+        waitForAndAssertNotFault(observer);
+
+        Heap heap = ((ConnectedResponse) observer.getExecutionResult().getResult()).getHeap();
+        WaitingListener listener = new WaitingListener(1);
+        heap.addListener(listener, false);
+        subject.applyDelta(session1, new HeapDelta(1, 1, createUpdateList(createUpdate(new InstallRoot(0, NodeType.SCALAR), new SetScalar(0, 1)))));
+        assertTrue(listener.waitForEnd(1000L));
+
+        Subscription sub1 = getSubscriptionFrom(observer.getExecutionResult().getResult());
+        subject.sessionTerminated(session1);
+        assertEquals(Subscription.CloseReason.CONNECTION_CLOSED, sub1.getCloseReason());
+
+        // reconnect to the same server
+        IoSession session2 = new MyIoSession(String.valueOf(ioSessionId++));
+        session2.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION);
+        subject.offerResumableHeaps(session2);
+        verify(out).writeObject(new HeapResumption("heapResumedOnNewSession", 1, 42, 1));
+        // only offered once per session
+        subject.offerResumableHeaps(session2);
+        verify(out, times(1)).writeObject(any(HeapResumption.class));
+
+        NewHeapSubscription resumedSubscription = new NewHeapSubscription(1, "sub2", "heapResumedOnNewSession");
+        resumedSubscription.setEpoch(42);
+        resumedSubscription.setResumed(true);
+        observer = new WaitingObserver();
+        subject.handleSubscriptionResponse(session2, new InvocationResponseImpl(resumedSubscription), observer);
+        waitForAndAssertNotFault(observer);
+
+        // same heap, carrying on from where it left off
+        assertSame(heap, ((ConnectedResponse) observer.getExecutionResult().getResult()).getHeap());
+        assertEquals(1, subject.getResumedHeapCount());
+        listener = new WaitingListener(1);
+        heap.addListener(listener, false);
+        subject.applyDelta(session2, new HeapDelta(1, 2, createUpdateList(createUpdate(new SetScalar(0, 2)))));
+        assertTrue(listener.waitForEnd(1000L));
+    }
+
+    @Test
+    public void retainedHeapsExpiredWhenServerDoesntReconnect() throws Exception {
+        subject.setResumptionWindow(50L);
+
+        NewHeapSubscription newHeapSubscription = new NewHeapSubscription(1, "sub1", "retainedHeapsExpiredWhenServerDoesntReconnect");
+        newHeapSubscription.setEpoch(42);
+        WaitingObserver observer = new WaitingObserver();
+
+        IoSession session1 = new MyIoSession(String.valueOf(ioSessionId++));
+        session1.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION);
+        subject.handleSubscriptionResponse(session1, new InvocationResponseImpl(newHeapSubscription), observer);
+        subject.applyDelta(session1, new HeapDelta(1, 0, createUpdateList(createInitial())));
+        waitForAndAssertNotFault(observer);
+        subject.sessionTerminated(session1);
+        assertEquals(1, subject.getRetainedHeapCount());
+
+        // no new session to the server ever turns up
+        long giveUpAt = System.currentTimeMillis() + 1000L;
+        while (subject.getRetainedHeapCount() > 0 && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0, subject.getRetainedHeapCount());
+    }
+
+    @Test
+    public void heapNotRetainedForOlderProtocol() throws Exception {
+        subject.setResumptionWindow(10000L);
+        CougarObjectOutput out = mock(CougarObjectOutput.class);
+        when(objectIOFactory.newCougarObjectOutput(any(OutputStream.class), anyByte())).thenReturn(out);
+
+        NewHeapSubscription newHeapSubscription = new NewHeapSubscription(1, "sub1", "heapNotRetainedForOlderProtocol");
+        WaitingObserver observer = new WaitingObserver();
+
+        IoSession session1 = new MyIoSession(String.valueOf(ioSessionId++));
+        session1.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS);
+        subject.handleSubscriptionResponse(session1, new InvocationResponseImpl(newHeapSubscription), observer);
+        subject.applyDelta(session1, new HeapDelta(1, 0, createUpdateList(createInitial())));
+        waitForAndAssertNotFault(observer);
+        subject.sessionTerminated(session1);
+
+        IoSession session2 = new MyIoSession(String.valueOf(ioSessionId++));
+        session2.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION);
+        subject.offerResumableHeaps(session2);
+        verify(out, never()).writeObject(any());
+    }
+
     private Subscription getSubscriptionFrom(Object result) {
         if (result == null) {
             return null;
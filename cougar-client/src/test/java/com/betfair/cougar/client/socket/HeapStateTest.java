@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.client.socket;
+
+import com.betfair.cougar.netutil.nio.HeapDelta;
+import com.betfair.cougar.netutil.nio.connected.InitialUpdate;
+import com.betfair.cougar.netutil.nio.connected.Update;
+import com.betfair.cougar.netutil.nio.connected.UpdateAction;
+import com.betfair.platform.virtualheap.ImmutableHeap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.*;
+
+public class HeapStateTest {
+
+    private HeapState state;
+
+    @Before
+    public void before() {
+        state = new HeapState(new ImmutableHeap("HeapStateTest", null), 0, 4);
+    }
+
+    @Test
+    public void deltasAppliedInUpdateIdOrder() {
+        state.queueUpdate(initial(10));
+        state.queueUpdate(delta(12));
+        state.queueUpdate(delta(11));
+
+        assertEquals(10, state.popNextDelta().getUpdateId());
+        assertEquals(11, state.popNextDelta().getUpdateId());
+        assertEquals(12, state.popNextDelta().getUpdateId());
+        assertNull(state.peekNextDelta());
+        assertEquals(0, state.getQueuedDeltaCount());
+        assertEquals(3, state.getAppliedDeltaCount());
+    }
+
+    @Test
+    public void deltasBeforeInitialUpdateWait() {
+        state.queueUpdate(delta(1));
+        assertNull(state.peekNextDelta());
+
+        state.queueUpdate(initial(0));
+        assertEquals(0, state.popNextDelta().getUpdateId());
+        assertEquals(1, state.popNextDelta().getUpdateId());
+    }
+
+    @Test
+    public void gapIsDetected() throws Exception {
+        state.queueUpdate(initial(0));
+        state.popNextDelta();
+        state.queueUpdate(delta(2));
+
+        assertNull(state.peekNextDelta());
+        assertEquals(1, state.getQueuedDeltaCount());
+        Thread.sleep(5);
+        assertEquals(HeapState.QueueHealth.WAITED_TOO_LONG, state.checkDeltaQueueHealth(1));
+
+        state.queueUpdate(delta(1));
+        state.popNextDelta();
+        state.popNextDelta();
+        assertEquals(HeapState.QueueHealth.HEALTHY, state.checkDeltaQueueHealth(1));
+    }
+
+    @Test
+    public void deltaBeyondCapacityOverflows() {
+        state.queueUpdate(initial(0));
+        state.popNextDelta();
+        state.queueUpdate(delta(4));
+        assertFalse(state.isOverflowed());
+
+        state.queueUpdate(delta(5));
+        assertTrue(state.isOverflowed());
+        assertEquals(HeapState.QueueHealth.QUEUE_TOO_LONG, state.checkDeltaQueueHealth(1000));
+    }
+
+    @Test
+    public void conflatedDeltaReplacesItsRange() {
+        state.queueUpdate(initial(0));
+        state.popNextDelta();
+        state.queueUpdate(delta(2));
+        state.queueUpdate(new HeapDelta(1, 1, 3, updates(new Update())));
+        state.queueUpdate(delta(4));
+
+        assertEquals(3, state.popNextDelta().getUpdateId());
+        assertEquals(4, state.popNextDelta().getUpdateId());
+        assertNull(state.peekNextDelta());
+        assertEquals(0, state.getQueuedDeltaCount());
+    }
+
+    @Test
+    public void slotsAreReused() {
+        state.queueUpdate(initial(0));
+        state.popNextDelta();
+        for (int i = 1; i <= 20; i++) {
+            state.queueUpdate(delta(i));
+            assertEquals(i, state.popNextDelta().getUpdateId());
+        }
+        assertFalse(state.isOverflowed());
+    }
+
+    private HeapDelta initial(long updateId) {
+        Update u = new Update();
+        u.setActions(new ArrayList<UpdateAction>());
+        return new HeapDelta(1, updateId, updates(new InitialUpdate(u)));
+    }
+
+    private HeapDelta delta(long updateId) {
+        Update u = new Update();
+        u.setActions(new ArrayList<UpdateAction>());
+        return new HeapDelta(1, updateId, updates(u));
+    }
+
+    private List<Update> updates(Update u) {
+        List<Update> ret = new ArrayList<Update>();
+        Collections.addAll(ret, u);
+        return ret;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.client.socket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Hedging policy tests
+ */
+public class HedgingPolicyTest {
+
+    @Test
+    public void noHedgingUntilEnoughSamples() {
+        HedgingPolicy policy = new HedgingPolicy();
+        policy.setEnabled(true);
+        for (int i = 1; i < HedgingPolicy.MIN_SAMPLES; i++) {
+            policy.recordResponseTime(i);
+        }
+        assertEquals(-1, policy.getHedgeDelayMillis());
+        policy.recordResponseTime(HedgingPolicy.MIN_SAMPLES);
+        // 95th percentile of 1..64
+        assertEquals(61, policy.getHedgeDelayMillis());
+    }
+
+    @Test
+    public void disabledNeverHedges() {
+        HedgingPolicy policy = new HedgingPolicy();
+        for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+            policy.recordResponseTime(100);
+        }
+        assertEquals(-1, policy.getHedgeDelayMillis());
+        assertEquals(100, policy.getCurrentHedgeDelayMillis());
+    }
+
+    @Test
+    public void delayIsAtLeastMinimum() {
+        HedgingPolicy policy = new HedgingPolicy();
+        policy.setEnabled(true);
+        policy.setMinDelayMillis(10);
+        for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) {
+            policy.recordResponseTime(1);
+        }
+        assertEquals(10, policy.getHedgeDelayMillis());
+    }
+
+    @Test
+    public void delayFollowsRecentResponses() {
+        HedgingPolicy policy = new HedgingPolicy();
+        policy.setEnabled(true);
+        policy.setMinDelayMillis(0);
+        for (int i = 0; i < HedgingPolicy.SAMPLE_WINDOW; i++) {
+            policy.recordResponseTime(1000);
+        }
+        assertEquals(1000, policy.getHedgeDelayMillis());
+        // replace the whole window with faster responses
+        for (int i = 0; i < HedgingPolicy.SAMPLE_WINDOW; i++) {
+            policy.recordResponseTime(20);
+        }
+        assertEquals(20, policy.getHedgeDelayMillis());
+    }
+
+    @Test
+    public void hedgeRate() {
+        HedgingPolicy policy = new HedgingPolicy();
+        assertEquals(0.0, policy.getHedgeRate(), 0.001);
+        for (int i = 0; i < 20; i++) {
+            policy.hedgeableRequest();
+        }
+        policy.hedgeSent();
+        policy.hedgeWon();
+        assertEquals(5.0, policy.getHedgeRate(), 0.001);
+        assertEquals(1, policy.getHedgesWon());
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.betfair.cougar.client.socket;
 
+import com.betfair.cougar.netutil.nio.NioLogger;
 import com.betfair.cougar.netutil.nio.message.ProtocolMessage;
 import com.betfair.cougar.util.JMXReportingThreadPoolExecutor;
 import org.apache.mina.common.IoSession;
@@ -25,11 +26,16 @@ import org.junit.Test;
 import java.lang.reflect.Field;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
@@ -49,6 +55,14 @@ public class IoSessionFactoryTest {
         }
     }
 
+    @Test
+    public void testLeastOutstandingSelectorOnlyReturnsConnectedSessions() throws Exception {
+        sessionFactory.setSessionSelector(new LeastOutstandingRequestsSessionSelector());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(connectedSession.equals(sessionFactory.getSession()));
+        }
+    }
+
     @Test
     public void testOpenSession() throws Exception {
         final InetSocketAddress address1 = new InetSocketAddress("host1", 9003);
@@ -85,24 +99,56 @@ public class IoSessionFactoryTest {
         verify(sessionFactory).close(connectedSession, false);
     }
 
+    @Test
+    public void testCloseSessionClosesAllConnectionsToEndpoint() throws Exception {
+        final IoSession second = getSession(1, true, false, false, false);
+        Field sessionsField = IoSessionFactory.class.getDeclaredField("sessions");
+        sessionsField.setAccessible(true);
+        Map<SocketAddress, List<IoSession>> sessions = (Map<SocketAddress, List<IoSession>>) sessionsField.get(sessionFactory);
+        sessions.get(connectedSession.getRemoteAddress()).add(second);
+        Field loggerField = IoSessionFactory.class.getDeclaredField("logger");
+        loggerField.setAccessible(true);
+        loggerField.set(sessionFactory, new NioLogger("NONE"));
+        doCallRealMethod().when(sessionFactory).close(any(IoSession.class), anyBoolean());
+
+        sessionFactory.closeSession(connectedSession.getRemoteAddress(), false);
+
+        verify(connectedSession).close();
+        verify(second).close();
+        assertFalse(sessions.containsKey(connectedSession.getRemoteAddress()));
+        assertNull(sessionFactory.getSession());
+    }
+
     @Before
     public void setup() throws Exception {
         sessionFactory = mock(IoSessionFactory.class);
 
         Field sessionsField = IoSessionFactory.class.getDeclaredField("sessions");
         sessionsField.setAccessible(true);
-        Map<SocketAddress, IoSession> sessions = new HashMap<SocketAddress, IoSession>();
+        Map<SocketAddress, List<IoSession>> sessions = new HashMap<SocketAddress, List<IoSession>>();
         connectedSession = getConnectedSession();
-        sessions.put(connectedSession.getRemoteAddress(), connectedSession);
+        sessions.put(connectedSession.getRemoteAddress(), new ArrayList<IoSession>(Arrays.asList(connectedSession)));
         final IoSession notConnectedSession = getNotConnectedSession();
-        sessions.put(notConnectedSession.getRemoteAddress(), notConnectedSession);
+        sessions.put(notConnectedSession.getRemoteAddress(), new ArrayList<IoSession>(Arrays.asList(notConnectedSession)));
         final IoSession closingSession = getClosingSession();
-        sessions.put(closingSession.getRemoteAddress(), closingSession);
+        sessions.put(closingSession.getRemoteAddress(), new ArrayList<IoSession>(Arrays.asList(closingSession)));
         final IoSession suspendedSession = getSuspendedSession();
-        sessions.put(suspendedSession.getRemoteAddress(), suspendedSession);
+        sessions.put(suspendedSession.getRemoteAddress(), new ArrayList<IoSession>(Arrays.asList(suspendedSession)));
         final IoSession disconnectedSession = getDisconnectedSession();
-        sessions.put(disconnectedSession.getRemoteAddress(), disconnectedSession);
+        sessions.put(disconnectedSession.getRemoteAddress(), new ArrayList<IoSession>(Arrays.asList(disconnectedSession)));
         sessionsField.set(sessionFactory, sessions);
+
+        Field snapshotField = IoSessionFactory.class.getDeclaredField("sessionSnapshot");
+        snapshotField.setAccessible(true);
+        List<IoSession> allSessions = new ArrayList<IoSession>();
+        for (List<IoSession> endpointSessions : sessions.values()) {
+            allSessions.addAll(endpointSessions);
+        }
+        snapshotField.set(sessionFactory, allSessions.toArray(new IoSession[allSessions.size()]));
+
+        Field selectorField = IoSessionFactory.class.getDeclaredField("sessionSelector");
+        selectorField.setAccessible(true);
+        selectorField.set(sessionFactory, new RoundRobinSessionSelector());
         when(sessionFactory.getSession()).thenCallRealMethod();
         when(sessionFactory.isAvailable(any(IoSession.class))).thenCallRealMethod();
 
@@ -122,6 +168,7 @@ public class IoSessionFactoryTest {
 
         doCallRealMethod().when(sessionFactory).openSession(any(SocketAddress.class));
         doCallRealMethod().when(sessionFactory).closeSession(any(SocketAddress.class), anyBoolean());
+        doCallRealMethod().when(sessionFactory).setSessionSelector(any(SessionSelector.class));
     }
 
     private IoSession getConnectedSession() {
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.client.socket;
+
+import com.betfair.cougar.netutil.nio.RequestResponseManager;
+import org.apache.mina.common.IoSession;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Least outstanding requests session selection tests
+ */
+public class LeastOutstandingRequestsSessionSelectorTest {
+
+    private final SessionSelector.Availability allAvailable = new SessionSelector.Availability() {
+        @Override
+        public boolean isAvailable(IoSession session) {
+            return true;
+        }
+    };
+
+    @Test
+    public void picksLeastLoadedSession() {
+        IoSession busy = session(10);
+        IoSession quiet = session(2);
+        IoSession middling = session(5);
+        IoSession[] sessions = new IoSession[] { busy, quiet, middling };
+
+        SessionSelector selector = new LeastOutstandingRequestsSessionSelector();
+        for (int i = 0; i < 6; i++) {
+            assertSame(quiet, selector.select(sessions, allAvailable));
+        }
+    }
+
+    @Test
+    public void spreadsEvenlyLoadedSessions() {
+        IoSession[] sessions = new IoSession[] { session(0), session(0), session(0) };
+
+        SessionSelector selector = new LeastOutstandingRequestsSessionSelector();
+        Set<IoSession> used = new HashSet<IoSession>();
+        for (int i = 0; i < 3; i++) {
+            used.add(selector.select(sessions, allAvailable));
+        }
+        assertEquals(3, used.size());
+    }
+
+    @Test
+    public void skipsUnavailableSessions() {
+        final IoSession unavailable = session(0);
+        IoSession available = session(7);
+        IoSession[] sessions = new IoSession[] { unavailable, available };
+
+        SessionSelector selector = new LeastOutstandingRequestsSessionSelector();
+        SessionSelector.Availability availability = new SessionSelector.Availability() {
+            @Override
+            public boolean isAvailable(IoSession session) {
+                return session != unavailable;
+            }
+        };
+        for (int i = 0; i < 4; i++) {
+            assertSame(available, selector.select(sessions, availability));
+        }
+    }
+
+    @Test
+    public void noSessions() {
+        assertNull(new LeastOutstandingRequestsSessionSelector().select(new IoSession[0], allAvailable));
+    }
+
+    private IoSession session(int outstanding) {
+        RequestResponseManager requestResponseManager = mock(RequestResponseManager.class);
+        when(requestResponseManager.getOutstandingRequestCount()).thenReturn(outstanding);
+        IoSession session = mock(IoSession.class);
+        when(session.getAttribute(RequestResponseManager.SESSION_KEY)).thenReturn(requestResponseManager);
+        return session;
+    }
+}
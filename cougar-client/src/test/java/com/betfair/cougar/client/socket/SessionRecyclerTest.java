@@ -58,13 +58,13 @@ public class SessionRecyclerTest {
 
         Field sessionsField = IoSessionFactory.class.getDeclaredField("sessions");
         sessionsField.setAccessible(true);
-        Map<SocketAddress, IoSession> sessions = new HashMap<SocketAddress, IoSession>();
+        Map<SocketAddress, List<IoSession>> sessions = new HashMap<SocketAddress, List<IoSession>>();
         final IoSession session1 = getSession(1);
         final IoSession session2 = getSession(2);
         final IoSession session3 = getSession(3);
-        sessions.put(session1.getRemoteAddress(), session1);
-        sessions.put(session2.getRemoteAddress(), session2);
-        sessions.put(session3.getRemoteAddress(), session3);
+        sessions.put(session1.getRemoteAddress(), new ArrayList<IoSession>(Arrays.asList(session1)));
+        sessions.put(session2.getRemoteAddress(), new ArrayList<IoSession>(Arrays.asList(session2)));
+        sessions.put(session3.getRemoteAddress(), new ArrayList<IoSession>(Arrays.asList(session3)));
 
         sessionsField.set(sessionFactory, sessions);
         when(sessionFactory.getSession()).thenCallRealMethod();
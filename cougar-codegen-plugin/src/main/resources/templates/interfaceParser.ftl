@@ -168,6 +168,7 @@
     <#local responseParam = parseParam2(operationName, operation.parameters.simpleResponse, "WrappedValue", interface)>
     <#local returnType=responseParam.paramType>
     <#local connected = (operation.@connected[0]!"false")?lower_case?trim=="true">
+    <#local idempotent = (operation.extensions.idempotent[0]!"false")?lower_case?trim=="true">
 
     <#list operation.parameters.request.parameter as param>
         <#local params = params + [parseParam(operationName, param, interface)]>
@@ -177,7 +178,7 @@
         <#local exceptions = exceptions + [exception.@type]>
     </#list>
 
-    <#return {"operationName":operationName,"description":description,"returnType":returnType,"params":params,"exceptions":exceptions,"connected":connected, "rawReturnType":responseParam.rawReturnType, "responseParam":responseParam}>
+    <#return {"operationName":operationName,"description":description,"returnType":returnType,"params":params,"exceptions":exceptions,"connected":connected, "idempotent":idempotent, "rawReturnType":responseParam.rawReturnType, "responseParam":responseParam}>
 </#function>
 
 <#function parseOperations interface>
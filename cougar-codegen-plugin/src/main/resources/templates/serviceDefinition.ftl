@@ -69,6 +69,7 @@ public static final OperationKey ${operation.operationName}Key = new OperationKe
 		<@createParameterTypeDecl operation.returnType/>
             </#if>
         </#if>
+        , ${operation.idempotent?string}
 		);
 	</@compress>
 
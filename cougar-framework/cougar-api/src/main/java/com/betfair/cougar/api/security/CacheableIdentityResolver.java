@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.api.security;
+
+/**
+ * An identity resolver whose results depend only on the identity tokens presented and the strength of the transport
+ * security they were presented over, and so may be cached by the execution venue rather than resolved for every
+ * request.
+ *
+ * @see IdentityResolutionCache
+ */
+public interface CacheableIdentityResolver extends IdentityResolver {
+
+    /**
+     * Called with the cache resolutions from this resolver are being kept in, so that the resolver can evict them when
+     * they're no longer valid (e.g. on logout or credential revocation). Not called if caching is disabled.
+     */
+    public void setIdentityResolutionCache(IdentityResolutionCache cache);
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.api.security;
+
+/**
+ * Cache of identity chains resolved by a {@link CacheableIdentityResolver}.
+ */
+public interface IdentityResolutionCache {
+
+    /**
+     * Evicts every resolution which was made from a set of identity tokens including the given token.
+     */
+    public void invalidate(IdentityToken token);
+
+    /**
+     * Evicts every resolution.
+     */
+    public void invalidateAll();
+}
@@ -43,4 +43,11 @@ public interface OperationDefinition {
 	 */
 	public ParameterType getReturnType();
 
+	/**
+	 * Whether invoking the Operation more than once has the same effect as invoking it once, in which case
+	 * clients may safely send duplicate requests for it (for example to hedge against a slow server)
+	 * @return
+	 */
+	public boolean isIdempotent();
+
 }
\ No newline at end of file
@@ -23,8 +23,13 @@ public class SimpleOperationDefinition implements OperationDefinition {
     private final OperationKey operationKey;
     private final Parameter[] parameters;
     private final ParameterType returnType;
+    private final boolean idempotent;
 
     public SimpleOperationDefinition(final OperationKey operationKey, final Parameter[] parameters, final ParameterType returnType) {//NOSONAR
+        this(operationKey, parameters, returnType, false);
+    }
+
+    public SimpleOperationDefinition(final OperationKey operationKey, final Parameter[] parameters, final ParameterType returnType, final boolean idempotent) {//NOSONAR
         if (parameters != null) {
             final Parameter[] p = parameters.clone();
             this.parameters = p;
@@ -33,6 +38,7 @@ public class SimpleOperationDefinition implements OperationDefinition {
         }
         this.operationKey = operationKey;
         this.returnType = returnType;
+        this.idempotent = idempotent;
     }
 
     public OperationKey getOperationKey() {
@@ -47,4 +53,8 @@ public class SimpleOperationDefinition implements OperationDefinition {
         return returnType;
     }
 
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
 }
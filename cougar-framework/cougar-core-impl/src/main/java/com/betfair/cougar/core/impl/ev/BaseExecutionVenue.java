@@ -25,16 +25,15 @@ import com.betfair.cougar.core.api.exception.CougarServiceException;
 import com.betfair.cougar.core.api.exception.ServerFaultCode;
 import com.betfair.cougar.core.impl.DefaultTimeConstraints;
 import com.betfair.cougar.core.impl.security.IdentityChainImpl;
+import com.betfair.cougar.core.impl.security.IdentityResolutionCacheImpl;
 import com.betfair.cougar.logging.CougarLogger;
 import com.betfair.cougar.logging.CougarLoggingUtils;
+import com.betfair.cougar.util.HashedTimerWheel;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 import java.util.*;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
 import java.util.concurrent.Executor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Level;
 
 
@@ -48,8 +47,30 @@ public class BaseExecutionVenue implements ExecutionVenue {
     private List<ExecutionPostProcessor> postProcessorList = new ArrayList<ExecutionPostProcessor>();
     private List<ExecutionPreProcessor> preProcessorList = new ArrayList<ExecutionPreProcessor>();
     private IdentityResolver identityResolver;
+    private IdentityResolutionCacheImpl identityResolutionCache;
+    private int identityResolutionCacheMaxSize;
+    private long identityResolutionCacheTtlMillis;
 
-    private DelayQueue<ExpiringObserver> expiringObservers = new DelayQueue<>();
+    // nothing can be added to it, so every execution without an identity resolver can share it
+    private static final IdentityChain EMPTY_IDENTITY_CHAIN = new IdentityChainImpl(Collections.<Identity>emptyList());
+
+    private static final ExecutionPreProcessor[] NO_PRE_PROCESSORS = new ExecutionPreProcessor[0];
+
+    private static final AtomicIntegerFieldUpdater<Execution> RESULT_DELIVERED = AtomicIntegerFieldUpdater.newUpdater(Execution.class, "resultDelivered");
+
+    // granularity of execution timeouts, a revolution of each wheel covers about 10 seconds
+    private static final long EXPIRY_TICK_MILLIS = 10;
+    private static final int EXPIRY_TICKS_PER_WHEEL = 1024;
+
+    // sharded so that threads scheduling and cancelling timeouts don't all contend on the same queues
+    private final HashedTimerWheel<Execution>[] expiryWheels = newExpiryWheels(Runtime.getRuntime().availableProcessors());
+
+    private final HashedTimerWheel.ExpiryHandler<Execution> expiryHandler = new HashedTimerWheel.ExpiryHandler<Execution>() {
+        @Override
+        public void expired(Execution execution) {
+            execution.expire();
+        }
+    };
 
     protected Map<OperationKey, DefinedExecutable> registry = new HashMap<>();
 
@@ -100,25 +121,13 @@ public class BaseExecutionVenue implements ExecutionVenue {
         if (ctx instanceof ExecutionContextWithTokens) {
             ExecutionContextWithTokens contextWithTokens = (ExecutionContextWithTokens) ctx;
             if (identityResolver == null) {
-                contextWithTokens.setIdentityChain(new IdentityChainImpl(new ArrayList<Identity>()));
+                contextWithTokens.setIdentityChain(EMPTY_IDENTITY_CHAIN);
                 // if there's no identity resolver then it can't tokenise any tokens back to the transport..
                 contextWithTokens.getIdentityTokens().clear();
                 return contextWithTokens;
             }
-            else {
-                IdentityChain chain = new IdentityChainImpl();
-                try {
-                    identityResolver.resolve(chain, contextWithTokens);
-                }
-                catch (InvalidCredentialsException e) {
-                    if (e.getCredentialFaultCode() != null) { // Check if a custom error code should be used
-                        ServerFaultCode sfc = ServerFaultCode.getByCredentialFaultCode(e.getCredentialFaultCode());
-                        throw new CougarServiceException(sfc, "Credentials supplied were invalid", e);
-                    }
-                    throw new CougarServiceException(ServerFaultCode.SecurityException, "Credentials supplied were invalid", e);
-                }
-                // ensure the identity chain set in the context is immutable
-                contextWithTokens.setIdentityChain(new IdentityChainImpl(chain.getIdentities()));
+            else if (identityResolutionCache == null) {
+                contextWithTokens.setIdentityChain(resolveIdentityChain(contextWithTokens));
                 contextWithTokens.getIdentityTokens().clear();
                 List<IdentityToken> tokens = identityResolver.tokenise(contextWithTokens.getIdentity());
                 if (tokens != null) {
@@ -126,47 +135,54 @@ public class BaseExecutionVenue implements ExecutionVenue {
                 }
                 return contextWithTokens;
             }
+            else {
+                List<IdentityToken> presented = contextWithTokens.getIdentityTokens();
+                int strength = contextWithTokens.getTransportSecurityStrengthFactor();
+                IdentityResolutionCacheImpl.Resolution resolution = identityResolutionCache.get(presented, strength);
+                if (resolution == null) {
+                    // the resolver is free to play with the tokens, so take a copy to key the result on
+                    List<IdentityToken> key = new ArrayList<>(presented);
+                    long generation = identityResolutionCache.getGeneration();
+                    IdentityChain chain = resolveIdentityChain(contextWithTokens);
+                    resolution = identityResolutionCache.put(key, strength, chain, identityResolver.tokenise(chain), generation);
+                }
+                contextWithTokens.setIdentityChain(resolution.getIdentityChain());
+                contextWithTokens.getIdentityTokens().clear();
+                if (resolution.getTokens() != null) {
+                    contextWithTokens.getIdentityTokens().addAll(resolution.getTokens());
+                }
+                return contextWithTokens;
+            }
         }
         // might not be in the case of a client, or a batched transport which will have executed a seperate command to resolve identities for e.g.
         return ctx;
     }
 
+    private IdentityChain resolveIdentityChain(ExecutionContextWithTokens contextWithTokens) {
+        IdentityChain chain = new IdentityChainImpl();
+        try {
+            identityResolver.resolve(chain, contextWithTokens);
+        }
+        catch (InvalidCredentialsException e) {
+            if (e.getCredentialFaultCode() != null) { // Check if a custom error code should be used
+                ServerFaultCode sfc = ServerFaultCode.getByCredentialFaultCode(e.getCredentialFaultCode());
+                throw new CougarServiceException(sfc, "Credentials supplied were invalid", e);
+            }
+            throw new CougarServiceException(ServerFaultCode.SecurityException, "Credentials supplied were invalid", e);
+        }
+        // ensure the identity chain set in the context is immutable
+        return new IdentityChainImpl(chain.getIdentities());
+    }
+
     @Override
     public void execute(final ExecutionContext ctx, final OperationKey key, final Object[] args, ExecutionObserver observer, TimeConstraints timeConstraints) {
         final DefinedExecutable de = registry.get(key);
         if (de == null) {
-            logger.log(Level.FINE, "Not request logging request to URI: %s as no operation was found", key.toString());
-            observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.NoSuchOperation, "Operation not found: "+key.toString())));
+            notFound(key, observer);
         } else {
-            long serverExpiryTime = de.maxExecutionTime == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + de.maxExecutionTime;
-            long clientExpiryTime = timeConstraints.getExpiryTime() == null ? Long.MAX_VALUE : timeConstraints.getExpiryTime();
-            long expiryTime = Math.min(clientExpiryTime, serverExpiryTime);
-            if (expiryTime == Long.MAX_VALUE) {
-                expiryTime = 0;
-            }
-            if (!(observer instanceof ExpiringObserver)) {
-                final ExpiringObserver expiringObserver = new ExpiringObserver(observer, expiryTime);
-                if (expiringObserver.expires()) {
-                    registerExpiringObserver(expiringObserver);
-                }
-                observer = expiringObserver;
-            }
-            observer = new ExecutionObserverWrapper(observer, de.recorder, key);
-
-            try {
-                ExecutionContext contextToUse = resolveIdentitiesIfRequired(ctx);
-                de.exec.execute(contextToUse, key, args, observer, this, timeConstraints);
-            } catch (CougarException e) {
-                observer.onResult(new ExecutionResult(e));
-            } catch (Exception e) {
-                observer.onResult(new ExecutionResult(
-                        new CougarServiceException(ServerFaultCode.ServiceRuntimeException,
-                                "Exception thrown by service method",
-                                e)));
-            }
-        }
-        if (observer instanceof ExpiringObserver) {
-            deregisterExpiringObserver((ExpiringObserver) observer);
+            Execution execution = new Execution(de, ctx, key, args, observer, null, timeConstraints);
+            execution.scheduleExpiry();
+            execution.execute();
         }
     }
 
@@ -177,38 +193,17 @@ public class BaseExecutionVenue implements ExecutionVenue {
         }
 
         final DefinedExecutable de = registry.get(key);
-        final InterceptingExecutableWrapper interceptingExecutableWrapper = ExecutableWrapperUtils.findChild(InterceptingExecutableWrapper.class, de.exec);
-        // this has to be a new list since the InterceptionUtils.execute call below is allowed to (expected to even) mutate the second list passed in
-        final List<ExecutionPreProcessor> remainingProcessors = new ArrayList<>(preProcessorList);
-
-        final Runnable execution = new Runnable() {
-            @Override
-            public void run() {
-                long serverExpiryTime = de.maxExecutionTime == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + de.maxExecutionTime;
-                long clientExpiryTimeCopy = timeConstraints.getExpiryTime() == null ? Long.MAX_VALUE : timeConstraints.getExpiryTime();
-                long expiryTime = Math.min(clientExpiryTimeCopy, serverExpiryTime);
-                if (expiryTime == Long.MAX_VALUE) {
-                    expiryTime = 0;
-                }
-                final ExpiringObserver expiringObserver = new ExpiringObserver(observer, expiryTime);
-                if (expiringObserver.expires()) {
-                    registerExpiringObserver(expiringObserver);
-                }
-                final TimeConstraints timeConstraints = expiryTime == 0 ? DefaultTimeConstraints.NO_CONSTRAINTS : DefaultTimeConstraints.fromExpiryTime(expiryTime);
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        // this gets run on the executor thread, so will be visible in the wrapper when executed
-                        if (interceptingExecutableWrapper != null) {
-                            interceptingExecutableWrapper.setUnexecutedPreProcessorsForThisThread(remainingProcessors);
-                        }
-                        execute(ctx, key, args, expiringObserver, timeConstraints);
-                    }
-                });
-            }
-        };
+        if (de == null) {
+            notFound(key, observer);
+            return;
+        }
+        Execution execution = new Execution(de, ctx, key, args, observer, executor, timeConstraints);
+        InterceptionUtils.execute(de.preProcessors, execution, ExecutionRequirement.PRE_QUEUE, execution, ctx, key, args, observer);
+    }
 
-        InterceptionUtils.execute(preProcessorList, remainingProcessors, ExecutionRequirement.PRE_QUEUE, execution, ctx, key, args, observer);
+    private void notFound(OperationKey key, ExecutionObserver observer) {
+        logger.log(Level.FINE, "Not request logging request to URI: %s as no operation was found", key.toString());
+        observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.NoSuchOperation, "Operation not found: "+key.toString())));
     }
 
     protected void start() {
@@ -226,66 +221,182 @@ public class BaseExecutionVenue implements ExecutionVenue {
         // this executes on a daemon thread so we can happily loop forever
         while (true) {
             try {
-                ExpiringObserver expired = expiringObservers.take();
-                expired.expire();
+                Thread.sleep(EXPIRY_TICK_MILLIS);
+                long now = System.currentTimeMillis();
+                for (HashedTimerWheel<Execution> wheel : expiryWheels) {
+                    wheel.expire(now, expiryHandler);
+                }
             } catch (InterruptedException e) {
                 // ignore, just carry on round
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Error expiring executions", e);
             }
         }
     }
 
-    private void registerExpiringObserver(ExpiringObserver expiringObserver) {
-        expiringObservers.add(expiringObserver);
+    @SuppressWarnings("unchecked")
+    private static HashedTimerWheel<Execution>[] newExpiryWheels(int count) {
+        HashedTimerWheel<Execution>[] ret = new HashedTimerWheel[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = new HashedTimerWheel<Execution>(EXPIRY_TICK_MILLIS, EXPIRY_TICKS_PER_WHEEL);
+        }
+        return ret;
     }
 
-    private void deregisterExpiringObserver(ExpiringObserver expiringObserver) {
-        expiringObservers.remove(expiringObserver);
+    private void registerExpiringExecution(Execution execution) {
+        HashedTimerWheel<Execution> wheel = expiryWheels[(int) (Thread.currentThread().getId() % expiryWheels.length)];
+        execution.timeout = wheel.schedule(execution, execution.expiryTime);
     }
 
-    private class ExpiringObserver implements ExecutionObserver, Delayed {
+    @ManagedAttribute(description = "Number of executions waiting to either complete or time out")
+    public int getPendingTimeouts() {
+        int ret = 0;
+        for (HashedTimerWheel<Execution> wheel : expiryWheels) {
+            ret += wheel.size();
+        }
+        return ret;
+    }
 
-        private AtomicBoolean onResultCalled = new AtomicBoolean(false);
-        private final ExecutionObserver observer;
-        private final long expiryTime;
+    /**
+     * Everything the venue needs to track for a single execution, so it costs one object rather than one per stage.
+     * It's the body run once the pre-queue interceptors let the execution through (which hands it to the executor),
+     * the task run on the executor, the timeout in the expiry wheel, and the observer the executable reports to,
+     * where it records the timing and makes sure only the first result (or the timeout) gets through. It also carries
+     * how far through the pre-processors it's got, for the intercepting wrapper to pick up on whichever thread it runs.
+     */
+    private class Execution implements Runnable, ExecutionObserver, TimeConstraints, PreProcessorCursor {
 
-        private ExpiringObserver(final ExecutionObserver observer, final long expiryTime) {
+        private final DefinedExecutable de;
+        private final ExecutionContext ctx;
+        private final OperationKey key;
+        private final Object[] args;
+        private final ExecutionObserver observer;
+        // cleared once the execution has been queued
+        private Executor executor;
+        private TimeConstraints timeConstraints;
+        private int preProcessorCursor;
+        private long expiryTime;
+        private Long boxedExpiryTime;
+        private long startTime;
+        private volatile HashedTimerWheel.Timeout<Execution> timeout;
+        // updated via RESULT_DELIVERED
+        volatile int resultDelivered;
+
+        private Execution(DefinedExecutable de, ExecutionContext ctx, OperationKey key, Object[] args, ExecutionObserver observer, Executor executor, TimeConstraints timeConstraints) {
+            this.de = de;
+            this.ctx = ctx;
+            this.key = key;
+            this.args = args;
             this.observer = observer;
-            this.expiryTime = expiryTime;
+            this.executor = executor;
+            this.timeConstraints = timeConstraints;
         }
 
-        public boolean expires() {
-            return expiryTime != 0;
+        /**
+         * Works out when this execution must be complete by, which is the earlier of the client's expiry time and the
+         * operation's max execution time from now.
+         */
+        private void scheduleExpiry() {
+            long serverExpiryTime = de.maxExecutionTime == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + de.maxExecutionTime;
+            Long clientExpiry = timeConstraints.getExpiryTime();
+            long clientExpiryTime = clientExpiry == null ? Long.MAX_VALUE : clientExpiry;
+            expiryTime = Math.min(clientExpiryTime, serverExpiryTime);
+            if (expiryTime == Long.MAX_VALUE) {
+                expiryTime = 0;
+            }
+            if (expiryTime != 0) {
+                registerExpiringExecution(this);
+            }
         }
 
         @Override
-        public void onResult(ExecutionResult executionResult) {
-            if (onResultCalled.compareAndSet(false, true)) {
-                observer.onResult(executionResult);
+        public void run() {
+            Executor toQueueOn = executor;
+            if (toQueueOn != null) {
+                // we've got past the pre-queue interceptors, so from here on it's as far as the executable is concerned
+                executor = null;
+                scheduleExpiry();
+                timeConstraints = expiryTime == 0 ? DefaultTimeConstraints.NO_CONSTRAINTS : this;
+                toQueueOn.execute(this);
+            }
+            else {
+                execute();
             }
         }
 
-        public int compareTo(ExpiringObserver o) {
-            long diff = expiryTime - o.expiryTime;
-            if (diff == 0) {
-                return 0;
+        private void execute() {
+            startTime = System.nanoTime();
+            try {
+                ExecutionContext contextToUse = resolveIdentitiesIfRequired(ctx);
+                de.exec.execute(contextToUse, key, args, this, BaseExecutionVenue.this, timeConstraints);
+            } catch (CougarException e) {
+                onResult(new ExecutionResult(e));
+            } catch (Exception e) {
+                onResult(new ExecutionResult(
+                        new CougarServiceException(ServerFaultCode.ServiceRuntimeException,
+                                "Exception thrown by service method",
+                                e)));
             }
-            return diff < 0 ? -1 : 1;
         }
 
         @Override
-        public long getDelay(TimeUnit unit) {
-            return unit.convert(expiryTime-System.currentTimeMillis(),TimeUnit.MILLISECONDS);
+        public void onResult(ExecutionResult result) {
+            // ensure that all timings are recorded with the ExecutionManager
+            if (key.getType() == OperationKey.Type.Request) {
+                switch (result.getResultType()) {
+                    case Fault:
+                        de.recorder.recordFailure((System.nanoTime() - startTime)/1000000.0);
+                        break;
+                    case Success:
+                        de.recorder.recordCall((System.nanoTime() - startTime)/1000000.0);
+                        break;
+                }
+            }
+            if (RESULT_DELIVERED.compareAndSet(this, 0, 1)) {
+                // cancelling just marks it, the wheel drops it next time it's driven
+                HashedTimerWheel.Timeout<Execution> t = timeout;
+                if (t != null) {
+                    t.cancel();
+                }
+                observer.onResult(result);
+            }
+        }
+
+        public void expire() {
+            if (RESULT_DELIVERED.compareAndSet(this, 0, 1)) {
+                observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.Timeout, "Executable did not complete in time")));
+            }
         }
 
         @Override
-        public int compareTo(Delayed o) {
-            return compareTo((ExpiringObserver)o);
+        public int getPreProcessorCursor() {
+            return preProcessorCursor;
         }
 
-        public void expire() {
-            if (onResultCalled.compareAndSet(false, true)) {
-                observer.onResult(new ExecutionResult(new CougarServiceException(ServerFaultCode.Timeout, "Executable did not complete in time")));
+        @Override
+        public void setPreProcessorCursor(int cursor) {
+            this.preProcessorCursor = cursor;
+        }
+
+        @Override
+        public Long getExpiryTime() {
+            if (boxedExpiryTime == null) {
+                boxedExpiryTime = expiryTime;
             }
+            return boxedExpiryTime;
+        }
+
+        @Override
+        public Long getTimeRemaining() {
+            return expiryTime - System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return "Execution{" +
+                    "key=" + key +
+                    ", expiryTime=" + expiryTime +
+                    '}';
         }
     }
 
@@ -295,6 +406,7 @@ public class BaseExecutionVenue implements ExecutionVenue {
         private final Executable exec;
         private final ExecutionTimingRecorder recorder;
         private final long maxExecutionTime;
+        private final ExecutionPreProcessor[] preProcessors;
 
         public DefinedExecutable(final OperationDefinition def, final Executable exec, final ExecutionTimingRecorder recorder, final long maxExecutionTime) {
             this.def = def;
@@ -305,6 +417,8 @@ public class BaseExecutionVenue implements ExecutionVenue {
                 throw new IllegalArgumentException("recorder must be defined");
             }
             this.maxExecutionTime = maxExecutionTime;
+            InterceptingExecutableWrapper interceptingExecutableWrapper = ExecutableWrapperUtils.findChild(InterceptingExecutableWrapper.class, exec);
+            this.preProcessors = interceptingExecutableWrapper != null ? interceptingExecutableWrapper.getPreExecutionInterceptors() : NO_PRE_PROCESSORS;
         }
 
         long getMaxExecutionTime() {
@@ -312,39 +426,6 @@ public class BaseExecutionVenue implements ExecutionVenue {
         }
     }
 
-    /**
-     * Wrapper class to ensure that all timings are recorded with the ExecutionManager
-     */
-    private class ExecutionObserverWrapper implements ExecutionObserver {
-
-        private final ExecutionObserver observer;
-        private final ExecutionTimingRecorder recorder;
-        private final OperationKey operationKey;
-        private final long startTime;
-
-        public ExecutionObserverWrapper(final ExecutionObserver observer, final ExecutionTimingRecorder recorder, OperationKey key) {
-            this.observer = observer;
-            this.recorder = recorder;
-            this.operationKey = key;
-            startTime = System.nanoTime();
-        }
-
-        @Override
-        public void onResult(ExecutionResult result) {
-            if (operationKey.getType() == OperationKey.Type.Request) {
-                switch (result.getResultType()) {
-                    case Fault:
-                        recorder.recordFailure((System.nanoTime() - startTime)/1000000.0);
-                        break;
-                    case Success:
-                        recorder.recordCall((System.nanoTime() - startTime)/1000000.0);
-                        break;
-                }
-            }
-            observer.onResult(result);
-        }
-    }
-
     @Override
     public void setPreProcessors(List<ExecutionPreProcessor> preProcessorList) {
         this.preProcessorList = preProcessorList;
@@ -358,9 +439,60 @@ public class BaseExecutionVenue implements ExecutionVenue {
     public void setIdentityResolver(IdentityResolver identityResolver) {
         if (identityResolver != null) {
             this.identityResolver = identityResolver;
+            if (identityResolver instanceof CacheableIdentityResolver && identityResolutionCacheMaxSize > 0) {
+                identityResolutionCache = new IdentityResolutionCacheImpl(identityResolutionCacheMaxSize,
+                        identityResolutionCacheTtlMillis, Runtime.getRuntime().availableProcessors());
+                ((CacheableIdentityResolver) identityResolver).setIdentityResolutionCache(identityResolutionCache);
+                logger.log(Level.INFO, "Caching up to %d identity resolutions for %dms", identityResolutionCacheMaxSize, identityResolutionCacheTtlMillis);
+            }
         }
     }
 
+    /**
+     * Most identity resolutions to cache if the identity resolver is a {@link CacheableIdentityResolver}, 0 (the
+     * default) disables caching. Must be set before the identity resolver.
+     */
+    public void setIdentityResolutionCacheMaxSize(int identityResolutionCacheMaxSize) {
+        this.identityResolutionCacheMaxSize = identityResolutionCacheMaxSize;
+    }
+
+    /**
+     * How long a cached identity resolution may be used for. Must be set before the identity resolver.
+     */
+    public void setIdentityResolutionCacheTtlMillis(long identityResolutionCacheTtlMillis) {
+        this.identityResolutionCacheTtlMillis = identityResolutionCacheTtlMillis;
+    }
+
+    @ManagedAttribute(description = "Whether identity resolutions are being cached")
+    public boolean isIdentityResolutionCacheEnabled() {
+        return identityResolutionCache != null;
+    }
+
+    @ManagedAttribute(description = "Number of identity resolutions currently cached")
+    public int getIdentityResolutionCacheSize() {
+        return identityResolutionCache != null ? identityResolutionCache.size() : 0;
+    }
+
+    @ManagedAttribute(description = "Number of requests whose identities were found in the cache")
+    public long getIdentityResolutionCacheHits() {
+        return identityResolutionCache != null ? identityResolutionCache.getHitCount() : 0;
+    }
+
+    @ManagedAttribute(description = "Number of requests whose identities had to be resolved")
+    public long getIdentityResolutionCacheMisses() {
+        return identityResolutionCache != null ? identityResolutionCache.getMissCount() : 0;
+    }
+
+    @ManagedAttribute(description = "Number of identity resolutions evicted as the cache was full or they'd expired")
+    public long getIdentityResolutionCacheEvictions() {
+        return identityResolutionCache != null ? identityResolutionCache.getEvictionCount() : 0;
+    }
+
+    @ManagedAttribute(description = "Number of identity resolutions invalidated by the identity resolver")
+    public long getIdentityResolutionCacheInvalidations() {
+        return identityResolutionCache != null ? identityResolutionCache.getInvalidationCount() : 0;
+    }
+
 
 
     public Executable getExecutable(final OperationKey key) {
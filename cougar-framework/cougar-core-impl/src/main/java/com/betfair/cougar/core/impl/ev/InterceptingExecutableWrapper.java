@@ -25,23 +25,19 @@ import com.betfair.cougar.core.api.exception.ServerFaultCode;
 import com.betfair.cougar.logging.CougarLogger;
 import com.betfair.cougar.logging.CougarLoggingUtils;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 public class InterceptingExecutableWrapper implements ExecutableWrapper {
 
 	private final Executable exec;
-	private final List<ExecutionPreProcessor> preExecutionInterceptorList;
+	// fixed when the operation is registered, so working through it needs no copying
+	private final ExecutionPreProcessor[] preExecutionInterceptors;
 	private final List<ExecutionPostProcessor> postExecutionInterceptorList;
 
-    private Map<Thread, List<ExecutionPreProcessor>> unexecutedPreProcessorsByThread = new ConcurrentHashMap<>();
-
 	public InterceptingExecutableWrapper(Executable exec, List<ExecutionPreProcessor> preExecutionInterceptorList, List<ExecutionPostProcessor> postExecutionInterceptorList) {
 		this.exec = exec;
-		this.preExecutionInterceptorList = preExecutionInterceptorList;
+		this.preExecutionInterceptors = preExecutionInterceptorList.toArray(new ExecutionPreProcessor[preExecutionInterceptorList.size()]);
 		this.postExecutionInterceptorList = postExecutionInterceptorList;
 	}
 	
@@ -74,18 +70,9 @@ public class InterceptingExecutableWrapper implements ExecutableWrapper {
             }
         };
 
-        List<ExecutionPreProcessor> unexecuted = unexecutedPreProcessorsByThread.get(Thread.currentThread());
-        if (unexecuted == null) {
-            // this has to be a new list since the InterceptionUtils.execute call below is allowed to (expected to even) mutate the second list passed in
-            unexecuted = new ArrayList<>(preExecutionInterceptorList);
-        }
-
-        try {
-            InterceptionUtils.execute(preExecutionInterceptorList, unexecuted, ExecutionRequirement.PRE_EXECUTE, execution, ctx, key, args, observer);
-        }
-        finally {
-            unexecutedPreProcessorsByThread.remove(Thread.currentThread());
-        }
+        // executions which have already been through the pre-queue phase know how far they got
+        PreProcessorCursor cursor = observer instanceof PreProcessorCursor ? (PreProcessorCursor) observer : null;
+        InterceptionUtils.execute(preExecutionInterceptors, cursor, ExecutionRequirement.PRE_EXECUTE, execution, ctx, key, args, observer);
     }
 
     @Override
@@ -98,7 +85,7 @@ public class InterceptingExecutableWrapper implements ExecutableWrapper {
         return ExecutableWrapperUtils.findChild(clazz, this);
     }
 
-    public void setUnexecutedPreProcessorsForThisThread(List<ExecutionPreProcessor> remainingProcessors) {
-        unexecutedPreProcessorsByThread.put(Thread.currentThread(), remainingProcessors);
+    ExecutionPreProcessor[] getPreExecutionInterceptors() {
+        return preExecutionInterceptors;
     }
 }
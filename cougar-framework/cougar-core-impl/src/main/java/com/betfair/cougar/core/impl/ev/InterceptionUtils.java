@@ -16,8 +16,6 @@ import com.betfair.cougar.core.api.exception.ServerFaultCode;
 import com.betfair.cougar.logging.CougarLogger;
 import com.betfair.cougar.logging.CougarLoggingUtils;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.logging.Level;
 
 /**
@@ -28,10 +26,13 @@ public class InterceptionUtils {
     private static final InterceptorResult CONTINUE = new InterceptorResult(InterceptorState.CONTINUE);
     private final static CougarLogger logger = CougarLoggingUtils.getLogger(InterceptingExecutableWrapper.class);
 
-    public static void execute(List<ExecutionPreProcessor> preExecutionInterceptorList, List<ExecutionPreProcessor> unexecutedPreExecutionInterceptorList, ExecutionRequirement phase, Runnable executionBody, ExecutionContext ctx, OperationKey key, Object[] args,
+    /**
+     * @param cursor how far through the chain an earlier phase got, or null if there wasn't one
+     */
+    public static void execute(ExecutionPreProcessor[] preExecutionInterceptors, PreProcessorCursor cursor, ExecutionRequirement phase, Runnable executionBody, ExecutionContext ctx, OperationKey key, Object[] args,
                         ExecutionObserver observer) {
 
-        InterceptorResult result = invokePreProcessingInterceptors(preExecutionInterceptorList, unexecutedPreExecutionInterceptorList, phase, ctx, key, args);
+        InterceptorResult result = invokePreProcessingInterceptors(preExecutionInterceptors, cursor, phase, ctx, key, args);
 
         /**
          * Pre-processors can force ON_EXCEPTION or ON_RESULT without execution.
@@ -67,16 +68,17 @@ public class InterceptionUtils {
     }
 
 
-    private static InterceptorResult invokePreProcessingInterceptors(List<ExecutionPreProcessor> preExecutionInterceptorList, List<ExecutionPreProcessor> unexecutedPreExecutionInterceptorList, ExecutionRequirement phase, ExecutionContext ctx, OperationKey key, Object[] args) {
+    private static InterceptorResult invokePreProcessingInterceptors(ExecutionPreProcessor[] preExecutionInterceptors, PreProcessorCursor cursor, ExecutionRequirement phase, ExecutionContext ctx, OperationKey key, Object[] args) {
         InterceptorResult result = CONTINUE;
 
-        List<ExecutionPreProcessor> toIterateOver = new ArrayList<>(preExecutionInterceptorList);
-        for (ExecutionPreProcessor pre : toIterateOver) {
+        int alreadyRun = cursor != null ? cursor.getPreProcessorCursor() : 0;
+        int i = 0;
+        for (; i < preExecutionInterceptors.length; i++) {
+            ExecutionPreProcessor pre = preExecutionInterceptors[i];
             ExecutionRequirement req = pre.getExecutionRequirement();
-            if (req == ExecutionRequirement.EVERY_OPPORTUNITY || req == phase || (req == ExecutionRequirement.EXACTLY_ONCE && unexecutedPreExecutionInterceptorList.contains(pre))) {
+            if (req == ExecutionRequirement.EVERY_OPPORTUNITY || req == phase || (req == ExecutionRequirement.EXACTLY_ONCE && i >= alreadyRun)) {
                 try {
                     result = pre.invoke(ctx, key, args);
-                    unexecutedPreExecutionInterceptorList.remove(pre);
                     if (result == null || result.getState() == null) {
                         // defensive
                         throw new IllegalStateException(pre.getName() +" did not return a valid InterceptorResult");
@@ -88,10 +90,14 @@ public class InterceptionUtils {
                     break;
                 }
                 if (result.getState().shouldAbortInterceptorChain()) {
+                    i++;
                     break;
                 }
             }
         }
+        if (cursor != null && i > alreadyRun) {
+            cursor.setPreProcessorCursor(i);
+        }
         return result;
     }
 }
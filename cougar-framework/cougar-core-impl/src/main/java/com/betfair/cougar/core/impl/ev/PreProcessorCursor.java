@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.core.impl.ev;
+
+/**
+ * Records how far through its pre-processor chain an execution has got, so that exactly once pre-processors run in
+ * the first phase to reach them, whichever thread the later phases run on.
+ */
+public interface PreProcessorCursor {
+
+    /**
+     * Exactly once pre-processors before this index in the chain have already been run.
+     */
+    int getPreProcessorCursor();
+
+    void setPreProcessorCursor(int cursor);
+}
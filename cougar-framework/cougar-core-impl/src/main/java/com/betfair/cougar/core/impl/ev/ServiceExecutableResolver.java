@@ -119,7 +119,8 @@ public class ServiceExecutableResolver extends CompoundExecutableResolverImpl {
 		private final ServiceLogManager manager;
 
 		private RequestTimer timer = new RequestTimer();
-		private List<LoggableEvent> loggableEvents = new ArrayList<LoggableEvent>();
+		// most requests never add any, so only created when needed
+		private List<LoggableEvent> loggableEvents;
 		private LogExtension logExtension;
         private LogExtension connectedObjectLogExtension;
 		private AtomicBoolean complete = new AtomicBoolean(false);
@@ -211,6 +212,9 @@ public class ServiceExecutableResolver extends CompoundExecutableResolverImpl {
             if (originalRequestContext != null) {
                 originalRequestContext.addEventLogRecord(record);
             }
+			if (loggableEvents == null) {
+				loggableEvents = new ArrayList<LoggableEvent>();
+			}
 			loggableEvents.add(record);
 		}
 
@@ -302,8 +306,10 @@ public class ServiceExecutableResolver extends CompoundExecutableResolverImpl {
 					original.getRequestUUID(),
 					timer.getProcessTimeNanos());
 			eventLogger.logEvent(operationEvent, fieldsToLog);
-			for (LoggableEvent event : loggableEvents) {
-				eventLogger.logEvent(event, null);
+			if (loggableEvents != null) {
+				for (LoggableEvent event : loggableEvents) {
+					eventLogger.logEvent(event, null);
+				}
 			}
 		}
 	}
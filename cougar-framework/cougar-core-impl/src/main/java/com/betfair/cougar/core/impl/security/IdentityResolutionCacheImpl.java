@@ -0,0 +1,240 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.core.impl.security;
+
+import com.betfair.cougar.api.security.IdentityChain;
+import com.betfair.cougar.api.security.IdentityResolutionCache;
+import com.betfair.cougar.api.security.IdentityToken;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of identity resolutions, keyed by the identity tokens presented and the transport security strength
+ * they were presented over. Entries are evicted least recently used first once the cache is full, and once they've
+ * been in the cache longer than the ttl.
+ */
+public class IdentityResolutionCacheImpl implements IdentityResolutionCache {
+
+    private final Segment[] segments;
+    private final long ttlMillis;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    // bumped by every invalidation, so a resolution started before one can't put revoked identities back
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param maxSize the most resolutions to hold
+     * @param ttlMillis how long a resolution may be used for
+     * @param concurrency how many independently locked segments to split the cache into
+     */
+    public IdentityResolutionCacheImpl(int maxSize, long ttlMillis, int concurrency) {
+        if (maxSize <= 0 || ttlMillis <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("maxSize, ttlMillis and concurrency must all be positive");
+        }
+        this.ttlMillis = ttlMillis;
+        int segmentCount = Math.min(maxSize, concurrency);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // spread any remainder over the first few segments so the total is exactly maxSize
+            segments[i] = new Segment(maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0));
+        }
+    }
+
+    /**
+     * @return the resolution previously made from these tokens at this strength, or null if there isn't a live one
+     */
+    public Resolution get(List<IdentityToken> tokens, int transportSecurityStrengthFactor) {
+        Key key = new Key(tokens, transportSecurityStrengthFactor);
+        Segment segment = segmentFor(tokens);
+        Resolution ret;
+        synchronized (segment) {
+            ret = segment.get(key);
+            if (ret != null && ret.expiryTime <= System.currentTimeMillis()) {
+                segment.remove(key);
+                evictions.incrementAndGet();
+                ret = null;
+            }
+        }
+        (ret != null ? hits : misses).incrementAndGet();
+        return ret;
+    }
+
+    /**
+     * @return the current generation, to be read before resolving and passed to {@link #put}
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the identity chain resolved and the tokens written back for the given tokens at the given strength,
+     * unless there's been an invalidation since the resolution started.
+     * @param generation the generation read before resolving
+     * @return the resolution, which won't have been cached if anything was invalidated in the meantime
+     */
+    public Resolution put(List<IdentityToken> tokens, int transportSecurityStrengthFactor, IdentityChain chain, List<IdentityToken> tokenised, long generation) {
+        Resolution resolution = new Resolution(chain, tokenised, System.currentTimeMillis() + ttlMillis);
+        Key key = new Key(new ArrayList<>(tokens), transportSecurityStrengthFactor);
+        Segment segment = segmentFor(tokens);
+        synchronized (segment) {
+            // invalidations bump the generation before taking any segment lock, so checking under the lock
+            // means either we see the bump, or the invalidation sees our entry and removes it
+            if (this.generation.get() == generation) {
+                segment.put(key, resolution);
+            }
+        }
+        return resolution;
+    }
+
+    @Override
+    public void invalidate(IdentityToken token) {
+        generation.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                Iterator<Key> it = segment.keySet().iterator();
+                while (it.hasNext()) {
+                    if (it.next().tokens.contains(token)) {
+                        it.remove();
+                        invalidations.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                invalidations.addAndGet(segment.size());
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment segmentFor(List<IdentityToken> tokens) {
+        // only the tokens, so that all the resolutions made from a set of tokens are held together
+        return segments[(tokens.hashCode() & Integer.MAX_VALUE) % segments.length];
+    }
+
+    public int size() {
+        int ret = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                ret += segment.size();
+            }
+        }
+        return ret;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * The outcome of resolving a set of identity tokens.
+     */
+    public static final class Resolution {
+        private final IdentityChain identityChain;
+        private final List<IdentityToken> tokens;
+        private final long expiryTime;
+
+        private Resolution(IdentityChain chain, List<IdentityToken> tokens, long expiryTime) {
+            // shared between requests, so mustn't be modifiable
+            this.identityChain = new IdentityChainImpl(Collections.unmodifiableList(chain.getIdentities()));
+            this.tokens = tokens != null ? Collections.unmodifiableList(new ArrayList<>(tokens)) : null;
+            this.expiryTime = expiryTime;
+        }
+
+        public IdentityChain getIdentityChain() {
+            return identityChain;
+        }
+
+        /**
+         * @return the tokens to write back to the transport, may be null
+         */
+        public List<IdentityToken> getTokens() {
+            return tokens;
+        }
+    }
+
+    private static final class Key {
+        private final List<IdentityToken> tokens;
+        private final int transportSecurityStrengthFactor;
+        private final int hashCode;
+
+        private Key(List<IdentityToken> tokens, int transportSecurityStrengthFactor) {
+            this.tokens = tokens;
+            this.transportSecurityStrengthFactor = transportSecurityStrengthFactor;
+            this.hashCode = 31 * tokens.hashCode() + transportSecurityStrengthFactor;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key that = (Key) o;
+            return transportSecurityStrengthFactor == that.transportSecurityStrengthFactor && tokens.equals(that.tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<Key, Resolution> {
+        private final int maxSize;
+
+        private Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Resolution> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -16,12 +16,15 @@
 
 package com.betfair.cougar.core.impl.ev;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.betfair.cougar.api.ExecutionContext;
 import com.betfair.cougar.api.ExecutionContextWithTokens;
@@ -29,6 +32,8 @@ import com.betfair.cougar.api.RequestUUID;
 import com.betfair.cougar.api.ResponseCode;
 import com.betfair.cougar.api.fault.CougarApplicationException;
 import com.betfair.cougar.api.geolocation.GeoLocationDetails;
+import com.betfair.cougar.api.security.CacheableIdentityResolver;
+import com.betfair.cougar.api.security.IdentityResolutionCache;
 import com.betfair.cougar.api.security.IdentityResolver;
 import com.betfair.cougar.api.security.CredentialFaultCode;
 import com.betfair.cougar.api.security.IdentityChain;
@@ -51,8 +56,11 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.*;
 
 public class BaseExecutionVenueTest {
@@ -380,6 +388,31 @@ public class BaseExecutionVenueTest {
         verify(preProcessor, times(1)).invoke(any(ExecutionContext.class), any(OperationKey.class), any(Object[].class));
     }
 
+    @Test
+    public void onlyOncePreProcessorWhenExecutedOnAnotherThread() {
+        ExecutionPreProcessor preProcessor = mock(ExecutionPreProcessor.class);
+        when(preProcessor.getExecutionRequirement()).thenReturn(ExecutionRequirement.EXACTLY_ONCE);
+        when(preProcessor.invoke(any(ExecutionContext.class), any(OperationKey.class), any(Object[].class))).thenReturn(new InterceptorResult(InterceptorState.CONTINUE));
+        preProcessorList.add(preProcessor);
+        bev.registerOperation(null, mockOperationDef, new Executable() {
+            @Override
+            public void execute(ExecutionContext ctx, OperationKey key, Object[] args, ExecutionObserver observer, ExecutionVenue executionVenue, TimeConstraints timeConstraints) {
+                observer.onResult(new ExecutionResult("done"));
+            }
+        }, mockTimingRecorder, 0);
+
+        ExecutionObserver observer = mock(ExecutionObserver.class);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            bev.execute(mockExecutionContext, mockOperationKey, args, observer, executor, DefaultTimeConstraints.NO_CONSTRAINTS);
+            verify(observer, timeout(1000)).onResult(any(ExecutionResult.class));
+        }
+        finally {
+            executor.shutdown();
+        }
+        verify(preProcessor, times(1)).invoke(any(ExecutionContext.class), any(OperationKey.class), any(Object[].class));
+    }
+
     @Test
     public void everyPlacePreProcessorViaExecutorExecuteMethod() {
         ExecutionPreProcessor preProcessor = mock(ExecutionPreProcessor.class);
@@ -712,6 +745,91 @@ public class BaseExecutionVenueTest {
         assertEquals(ServerFaultCode.BannedLocation, observerCaptor.getValue().getFault().getServerFaultCode());
     }
 
+    @Test
+    public void cachedIdentityResolutionReusedForSameTokens() throws Exception {
+        CacheableIdentityResolver resolver = mock(CacheableIdentityResolver.class);
+        when(resolver.tokenise(any(IdentityChain.class))).thenReturn(Arrays.asList(new IdentityToken("Key", "Rewritten")));
+        bev.setIdentityResolutionCacheMaxSize(10);
+        bev.setIdentityResolutionCacheTtlMillis(60000);
+        bev.setIdentityResolver(resolver);
+        ArgumentCaptor<IdentityResolutionCache> cacheCaptor = ArgumentCaptor.forClass(IdentityResolutionCache.class);
+        verify(resolver).setIdentityResolutionCache(cacheCaptor.capture());
+        bev.registerOperation(null, mockOperationDef, succeedingExecutable, mockTimingRecorder, 0);
+
+        ExecutionContextWithTokens first = contextWithTokens(new IdentityToken("Key", "Value"));
+        ExecutionContextWithTokens second = contextWithTokens(new IdentityToken("Key", "Value"));
+        bev.execute(first, mockOperationKey, args, mock(ExecutionObserver.class), DefaultTimeConstraints.NO_CONSTRAINTS);
+        bev.execute(second, mockOperationKey, args, mock(ExecutionObserver.class), DefaultTimeConstraints.NO_CONSTRAINTS);
+
+        verify(resolver, times(1)).resolve(any(IdentityChain.class), any(ExecutionContextWithTokens.class));
+        assertEquals(Arrays.asList(new IdentityToken("Key", "Rewritten")), second.getIdentityTokens());
+        assertEquals(1, bev.getIdentityResolutionCacheHits());
+        assertEquals(1, bev.getIdentityResolutionCacheMisses());
+
+        // once the resolver invalidates the token it must be resolved again
+        cacheCaptor.getValue().invalidate(new IdentityToken("Key", "Value"));
+        bev.execute(contextWithTokens(new IdentityToken("Key", "Value")), mockOperationKey, args, mock(ExecutionObserver.class), DefaultTimeConstraints.NO_CONSTRAINTS);
+
+        verify(resolver, times(2)).resolve(any(IdentityChain.class), any(ExecutionContextWithTokens.class));
+        assertEquals(1, bev.getIdentityResolutionCacheInvalidations());
+    }
+
+    @Test
+    public void identityResolutionInvalidatedWhileResolvingNotCached() throws Exception {
+        final IdentityResolutionCache[] cache = new IdentityResolutionCache[1];
+        CacheableIdentityResolver resolver = mock(CacheableIdentityResolver.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                cache[0] = (IdentityResolutionCache) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(resolver).setIdentityResolutionCache(any(IdentityResolutionCache.class));
+        final AtomicBoolean logoutDuringResolve = new AtomicBoolean(true);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                // a logout for the same session lands after the miss, but before the resolution is cached
+                if (logoutDuringResolve.getAndSet(false)) {
+                    cache[0].invalidate(new IdentityToken("Key", "Value"));
+                }
+                return null;
+            }
+        }).when(resolver).resolve(any(IdentityChain.class), any(ExecutionContextWithTokens.class));
+        bev.setIdentityResolutionCacheMaxSize(10);
+        bev.setIdentityResolutionCacheTtlMillis(60000);
+        bev.setIdentityResolver(resolver);
+        bev.registerOperation(null, mockOperationDef, succeedingExecutable, mockTimingRecorder, 0);
+
+        bev.execute(contextWithTokens(new IdentityToken("Key", "Value")), mockOperationKey, args, mock(ExecutionObserver.class), DefaultTimeConstraints.NO_CONSTRAINTS);
+        assertEquals(0, bev.getIdentityResolutionCacheSize());
+
+        bev.execute(contextWithTokens(new IdentityToken("Key", "Value")), mockOperationKey, args, mock(ExecutionObserver.class), DefaultTimeConstraints.NO_CONSTRAINTS);
+        verify(resolver, times(2)).resolve(any(IdentityChain.class), any(ExecutionContextWithTokens.class));
+        assertEquals(1, bev.getIdentityResolutionCacheSize());
+    }
+
+    @Test
+    public void identityResolutionNotCachedUnlessEnabled() throws Exception {
+        CacheableIdentityResolver resolver = mock(CacheableIdentityResolver.class);
+        bev.setIdentityResolver(resolver);
+        bev.registerOperation(null, mockOperationDef, succeedingExecutable, mockTimingRecorder, 0);
+
+        bev.execute(contextWithTokens(new IdentityToken("Key", "Value")), mockOperationKey, args, mock(ExecutionObserver.class), DefaultTimeConstraints.NO_CONSTRAINTS);
+        bev.execute(contextWithTokens(new IdentityToken("Key", "Value")), mockOperationKey, args, mock(ExecutionObserver.class), DefaultTimeConstraints.NO_CONSTRAINTS);
+
+        verify(resolver, times(2)).resolve(any(IdentityChain.class), any(ExecutionContextWithTokens.class));
+        verify(resolver, never()).setIdentityResolutionCache(any(IdentityResolutionCache.class));
+        assertFalse(bev.isIdentityResolutionCacheEnabled());
+    }
+
+    private ExecutionContextWithTokens contextWithTokens(IdentityToken... tokens) {
+        ExecutionContextWithTokens ctx = mock(ExecutionContextWithTokens.class);
+        when(ctx.getIdentityTokens()).thenReturn(new ArrayList<IdentityToken>(Arrays.asList(tokens)));
+        when(ctx.getRequestUUID()).thenReturn(uuid);
+        return ctx;
+    }
+
     @Test
     public void expiringExecutable() {
         ExecutionObserver observer = mock(ExecutionObserver.class);
@@ -737,6 +855,185 @@ public class BaseExecutionVenueTest {
 
     }
 
+    @Test
+    public void completedExecutableNoLongerPendingTimeout() {
+        ExecutionObserver observer = mock(ExecutionObserver.class);
+
+        bev.registerOperation(null, mockOperationDef, new Executable() {
+            @Override
+            public void execute(ExecutionContext ctx, OperationKey key, Object[] args, ExecutionObserver observer, ExecutionVenue executionVenue, TimeConstraints timeConstraints) {
+                observer.onResult(new ExecutionResult("done"));
+            }
+        }, mockTimingRecorder, 1000);
+        bev.start();
+        bev.execute(mockExecutionContext, mockOperationKey, args, observer, DefaultTimeConstraints.NO_CONSTRAINTS);
+
+        ArgumentCaptor<ExecutionResult> executionResultArgumentCaptor = ArgumentCaptor.forClass(ExecutionResult.class);
+        verify(observer).onResult(executionResultArgumentCaptor.capture());
+        assertEquals(ExecutionResult.ResultType.Success, executionResultArgumentCaptor.getValue().getResultType());
+
+        assertEquals(0, bev.getPendingTimeouts());
+    }
+
+    @Test
+    public void executableSeesExpiryAndOnlyFirstResultDelivered() {
+        ExecutionObserver observer = mock(ExecutionObserver.class);
+        final List<TimeConstraints> seen = new ArrayList<TimeConstraints>();
+
+        bev.registerOperation(null, mockOperationDef, new Executable() {
+            @Override
+            public void execute(ExecutionContext ctx, OperationKey key, Object[] args, ExecutionObserver observer, ExecutionVenue executionVenue, TimeConstraints timeConstraints) {
+                seen.add(timeConstraints);
+                observer.onResult(new ExecutionResult("first"));
+                observer.onResult(new ExecutionResult("second"));
+            }
+        }, mockTimingRecorder, 1000);
+        long before = System.currentTimeMillis();
+        bev.execute(mockExecutionContext, mockOperationKey, args, observer, thisThreadExecutor(), DefaultTimeConstraints.NO_CONSTRAINTS);
+
+        assertEquals(1, seen.size());
+        assertNotNull(seen.get(0).getExpiryTime());
+        assertTrue(seen.get(0).getExpiryTime() >= before + 1000);
+
+        ArgumentCaptor<ExecutionResult> executionResultArgumentCaptor = ArgumentCaptor.forClass(ExecutionResult.class);
+        verify(observer).onResult(executionResultArgumentCaptor.capture());
+        assertEquals("first", executionResultArgumentCaptor.getValue().getResult());
+        verify(mockTimingRecorder, atLeastOnce()).recordCall(anyDouble());
+        assertEquals(0, bev.getPendingTimeouts());
+    }
+
+    @Test
+    public void dispatchAllocationWithoutInterceptors() {
+        bev.registerOperation(null, mockOperationDef, resultExecutable(), noOpTimingRecorder(), 0);
+
+        // the execution itself and hashing the operation key, anything more means dispatch has regressed
+        assertAllocatesAtMost(160);
+    }
+
+    @Test
+    public void dispatchAllocationWithInterceptors() {
+        preProcessorList.add(continuePreProcessor);
+        postProcessorList.add(new ExecutionPostProcessor() {
+            @Override
+            public InterceptorResult invoke(ExecutionContext ctx, OperationKey key, Object[] args, ExecutionResult result) {
+                return CONTINUE;
+            }
+            @Override
+            public String getName() {
+                return "continuePostProcessor";
+            }
+        });
+        bev.registerOperation(null, mockOperationDef, resultExecutable(), noOpTimingRecorder(), 0);
+
+        // plus the intercepting wrapper's runnable, post-processing observer and post-processor iterator
+        assertAllocatesAtMost(256);
+    }
+
+    /**
+     * Measures what a warmed up dispatch through the venue allocates on the calling thread. Mocks allocate on every
+     * call, so everything on the path is a plain implementation.
+     */
+    private void assertAllocatesAtMost(long maxBytesPerExecution) {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported() && allocationMXBean.isThreadAllocatedMemoryEnabled());
+
+        ExecutionContextWithTokens ctx = new ExecutionContextWithTokens() {
+            private List<IdentityToken> tokens = new ArrayList<IdentityToken>();
+            @Override
+            public List<IdentityToken> getIdentityTokens() {
+                return tokens;
+            }
+
+            @Override
+            public void setIdentityChain(IdentityChain chain) {
+            }
+
+            @Override
+            public GeoLocationDetails getLocation() {
+                return null;
+            }
+
+            @Override
+            public IdentityChain getIdentity() {
+                return null;
+            }
+
+            @Override
+            public RequestUUID getRequestUUID() {
+                return uuid;
+            }
+
+            @Override
+            public Date getReceivedTime() {
+                return null;
+            }
+
+            @Override
+            public Date getRequestTime() {
+                return null;
+            }
+
+            @Override
+            public boolean traceLoggingEnabled() {
+                return false;
+            }
+
+            @Override
+            public int getTransportSecurityStrengthFactor() {
+                return 0;
+            }
+
+            @Override
+            public boolean isTransportSecure() {
+                return false;
+            }
+        };
+        ExecutionObserver observer = new ExecutionObserver() {
+            @Override
+            public void onResult(ExecutionResult result) {
+            }
+        };
+        Executor executor = thisThreadExecutor();
+
+        int iterations = 200000;
+        for (int i = 0; i < iterations; i++) {
+            bev.execute(ctx, mockOperationKey, args, observer, executor, DefaultTimeConstraints.NO_CONSTRAINTS);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocationMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            bev.execute(ctx, mockOperationKey, args, observer, executor, DefaultTimeConstraints.NO_CONSTRAINTS);
+        }
+        long bytesPerExecution = (allocationMXBean.getThreadAllocatedBytes(threadId) - before) / iterations;
+
+        assertTrue("Dispatch allocated " + bytesPerExecution + " bytes per execution, expected at most " + maxBytesPerExecution,
+                bytesPerExecution <= maxBytesPerExecution);
+    }
+
+    private Executable resultExecutable() {
+        final ExecutionResult result = new ExecutionResult("done");
+        return new Executable() {
+            @Override
+            public void execute(ExecutionContext ctx, OperationKey key, Object[] args, ExecutionObserver observer, ExecutionVenue executionVenue, TimeConstraints timeConstraints) {
+                observer.onResult(result);
+            }
+        };
+    }
+
+    private ExecutionTimingRecorder noOpTimingRecorder() {
+        return new ExecutionTimingRecorder() {
+            @Override
+            public void recordCall(double timeTakenMs) {
+            }
+
+            @Override
+            public void recordFailure(double timeTakenMs) {
+            }
+        };
+    }
+
     private Executor thisThreadExecutor() {
         return new Executor() {
             @Override
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.core.impl.security;
+
+import com.betfair.cougar.api.security.Identity;
+import com.betfair.cougar.api.security.IdentityToken;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class IdentityResolutionCacheImplTest {
+
+    private static final List<IdentityToken> TOKENS_A = Arrays.asList(new IdentityToken("Session", "a"));
+    private static final List<IdentityToken> TOKENS_B = Arrays.asList(new IdentityToken("Session", "b"));
+    private static final List<IdentityToken> TOKENS_C = Arrays.asList(new IdentityToken("Session", "c"));
+
+    @Test
+    public void cachedPerTokensAndStrength() {
+        IdentityResolutionCacheImpl cache = new IdentityResolutionCacheImpl(10, 60000, 1);
+        Identity identity = mock(Identity.class);
+        cache.put(TOKENS_A, 0, new IdentityChainImpl(Arrays.asList(identity)), TOKENS_B, cache.getGeneration());
+
+        IdentityResolutionCacheImpl.Resolution resolution = cache.get(Arrays.asList(new IdentityToken("Session", "a")), 0);
+        assertNotNull(resolution);
+        assertEquals(Arrays.asList(identity), resolution.getIdentityChain().getIdentities());
+        assertEquals(TOKENS_B, resolution.getTokens());
+        assertNull(cache.get(TOKENS_A, 128));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cachedChainIsImmutable() {
+        IdentityResolutionCacheImpl cache = new IdentityResolutionCacheImpl(10, 60000, 1);
+        IdentityResolutionCacheImpl.Resolution resolution = cache.put(TOKENS_A, 0, new IdentityChainImpl(), null, cache.getGeneration());
+        ((IdentityChainImpl) resolution.getIdentityChain()).addIdentity(mock(Identity.class));
+    }
+
+    @Test
+    public void resolutionNotCachedIfInvalidatedWhileResolving() {
+        IdentityResolutionCacheImpl cache = new IdentityResolutionCacheImpl(10, 60000, 1);
+        assertNull(cache.get(TOKENS_A, 0));
+        long generation = cache.getGeneration();
+        // the resolver revokes the credential while we're still resolving it
+        cache.invalidate(new IdentityToken("Session", "a"));
+        IdentityResolutionCacheImpl.Resolution resolution = cache.put(TOKENS_A, 0, new IdentityChainImpl(), null, generation);
+
+        assertNotNull(resolution);
+        assertNull(cache.get(TOKENS_A, 0));
+        assertEquals(0, cache.size());
+
+        // but once the invalidation's done, later resolutions are cached again
+        cache.put(TOKENS_A, 0, new IdentityChainImpl(), null, cache.getGeneration());
+        assertNotNull(cache.get(TOKENS_A, 0));
+    }
+
+    @Test
+    public void leastRecentlyUsedEvictedWhenFull() {
+        IdentityResolutionCacheImpl cache = new IdentityResolutionCacheImpl(2, 60000, 1);
+        cache.put(TOKENS_A, 0, new IdentityChainImpl(), null, cache.getGeneration());
+        cache.put(TOKENS_B, 0, new IdentityChainImpl(), null, cache.getGeneration());
+        assertNotNull(cache.get(TOKENS_A, 0));
+        cache.put(TOKENS_C, 0, new IdentityChainImpl(), null, cache.getGeneration());
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get(TOKENS_A, 0));
+        assertNull(cache.get(TOKENS_B, 0));
+    }
+
+    @Test
+    public void expiredAfterTtl() throws InterruptedException {
+        IdentityResolutionCacheImpl cache = new IdentityResolutionCacheImpl(10, 1, 1);
+        cache.put(TOKENS_A, 0, new IdentityChainImpl(), null, cache.getGeneration());
+        Thread.sleep(10);
+
+        assertNull(cache.get(TOKENS_A, 0));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void invalidateEvictsEveryResolutionIncludingToken() {
+        IdentityResolutionCacheImpl cache = new IdentityResolutionCacheImpl(10, 60000, 1);
+        List<IdentityToken> both = Arrays.asList(new IdentityToken("Session", "a"), new IdentityToken("Session", "b"));
+        cache.put(TOKENS_A, 0, new IdentityChainImpl(), null, cache.getGeneration());
+        cache.put(TOKENS_A, 128, new IdentityChainImpl(), null, cache.getGeneration());
+        cache.put(both, 0, new IdentityChainImpl(), null, cache.getGeneration());
+        cache.put(TOKENS_C, 0, new IdentityChainImpl(), null, cache.getGeneration());
+
+        cache.invalidate(new IdentityToken("Session", "a"));
+
+        assertEquals(3, cache.getInvalidationCount());
+        assertNull(cache.get(TOKENS_A, 0));
+        assertNull(cache.get(TOKENS_A, 128));
+        assertNull(cache.get(both, 0));
+        assertNotNull(cache.get(TOKENS_C, 0));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void emptyTokensCached() {
+        IdentityResolutionCacheImpl cache = new IdentityResolutionCacheImpl(10, 60000, 4);
+        cache.put(Collections.<IdentityToken>emptyList(), 0, new IdentityChainImpl(), null, cache.getGeneration());
+
+        assertNotNull(cache.get(Collections.<IdentityToken>emptyList(), 0));
+        assertNull(cache.get(Collections.<IdentityToken>emptyList(), 0).getTokens());
+    }
+}
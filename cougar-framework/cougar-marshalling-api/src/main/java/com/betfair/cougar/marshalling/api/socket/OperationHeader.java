@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.marshalling.api.socket;
+
+import com.betfair.cougar.core.api.ev.OperationKey;
+
+/**
+ * The operation part of a binary transport request. From protocol version 6 a client may refer to an operation by a
+ * small per session id, in which case the operation key and parameter names are only sent the first time(s) the id
+ * is used.
+ */
+public class OperationHeader {
+
+    public static final int NO_OPERATION_ID = -1;
+    public static final int MAX_OPERATION_IDS = 4096;
+
+    private final int operationId;
+    private final OperationKey operationKey;
+    private final String[] argNames;
+
+    public OperationHeader(int operationId, OperationKey operationKey, String[] argNames) {
+        this.operationId = operationId;
+        this.operationKey = operationKey;
+        this.argNames = argNames;
+    }
+
+    /**
+     * @return the session scoped id of the operation, or NO_OPERATION_ID
+     */
+    public int getOperationId() {
+        return operationId;
+    }
+
+    /**
+     * @return true if the operation was only referred to by an id the client has previously defined
+     */
+    public boolean isReference() {
+        return operationKey == null;
+    }
+
+    public OperationKey getOperationKey() {
+        return operationKey;
+    }
+
+    public String[] getArgNames() {
+        return argNames;
+    }
+}
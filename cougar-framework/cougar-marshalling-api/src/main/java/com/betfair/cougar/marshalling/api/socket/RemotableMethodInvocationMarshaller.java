@@ -37,6 +37,13 @@ public interface RemotableMethodInvocationMarshaller {
 
     public void writeInvocationRequest(InvocationRequest request, CougarObjectOutput out, IdentityResolver identityResolver, byte protocolVersion) throws IOException;
 
+    /**
+     * Writes the request, on protocol versions which support it referring to the operation by a session scoped id.
+     * The operation key and parameter names are sent alongside the id whilst <code>defineOperationId</code> is set,
+     * and in place of it if the id is <code>OperationHeader.NO_OPERATION_ID</code>.
+     */
+    public void writeInvocationRequest(InvocationRequest request, CougarObjectOutput out, IdentityResolver identityResolver, int operationId, boolean defineOperationId, byte protocolVersion) throws IOException;
+
     public void writeInvocationResponse(InvocationResponse response, CougarObjectOutput out, byte protocolVersion) throws IOException;
 
     public InvocationResponse readInvocationResponse(ParameterType resultType, CougarObjectInput in) throws IOException;
@@ -45,6 +52,13 @@ public interface RemotableMethodInvocationMarshaller {
 
     public Object [] readArgs(Parameter[] argTypes, CougarObjectInput in) throws IOException;
 
+    public OperationHeader readOperationHeader(CougarObjectInput in, byte protocolVersion) throws IOException;
+
+    /**
+     * Reads the argument values following an operation header, in the order the client wrote them.
+     */
+    public Object [] readArgValues(CougarObjectInput in) throws IOException;
+
     public ExecutionContextWithTokens readExecutionContext(CougarObjectInput in, String remoteAddress, java.security.cert.X509Certificate[] clientCertChain, int transportSecurityStrengthFactor, byte protocolVersion) throws IOException;
 
     TimeConstraints readTimeConstraintsIfPresent(CougarObjectInput in, byte protocolVersion) throws IOException;
@@ -20,6 +20,9 @@ public class NewHeapSubscription {
     private long heapId;
     private String subscriptionId;
     private String uri;
+    // only set by servers which support heap resumption
+    private long epoch;
+    private boolean resumed;
 
     public NewHeapSubscription() {
     }
@@ -51,6 +54,29 @@ public class NewHeapSubscription {
         this.uri = uri;
     }
 
+    /**
+     * Identifies the run of the server which issued the heap id, so a client can ask to resume the heap later.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    /**
+     * True if the server will catch the client's existing copy of the heap up with the deltas it missed, rather
+     * than sending it an initial update.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public void setResumed(boolean resumed) {
+        this.resumed = resumed;
+    }
+
     public String getSubscriptionId() {
         return subscriptionId;
     }
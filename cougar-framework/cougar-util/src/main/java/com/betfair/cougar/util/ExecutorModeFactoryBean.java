@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.util;
+
+import com.betfair.cougar.logging.CougarLogger;
+import com.betfair.cougar.logging.CougarLoggingUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.annotation.Required;
+
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+
+/**
+ * Chooses the executor services are run on. Valid modes are:
+ * <ul>
+ * <li>"pool": the given thread pool</li>
+ * <li>"virtual": a new virtual thread per task, falling back to the thread pool on JVMs without virtual threads</li>
+ * </ul>
+ */
+public class ExecutorModeFactoryBean implements FactoryBean, DisposableBean {
+
+    private static final CougarLogger logger = CougarLoggingUtils.getLogger(ExecutorModeFactoryBean.class);
+
+    private String mode = "pool";
+    private Executor threadPool;
+    private String threadNamePrefix = "";
+    private VirtualThreadExecutor virtualThreadExecutor;
+
+    @Override
+    public synchronized Object getObject() throws Exception {
+        if ("pool".equals(mode)) {
+            return threadPool;
+        }
+        if (!"virtual".equals(mode)) {
+            throw new IllegalArgumentException("Unknown executor mode: " + mode);
+        }
+        if (!VirtualThreadExecutor.isSupported()) {
+            logger.log(Level.WARNING, "Virtual threads are not supported by this JVM (%s), using the thread pool instead", System.getProperty("java.version"));
+            return threadPool;
+        }
+        if (virtualThreadExecutor == null) {
+            virtualThreadExecutor = new VirtualThreadExecutor(threadNamePrefix);
+            logger.log(Level.INFO, "Running tasks for %s on virtual threads", threadNamePrefix);
+        }
+        return virtualThreadExecutor;
+    }
+
+    @Override
+    public Class getObjectType() {
+        return Executor.class;
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+        }
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode.trim();
+    }
+
+    @Required
+    public void setThreadPool(Executor threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    public void setThreadNamePrefix(String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel for expiring large numbers of items with a coarse granularity. Scheduling and cancelling are
+ * O(1) and safe from any thread, whilst {@link #expire(long, ExpiryHandler)} must be driven by a single thread
+ * and costs O(items expired + items scheduled/cancelled since the last call), regardless of how many are outstanding.
+ * <p/>
+ * Items expire no earlier than their deadline, and at most one tick after it (plus however late expire is called).
+ * There's no thread in here, the owner decides when to call expire.
+ */
+public class HashedTimerWheel<T> {
+
+    public interface ExpiryHandler<T> {
+        void expired(T item);
+    }
+
+    private static final int ST_PENDING = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final long tickMillis;
+    private final long startTime;
+    private final Bucket<T>[] wheel;
+    private final int mask;
+
+    private final Queue<Timeout<T>> scheduled = new ConcurrentLinkedQueue<Timeout<T>>();
+    private final Queue<Timeout<T>> cancelled = new ConcurrentLinkedQueue<Timeout<T>>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    // only touched by the expiring thread
+    private long lastTick = -1;
+
+    /**
+     * @param tickMillis    granularity of the wheel
+     * @param ticksPerWheel number of buckets, rounded up to a power of two. Items scheduled further ahead than
+     *                      one revolution are fine, they just get looked at once per revolution until they're due.
+     */
+    public HashedTimerWheel(long tickMillis, int ticksPerWheel) {
+        this(tickMillis, ticksPerWheel, System.currentTimeMillis());
+    }
+
+    HashedTimerWheel(long tickMillis, int ticksPerWheel, long startTime) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+        }
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.startTime = startTime;
+        //noinspection unchecked
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket<T>();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedules the item to expire at the given time (in millis since the epoch).
+     */
+    public Timeout<T> schedule(T item, long deadline) {
+        Timeout<T> timeout = new Timeout<T>(this, item, deadline);
+        outstanding.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Expires everything due as of <code>now</code>, passing each item to the handler. Must only be called from
+     * one thread at a time.
+     *
+     * @return the number of items expired
+     */
+    public int expire(long now, ExpiryHandler<T> handler) {
+        // a tick is only processed once it has completely passed, so nothing in it can be early
+        long targetTick = (now - startTime) / tickMillis - 1;
+        removeCancelled();
+        transferScheduled(targetTick);
+
+        int expired = 0;
+        while (lastTick < targetTick) {
+            lastTick++;
+            expired += wheel[(int) (lastTick & mask)].expire(now, handler);
+        }
+        return expired;
+    }
+
+    /**
+     * Number of items scheduled which have neither expired nor been cancelled.
+     */
+    public int size() {
+        return outstanding.get();
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public int getTicksPerWheel() {
+        return wheel.length;
+    }
+
+    private void transferScheduled(long targetTick) {
+        Timeout<T> timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() != ST_PENDING) {
+                continue;
+            }
+            long deadlineTick = (timeout.deadline - startTime) / tickMillis;
+            // anything already overdue goes in the next tick we process
+            long tick = Math.max(deadlineTick, lastTick + 1);
+            timeout.remainingRounds = (tick - (lastTick + 1)) / wheel.length;
+            wheel[(int) (tick & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout<T> timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    public static final class Timeout<T> {
+        private final HashedTimerWheel<T> owner;
+        private final T item;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_PENDING);
+
+        // bucket membership, only touched by the expiring thread
+        private long remainingRounds;
+        private Bucket<T> bucket;
+        private Timeout<T> next;
+        private Timeout<T> prev;
+
+        private Timeout(HashedTimerWheel<T> owner, T item, long deadline) {
+            this.owner = owner;
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Cancels this timeout, returning false if it had already expired or been cancelled.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_PENDING, ST_CANCELLED)) {
+                return false;
+            }
+            owner.outstanding.decrementAndGet();
+            owner.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+    }
+
+    private static final class Bucket<T> {
+        private Timeout<T> head;
+        private Timeout<T> tail;
+
+        void add(Timeout<T> timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        int expire(long now, ExpiryHandler<T> handler) {
+            int expired = 0;
+            Timeout<T> timeout = head;
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    // only not yet due if the clock has gone backwards, in which case leave it for the next revolution
+                    if (timeout.deadline <= now) {
+                        remove(timeout);
+                        if (timeout.state.compareAndSet(ST_PENDING, ST_EXPIRED)) {
+                            timeout.owner.outstanding.decrementAndGet();
+                            expired++;
+                            handler.expired(timeout.item);
+                        }
+                    }
+                }
+                else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+            return expired;
+        }
+
+        void remove(Timeout<T> timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            else {
+                tail = timeout.prev;
+            }
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.bucket = null;
+        }
+    }
+}
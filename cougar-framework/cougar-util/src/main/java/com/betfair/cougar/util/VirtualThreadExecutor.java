@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.util;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An executor which runs every task on a new virtual thread, so that tasks which spend most of their time blocked
+ * (e.g. on sync clients) don't each tie up a platform thread. Virtual threads are looked up reflectively since we
+ * build against JVMs which don't have them, check {@link #isSupported()} first.
+ * <p/>
+ * There's no pool to report on, so instead it reports on the tasks in flight.
+ */
+@ManagedResource
+public class VirtualThreadExecutor implements Executor {
+
+    private final ExecutorService delegate;
+    private final String threadNamePrefix;
+
+    private final AtomicLong taskCount = new AtomicLong();
+    private final AtomicLong completedTaskCount = new AtomicLong();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger largestActiveCount = new AtomicInteger();
+
+    public VirtualThreadExecutor(String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+        try {
+            this.delegate = newThreadPerTaskExecutor(threadNamePrefix);
+        } catch (Exception e) {
+            throw new IllegalStateException("Virtual threads are not supported by this JVM", e);
+        }
+    }
+
+    /**
+     * Whether this JVM can run tasks on virtual threads.
+     */
+    public static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor(String threadNamePrefix) throws Exception {
+        // Thread.ofVirtual().name(threadNamePrefix, 1).factory()
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadNamePrefix, 1L);
+        ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        taskCount.incrementAndGet();
+        delegate.execute(new Runnable() {
+            @Override
+            public void run() {
+                int active = activeCount.incrementAndGet();
+                int largest;
+                while (active > (largest = largestActiveCount.get()) && !largestActiveCount.compareAndSet(largest, active)) {
+                    // someone else got there first, try again
+                }
+                try {
+                    command.run();
+                } finally {
+                    activeCount.decrementAndGet();
+                    completedTaskCount.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @ManagedAttribute
+    public String getThreadNamePrefix() {
+        return threadNamePrefix;
+    }
+
+    @ManagedAttribute
+    public long getTaskCount() {
+        return taskCount.get();
+    }
+
+    @ManagedAttribute
+    public long getCompletedTaskCount() {
+        return completedTaskCount.get();
+    }
+
+    @ManagedAttribute
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    @ManagedAttribute
+    public int getLargestActiveCount() {
+        return largestActiveCount.get();
+    }
+
+    @ManagedAttribute
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExecutorModeFactoryBeanTest {
+
+    private final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    @Test
+    public void poolModeUsesThreadPool() throws Exception {
+        ExecutorModeFactoryBean factory = new ExecutorModeFactoryBean();
+        factory.setMode("pool");
+        factory.setThreadPool(threadPool);
+
+        assertSame(threadPool, factory.getObject());
+    }
+
+    @Test
+    public void virtualModeRunsTasks() throws Exception {
+        ExecutorModeFactoryBean factory = new ExecutorModeFactoryBean();
+        factory.setMode("virtual");
+        factory.setThreadPool(threadPool);
+        factory.setThreadNamePrefix("Test-");
+
+        Executor executor = (Executor) factory.getObject();
+        if (VirtualThreadExecutor.isSupported()) {
+            assertTrue(executor instanceof VirtualThreadExecutor);
+        } else {
+            assertSame(threadPool, executor);
+        }
+        assertSame(executor, factory.getObject());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        factory.destroy();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownMode() throws Exception {
+        ExecutorModeFactoryBean factory = new ExecutorModeFactoryBean();
+        factory.setMode("fibres");
+        factory.setThreadPool(threadPool);
+
+        factory.getObject();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedTimerWheelTest {
+
+    private final List<String> expired = new ArrayList<String>();
+    private final HashedTimerWheel.ExpiryHandler<String> handler = new HashedTimerWheel.ExpiryHandler<String>() {
+        @Override
+        public void expired(String item) {
+            expired.add(item);
+        }
+    };
+
+    @Test
+    public void expiresOnlyOnceDeadlinePassed() {
+        HashedTimerWheel<String> wheel = new HashedTimerWheel<String>(10, 8, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 45);
+
+        assertEquals(0, wheel.expire(29, handler));
+        assertEquals(1, wheel.expire(30, handler));
+        assertEquals(Arrays.asList("a"), expired);
+        assertEquals(1, wheel.size());
+
+        assertEquals(1, wheel.expire(50, handler));
+        assertEquals(Arrays.asList("a", "b"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancelledItemsDontExpire() {
+        HashedTimerWheel<String> wheel = new HashedTimerWheel<String>(10, 8, 0);
+        HashedTimerWheel.Timeout<String> a = wheel.schedule("a", 25);
+        wheel.schedule("b", 25);
+        // one cancelled before it's been placed on the wheel, one after
+        assertTrue(a.cancel());
+        wheel.expire(0, handler);
+        HashedTimerWheel.Timeout<String> c = wheel.schedule("c", 25);
+        wheel.expire(5, handler);
+        assertTrue(c.cancel());
+        assertFalse(c.cancel());
+
+        wheel.expire(100, handler);
+        assertEquals(Arrays.asList("b"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void itemsBeyondOneRevolution() {
+        HashedTimerWheel<String> wheel = new HashedTimerWheel<String>(10, 4, 0);
+        wheel.schedule("far", 125);
+
+        wheel.expire(50, handler);
+        wheel.expire(100, handler);
+        assertTrue(expired.isEmpty());
+        wheel.expire(130, handler);
+        assertEquals(Arrays.asList("far"), expired);
+    }
+
+    @Test
+    public void overdueItemsExpireOnNextTick() {
+        HashedTimerWheel<String> wheel = new HashedTimerWheel<String>(10, 4, 0);
+        wheel.expire(100, handler);
+        wheel.schedule("late", 5);
+
+        wheel.expire(110, handler);
+        assertEquals(Arrays.asList("late"), expired);
+    }
+
+    @Test
+    public void expiredItemCantBeCancelled() {
+        HashedTimerWheel<String> wheel = new HashedTimerWheel<String>(10, 4, 0);
+        HashedTimerWheel.Timeout<String> a = wheel.schedule("a", 5);
+        wheel.expire(10, handler);
+        assertTrue(a.isExpired());
+        assertFalse(a.cancel());
+    }
+}
@@ -184,6 +184,11 @@ public class JsonRpcTransportCommandProcessorTest  {
             public ParameterType getReturnType() {
                 return null;
             }
+
+            @Override
+            public boolean isIdempotent() {
+                return false;
+            }
         };
         OperationDefinition def2 = new OperationDefinition() {
 
@@ -203,6 +208,11 @@ public class JsonRpcTransportCommandProcessorTest  {
             public ParameterType getReturnType() {
                 return ParameterType.create(Date.class, null);
             }
+
+            @Override
+            public boolean isIdempotent() {
+                return false;
+            }
         };
 
         if (mocked) {
@@ -17,7 +17,11 @@
 package com.betfair.cougar.netutil.nio;
 
 import com.betfair.cougar.core.api.ServiceVersion;
+import com.betfair.cougar.core.api.transcription.Parameter;
 import com.betfair.cougar.core.api.transcription.Transcribable;
+import com.betfair.cougar.core.api.transcription.TranscribableParams;
+
+import java.util.Set;
 
 /**
  *
@@ -31,4 +35,12 @@ public abstract class AbstractHeapTranscribable implements Transcribable {
     public ServiceVersion getServiceVersion() {
         return FIXED_SERVICE_VERSION;
     }
+
+    /**
+     * The parameters written when transcribing with the given params. Must be a subset of getParameters(), in the
+     * order they're written, so that older protocol versions don't get told about fields they'll never be sent.
+     */
+    public Parameter[] getParameters(Set<TranscribableParams> params) {
+        return getParameters();
+    }
 }
@@ -16,19 +16,23 @@
 
 package com.betfair.cougar.netutil.nio;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import com.betfair.cougar.netutil.nio.message.ResponseMessage;
 import org.apache.mina.common.IoSession;
 
 
-public class ByteArrayOutputStreamWithIoSession extends ByteArrayOutputStream {
+public class ByteArrayOutputStreamWithIoSession extends PooledByteArrayOutputStream {
 	
 	private final IoSession ioSession;
     private long correlationId;
 	
 	public ByteArrayOutputStreamWithIoSession (IoSession ioSession, long correlationId) {
+        this(ioSession, correlationId, null);
+    }
+
+	public ByteArrayOutputStreamWithIoSession (IoSession ioSession, long correlationId, SerialisationBufferPool bufferPool) {
+        super(bufferPool);
 		this.ioSession = ioSession;
         this.correlationId = correlationId;
     }
@@ -36,6 +40,7 @@ public class ByteArrayOutputStreamWithIoSession extends ByteArrayOutputStream {
 	
 	@Override
 	public void flush() throws IOException {
-        ioSession.write(new ResponseMessage(correlationId, toByteArray()));
+        // the buffer is handed over to the message, and returned to the pool once it's been written
+        NioUtils.writeAndRelease(ioSession, new ResponseMessage(correlationId, detachPayloadBuffer()));
 	}		
 }
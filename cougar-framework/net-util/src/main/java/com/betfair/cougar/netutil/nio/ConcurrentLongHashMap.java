@@ -0,0 +1,219 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Concurrent map from primitive longs to values, used for correlating responses with outstanding requests without
+ * boxing every correlation id. Keys are spread over lock striped segments, each an open addressed table with linear
+ * probing, so a put and a remove on different segments never contend, and the lock is held only for a few array
+ * reads on the same one.
+ * <p/>
+ * Null values aren't supported.
+ */
+public class ConcurrentLongHashMap<V> {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int DEFAULT_SEGMENT_CAPACITY = 16;
+
+    private final Segment<V>[] segments;
+    private final int segmentMask;
+
+    public ConcurrentLongHashMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param concurrencyLevel number of segments, rounded up to a power of two
+     */
+    public ConcurrentLongHashMap(int concurrencyLevel) {
+        int numSegments = Integer.highestOneBit(Math.max(1, concurrencyLevel));
+        if (numSegments < concurrencyLevel) {
+            numSegments <<= 1;
+        }
+        //noinspection unchecked
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment<V>(DEFAULT_SEGMENT_CAPACITY);
+        }
+        segmentMask = numSegments - 1;
+    }
+
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values not supported");
+        }
+        long hash = hash(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    public V get(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    public V remove(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * Empties the map, returning what was in it.
+     */
+    public List<V> clear() {
+        List<V> ret = new ArrayList<V>();
+        for (Segment<V> segment : segments) {
+            segment.drainTo(ret);
+        }
+        return ret;
+    }
+
+    private Segment<V> segmentFor(long hash) {
+        // segment from the high bits, slot from the low bits, so the two are independent
+        return segments[(int) (hash >>> 48) & segmentMask];
+    }
+
+    private static long hash(long key) {
+        // murmur3 finaliser - correlation ids are sequential, which would otherwise cluster badly
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static final class Segment<V> {
+        private long[] keys;
+        private Object[] values;
+        private volatile int size;
+
+        private Segment(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        synchronized V put(long key, long hash, V value) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (values[slot] != null) {
+                if (keys[slot] == key) {
+                    @SuppressWarnings("unchecked")
+                    V old = (V) values[slot];
+                    values[slot] = value;
+                    return old;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+            // keep the load factor at or under a half so probe sequences stay short
+            if (size << 1 > keys.length) {
+                resize(keys.length << 1);
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(long key, long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (values[slot] != null) {
+                if (keys[slot] == key) {
+                    return (V) values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        synchronized V remove(long key, long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (values[slot] != null) {
+                if (keys[slot] == key) {
+                    @SuppressWarnings("unchecked")
+                    V old = (V) values[slot];
+                    deleteSlot(slot, mask);
+                    size--;
+                    return old;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        synchronized void drainTo(List<V> list) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    //noinspection unchecked
+                    list.add((V) values[i]);
+                    values[i] = null;
+                }
+            }
+            size = 0;
+        }
+
+        /**
+         * Backward shift deletion, so we don't need tombstones.
+         */
+        private void deleteSlot(int slot, int mask) {
+            int gap = slot;
+            int next = (gap + 1) & mask;
+            while (values[next] != null) {
+                int home = (int) hash(keys[next]) & mask;
+                // move the entry back into the gap if its home slot isn't cyclically between the gap and where it is
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            values[gap] = null;
+        }
+
+        private void resize(int newCapacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[newCapacity];
+            values = new Object[newCapacity];
+            int mask = newCapacity - 1;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = (int) hash(oldKeys[i]) & mask;
+                    while (values[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+}
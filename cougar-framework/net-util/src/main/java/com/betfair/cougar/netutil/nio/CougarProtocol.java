@@ -32,6 +32,7 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -50,13 +51,23 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
     public static final String NEGOTIATED_TLS_LEVEL_ATTR_NAME = "CougarProtocol.negotiatedTlsLevel";
     public static final String CLIENT_CERTS_ATTR_NAME = "CougarProtocol.clientCertificateChain";
     public static final String TSSF_ATTR_NAME = "CougarProtocol.transportSecurityStrengthFactor";
+    public static final String COMPRESSION_CODEC_ATTR_NAME = "CougarProtocol.compressionCodec";
 
     public static final byte TRANSPORT_PROTOCOL_VERSION_CLIENT_ONLY_RPC = 1;
     public static final byte TRANSPORT_PROTOCOL_VERSION_BIDIRECTION_RPC = 2;
     public static final byte TRANSPORT_PROTOCOL_VERSION_START_TLS = 3;
     public static final byte TRANSPORT_PROTOCOL_VERSION_TIME_CONSTRAINTS = 4;
+    public static final byte TRANSPORT_PROTOCOL_VERSION_COMPRESSION = 5;
+    // also allows conflated heap deltas, see HeapDelta.getFirstUpdateId()
+    public static final byte TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS = 6;
+    // clients may ask to resume heaps they were subscribed to on a previous session, see HeapResumption
+    public static final byte TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION = 7;
+    // heap delta updates are written in a compact binary form, see CompactUpdateCodec
+    public static final byte TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS = 8;
+    // several events for a session may be packed into a single EVENT_BATCH frame, see EventBatchMessage
+    public static final byte TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES = 9;
     public static final byte TRANSPORT_PROTOCOL_VERSION_MIN_SUPPORTED = TRANSPORT_PROTOCOL_VERSION_CLIENT_ONLY_RPC;
-    public static final byte TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED = TRANSPORT_PROTOCOL_VERSION_TIME_CONSTRAINTS;
+    public static final byte TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED = TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES;
     public static final byte TRANSPORT_PROTOCOL_VERSION_UNSUPPORTED = TRANSPORT_PROTOCOL_VERSION_MIN_SUPPORTED - 1;
 
     // these allow tests to force us to particular versions of the protocol, even invalid ones
@@ -106,6 +117,11 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
         map[TRANSPORT_PROTOCOL_VERSION_BIDIRECTION_RPC] =  Collections.unmodifiableSet(EnumSet.noneOf(TranscribableParams.class));
         map[TRANSPORT_PROTOCOL_VERSION_START_TLS] =  Collections.unmodifiableSet(EnumSet.of(TranscribableParams.EnumsWrittenAsStrings, TranscribableParams.MajorOnlyPackageNaming));
         map[TRANSPORT_PROTOCOL_VERSION_TIME_CONSTRAINTS] =  Collections.unmodifiableSet(EnumSet.of(TranscribableParams.EnumsWrittenAsStrings, TranscribableParams.MajorOnlyPackageNaming));
+        map[TRANSPORT_PROTOCOL_VERSION_COMPRESSION] =  Collections.unmodifiableSet(EnumSet.of(TranscribableParams.EnumsWrittenAsStrings, TranscribableParams.MajorOnlyPackageNaming));
+        map[TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS] =  Collections.unmodifiableSet(EnumSet.of(TranscribableParams.EnumsWrittenAsStrings, TranscribableParams.MajorOnlyPackageNaming, TranscribableParams.HeapDeltaUpdateRanges));
+        map[TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION] =  Collections.unmodifiableSet(EnumSet.of(TranscribableParams.EnumsWrittenAsStrings, TranscribableParams.MajorOnlyPackageNaming, TranscribableParams.HeapDeltaUpdateRanges));
+        map[TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS] =  Collections.unmodifiableSet(EnumSet.of(TranscribableParams.EnumsWrittenAsStrings, TranscribableParams.MajorOnlyPackageNaming, TranscribableParams.HeapDeltaUpdateRanges, TranscribableParams.CompactHeapDeltas));
+        map[TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES] =  Collections.unmodifiableSet(EnumSet.of(TranscribableParams.EnumsWrittenAsStrings, TranscribableParams.MajorOnlyPackageNaming, TranscribableParams.HeapDeltaUpdateRanges, TranscribableParams.CompactHeapDeltas));
         transcribableParamsByProtocolVersion = map;
     }
 
@@ -117,6 +133,14 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
         return transcribableParamsByProtocolVersion[protocolVersion];
     }
 
+    /**
+     * Returns the payload compression codec negotiated for the session, or null if payloads aren't compressed (in
+     * which case rpc and event frames don't carry a compression flag).
+     */
+    public static CompressionCodec getSessionCompressionCodec(IoSession session) {
+        return (CompressionCodec) session.getAttribute(COMPRESSION_CODEC_ATTR_NAME);
+    }
+
     private final NioLogger nioLogger;
     private boolean isServer;
 
@@ -137,6 +161,12 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
 
     private final long rpcTimeoutMillis;
 
+    private int writeCoalescingMaxBytes; // 0 = disabled
+    private long writeCoalescingLingerMicros;
+    private ScheduledExecutorService writeCoalescingScheduler;
+
+    private volatile CompressionCodec compressionCodec = CompressionCodec.NONE;
+
     public static CougarProtocol getClientInstance(NioLogger nioLogger, int keepAliveInterval, int keepAliveTimeout, SSLFilter sslFilter, boolean supportsTls, boolean requiresTls, long rpcTimeoutMillis) {
         return new CougarProtocol(false, nioLogger, keepAliveInterval, keepAliveTimeout, sslFilter, supportsTls, requiresTls, rpcTimeoutMillis);
     }
@@ -157,6 +187,28 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
         export(nioLogger.getJmxControl());
     }
 
+    /**
+     * Enables coalescing of rpc and event writes on sessions created from now on. Writes are held back for at most
+     * <code>lingerMicros</code>, or until <code>maxBytes</code> are pending, and then go out as a single socket write.
+     * The scheduler belongs to the caller, who is responsible for shutting it down.
+     */
+    public synchronized void setWriteCoalescing(int maxBytes, long lingerMicros, ScheduledExecutorService scheduler) {
+        if (maxBytes > 0 && scheduler == null) {
+            throw new IllegalArgumentException("A scheduler is required for write coalescing");
+        }
+        this.writeCoalescingMaxBytes = maxBytes;
+        this.writeCoalescingLingerMicros = lingerMicros;
+        this.writeCoalescingScheduler = scheduler;
+    }
+
+    /**
+     * Sets the payload compression codec this end will offer (client) or accept (server) on sessions negotiating
+     * version 5 or later of the protocol.
+     */
+    public void setCompressionCodec(CompressionCodec compressionCodec) {
+        this.compressionCodec = compressionCodec;
+    }
+
     public void closeSession(final IoSession ioSession) {
         closeSession(ioSession, false);
     }
@@ -237,6 +289,9 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
     public void sessionCreated(NextFilter nextFilter, IoSession session) throws Exception {
         session.setIdleTime(IdleStatus.READER_IDLE, timeout);
         session.setIdleTime(IdleStatus.WRITER_IDLE, interval);
+        if (writeCoalescingMaxBytes > 0) {
+            session.setAttribute(WriteCoalescer.SESSION_KEY, new WriteCoalescer(session, writeCoalescingMaxBytes, writeCoalescingLingerMicros, writeCoalescingScheduler));
+        }
         nextFilter.sessionCreated(session);
 
         nioLogger.log(SESSION, session, "CougarProtocolCodecFilter: Created session at %s from %s", session.getCreationTime(), session.getRemoteAddress());
@@ -245,6 +300,54 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
     }
 
 
+    @Override
+    public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+        WriteCoalescer coalescer = (WriteCoalescer) session.getAttribute(WriteCoalescer.SESSION_KEY);
+        Object message = writeRequest.getMessage();
+        if (coalescer != null) {
+            if (message instanceof RequestMessage || message instanceof ResponseMessage || message instanceof EventMessage) {
+                coalescer.add(nextFilter, writeRequest, ((AbstractPayloadMessage) message).getPayloadLength());
+                return;
+            }
+            // anything else (handshaking, keep alives etc) mustn't overtake what's already pending
+            coalescer.flush();
+        }
+        nextFilter.filterWrite(session, writeRequest);
+        if (message instanceof ProtocolMessage) {
+            WriteCoalescer.recordWrite(session, 1);
+        }
+    }
+
+    @Override
+    public void messageSent(NextFilter nextFilter, IoSession session, Object message) throws Exception {
+        if (message instanceof WriteCoalescer.Batch) {
+            for (WriteRequest request : ((WriteCoalescer.Batch) message).getRequests()) {
+                nextFilter.messageSent(session, request.getMessage());
+            }
+        }
+        else {
+            nextFilter.messageSent(session, message);
+        }
+    }
+
+    @Override
+    public void filterClose(NextFilter nextFilter, IoSession session) throws Exception {
+        WriteCoalescer coalescer = (WriteCoalescer) session.getAttribute(WriteCoalescer.SESSION_KEY);
+        if (coalescer != null) {
+            coalescer.flush();
+        }
+        nextFilter.filterClose(session);
+    }
+
+    @Override
+    public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+        WriteCoalescer coalescer = (WriteCoalescer) session.getAttribute(WriteCoalescer.SESSION_KEY);
+        if (coalescer != null) {
+            coalescer.discard();
+        }
+        nextFilter.sessionClosed(session);
+    }
+
     public static byte getProtocolVersion(IoSession session) {
         Byte b = (Byte) session.getAttribute(PROTOCOL_VERSION_ATTR_NAME);
         if (b == null) {
@@ -326,7 +429,13 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
                             requirement = TLSRequirement.NONE;
                         }
                         nioLogger.log(PROTOCOL, session, "CougarProtocol: Server version supports TLS, sending requirement of %s", requirement);
-                        session.write(new StartTLSRequestMessage(requirement));
+                        // from version 5 we also offer our compression codec, which piggybacks on the tls negotiation
+                        if (acceptMessage.getAcceptedVersion() >= TRANSPORT_PROTOCOL_VERSION_COMPRESSION && compressionCodec != CompressionCodec.NONE) {
+                            session.write(new StartTLSRequestMessage(requirement, new CompressionCodec[] { compressionCodec }));
+                        }
+                        else {
+                            session.write(new StartTLSRequestMessage(requirement));
+                        }
                     }
                     // if we had to have tls, but the server is running an old version then we need to disconnect
                     else if (requiresTls) {
@@ -388,9 +497,19 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
                         default:
                             throw new IllegalStateException("Unsupported TLS requirement received " + tlsRequestMessage.getRequirement());
                     }
-                    StartTLSResponseMessage tlsResponseMessage = new StartTLSResponseMessage(result);
+                    CompressionCodec codec = CompressionCodec.NONE;
+                    if (result != TLSResult.FAILED_NEGOTIATION && compressionCodec != CompressionCodec.NONE
+                            && Arrays.asList(tlsRequestMessage.getCompressionCodecs()).contains(compressionCodec)) {
+                        codec = compressionCodec;
+                    }
+                    StartTLSResponseMessage tlsResponseMessage = new StartTLSResponseMessage(result, codec);
                     if (result != TLSResult.FAILED_NEGOTIATION) {
                         session.setAttribute(CougarProtocol.NEGOTIATED_TLS_LEVEL_ATTR_NAME, result);
+                        if (codec != CompressionCodec.NONE) {
+                            // the client won't send anything compressed until it's seen our response
+                            session.setAttribute(COMPRESSION_CODEC_ATTR_NAME, codec);
+                            nioLogger.log(PROTOCOL, session, "CougarProtocol: START_TLS_REQUEST - negotiated %s payload compression", codec);
+                        }
                         nioLogger.log(PROTOCOL, session, "CougarProtocol: START_TLS_REQUEST - successfully negotiated %s comms", result);
                         if (result == TLSResult.SSL) {
                             // Insert SSLFilter to get ready for handshaking
@@ -427,6 +546,10 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
                     else {
                         session.setAttribute(CougarProtocol.NEGOTIATED_TLS_LEVEL_ATTR_NAME, responseMessage.getResult());
                         nioLogger.log(PROTOCOL, session, "CougarProtocol: Starting %s comms following successful TLS negotiation", responseMessage.getResult());
+                        if (responseMessage.getCompressionCodec() != CompressionCodec.NONE) {
+                            session.setAttribute(COMPRESSION_CODEC_ATTR_NAME, responseMessage.getCompressionCodec());
+                            nioLogger.log(PROTOCOL, session, "CougarProtocol: Using %s payload compression", responseMessage.getCompressionCodec());
+                        }
 
                         if (responseMessage.getResult() == TLSResult.SSL) {
                             // Insert SSLFilter to get ready for handshaking
@@ -543,6 +666,21 @@ public class CougarProtocol extends IoFilterAdapter implements Exportable {
         return requiresTls;
     }
 
+    @ManagedAttribute
+    public int getWriteCoalescingMaxBytes() {
+        return writeCoalescingMaxBytes;
+    }
+
+    @ManagedAttribute
+    public long getWriteCoalescingLingerMicros() {
+        return writeCoalescingLingerMicros;
+    }
+
+    @ManagedAttribute
+    public String getCompressionCodec() {
+        return compressionCodec.name();
+    }
+
     // for testing
     SSLFilter getSslFilter() {
         return sslFilter;
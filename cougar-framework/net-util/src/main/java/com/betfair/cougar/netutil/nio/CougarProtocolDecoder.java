@@ -30,12 +30,18 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
 
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
 
 import static com.betfair.cougar.netutil.nio.NioLogger.LoggingLevel.ALL;
 
 @ManagedResource
 public class CougarProtocolDecoder extends CumulativeProtocolDecoder implements Exportable {
     private static final Logger LOG = LoggerFactory.getLogger(CougarProtocolDecoder.class);
+
+    public static final int DEFAULT_MAX_UNCOMPRESSED_PAYLOAD_BYTES = 64 * 1024 * 1024;
+    // the best deflate can do is roughly 1032:1, anything claiming more than that can't be genuine
+    private static final long MAX_DEFLATE_RATIO = 1032;
+
     private final NioLogger nioLogger;
 
     private final AtomicLong badMessagesReceived = new AtomicLong();
@@ -45,15 +51,37 @@ public class CougarProtocolDecoder extends CumulativeProtocolDecoder implements
     private final AtomicLong messageRequestsReceived = new AtomicLong();
     private final AtomicLong messageResponsesReceived = new AtomicLong();
     private final AtomicLong eventsReceived = new AtomicLong();
+    private final AtomicLong eventBatchesReceived = new AtomicLong();
     private final AtomicLong keepAlivesReceived = new AtomicLong();
     private final AtomicLong incompleteMessagesReceived = new AtomicLong();
     private final AtomicLong disconnectsReceived = new AtomicLong();
     private final AtomicLong suspendsReceived = new AtomicLong();
     private final AtomicLong tlsRequestsReceived = new AtomicLong();
     private final AtomicLong tlsResponsesReceived = new AtomicLong();
+    private final AtomicLong compressedMessagesReceived = new AtomicLong();
+
+    private final boolean pooledPayloadFraming;
+    private final int maxUncompressedPayloadBytes;
 
     public CougarProtocolDecoder(NioLogger nioLogger) {
+        this(nioLogger, false);
+    }
+
+    public CougarProtocolDecoder(NioLogger nioLogger, boolean pooledPayloadFraming) {
+        this(nioLogger, pooledPayloadFraming, DEFAULT_MAX_UNCOMPRESSED_PAYLOAD_BYTES);
+    }
+
+    /**
+     * @param pooledPayloadFraming if true, rpc and event payloads are decoded into buffers from MINA's allocator
+     *                             rather than freshly allocated byte arrays. Consumers of such messages must
+     *                             {@link AbstractPayloadMessage#release() release} them once done.
+     * @param maxUncompressedPayloadBytes the largest size a compressed payload may declare it inflates to. Frames
+     *                                    declaring more than this are treated as malformed.
+     */
+    public CougarProtocolDecoder(NioLogger nioLogger, boolean pooledPayloadFraming, int maxUncompressedPayloadBytes) {
         this.nioLogger = nioLogger;
+        this.pooledPayloadFraming = pooledPayloadFraming;
+        this.maxUncompressedPayloadBytes = maxUncompressedPayloadBytes;
 
         export(nioLogger.getJmxControl());
     }
@@ -63,7 +91,6 @@ public class CougarProtocolDecoder extends CumulativeProtocolDecoder implements
         if (buffer.prefixedDataAvailable(4)) {
             int msgLen = buffer.getInt() - 1; // the message type is not included in the payload.
             ProtocolMessageType pm = ProtocolMessageType.getMessageByMessageType(buffer.get());
-            byte[] messageBody;
             // we need to know if we're acting as a client or a server and treat appropriately
             if (pm == ProtocolMessageType.MESSAGE) {
                 Boolean b = (Boolean) session.getAttribute(CougarProtocol.IS_SERVER_ATTR_NAME);
@@ -73,33 +100,51 @@ public class CougarProtocolDecoder extends CumulativeProtocolDecoder implements
                     throw new IllegalStateException("Received MESSAGE, but yet don't know whether I'm a client or a server");
                 }
             }
+            // sessions which have negotiated compression have a flag ahead of each rpc/event payload
+            boolean compressible = CougarProtocol.getSessionCompressionCodec(session) != null;
             switch (pm) {
                 case MESSAGE_REQUEST:
                     messageRequestsReceived.incrementAndGet();
-                    messageBody = new byte[msgLen - 8];
                     nioLogger.log(ALL, session, "CougarProtocolDecoder: MESSAGE_REQUEST: Message of length %s received", msgLen);
                     long reqCorrelationId = buffer.getLong();
-                    buffer.get(messageBody);
-                    RequestMessage req = new RequestMessage(reqCorrelationId, messageBody);
+                    RequestMessage req = compressible
+                            ? new RequestMessage(reqCorrelationId, readCompressiblePayload(buffer, msgLen - 8))
+                            : pooledPayloadFraming
+                            ? new RequestMessage(reqCorrelationId, readPayloadBuffer(buffer, msgLen - 8))
+                            : new RequestMessage(reqCorrelationId, readPayload(buffer, msgLen - 8));
                     out.write(req);
                     break;
                 case MESSAGE_RESPONSE:
                     messageResponsesReceived.incrementAndGet();
-                    messageBody = new byte[msgLen - 8];
                     nioLogger.log(ALL, session, "CougarProtocolDecoder: MESSAGE_RESPONSE: Message of length %s received", msgLen);
                     long respCorrelationId = buffer.getLong();
-                    buffer.get(messageBody);
-                    ResponseMessage res = new ResponseMessage(respCorrelationId, messageBody);
+                    ResponseMessage res = compressible
+                            ? new ResponseMessage(respCorrelationId, readCompressiblePayload(buffer, msgLen - 8))
+                            : pooledPayloadFraming
+                            ? new ResponseMessage(respCorrelationId, readPayloadBuffer(buffer, msgLen - 8))
+                            : new ResponseMessage(respCorrelationId, readPayload(buffer, msgLen - 8));
                     out.write(res);
                     break;
                 case EVENT:
                     eventsReceived.incrementAndGet();
-                    messageBody = new byte[msgLen];
                     nioLogger.log(ALL, session, "CougarProtocolDecoder: EVENT: Message of length %s received", msgLen);
-                    buffer.get(messageBody);
-                    EventMessage em = new EventMessage(messageBody);
+                    EventMessage em = compressible
+                            ? new EventMessage(readCompressiblePayload(buffer, msgLen))
+                            : pooledPayloadFraming
+                            ? new EventMessage(readPayloadBuffer(buffer, msgLen))
+                            : new EventMessage(readPayload(buffer, msgLen));
                     out.write(em);
                     break;
+                case EVENT_BATCH:
+                    eventBatchesReceived.incrementAndGet();
+                    nioLogger.log(ALL, session, "CougarProtocolDecoder: EVENT_BATCH: Message of length %s received", msgLen);
+                    ByteBuffer batch = compressible ? readCompressiblePayload(buffer, msgLen) : ByteBuffer.wrap(readPayload(buffer, msgLen));
+                    // demultiplexed here, so the rest of the chain just sees the events one by one
+                    for (EventMessage event : EventBatchMessage.unpack(batch)) {
+                        eventsReceived.incrementAndGet();
+                        out.write(event);
+                    }
+                    break;
                 case CONNECT:
                     connectsReceived.incrementAndGet();
                     byte[] versionsRequested = NioUtils.getVersionSet(buffer);
@@ -142,7 +187,18 @@ public class CougarProtocolDecoder extends CumulativeProtocolDecoder implements
                     tlsRequestsReceived.incrementAndGet();
                     byte requestValue = buffer.get();
                     TLSRequirement requirement = TLSRequirement.getByValue(requestValue);
-                    StartTLSRequestMessage requestMessage = new StartTLSRequestMessage(requirement);
+                    StartTLSRequestMessage requestMessage;
+                    // version 5 onwards also carries the compression codecs on offer
+                    if (msgLen > 1) {
+                        CompressionCodec[] codecs = new CompressionCodec[buffer.get()];
+                        for (int i = 0; i < codecs.length; i++) {
+                            codecs[i] = CompressionCodec.getByValue(buffer.get());
+                        }
+                        requestMessage = new StartTLSRequestMessage(requirement, codecs);
+                    }
+                    else {
+                        requestMessage = new StartTLSRequestMessage(requirement);
+                    }
                     out.write(requestMessage);
                     break;
                 case START_TLS_RESPONSE:
@@ -150,7 +206,9 @@ public class CougarProtocolDecoder extends CumulativeProtocolDecoder implements
                     tlsResponsesReceived.incrementAndGet();
                     byte responseValue = buffer.get();
                     TLSResult result = TLSResult.getByValue(responseValue);
-                    StartTLSResponseMessage responseMessage = new StartTLSResponseMessage(result);
+                    StartTLSResponseMessage responseMessage = msgLen > 1
+                            ? new StartTLSResponseMessage(result, CompressionCodec.getByValue(buffer.get()))
+                            : new StartTLSResponseMessage(result);
                     out.write(responseMessage);
                     break;
                 default:
@@ -168,6 +226,51 @@ public class CougarProtocolDecoder extends CumulativeProtocolDecoder implements
     }
 
 
+    private static byte[] readPayload(ByteBuffer buffer, int length) {
+        byte[] messageBody = new byte[length];
+        buffer.get(messageBody);
+        return messageBody;
+    }
+
+    /**
+     * Reads a payload prefixed with a compression flag, inflating it if necessary. These are always returned as
+     * heap buffers, since there's nothing to gain from pooling once we've had to inflate into a fresh array anyway.
+     */
+    private ByteBuffer readCompressiblePayload(ByteBuffer buffer, int length) throws DataFormatException {
+        CompressionCodec codec = CompressionCodec.getByValue(buffer.get());
+        switch (codec) {
+            case NONE:
+                return ByteBuffer.wrap(readPayload(buffer, length - 1));
+            case DEFLATE:
+                compressedMessagesReceived.incrementAndGet();
+                int compressedLength = length - 5;
+                int uncompressedLength = buffer.getInt();
+                // the declared length comes straight off the wire, so check it before allocating anything for it
+                if (uncompressedLength < 0 || uncompressedLength > maxUncompressedPayloadBytes
+                        || uncompressedLength > compressedLength * MAX_DEFLATE_RATIO) {
+                    badMessagesReceived.incrementAndGet();
+                    throw new DataFormatException("Compressed payload of " + compressedLength + " bytes declares an invalid uncompressed length of " + uncompressedLength);
+                }
+                return ByteBuffer.wrap(PayloadCompression.inflate(buffer, compressedLength, uncompressedLength));
+            default:
+                throw new IllegalStateException("Unsupported compression codec " + codec);
+        }
+    }
+
+    /**
+     * Reads the payload into a buffer from MINA's allocator (pooled by default). We can't just hand out a slice of
+     * the buffer we're decoding from, as the cumulative decoder compacts it in place once we return.
+     */
+    private static ByteBuffer readPayloadBuffer(ByteBuffer buffer, int length) {
+        ByteBuffer messageBody = ByteBuffer.allocate(length);
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        messageBody.put(buffer);
+        buffer.limit(limit);
+        messageBody.flip();
+        return messageBody;
+    }
+
     private String getAsString(byte[] versions) {
         StringBuilder sb = new StringBuilder("{");
         boolean first = true;
@@ -193,6 +296,11 @@ public class CougarProtocolDecoder extends CumulativeProtocolDecoder implements
         }
     }
 
+    @ManagedAttribute
+    public boolean isPooledPayloadFraming() {
+        return pooledPayloadFraming;
+    }
+
     @ManagedAttribute
     public long getBadMessagesReceived() {
         return badMessagesReceived.get();
@@ -228,6 +336,11 @@ public class CougarProtocolDecoder extends CumulativeProtocolDecoder implements
         return eventsReceived.get();
     }
 
+    @ManagedAttribute
+    public long getEventBatchesReceived() {
+        return eventBatchesReceived.get();
+    }
+
     @ManagedAttribute
     public long getKeepAlivesReceived() {
         return keepAlivesReceived.get();
@@ -238,6 +351,16 @@ public class CougarProtocolDecoder extends CumulativeProtocolDecoder implements
         return suspendsReceived.get();
     }
 
+    @ManagedAttribute
+    public long getCompressedMessagesReceived() {
+        return compressedMessagesReceived.get();
+    }
+
+    @ManagedAttribute
+    public int getMaxUncompressedPayloadBytes() {
+        return maxUncompressedPayloadBytes;
+    }
+
     @ManagedAttribute
     public long getIncompleteMessagesReceived() {
         return incompleteMessagesReceived.get();
@@ -21,12 +21,14 @@ import com.betfair.cougar.netutil.nio.message.ProtocolMessage.ProtocolMessageTyp
 import com.betfair.cougar.util.jmx.Exportable;
 import com.betfair.cougar.util.jmx.JMXControl;
 import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFilter.WriteRequest;
 import org.apache.mina.common.IoSession;
 import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
 import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static com.betfair.cougar.netutil.nio.NioLogger.LoggingLevel.ALL;
@@ -34,6 +36,8 @@ import static com.betfair.cougar.netutil.nio.NioLogger.LoggingLevel.PROTOCOL;
 
 @ManagedResource
 public class CougarProtocolEncoder extends ProtocolEncoderAdapter implements Exportable {
+    private static final byte[] NOT_COMPRESSIBLE = new byte[0];
+
     private final NioLogger nioLogger;
 
     private final AtomicLong badMessagesRequested = new AtomicLong();
@@ -45,12 +49,37 @@ public class CougarProtocolEncoder extends ProtocolEncoderAdapter implements Exp
     private final AtomicLong messageResponsesSent = new AtomicLong();
     private final AtomicLong disconnectsSent = new AtomicLong();
     private final AtomicLong eventsSent = new AtomicLong();
+    private final AtomicLong eventBatchesSent = new AtomicLong();
     private final AtomicLong suspendsSent = new AtomicLong();
     private final AtomicLong tlsRequestsSent = new AtomicLong();
     private final AtomicLong tlsResponsesSent = new AtomicLong();
 
+    private final AtomicLong coalescedWrites = new AtomicLong();
+    private final AtomicLong coalescedMessages = new AtomicLong();
+    private final AtomicLong compressedMessagesSent = new AtomicLong();
+    private final AtomicLong compressionBytesSaved = new AtomicLong();
+
+    private final boolean pooledPayloadFraming;
+    private final int compressionThreshold;
+
     public CougarProtocolEncoder(NioLogger nioLogger) {
+        this(nioLogger, false);
+    }
+
+    public CougarProtocolEncoder(NioLogger nioLogger, boolean pooledPayloadFraming) {
+        this(nioLogger, pooledPayloadFraming, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param pooledPayloadFraming if true, rpc payloads are written out as a separate buffer following the frame
+     *                             header, rather than being copied into a single buffer with it
+     * @param compressionThreshold the smallest payload we'll try to compress on sessions which have negotiated
+     *                             compression
+     */
+    public CougarProtocolEncoder(NioLogger nioLogger, boolean pooledPayloadFraming, int compressionThreshold) {
         this.nioLogger = nioLogger;
+        this.pooledPayloadFraming = pooledPayloadFraming;
+        this.compressionThreshold = compressionThreshold;
 
         export(nioLogger.getJmxControl());
     }
@@ -84,19 +113,10 @@ public class CougarProtocolEncoder extends ProtocolEncoderAdapter implements Exp
                 break;
 
             case MESSAGE_REQUEST:
-                RequestMessage req = (RequestMessage) pm;
-                ProtocolMessageType reqMsgType = protocolVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_CLIENT_ONLY_RPC ? ProtocolMessageType.MESSAGE : ProtocolMessageType.MESSAGE_REQUEST;
-                buffer = NioUtils.createMessageHeader(req.getPayload().length + 8, reqMsgType);
-                buffer.putLong(req.getCorrelationId());
-                buffer.put(req.getPayload());
-                break;
             case MESSAGE_RESPONSE:
-                ResponseMessage resp = (ResponseMessage) pm;
-                // backwards compatibility with version 1 protocol
-                ProtocolMessageType responseType = protocolVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_CLIENT_ONLY_RPC ? ProtocolMessageType.MESSAGE : ProtocolMessageType.MESSAGE_RESPONSE;
-                buffer = NioUtils.createMessageHeader(resp.getPayload().length + 8, responseType);
-                buffer.putLong(resp.getCorrelationId());
-                buffer.put(resp.getPayload());
+                AbstractPayloadMessage rpc = (AbstractPayloadMessage) pm;
+                buffer = encodeRpcHeader(rpc, protocolVersion);
+                buffer.put(rpc.getPayloadBuffer());
                 break;
 
             case EVENT:
@@ -104,8 +124,17 @@ public class CougarProtocolEncoder extends ProtocolEncoderAdapter implements Exp
                 if (protocolVersion < CougarProtocol.TRANSPORT_PROTOCOL_VERSION_BIDIRECTION_RPC) {
                     return null;
                 }
-                buffer = NioUtils.createMessageHeader(em.getPayload().length, em);
-                buffer.put(em.getPayload());
+                buffer = NioUtils.createMessageHeader(em.getPayloadLength(), em);
+                buffer.put(em.getPayloadBuffer());
+                break;
+
+            case EVENT_BATCH:
+                EventBatchMessage ebm = (EventBatchMessage) pm;
+                if (protocolVersion < CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES) {
+                    return null;
+                }
+                buffer = NioUtils.createMessageHeader(ebm.getPayloadLength(), ebm);
+                buffer.put(ebm.getPayloadBuffer());
                 break;
 
             case SUSPEND:
@@ -119,15 +148,35 @@ public class CougarProtocolEncoder extends ProtocolEncoderAdapter implements Exp
                 if (protocolVersion < CougarProtocol.TRANSPORT_PROTOCOL_VERSION_START_TLS) {
                     return null;
                 }
-                buffer = NioUtils.createMessageHeader(1, pm);
-                buffer.put(((StartTLSRequestMessage) pm).getRequirement().getValue());
+                StartTLSRequestMessage tlsRequest = (StartTLSRequestMessage) pm;
+                if (protocolVersion < CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION) {
+                    buffer = NioUtils.createMessageHeader(1, pm);
+                    buffer.put(tlsRequest.getRequirement().getValue());
+                }
+                else {
+                    CompressionCodec[] codecs = tlsRequest.getCompressionCodecs();
+                    buffer = NioUtils.createMessageHeader(2 + codecs.length, pm);
+                    buffer.put(tlsRequest.getRequirement().getValue());
+                    buffer.put((byte) codecs.length);
+                    for (CompressionCodec codec : codecs) {
+                        buffer.put(codec.getValue());
+                    }
+                }
                 break;
             case START_TLS_RESPONSE:
                 if (protocolVersion < CougarProtocol.TRANSPORT_PROTOCOL_VERSION_START_TLS) {
                     return null;
                 }
-                buffer = NioUtils.createMessageHeader(1, pm);
-                buffer.put(((StartTLSResponseMessage) pm).getResult().getValue());
+                StartTLSResponseMessage tlsResponse = (StartTLSResponseMessage) pm;
+                if (protocolVersion < CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION) {
+                    buffer = NioUtils.createMessageHeader(1, pm);
+                    buffer.put(tlsResponse.getResult().getValue());
+                }
+                else {
+                    buffer = NioUtils.createMessageHeader(2, pm);
+                    buffer.put(tlsResponse.getResult().getValue());
+                    buffer.put(tlsResponse.getCompressionCodec().getValue());
+                }
                 break;
 
             default:
@@ -138,78 +187,236 @@ public class CougarProtocolEncoder extends ProtocolEncoderAdapter implements Exp
         return buffer;
     }
 
-    public void encode(IoSession session, Object message, ProtocolEncoderOutput out) throws Exception {
+    /**
+     * Writes the frame header for an rpc message - length, type and correlation id - leaving the buffer positioned
+     * ready for the payload to follow.
+     */
+    private static ByteBuffer encodeRpcHeader(AbstractPayloadMessage pm, byte protocolVersion) {
+        final int payloadLength = pm.getPayloadLength();
         final ByteBuffer buffer;
-        if (message instanceof ProtocolMessage) {
-            ProtocolMessage pm = (ProtocolMessage) message;
-            nioLogger.log(PROTOCOL, session, "CougarProtocolEncoder: Writing protocol message %s", pm.getProtocolMessageType());
+        final long correlationId;
+        if (pm instanceof RequestMessage) {
+            ProtocolMessageType reqMsgType = protocolVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_CLIENT_ONLY_RPC ? ProtocolMessageType.MESSAGE : ProtocolMessageType.MESSAGE_REQUEST;
+            buffer = NioUtils.createMessageHeader(payloadLength + 8, reqMsgType);
+            correlationId = ((RequestMessage) pm).getCorrelationId();
+        }
+        else {
+            // backwards compatibility with version 1 protocol
+            ProtocolMessageType responseType = protocolVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_CLIENT_ONLY_RPC ? ProtocolMessageType.MESSAGE : ProtocolMessageType.MESSAGE_RESPONSE;
+            buffer = NioUtils.createMessageHeader(payloadLength + 8, responseType);
+            correlationId = ((ResponseMessage) pm).getCorrelationId();
+        }
+        buffer.putLong(correlationId);
+        return buffer;
+    }
 
-            Byte version = (Byte) session.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME);
-            // go for lowest likely common denominator, since this will likely only occur for RejectMessages
-            if (version == null) {
-                version = CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MIN_SUPPORTED;
+    public void encode(IoSession session, Object message, ProtocolEncoderOutput out) throws Exception {
+        if (message instanceof WriteCoalescer.Batch) {
+            encodeBatch(session, (WriteCoalescer.Batch) message, out);
+            return;
+        }
+        if (message instanceof ProtocolMessage) {
+            ByteBuffer[] buffers = encodeMessage(session, (ProtocolMessage) message, pooledPayloadFraming);
+            out.write(buffers[0]);
+            if (buffers[1] != null) {
+                out.write(buffers[1]);
             }
+            out.flush();
+        } else {
+            throw new IllegalArgumentException("Unknown message type " + message);
+        }
+    }
+
+    /**
+     * Encodes a set of coalesced messages into a single buffer, so they go out in one socket write.
+     */
+    private void encodeBatch(IoSession session, WriteCoalescer.Batch batch, ProtocolEncoderOutput out) {
+        List<WriteRequest> requests = batch.getRequests();
+        ByteBuffer[] buffers = new ByteBuffer[requests.size()];
+        int totalLength = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            // always framed in one buffer, since we're copying into the combined buffer anyway
+            buffers[i] = encodeMessage(session, (ProtocolMessage) requests.get(i).getMessage(), false)[0];
+            totalLength += buffers[i].remaining();
+        }
+        ByteBuffer combined = ByteBuffer.allocate(totalLength);
+        for (ByteBuffer buffer : buffers) {
+            combined.put(buffer);
+        }
+        combined.flip();
+        nioLogger.log(ALL, session, "CougarProtocolEncoder: Writing %s coalesced messages of total length %s", buffers.length, totalLength);
+        coalescedWrites.incrementAndGet();
+        coalescedMessages.addAndGet(buffers.length);
+        out.write(combined);
+        out.flush();
+    }
+
+    /**
+     * Returns the frame ready for reading, and where rpc payloads are framed separately, the payload to follow it.
+     */
+    private ByteBuffer[] encodeMessage(IoSession session, ProtocolMessage pm, boolean framePayloadSeparately) {
+        final ByteBuffer buffer;
+        ByteBuffer payloadBuffer = null;
+        nioLogger.log(PROTOCOL, session, "CougarProtocolEncoder: Writing protocol message %s", pm.getProtocolMessageType());
+
+        Byte version = (Byte) session.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME);
+        // go for lowest likely common denominator, since this will likely only occur for RejectMessages
+        if (version == null) {
+            version = CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MIN_SUPPORTED;
+        }
+        if (pm instanceof AbstractPayloadMessage && CougarProtocol.getSessionCompressionCodec(session) != null) {
+            ByteBuffer[] framed = encodeCompressible((AbstractPayloadMessage) pm, framePayloadSeparately);
+            buffer = framed[0];
+            payloadBuffer = framed[1];
+        }
+        else if (framePayloadSeparately && (pm instanceof RequestMessage || pm instanceof ResponseMessage)) {
+            // header and payload go down as a pair of buffers, saving the copy into a combined one
+            buffer = encodeRpcHeader((AbstractPayloadMessage) pm, version);
+            payloadBuffer = ((AbstractPayloadMessage) pm).getPayloadBuffer();
+        }
+        else {
             buffer = pm.getSerialisedForm(version);
-            if (buffer == null) {
+        }
+        if (buffer == null) {
+            badMessagesRequested.incrementAndGet();
+            throw new IllegalArgumentException("Couldn't serialise ProtocolMessage [" + pm.getProtocolMessageType() + "]");
+        }
+
+        switch (pm.getProtocolMessageType()) {
+            case ACCEPT:
+                acceptsSent.incrementAndGet();
+                break;
+
+            case CONNECT:
+                connectsSent.incrementAndGet();
+                break;
+
+            case REJECT:
+                rejectsSent.incrementAndGet();
+                break;
+
+            case KEEP_ALIVE:
+                keepAlivesSent.incrementAndGet();
+                break;
+            case DISCONNECT:
+                disconnectsSent.incrementAndGet();
+                break;
+
+            case MESSAGE_REQUEST:
+                messageRequestsSent.incrementAndGet();
+                nioLogger.log(ALL, session, "CougarProtocolEncoder: Writing message of length %s", (((RequestMessage) pm).getPayloadLength() + 8));
+                break;
+            case MESSAGE_RESPONSE:
+                messageRequestsSent.incrementAndGet();
+                nioLogger.log(ALL, session, "CougarProtocolEncoder: Writing message of length %s", ((ResponseMessage) pm).getPayloadLength());
+                break;
+
+            case EVENT:
+                eventsSent.incrementAndGet();
+                nioLogger.log(ALL, session, "CougarProtocolEncoder: Writing event of length %s", ((EventMessage) pm).getPayloadLength());
+                break;
+            case EVENT_BATCH:
+                EventBatchMessage batch = (EventBatchMessage) pm;
+                eventBatchesSent.incrementAndGet();
+                eventsSent.addAndGet(batch.getNumEvents());
+                nioLogger.log(ALL, session, "CougarProtocolEncoder: Writing batch of %s events of length %s", batch.getNumEvents(), batch.getPayloadLength());
+                break;
+            case SUSPEND:
+                suspendsSent.incrementAndGet();
+                break;
+
+            case START_TLS_REQUEST:
+                tlsRequestsSent.incrementAndGet();
+                break;
+            case START_TLS_RESPONSE:
+                tlsResponsesSent.incrementAndGet();
+                break;
+
+            default:
                 badMessagesRequested.incrementAndGet();
-                throw new IllegalArgumentException("Couldn't serialise ProtocolMessage [" + ((ProtocolMessage) message).getProtocolMessageType() + "]");
+                throw new IllegalArgumentException("Unknown ProtocolMessage [" + pm.getProtocolMessageType() + "] received");
+
+        }
+        buffer.flip();
+        return new ByteBuffer[] { buffer, payloadBuffer };
+    }
+
+    /**
+     * Frames an rpc or event message for a session which has negotiated compression. Such frames carry a flag byte
+     * ahead of the payload saying which codec it was compressed with, followed by the uncompressed length for
+     * compressed payloads. Payloads under the threshold, or which don't shrink, go out uncompressed.
+     */
+    private ByteBuffer[] encodeCompressible(AbstractPayloadMessage pm, boolean framePayloadSeparately) {
+        int payloadLength = pm.getPayloadLength();
+        byte[] compressed = payloadLength >= compressionThreshold ? compress(pm) : null;
+        if (compressed != null) {
+            compressedMessagesSent.incrementAndGet();
+            compressionBytesSaved.addAndGet(payloadLength - 4 - compressed.length);
+        }
+        if (pm instanceof EventMessage) {
+            // events are framed once, and the frame shared by every compressing session the event is fanned out to
+            EventMessage em = (EventMessage) pm;
+            ByteBuffer frame = em.getCompressibleFrame();
+            if (frame == null) {
+                ByteBuffer buffer = frameCompressible(pm, compressed, false)[0];
+                buffer.flip();
+                em.setCompressibleFrame(buffer);
+                frame = em.getCompressibleFrame();
             }
+            return new ByteBuffer[] { frame, null };
+        }
+        return frameCompressible(pm, compressed, framePayloadSeparately);
+    }
 
-            switch (pm.getProtocolMessageType()) {
-                case ACCEPT:
-                    acceptsSent.incrementAndGet();
-                    break;
-
-                case CONNECT:
-                    connectsSent.incrementAndGet();
-                    break;
-
-                case REJECT:
-                    rejectsSent.incrementAndGet();
-                    break;
-
-                case KEEP_ALIVE:
-                    keepAlivesSent.incrementAndGet();
-                    break;
-                case DISCONNECT:
-                    disconnectsSent.incrementAndGet();
-                    break;
-
-                case MESSAGE_REQUEST:
-                    messageRequestsSent.incrementAndGet();
-                    nioLogger.log(ALL, session, "CougarProtocolEncoder: Writing message of length %s", (((RequestMessage) pm).getPayload().length + 8));
-                    break;
-                case MESSAGE_RESPONSE:
-                    messageRequestsSent.incrementAndGet();
-                    nioLogger.log(ALL, session, "CougarProtocolEncoder: Writing message of length %s", ((ResponseMessage) pm).getPayload().length);
-                    break;
-
-                case EVENT:
-                    eventsSent.incrementAndGet();
-                    nioLogger.log(ALL, session, "CougarProtocolEncoder: Writing event of length %s", ((EventMessage) pm).getPayload().length);
-                    break;
-                case SUSPEND:
-                    suspendsSent.incrementAndGet();
-                    break;
-
-                case START_TLS_REQUEST:
-                    tlsRequestsSent.incrementAndGet();
-                    break;
-                case START_TLS_RESPONSE:
-                    tlsResponsesSent.incrementAndGet();
-                    break;
-
-                default:
-                    badMessagesRequested.incrementAndGet();
-                    throw new IllegalArgumentException("Unknown ProtocolMessage [" + ((ProtocolMessage) message).getProtocolMessageType() + "] received");
+    private ByteBuffer[] frameCompressible(AbstractPayloadMessage pm, byte[] compressed, boolean framePayloadSeparately) {
+        int payloadLength = pm.getPayloadLength();
+        boolean isEvent = pm instanceof EventMessage || pm instanceof EventBatchMessage;
+        // correlation id (rpc only) and compression flag
+        int headerLength = (isEvent ? 0 : 8) + 1;
+        int bodyLength = compressed != null ? 4 + compressed.length : payloadLength;
+        boolean separatePayload = compressed == null && framePayloadSeparately && !isEvent;
+
+        ByteBuffer buffer = ByteBuffer.allocate(5 + headerLength + (separatePayload ? 0 : bodyLength));
+        buffer.putInt(1 + headerLength + bodyLength);
+        buffer.put(pm.getProtocolMessageType().getMessageType());
+        if (pm instanceof RequestMessage) {
+            buffer.putLong(((RequestMessage) pm).getCorrelationId());
+        }
+        else if (pm instanceof ResponseMessage) {
+            buffer.putLong(((ResponseMessage) pm).getCorrelationId());
+        }
+        if (compressed != null) {
+            buffer.put(CompressionCodec.DEFLATE.getValue());
+            buffer.putInt(payloadLength);
+            buffer.put(compressed);
+            return new ByteBuffer[] { buffer, null };
+        }
+        buffer.put(CompressionCodec.NONE.getValue());
+        if (separatePayload) {
+            return new ByteBuffer[] { buffer, pm.getPayloadBuffer() };
+        }
+        buffer.put(pm.getPayloadBuffer());
+        return new ByteBuffer[] { buffer, null };
+    }
 
+    /**
+     * Returns the deflated payload, or null if it doesn't get any smaller. Events are compressed once and the
+     * result cached on the message, since the same event is written to every subscribed session.
+     */
+    private byte[] compress(AbstractPayloadMessage pm) {
+        if (!(pm instanceof EventMessage)) {
+            return PayloadCompression.deflate(pm.getPayloadBuffer());
+        }
+        EventMessage em = (EventMessage) pm;
+        byte[] compressed = em.getCompressedPayload();
+        if (compressed == null) {
+            compressed = PayloadCompression.deflate(em.getPayloadBuffer());
+            if (compressed == null) {
+                compressed = NOT_COMPRESSIBLE;
             }
-        } else {
-            throw new IllegalArgumentException("Unknown message type " + message);
+            em.setCompressedPayload(compressed);
         }
-        buffer.flip();
-        out.write(buffer);
-        out.flush();
+        return compressed == NOT_COMPRESSIBLE ? null : compressed;
     }
 
     /**
@@ -222,6 +429,36 @@ public class CougarProtocolEncoder extends ProtocolEncoderAdapter implements Exp
         }
     }
 
+    @ManagedAttribute
+    public boolean isPooledPayloadFraming() {
+        return pooledPayloadFraming;
+    }
+
+    @ManagedAttribute
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @ManagedAttribute
+    public long getCompressedMessagesSent() {
+        return compressedMessagesSent.get();
+    }
+
+    @ManagedAttribute
+    public long getCompressionBytesSaved() {
+        return compressionBytesSaved.get();
+    }
+
+    @ManagedAttribute
+    public long getCoalescedWrites() {
+        return coalescedWrites.get();
+    }
+
+    @ManagedAttribute
+    public long getCoalescedMessages() {
+        return coalescedMessages.get();
+    }
+
     @ManagedAttribute
     public long getMessageRequestsSent() {
         return messageRequestsSent.get();
@@ -237,6 +474,11 @@ public class CougarProtocolEncoder extends ProtocolEncoderAdapter implements Exp
         return eventsSent.get();
     }
 
+    @ManagedAttribute
+    public long getEventBatchesSent() {
+        return eventBatchesSent.get();
+    }
+
     @ManagedAttribute
     public long getKeepAlivesSent() {
         return keepAlivesSent.get();
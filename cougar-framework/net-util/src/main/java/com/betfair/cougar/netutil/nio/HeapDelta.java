@@ -32,14 +32,22 @@ public class HeapDelta extends AbstractHeapTranscribable {
     private long heapId;
     private long updateId;
     private List<Update> updates = new ArrayList<Update>();
+    // -1 unless this delta is a conflation of several consecutive deltas
+    private long firstUpdateId = -1;
 
     // used in transcription, change the ordering at your peril!
     // add new fields at the end!
-    private Parameter[] parameters =  new Parameter[] {
+    private static Parameter[] parameters =  new Parameter[] {
         new Parameter("heapId", ParameterType.create(long.class), true),
         new Parameter("updateId", ParameterType.create(long.class), true),
-        new Parameter("updates", ParameterType.create(ArrayList.class, Update.class), true)
+        new Parameter("updates", ParameterType.create(ArrayList.class, Update.class), true),
+        new Parameter("firstUpdateId", ParameterType.create(long.class), true),
+        new Parameter("compactUpdates", ParameterType.create(byte[].class), true)
     };
+    // the parameters actually written for each set of transcription params
+    private static Parameter[] parametersWithoutUpdateRanges = new Parameter[] { parameters[0], parameters[1], parameters[2] };
+    private static Parameter[] parametersWithUpdateRanges = new Parameter[] { parameters[0], parameters[1], parameters[2], parameters[3] };
+    private static Parameter[] parametersWithCompactUpdates = new Parameter[] { parameters[0], parameters[1], parameters[3], parameters[4] };
 
     public HeapDelta() {
     }
@@ -50,11 +58,27 @@ public class HeapDelta extends AbstractHeapTranscribable {
         this.updates = updates;
     }
 
+    /**
+     * Creates a conflated delta, which replaces all the deltas from firstUpdateId to updateId inclusive.
+     */
+    public HeapDelta(long heapId, long firstUpdateId, long updateId, List<Update> updates) {
+        this(heapId, updateId, updates);
+        this.firstUpdateId = firstUpdateId;
+    }
+
     @Override
     public void transcribe(TranscriptionOutput out, Set<TranscribableParams> params) throws Exception {
         out.writeObject(heapId, parameters[0]);
         out.writeObject(updateId, parameters[1]);
+        if (params.contains(TranscribableParams.CompactHeapDeltas)) {
+            out.writeObject(getFirstUpdateId(), parameters[3]);
+            out.writeObject(CompactUpdateCodec.encode(updates), parameters[4]);
+            return;
+        }
         out.writeObject(updates, parameters[2]);
+        if (params.contains(TranscribableParams.HeapDeltaUpdateRanges)) {
+            out.writeObject(getFirstUpdateId(), parameters[3]);
+        }
         // NOTE: add new fields at the end
     }
 
@@ -62,10 +86,31 @@ public class HeapDelta extends AbstractHeapTranscribable {
     public void transcribe(TranscriptionInput in, Set<TranscribableParams> params) throws Exception {
         heapId = (Long) in.readObject(parameters[0]);
         updateId = (Long) in.readObject(parameters[1]);
+        if (params.contains(TranscribableParams.CompactHeapDeltas)) {
+            long first = (Long) in.readObject(parameters[3]);
+            firstUpdateId = first != updateId ? first : -1;
+            updates = CompactUpdateCodec.decode((byte[]) in.readObject(parameters[4]));
+            return;
+        }
         updates = (List<Update>) in.readObject(parameters[2]);
+        if (params.contains(TranscribableParams.HeapDeltaUpdateRanges)) {
+            long first = (Long) in.readObject(parameters[3]);
+            firstUpdateId = first != updateId ? first : -1;
+        }
         // NOTE: add new fields at the end
     }
 
+    @Override
+    public Parameter[] getParameters(Set<TranscribableParams> params) {
+        if (params.contains(TranscribableParams.CompactHeapDeltas)) {
+            return parametersWithCompactUpdates;
+        }
+        if (params.contains(TranscribableParams.HeapDeltaUpdateRanges)) {
+            return parametersWithUpdateRanges;
+        }
+        return parametersWithoutUpdateRanges;
+    }
+
     @Override
     public Parameter[] getParameters() {
         return parameters;
@@ -105,6 +150,18 @@ public class HeapDelta extends AbstractHeapTranscribable {
         return updateId;
     }
 
+    /**
+     * @return the id of the first update this delta covers, which is only different from the update id
+     * for conflated deltas.
+     */
+    public long getFirstUpdateId() {
+        return firstUpdateId >= 0 ? firstUpdateId : updateId;
+    }
+
+    public boolean isConflated() {
+        return getFirstUpdateId() != updateId;
+    }
+
     public boolean containsFirstUpdate() {
         // initial update must be the first..
         if (!updates.isEmpty()) {
@@ -148,6 +205,7 @@ public class HeapDelta extends AbstractHeapTranscribable {
         return "HeapDelta{" +
                 "heapId=" + heapId +
                 ", updateId=" + updateId +
+                (isConflated() ? ", firstUpdateId=" + firstUpdateId : "") +
                 ", updates=" + updates +
                 '}';
     }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.betfair.cougar.netutil.nio;
+
+import com.betfair.cougar.core.api.transcription.Parameter;
+import com.betfair.cougar.core.api.transcription.ParameterType;
+import com.betfair.cougar.core.api.transcription.TranscribableParams;
+import com.betfair.cougar.core.api.transcription.TranscriptionInput;
+import com.betfair.cougar.core.api.transcription.TranscriptionOutput;
+
+import java.util.Set;
+
+/**
+ * Sent by a client to a server it has reconnected to, describing a heap it was subscribed to on a previous session
+ * and the last update it applied, so that a resubscription to that heap can be caught up with just the deltas it
+ * missed rather than a fresh copy of the whole heap. Only sent on sessions of version
+ * {@link CougarProtocol#TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION} or later.
+ */
+public class HeapResumption extends AbstractHeapTranscribable {
+    private String heapUri;
+    private long heapId;
+    private long epoch;
+    private long lastUpdateId;
+
+    // used in transcription, change the ordering at your peril!
+    // add new fields at the end!
+    private Parameter[] parameters =  new Parameter[] {
+        new Parameter("heapUri", ParameterType.create(String.class), true),
+        new Parameter("heapId", ParameterType.create(long.class), true),
+        new Parameter("epoch", ParameterType.create(long.class), true),
+        new Parameter("lastUpdateId", ParameterType.create(long.class), true)
+    };
+
+    public HeapResumption() {
+    }
+
+    public HeapResumption(String heapUri, long heapId, long epoch, long lastUpdateId) {
+        this.heapUri = heapUri;
+        this.heapId = heapId;
+        this.epoch = epoch;
+        this.lastUpdateId = lastUpdateId;
+    }
+
+    @Override
+    public void transcribe(TranscriptionOutput out, Set<TranscribableParams> params) throws Exception {
+        out.writeObject(heapUri, parameters[0]);
+        out.writeObject(heapId, parameters[1]);
+        out.writeObject(epoch, parameters[2]);
+        out.writeObject(lastUpdateId, parameters[3]);
+        // NOTE: add new fields at the end
+    }
+
+    @Override
+    public void transcribe(TranscriptionInput in, Set<TranscribableParams> params) throws Exception {
+        heapUri = (String) in.readObject(parameters[0]);
+        heapId = (Long) in.readObject(parameters[1]);
+        epoch = (Long) in.readObject(parameters[2]);
+        lastUpdateId = (Long) in.readObject(parameters[3]);
+        // NOTE: add new fields at the end
+    }
+
+    @Override
+    public Parameter[] getParameters() {
+        return parameters;
+    }
+
+    public String getHeapUri() {
+        return heapUri;
+    }
+
+    public void setHeapUri(String heapUri) {
+        this.heapUri = heapUri;
+    }
+
+    public long getHeapId() {
+        return heapId;
+    }
+
+    public void setHeapId(long heapId) {
+        this.heapId = heapId;
+    }
+
+    /**
+     * The epoch of the server the heap was subscribed to, which tells apart heap ids issued by different runs of
+     * the same server.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getLastUpdateId() {
+        return lastUpdateId;
+    }
+
+    public void setLastUpdateId(long lastUpdateId) {
+        this.lastUpdateId = lastUpdateId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        HeapResumption that = (HeapResumption) o;
+
+        if (heapId != that.heapId) return false;
+        if (epoch != that.epoch) return false;
+        if (lastUpdateId != that.lastUpdateId) return false;
+        if (heapUri != null ? !heapUri.equals(that.heapUri) : that.heapUri != null) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = heapUri != null ? heapUri.hashCode() : 0;
+        result = 31 * result + (int) (heapId ^ (heapId >>> 32));
+        result = 31 * result + (int) (epoch ^ (epoch >>> 32));
+        result = 31 * result + (int) (lastUpdateId ^ (lastUpdateId >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "HeapResumption{" +
+                "heapUri='" + heapUri + '\'' +
+                ", heapId=" + heapId +
+                ", epoch=" + epoch +
+                ", lastUpdateId=" + lastUpdateId +
+                '}';
+    }
+}
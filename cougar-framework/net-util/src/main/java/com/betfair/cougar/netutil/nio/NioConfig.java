@@ -16,6 +16,7 @@
 
 package com.betfair.cougar.netutil.nio;
 
+import com.betfair.cougar.netutil.nio.message.CompressionCodec;
 import com.betfair.cougar.netutil.nio.monitoring.SessionWriteQueueMonitoring;
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.ThreadModel;
@@ -30,6 +31,9 @@ import org.springframework.jmx.export.annotation.ManagedResource;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 @ManagedResource
 public class NioConfig {
@@ -51,6 +55,18 @@ public class NioConfig {
     private boolean useDirectBuffersInMina = false;
     private long rpcTimeoutGranularityMillis = 100;
     private long rpcTimeoutMillis = 0; // 0 means disabled
+    private boolean pooledPayloadFraming = false;
+    private int serialisationBufferPoolMinBufferSize = 1024;
+    private int serialisationBufferPoolMaxBufferSize = 1048576;
+    private long serialisationBufferPoolMaxRetainedBytes = 0; // 0 means pooling disabled
+    private SerialisationBufferPool serialisationBufferPool;
+    private int writeCoalescingMaxBytes = 0; // 0 means disabled
+    // shared by every protocol configured from here, rather than a thread per protocol instance
+    private ScheduledExecutorService writeCoalescingScheduler;
+    private long writeCoalescingLingerMicros = 200;
+    private String compressionCodec = CompressionCodec.NONE.name();
+    private int compressionThreshold = 1024;
+    private int maxUncompressedPayloadBytes = CougarProtocolDecoder.DEFAULT_MAX_UNCOMPRESSED_PAYLOAD_BYTES;
 
     public NioConfig() {
     }
@@ -95,13 +111,17 @@ public class NioConfig {
 
         config.getFilterChain().addLast("slowHandling", new SessionWriteQueueMonitoring(nioLogger, maxWriteQueueSize));
         config.getFilterChain().addLast("codec",
-                new ProtocolCodecFilter(new CougarProtocolEncoder(nioLogger), new CougarProtocolDecoder(nioLogger)));
+                new ProtocolCodecFilter(new CougarProtocolEncoder(nioLogger, pooledPayloadFraming, compressionThreshold), new CougarProtocolDecoder(nioLogger, pooledPayloadFraming, maxUncompressedPayloadBytes)));
+        CougarProtocol protocol;
         if (isServer) {
-            config.getFilterChain().addLast("protocol", CougarProtocol.getServerInstance(nioLogger, keepAliveInterval, keepAliveTimeout, null, false, false));
+            protocol = CougarProtocol.getServerInstance(nioLogger, keepAliveInterval, keepAliveTimeout, null, false, false);
         }
         else {
-            config.getFilterChain().addLast("protocol", CougarProtocol.getClientInstance(nioLogger, keepAliveInterval, keepAliveTimeout, null, false, false, rpcTimeoutMillis));
+            protocol = CougarProtocol.getClientInstance(nioLogger, keepAliveInterval, keepAliveTimeout, null, false, false, rpcTimeoutMillis);
         }
+        protocol.setWriteCoalescing(writeCoalescingMaxBytes, writeCoalescingLingerMicros, getWriteCoalescingScheduler());
+        protocol.setCompressionCodec(getCompressionCodecValue());
+        config.getFilterChain().addLast("protocol", protocol);
 
         config.setThreadModel(ThreadModel.MANUAL);
     }
@@ -248,4 +268,133 @@ public class NioConfig {
     public void setRpcTimeoutMillis(long rpcTimeoutMillis) {
         this.rpcTimeoutMillis = rpcTimeoutMillis;
     }
+
+    @ManagedAttribute
+    public boolean isPooledPayloadFraming() {
+        return pooledPayloadFraming;
+    }
+
+    public void setPooledPayloadFraming(boolean pooledPayloadFraming) {
+        this.pooledPayloadFraming = pooledPayloadFraming;
+    }
+
+    /**
+     * Returns the pool used for serialising rpc requests/responses, or null if pooling is disabled.
+     */
+    public synchronized SerialisationBufferPool getSerialisationBufferPool() {
+        if (serialisationBufferPool == null && serialisationBufferPoolMaxRetainedBytes > 0) {
+            serialisationBufferPool = new SerialisationBufferPool(nioLogger, serialisationBufferPoolMinBufferSize,
+                    serialisationBufferPoolMaxBufferSize, serialisationBufferPoolMaxRetainedBytes);
+        }
+        return serialisationBufferPool;
+    }
+
+    @ManagedAttribute
+    public int getSerialisationBufferPoolMinBufferSize() {
+        return serialisationBufferPoolMinBufferSize;
+    }
+
+    public void setSerialisationBufferPoolMinBufferSize(int serialisationBufferPoolMinBufferSize) {
+        this.serialisationBufferPoolMinBufferSize = serialisationBufferPoolMinBufferSize;
+    }
+
+    @ManagedAttribute
+    public int getSerialisationBufferPoolMaxBufferSize() {
+        return serialisationBufferPoolMaxBufferSize;
+    }
+
+    public void setSerialisationBufferPoolMaxBufferSize(int serialisationBufferPoolMaxBufferSize) {
+        this.serialisationBufferPoolMaxBufferSize = serialisationBufferPoolMaxBufferSize;
+    }
+
+    @ManagedAttribute
+    public long getSerialisationBufferPoolMaxRetainedBytes() {
+        return serialisationBufferPoolMaxRetainedBytes;
+    }
+
+    public void setSerialisationBufferPoolMaxRetainedBytes(long serialisationBufferPoolMaxRetainedBytes) {
+        this.serialisationBufferPoolMaxRetainedBytes = serialisationBufferPoolMaxRetainedBytes;
+    }
+
+    @ManagedAttribute
+    public int getWriteCoalescingMaxBytes() {
+        return writeCoalescingMaxBytes;
+    }
+
+    public void setWriteCoalescingMaxBytes(int writeCoalescingMaxBytes) {
+        this.writeCoalescingMaxBytes = writeCoalescingMaxBytes;
+    }
+
+    @ManagedAttribute
+    public long getWriteCoalescingLingerMicros() {
+        return writeCoalescingLingerMicros;
+    }
+
+    public void setWriteCoalescingLingerMicros(long writeCoalescingLingerMicros) {
+        this.writeCoalescingLingerMicros = writeCoalescingLingerMicros;
+    }
+
+    /**
+     * @return the scheduler lingering coalesced writes are flushed from, null if write coalescing is disabled
+     */
+    public synchronized ScheduledExecutorService getWriteCoalescingScheduler() {
+        if (writeCoalescingScheduler == null && writeCoalescingMaxBytes > 0) {
+            writeCoalescingScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CougarProtocol-WriteCoalescer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return writeCoalescingScheduler;
+    }
+
+    /**
+     * Stops the write coalescing scheduler, any writes still lingering on open sessions go out straight away.
+     */
+    public synchronized void destroy() {
+        if (writeCoalescingScheduler != null) {
+            writeCoalescingScheduler.shutdown();
+            writeCoalescingScheduler = null;
+        }
+    }
+
+    @ManagedAttribute
+    public String getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    /**
+     * Sets the payload compression codec to negotiate with the other end, one of {@link CompressionCodec}'s names.
+     */
+    public void setCompressionCodec(String compressionCodec) {
+        this.compressionCodec = compressionCodec;
+    }
+
+    protected CompressionCodec getCompressionCodecValue() {
+        return compressionCodec == null || "".equals(compressionCodec.trim()) ? CompressionCodec.NONE : CompressionCodec.valueOf(compressionCodec.trim().toUpperCase());
+    }
+
+    @ManagedAttribute
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @ManagedAttribute
+    public int getMaxUncompressedPayloadBytes() {
+        return maxUncompressedPayloadBytes;
+    }
+
+    /**
+     * The largest size a received compressed payload may inflate to, frames declaring more close the session.
+     */
+    public void setMaxUncompressedPayloadBytes(int maxUncompressedPayloadBytes) {
+        this.maxUncompressedPayloadBytes = maxUncompressedPayloadBytes;
+    }
 }
@@ -16,13 +16,17 @@
 
 package com.betfair.cougar.netutil.nio;
 
+import com.betfair.cougar.netutil.nio.message.AbstractPayloadMessage;
 import com.betfair.cougar.netutil.nio.message.EventMessage;
 import com.betfair.cougar.netutil.nio.message.ProtocolMessage;
 import com.betfair.cougar.transport.api.protocol.CougarObjectIOFactory;
 import com.betfair.cougar.transport.api.protocol.CougarObjectOutput;
 import com.betfair.cougar.netutil.nio.message.TLSResult;
 import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFuture;
+import org.apache.mina.common.IoFutureListener;
 import org.apache.mina.common.IoSession;
+import org.apache.mina.common.WriteFuture;
 import java.awt.*;
 
 import java.io.ByteArrayOutputStream;
@@ -85,6 +89,20 @@ public class NioUtils {
         session.write(new EventMessage(baos.toByteArray()));
     }
 
+    /**
+     * Writes a message to the session and releases its payload once the write has completed (or failed).
+     */
+    public static WriteFuture writeAndRelease(IoSession session, final AbstractPayloadMessage message) {
+        WriteFuture future = session.write(message);
+        future.addListener(new IoFutureListener() {
+            @Override
+            public void operationComplete(IoFuture future) {
+                message.release();
+            }
+        });
+        return future;
+    }
+
     public static String getRemoteAddressUrl(IoSession session) {
         StringBuilder sb = new StringBuilder("tcp");
         if (isSecure(session)) {
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio;
+
+import org.apache.mina.common.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate/inflate of message payloads for sessions which have negotiated {@link
+ * com.betfair.cougar.netutil.nio.message.CompressionCodec#DEFLATE DEFLATE}. Deflaters and inflaters hold native
+ * memory and are expensive to create, so each thread keeps one of each and resets it between uses.
+ */
+final class PayloadCompression {
+
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private PayloadCompression() {
+    }
+
+    /**
+     * Deflates the remaining contents of the buffer (without moving its position). Returns null if the result
+     * wouldn't be any smaller than the input, in which case it should be sent as is.
+     */
+    static byte[] deflate(ByteBuffer payload) {
+        ByteBuffer bb = payload.duplicate();
+        int length = bb.remaining();
+        byte[] input;
+        int offset;
+        if (bb.hasArray()) {
+            input = bb.array();
+            offset = bb.arrayOffset() + bb.position();
+        }
+        else {
+            input = new byte[length];
+            bb.get(input);
+            offset = 0;
+        }
+
+        Deflater deflater = DEFLATERS.get();
+        try {
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            byte[] output = new byte[length];
+            int written = 0;
+            while (!deflater.finished() && written < output.length) {
+                written += deflater.deflate(output, written, output.length - written);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            return Arrays.copyOf(output, written);
+        }
+        finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Inflates <code>compressedLength</code> bytes from the buffer, advancing its position past them.
+     */
+    static byte[] inflate(ByteBuffer buffer, int compressedLength, int uncompressedLength) throws DataFormatException {
+        byte[] input = new byte[compressedLength];
+        buffer.get(input);
+
+        Inflater inflater = INFLATERS.get();
+        try {
+            inflater.setInput(input);
+            byte[] output = new byte[uncompressedLength];
+            int read = 0;
+            while (read < uncompressedLength) {
+                int n = inflater.inflate(output, read, uncompressedLength - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != uncompressedLength) {
+                throw new DataFormatException("Compressed payload inflated to " + read + " bytes, expected " + uncompressedLength);
+            }
+            return output;
+        }
+        finally {
+            inflater.reset();
+        }
+    }
+}
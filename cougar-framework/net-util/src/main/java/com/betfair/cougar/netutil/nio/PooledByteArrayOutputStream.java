@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.ByteBufferProxy;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Output stream which serialises into arrays taken from a {@link SerialisationBufferPool}. Rather than copying the
+ * result out with <code>toByteArray()</code>, callers detach the written bytes as a MINA buffer which hands the array
+ * back to the pool when it's released.
+ * <p/>
+ * If no pool is given this behaves like a plain ByteArrayOutputStream.
+ */
+public class PooledByteArrayOutputStream extends OutputStream {
+
+    private static final int UNPOOLED_INITIAL_SIZE = 32;
+
+    private final SerialisationBufferPool pool;
+    private byte[] buf;
+    private int count;
+
+    public PooledByteArrayOutputStream(SerialisationBufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public byte[] toByteArray() {
+        return buf == null ? new byte[0] : Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Hands the bytes written so far over to a buffer ready for reading, and resets this stream. Releasing the
+     * returned buffer gives the underlying array back to the pool.
+     */
+    public ByteBuffer detachPayloadBuffer() {
+        byte[] array = buf == null ? new byte[0] : buf;
+        ByteBuffer ret = pool != null ? new PooledArrayBuffer(pool, array, count) : ByteBuffer.wrap(array, 0, count);
+        buf = null;
+        count = 0;
+        return ret;
+    }
+
+    /**
+     * Returns the current array to the pool without sending it anywhere.
+     */
+    public void discard() {
+        if (buf != null && pool != null) {
+            pool.release(buf);
+        }
+        buf = null;
+        count = 0;
+    }
+
+    private void ensureCapacity(int required) {
+        if (buf != null && required <= buf.length) {
+            return;
+        }
+        byte[] newBuf;
+        if (pool != null) {
+            newBuf = pool.acquire(Math.max(required, buf == null ? 0 : buf.length << 1));
+        }
+        else {
+            newBuf = new byte[Math.max(required, buf == null ? UNPOOLED_INITIAL_SIZE : buf.length << 1)];
+        }
+        if (buf != null) {
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            if (pool != null) {
+                pool.release(buf);
+            }
+        }
+        buf = newBuf;
+    }
+
+    private static class PooledArrayBuffer extends ByteBufferProxy {
+        private final SerialisationBufferPool pool;
+        private final byte[] array;
+
+        private PooledArrayBuffer(SerialisationBufferPool pool, byte[] array, int length) {
+            super(ByteBuffer.wrap(array, 0, length));
+            this.pool = pool;
+            this.array = array;
+        }
+
+        @Override
+        public void release() {
+            pool.release(array);
+        }
+    }
+}
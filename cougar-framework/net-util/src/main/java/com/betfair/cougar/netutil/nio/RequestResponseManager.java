@@ -17,6 +17,7 @@
 package com.betfair.cougar.netutil.nio;
 
 import com.betfair.cougar.netutil.nio.message.ResponseMessage;
+import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IoHandler;
 import org.apache.mina.common.IoSession;
 
@@ -47,4 +48,18 @@ public interface RequestResponseManager {
      * Returns the correlation id..
      */
     long sendRequest(byte[] message, ResponseHandler handler) throws IOException;
+
+    /**
+     * As {@link #sendRequest(byte[], ResponseHandler)}, but takes ownership of the buffer, which is released once
+     * it has been written (or immediately if the request can't be sent).
+     */
+    long sendRequest(ByteBuffer message, ResponseHandler handler) throws IOException;
+
+    /**
+     * Stops waiting for the response to the given request, which will be discarded if it does arrive. The handler
+     * isn't called.
+     *
+     * @return false if the request had already completed, timed out or been cancelled
+     */
+    boolean cancelRequest(long correlationId);
 }
@@ -20,55 +20,57 @@ import com.betfair.cougar.logging.CougarLogger;
 import com.betfair.cougar.logging.CougarLoggingUtils;
 import com.betfair.cougar.netutil.nio.message.RequestMessage;
 import com.betfair.cougar.netutil.nio.message.ResponseMessage;
+import com.betfair.cougar.util.HashedTimerWheel;
+import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IoHandlerAdapter;
 import org.apache.mina.common.IoSession;
 
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
- *
+ * Outstanding requests are held in a primitive keyed map, and if rpc timeouts are enabled, on a timer wheel, so
+ * that checking for expired requests only costs as much as the number which have actually expired.
  */
 public class RequestResponseManagerImpl extends IoHandlerAdapter implements RequestResponseManager {
 
 	private static final CougarLogger LOG = CougarLoggingUtils.getLogger(RequestResponseManagerImpl.class);
 
+    private static final int TIMEOUT_TICKS_PER_TIMEOUT = 128;
+
     private final IoSession session;
     private AtomicLong correlationIdGenerator = new AtomicLong();
-    private Map<Long, WaitingResponseHandler> callbacks = new ConcurrentHashMap<Long, WaitingResponseHandler>();
+    private ConcurrentLongHashMap<WaitingResponseHandler> callbacks = new ConcurrentLongHashMap<WaitingResponseHandler>();
     private volatile boolean broken = false;
     private NioLogger nioLogger;
     private long rpcTimeoutMillis; // 0 = disabled (by default)
+    private final HashedTimerWheel<WaitingResponseHandler> timeouts;
+
+    private final HashedTimerWheel.ExpiryHandler<WaitingResponseHandler> expiryHandler = new HashedTimerWheel.ExpiryHandler<WaitingResponseHandler>() {
+        @Override
+        public void expired(WaitingResponseHandler handler) {
+            // response might have come back in between
+            if (callbacks.remove(handler.correlationId) != null) {
+                handler.handler.timedOut();
+            }
+        }
+    };
 
     public RequestResponseManagerImpl(IoSession session, NioLogger nioLogger, long rpcTimeoutMillis) {
         this.session = session;
         this.nioLogger = nioLogger;
         this.rpcTimeoutMillis = rpcTimeoutMillis;
+        // a wheel spanning about twice the timeout means everything expires on its first revolution
+        this.timeouts = rpcTimeoutMillis > 0
+                ? new HashedTimerWheel<WaitingResponseHandler>(Math.max(1, rpcTimeoutMillis / TIMEOUT_TICKS_PER_TIMEOUT), TIMEOUT_TICKS_PER_TIMEOUT * 2)
+                : null;
     }
 
     public void checkForExpiredRequests() {
-        // do this in 2 steps so we don't need a lock around the map access
-        Set<Long> expiredCorrelationIds = new HashSet<Long>();
-        long now = System.currentTimeMillis();
-        for (Long key : callbacks.keySet()) {
-            WaitingResponseHandler handler = callbacks.get(key);
-            if (handler != null && handler.expiryTime < now) {
-                expiredCorrelationIds.add(key);
-            }
-        }
-
-        for (Long key : expiredCorrelationIds) {
-            WaitingResponseHandler handler = callbacks.remove(key);
-            // response might have come back in between
-            if (handler != null) {
-                handler.handler.timedOut();
-            }
+        if (timeouts != null) {
+            timeouts.expire(System.currentTimeMillis(), expiryHandler);
         }
     }
 
@@ -82,7 +84,7 @@ public class RequestResponseManagerImpl extends IoHandlerAdapter implements Requ
         if (!broken) {
             long correlationId = correlationIdGenerator.incrementAndGet();
             RequestMessage req = new RequestMessage(correlationId, message);
-            callbacks.put(correlationId, new WaitingResponseHandler(getExpiryTime(), handler));
+            callbacks.put(correlationId, newWaitingResponseHandler(correlationId, handler));
 
             session.write(req);
             return correlationId;
@@ -92,11 +94,29 @@ public class RequestResponseManagerImpl extends IoHandlerAdapter implements Requ
         }
     }
 
-    private long getExpiryTime() {
-        if (rpcTimeoutMillis == 0) {
-            return Long.MAX_VALUE;
+    @Override
+    public long sendRequest(ByteBuffer message, ResponseHandler handler) throws IOException {
+        if (!broken) {
+            long correlationId = correlationIdGenerator.incrementAndGet();
+            RequestMessage req = new RequestMessage(correlationId, message);
+            callbacks.put(correlationId, newWaitingResponseHandler(correlationId, handler));
+
+            NioUtils.writeAndRelease(session, req);
+            return correlationId;
+        }
+        else {
+            message.release();
+            throw new IOException("This RequestResponseManager is broken, most likely cause is the session has been terminated");
+        }
+    }
+
+    private WaitingResponseHandler newWaitingResponseHandler(long correlationId, ResponseHandler handler) {
+        WaitingResponseHandler ret = new WaitingResponseHandler(correlationId, handler);
+        if (timeouts != null) {
+            // scheduled before it's visible in the map, so whoever removes it from there can always cancel it
+            ret.timeout = timeouts.schedule(ret, System.currentTimeMillis() + rpcTimeoutMillis);
         }
-        return System.currentTimeMillis() + rpcTimeoutMillis;
+        return ret;
     }
 
     @Override
@@ -105,10 +125,25 @@ public class RequestResponseManagerImpl extends IoHandlerAdapter implements Requ
         WaitingResponseHandler handler = callbacks.remove(resp.getCorrelationId());
         // could be null if it already timed out
         if (handler != null) {
+            if (handler.timeout != null) {
+                handler.timeout.cancel();
+            }
             handler.handler.responseReceived(resp);
         }
     }
 
+    @Override
+    public boolean cancelRequest(long correlationId) {
+        WaitingResponseHandler handler = callbacks.remove(correlationId);
+        if (handler == null) {
+            return false;
+        }
+        if (handler.timeout != null) {
+            handler.timeout.cancel();
+        }
+        return true;
+    }
+
     @Override
     public void exceptionCaught(IoSession session, Throwable cause) {
         if (cause instanceof IOException) {
@@ -123,21 +158,24 @@ public class RequestResponseManagerImpl extends IoHandlerAdapter implements Requ
     @Override
     public void sessionClosed(IoSession session) {
         broken = true;
-        final LinkedList<WaitingResponseHandler> callbackList = new LinkedList<WaitingResponseHandler>(callbacks.values());
-        callbacks.clear();
+        final List<WaitingResponseHandler> callbackList = callbacks.clear();
 
         for (WaitingResponseHandler handler : callbackList) {
+            if (handler.timeout != null) {
+                handler.timeout.cancel();
+            }
             handler.handler.sessionClosed();
         }
         LOG.log(Level.INFO, "Notified "+callbackList.size() +" outstanding requests for session "+NioUtils.getSessionId(session));
     }
 
-    private class WaitingResponseHandler {
-        long expiryTime;
-        ResponseHandler handler;
+    private static class WaitingResponseHandler {
+        final long correlationId;
+        final ResponseHandler handler;
+        HashedTimerWheel.Timeout<WaitingResponseHandler> timeout;
 
-        private WaitingResponseHandler(long expiryTime, ResponseHandler handler) {
-            this.expiryTime = expiryTime;
+        private WaitingResponseHandler(long correlationId, ResponseHandler handler) {
+            this.correlationId = correlationId;
             this.handler = handler;
         }
     }
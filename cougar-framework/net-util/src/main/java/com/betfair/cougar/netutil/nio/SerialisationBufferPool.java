@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio;
+
+import com.betfair.cougar.util.jmx.Exportable;
+import com.betfair.cougar.util.jmx.JMXControl;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays used to serialise rpc requests and responses, so that we don't allocate (and then copy out of)
+ * a fresh ByteArrayOutputStream for every call.
+ * <p/>
+ * Arrays are bucketed into power of two size classes between <code>minBufferSize</code> and
+ * <code>maxBufferSize</code>. Arrays are released from whichever thread completes the write (usually a MINA io thread),
+ * rather than the one which serialised into them, so the pool is shared and lock free rather than thread local.
+ * The total size of idle arrays held is capped at <code>maxRetainedBytes</code>, anything released beyond that is
+ * left to the garbage collector, as is anything that is never released (e.g. because the session died).
+ */
+@ManagedResource
+public class SerialisationBufferPool implements Exportable {
+
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    private final long maxRetainedBytes;
+    private final int minSizeShift;
+    private final ConcurrentLinkedQueue<byte[]>[] sizeClasses;
+
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong oversizeRequests = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+
+    public SerialisationBufferPool(NioLogger nioLogger, int minBufferSize, int maxBufferSize, long maxRetainedBytes) {
+        if (minBufferSize <= 0 || Integer.bitCount(minBufferSize) != 1) {
+            throw new IllegalArgumentException("minBufferSize must be a positive power of two: " + minBufferSize);
+        }
+        if (maxBufferSize < minBufferSize || Integer.bitCount(maxBufferSize) != 1) {
+            throw new IllegalArgumentException("maxBufferSize must be a power of two no smaller than minBufferSize: " + maxBufferSize);
+        }
+        this.minBufferSize = minBufferSize;
+        this.maxBufferSize = maxBufferSize;
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.minSizeShift = Integer.numberOfTrailingZeros(minBufferSize);
+
+        int numClasses = Integer.numberOfTrailingZeros(maxBufferSize) - minSizeShift + 1;
+        //noinspection unchecked
+        sizeClasses = new ConcurrentLinkedQueue[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            sizeClasses[i] = new ConcurrentLinkedQueue<byte[]>();
+        }
+
+        if (nioLogger != null) {
+            export(nioLogger.getJmxControl());
+        }
+    }
+
+    /**
+     * Returns an array of at least the requested size. Arrays larger than the biggest size class are allocated
+     * exactly and won't be retained when released.
+     */
+    public byte[] acquire(int minSize) {
+        if (minSize > maxBufferSize) {
+            oversizeRequests.incrementAndGet();
+            return new byte[minSize];
+        }
+        int sizeClass = sizeClassFor(minSize);
+        byte[] ret = sizeClasses[sizeClass].poll();
+        if (ret != null) {
+            retainedBytes.addAndGet(-ret.length);
+            hits.incrementAndGet();
+            return ret;
+        }
+        misses.incrementAndGet();
+        return new byte[minBufferSize << sizeClass];
+    }
+
+    /**
+     * Hands an array back to the pool. The caller must not touch the array afterwards.
+     */
+    public void release(byte[] buffer) {
+        int length = buffer.length;
+        if (length < minBufferSize || length > maxBufferSize || Integer.bitCount(length) != 1) {
+            // not one of ours
+            return;
+        }
+        if (retainedBytes.addAndGet(length) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-length);
+            discards.incrementAndGet();
+            return;
+        }
+        sizeClasses[Integer.numberOfTrailingZeros(length) - minSizeShift].offer(buffer);
+    }
+
+    private int sizeClassFor(int size) {
+        if (size <= minBufferSize) {
+            return 0;
+        }
+        // round up to the next power of two
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - minSizeShift;
+    }
+
+    @Override
+    public void export(JMXControl jmxControl) {
+        if (jmxControl != null) {
+            jmxControl.registerMBean("CoUGAR.socket.transport:name=serialisationBufferPool", this);
+        }
+    }
+
+    @ManagedAttribute
+    public int getMinBufferSize() {
+        return minBufferSize;
+    }
+
+    @ManagedAttribute
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    @ManagedAttribute
+    public long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    @ManagedAttribute
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    @ManagedAttribute
+    public long getHits() {
+        return hits.get();
+    }
+
+    @ManagedAttribute
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @ManagedAttribute
+    public long getOversizeRequests() {
+        return oversizeRequests.get();
+    }
+
+    @ManagedAttribute
+    public long getDiscards() {
+        return discards.get();
+    }
+}
@@ -154,10 +154,12 @@ public class TlsNioConfig extends NioConfig implements BeanNameAware {
             else {
                 protocol = CougarProtocol.getClientInstance(getNioLogger(), getKeepAliveInterval(), getKeepAliveTimeout(), sslFilter, supportsTls, requiresTls, getRpcTimeoutMillis());
             }
+            protocol.setWriteCoalescing(getWriteCoalescingMaxBytes(), getWriteCoalescingLingerMicros(), getWriteCoalescingScheduler());
+            protocol.setCompressionCodec(getCompressionCodecValue());
 
             config.getFilterChain().addLast("slowHandling", new SessionWriteQueueMonitoring(getNioLogger(), getMaxWriteQueueSize()));
             config.getFilterChain().addLast("codec",
-                    new ProtocolCodecFilter(new CougarProtocolEncoder(getNioLogger()), new CougarProtocolDecoder(getNioLogger())));
+                    new ProtocolCodecFilter(new CougarProtocolEncoder(getNioLogger(), isPooledPayloadFraming(), getCompressionThreshold()), new CougarProtocolDecoder(getNioLogger(), isPooledPayloadFraming(), getMaxUncompressedPayloadBytes())));
             config.getFilterChain().addLast("protocol", protocol);
 
             config.setThreadModel(ThreadModel.MANUAL);
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio;
+
+import com.betfair.cougar.netutil.nio.monitoring.SessionWriteQueueMonitor;
+import com.betfair.cougar.netutil.nio.monitoring.SessionWriteQueueMonitoring;
+import org.apache.mina.common.IoFilter.NextFilter;
+import org.apache.mina.common.IoFilter.WriteRequest;
+import org.apache.mina.common.IoFuture;
+import org.apache.mina.common.IoFutureListener;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.WriteFuture;
+import org.apache.mina.common.support.DefaultWriteFuture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back rpc and event writes for a session for up to <code>lingerMicros</code>, or until
+ * <code>maxBytes</code> have built up, and then passes them down the chain as a single {@link Batch}, which the
+ * encoder turns into a single buffer and hence a single socket write.
+ * <p/>
+ * Anything which isn't coalescable flushes what's pending before it goes down the chain, so ordering on the wire is
+ * unchanged.
+ */
+class WriteCoalescer {
+
+    static final String SESSION_KEY = "CougarProtocol.writeCoalescer";
+
+    private final IoSession session;
+    private final int maxBytes;
+    private final long lingerMicros;
+    private final ScheduledExecutorService scheduler;
+
+    private NextFilter nextFilter;
+    private List<WriteRequest> pending = new ArrayList<WriteRequest>();
+    private int pendingBytes;
+    private ScheduledFuture<?> lingerTask;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    WriteCoalescer(IoSession session, int maxBytes, long lingerMicros, ScheduledExecutorService scheduler) {
+        this.session = session;
+        this.maxBytes = maxBytes;
+        this.lingerMicros = lingerMicros;
+        this.scheduler = scheduler;
+    }
+
+    synchronized void add(NextFilter nextFilter, WriteRequest writeRequest, int size) {
+        this.nextFilter = nextFilter;
+        pending.add(writeRequest);
+        pendingBytes += size;
+        if (pendingBytes >= maxBytes) {
+            flush();
+        }
+        else if (lingerTask == null) {
+            try {
+                lingerTask = scheduler.schedule(flushTask, lingerMicros, TimeUnit.MICROSECONDS);
+            } catch (RejectedExecutionException e) {
+                // the scheduler's been shut down, so there's nothing to come back and flush
+                flush();
+            }
+        }
+    }
+
+    synchronized void flush() {
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        final List<WriteRequest> requests = pending;
+        pending = new ArrayList<WriteRequest>();
+        pendingBytes = 0;
+
+        // written while holding the lock so that a linger flush can't overtake a direct one
+        if (requests.size() == 1) {
+            nextFilter.filterWrite(session, requests.get(0));
+        }
+        else {
+            WriteFuture future = new DefaultWriteFuture(session);
+            future.addListener(new IoFutureListener() {
+                @Override
+                public void operationComplete(IoFuture future) {
+                    boolean written = ((WriteFuture) future).isWritten();
+                    for (WriteRequest request : requests) {
+                        request.getFuture().setWritten(written);
+                    }
+                }
+            });
+            nextFilter.filterWrite(session, new WriteRequest(new Batch(requests), future, requests.get(0).getDestination()));
+        }
+        recordWrite(session, requests.size());
+    }
+
+    /**
+     * Fails anything still pending, for when the session has gone away underneath us.
+     */
+    synchronized void discard() {
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+        for (WriteRequest request : pending) {
+            request.getFuture().setWritten(false);
+        }
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    static void recordWrite(IoSession session, int messages) {
+        SessionWriteQueueMonitor monitor = SessionWriteQueueMonitoring.getSessionMonitor(NioUtils.getSessionId(session));
+        if (monitor != null) {
+            monitor.countWrite(messages);
+        }
+    }
+
+    /**
+     * A set of writes to be encoded into a single buffer.
+     */
+    static class Batch {
+        private final List<WriteRequest> requests;
+
+        Batch(List<WriteRequest> requests) {
+            this.requests = Collections.unmodifiableList(requests);
+        }
+
+        List<WriteRequest> getRequests() {
+            return requests;
+        }
+
+        @Override
+        public String toString() {
+            return "Batch[" + requests.size() + " messages]";
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio.connected;
+
+import com.betfair.platform.virtualheap.NodeType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Compact binary form of the updates in a heap delta, used instead of the generic Hessian object encoding from
+ * protocol version 8 (see TranscribableParams.CompactHeapDeltas). Each update is a flag byte and an action count,
+ * each action an opcode byte followed by its node ids as varints. Scalar values carry a one byte type tag.
+ * <p/>
+ * The opcodes and tags are part of the wire protocol, so only ever add new ones.
+ */
+public final class CompactUpdateCodec {
+
+    private static final byte UPDATE = 0;
+    private static final byte INITIAL_UPDATE = 1;
+
+    private static final byte INSTALL_ROOT = 1;
+    private static final byte INSTALL_FIELD = 2;
+    private static final byte INSTALL_INDEX = 3;
+    private static final byte SET_SCALAR = 4;
+    private static final byte REMOVE_FIELD = 5;
+    private static final byte REMOVE_INDEX = 6;
+    private static final byte REMOVE_CHILDREN = 7;
+    private static final byte TERMINATE_HEAP = 8;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte FLOAT = 6;
+    private static final byte STRING = 7;
+    private static final byte BYTE = 8;
+    private static final byte SHORT = 9;
+    private static final byte CHAR = 10;
+    private static final byte DATE = 11;
+
+    private CompactUpdateCodec() {
+    }
+
+    public static byte[] encode(List<Update> updates) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        writeVarInt(out, updates.size());
+        for (Update u : updates) {
+            out.writeByte(u instanceof InitialUpdate ? INITIAL_UPDATE : UPDATE);
+            List<UpdateAction> actions = u.getActions();
+            writeVarInt(out, actions.size());
+            for (UpdateAction action : actions) {
+                writeAction(out, action);
+            }
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    public static List<Update> decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int numUpdates = readVarInt(in);
+        List<Update> updates = new ArrayList<Update>(numUpdates);
+        for (int i = 0; i < numUpdates; i++) {
+            byte kind = in.readByte();
+            Update u;
+            switch (kind) {
+                case UPDATE:
+                    u = new Update();
+                    break;
+                case INITIAL_UPDATE:
+                    u = new InitialUpdate();
+                    break;
+                default:
+                    throw new IOException("Unrecognised update kind: " + kind);
+            }
+            int numActions = readVarInt(in);
+            List<UpdateAction> actions = new ArrayList<UpdateAction>(numActions);
+            for (int j = 0; j < numActions; j++) {
+                actions.add(readAction(in));
+            }
+            u.setActions(actions);
+            updates.add(u);
+        }
+        return updates;
+    }
+
+    private static void writeAction(DataOutputStream out, UpdateAction action) throws IOException {
+        // the heap representations are where the server side actions came from, so reading them is free
+        if (action instanceof SetScalar) {
+            com.betfair.platform.virtualheap.updates.SetScalar u = (com.betfair.platform.virtualheap.updates.SetScalar) action.getHeapRepresentation();
+            out.writeByte(SET_SCALAR);
+            writeVarInt(out, u.getId());
+            writeScalar(out, u.getValue());
+        }
+        else if (action instanceof InstallField) {
+            com.betfair.platform.virtualheap.updates.InstallField u = (com.betfair.platform.virtualheap.updates.InstallField) action.getHeapRepresentation();
+            out.writeByte(INSTALL_FIELD);
+            writeVarInt(out, u.getParentId());
+            writeVarInt(out, u.getId());
+            writeString(out, u.getName());
+            writeString(out, u.getType().name());
+        }
+        else if (action instanceof InstallIndex) {
+            com.betfair.platform.virtualheap.updates.InstallIndex u = (com.betfair.platform.virtualheap.updates.InstallIndex) action.getHeapRepresentation();
+            out.writeByte(INSTALL_INDEX);
+            writeVarInt(out, u.getParentId());
+            writeVarInt(out, u.getId());
+            writeVarInt(out, u.getIndex());
+            writeString(out, u.getType().name());
+        }
+        else if (action instanceof RemoveField) {
+            com.betfair.platform.virtualheap.updates.RemoveField u = (com.betfair.platform.virtualheap.updates.RemoveField) action.getHeapRepresentation();
+            out.writeByte(REMOVE_FIELD);
+            writeVarInt(out, u.getParentId());
+            writeVarInt(out, u.getId());
+            writeString(out, u.getName());
+        }
+        else if (action instanceof RemoveIndex) {
+            com.betfair.platform.virtualheap.updates.RemoveIndex u = (com.betfair.platform.virtualheap.updates.RemoveIndex) action.getHeapRepresentation();
+            out.writeByte(REMOVE_INDEX);
+            writeVarInt(out, u.getParentId());
+            writeVarInt(out, u.getId());
+            writeVarInt(out, u.getIndex());
+        }
+        else if (action instanceof RemoveChildren) {
+            com.betfair.platform.virtualheap.updates.RemoveChildren u = (com.betfair.platform.virtualheap.updates.RemoveChildren) action.getHeapRepresentation();
+            out.writeByte(REMOVE_CHILDREN);
+            writeVarInt(out, u.getId());
+        }
+        else if (action instanceof InstallRoot) {
+            com.betfair.platform.virtualheap.updates.InstallRoot u = (com.betfair.platform.virtualheap.updates.InstallRoot) action.getHeapRepresentation();
+            out.writeByte(INSTALL_ROOT);
+            writeVarInt(out, u.getId());
+            writeString(out, u.getType().name());
+        }
+        else if (action instanceof TerminateHeap) {
+            out.writeByte(TERMINATE_HEAP);
+        }
+        else {
+            throw new IOException("Unrecognised update action: " + action);
+        }
+    }
+
+    private static UpdateAction readAction(DataInputStream in) throws IOException {
+        byte opcode = in.readByte();
+        switch (opcode) {
+            case SET_SCALAR:
+                return new SetScalar(readVarInt(in), readScalar(in));
+            case INSTALL_FIELD:
+                return new InstallField(readVarInt(in), readVarInt(in), readString(in), NodeType.valueOf(readString(in)));
+            case INSTALL_INDEX:
+                return new InstallIndex(readVarInt(in), readVarInt(in), readVarInt(in), NodeType.valueOf(readString(in)));
+            case REMOVE_FIELD:
+                return new RemoveField(readVarInt(in), readVarInt(in), readString(in), null);
+            case REMOVE_INDEX:
+                return new RemoveIndex(readVarInt(in), readVarInt(in), readVarInt(in), null);
+            case REMOVE_CHILDREN:
+                return new RemoveChildren(readVarInt(in), null);
+            case INSTALL_ROOT:
+                return new InstallRoot(readVarInt(in), NodeType.valueOf(readString(in)));
+            case TERMINATE_HEAP:
+                return new TerminateHeap();
+            default:
+                throw new IOException("Unrecognised update action opcode: " + opcode);
+        }
+    }
+
+    private static void writeScalar(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(INT);
+            writeVarLong(out, zigZag((Integer) value));
+        }
+        else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        }
+        else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out, zigZag((Long) value));
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        }
+        else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        }
+        else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            writeVarLong(out, zigZag((Short) value));
+        }
+        else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            writeVarInt(out, (Character) value);
+        }
+        else if (value instanceof Date) {
+            out.writeByte(DATE);
+            writeVarLong(out, zigZag(((Date) value).getTime()));
+        }
+        else if (value instanceof Enum) {
+            // same as the Hessian path, which writes enums as their names
+            out.writeByte(STRING);
+            writeString(out, ((Enum) value).name());
+        }
+        else {
+            throw new IOException("Unsupported scalar type: " + value.getClass().getName());
+        }
+    }
+
+    private static Object readScalar(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INT:
+                return (int) unZigZag(readVarLong(in));
+            case LONG:
+                return unZigZag(readVarLong(in));
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case STRING:
+                return readString(in);
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return (short) unZigZag(readVarLong(in));
+            case CHAR:
+                return (char) readVarInt(in);
+            case DATE:
+                return new Date(unZigZag(readVarLong(in)));
+            default:
+                throw new IOException("Unrecognised scalar type tag: " + tag);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static long zigZag(long l) {
+        return (l << 1) ^ (l >> 63);
+    }
+
+    private static long unZigZag(long l) {
+        return (l >>> 1) ^ -(l & 1);
+    }
+
+    // node ids, indices and lengths are never negative, so don't need zig-zagging
+    static void writeVarInt(DataOutputStream out, int i) throws IOException {
+        if (i < 0) {
+            throw new IOException("Negative value can't be written as a varint: " + i);
+        }
+        writeVarLong(out, i);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        long l = readVarLong(in);
+        if (l > Integer.MAX_VALUE) {
+            throw new IOException("Varint out of range: " + l);
+        }
+        return (int) l;
+    }
+
+    static void writeVarLong(DataOutputStream out, long l) throws IOException {
+        while ((l & ~0x7FL) != 0) {
+            out.writeByte((int) ((l & 0x7F) | 0x80));
+            l >>>= 7;
+        }
+        out.writeByte((int) l);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long ret = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            ret |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -58,11 +58,15 @@ public class Update extends AbstractHeapTranscribable {
     }
 
     public void apply(HeapListener listener) {
+        listener.applyUpdate(getHeapRepresentation());
+    }
+
+    public UpdateBlock getHeapRepresentation() {
         List<com.betfair.platform.virtualheap.updates.Update> updates = new ArrayList<com.betfair.platform.virtualheap.updates.Update>();
         for (UpdateAction ua : actions) {
             updates.add(ua.getHeapRepresentation());
         }
-        listener.applyUpdate(new UpdateBlock(updates));
+        return new UpdateBlock(updates);
     }
 
     public void setActions(List<UpdateAction> actions) {
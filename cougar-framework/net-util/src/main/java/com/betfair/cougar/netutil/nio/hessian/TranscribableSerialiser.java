@@ -26,6 +26,7 @@ import com.betfair.cougar.core.api.transcription.Parameter;
 import com.betfair.cougar.core.api.transcription.Transcribable;
 import com.betfair.cougar.core.api.transcription.TranscribableParams;
 import com.betfair.cougar.core.api.transcription.TranscriptionOutput;
+import com.betfair.cougar.netutil.nio.AbstractHeapTranscribable;
 import com.betfair.cougar.netutil.nio.CougarProtocol;
 import com.caucho.hessian.io.AbstractHessianOutput;
 import com.caucho.hessian.io.Serializer;
@@ -68,7 +69,9 @@ public class TranscribableSerialiser implements Serializer {
 				transcribe(out,transcribable);
 			}
 			else  {
-				Parameter[] parameters =  transcribable.getParameters();
+				Parameter[] parameters =  transcribable instanceof AbstractHeapTranscribable
+						? ((AbstractHeapTranscribable) transcribable).getParameters(transcriptionParams)
+						: transcribable.getParameters();
 				out.writeInt(parameters.length);
 				for (int i=0; i < parameters.length; i++) {
 					out.writeString(parameters[i].getName());
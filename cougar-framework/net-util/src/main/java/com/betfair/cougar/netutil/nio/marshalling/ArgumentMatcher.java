@@ -56,4 +56,41 @@ public class ArgumentMatcher {
 		return expectedArgValues;
 	}
 
+	/**
+	 * Works out, once per client operation definition, where each argument the server is expecting can be found
+	 * amongst those the client sends, so that subsequent requests can be matched without any name lookups.
+	 *
+	 * @param expectedArgs - arguments the server is expecting, as defined in the idd
+	 * @param availableArgNames - names of arguments supplied by the client
+	 * @return for each expected argument, the index of the client argument supplying it, or -1 if none does
+	 */
+	public static int[] getArgumentIndexes(Parameter[] expectedArgs, String[] availableArgNames) {
+		int[] indexes = new int[expectedArgs.length];
+		for (int i=0;i<expectedArgs.length;i++) {
+			indexes[i] = -1;
+			for (int j=0;j<availableArgNames.length;j++) {
+				if (expectedArgs[i].getName().equals(availableArgNames[j])) {
+					indexes[i] = j;
+					break;
+				}
+			}
+		}
+		return indexes;
+	}
+
+	/**
+	 * @param argumentIndexes - as returned by getArgumentIndexes
+	 * @param availableArgValues - values of arguments supplied by the client
+	 */
+	public static Object[] getArgumentValues(int[] argumentIndexes, Object[] availableArgValues) {
+		Object[] expectedArgValues = new Object[argumentIndexes.length];
+		for (int i=0;i<argumentIndexes.length;i++) {
+			int index = argumentIndexes[i];
+			if (index >= 0 && index < availableArgValues.length) {
+				expectedArgValues[i] = availableArgValues[index];
+			}
+		}
+		return expectedArgValues;
+	}
+
 }
@@ -42,6 +42,7 @@ import com.betfair.cougar.core.impl.DefaultTimeConstraints;
 import com.betfair.cougar.core.impl.security.CertInfoExtractor;
 import com.betfair.cougar.core.impl.security.CommonNameCertInfoExtractor;
 import com.betfair.cougar.core.impl.security.SSLAwareTokenResolver;
+import com.betfair.cougar.marshalling.api.socket.OperationHeader;
 import com.betfair.cougar.marshalling.api.socket.RemotableMethodInvocationMarshaller;
 import com.betfair.cougar.netutil.nio.CougarProtocol;
 import com.betfair.cougar.transport.api.RequestTimeResolver;
@@ -166,6 +167,11 @@ public class SocketRMIMarshaller implements RemotableMethodInvocationMarshaller
 
     @Override
 	public void writeInvocationRequest(InvocationRequest request, CougarObjectOutput out, IdentityResolver identityResolver, byte protocolVersion) throws IOException {
+        writeInvocationRequest(request, out, identityResolver, OperationHeader.NO_OPERATION_ID, false, protocolVersion);
+    }
+
+    @Override
+	public void writeInvocationRequest(InvocationRequest request, CougarObjectOutput out, IdentityResolver identityResolver, int operationId, boolean defineOperationId, byte protocolVersion) throws IOException {
         // todo: decide if we want app protocol versioning too?
         // note that new additions to the app protocol must be backwards compatible from the client side, the server side response may be breaking since it knows what
         // the client version is..
@@ -173,8 +179,8 @@ public class SocketRMIMarshaller implements RemotableMethodInvocationMarshaller
 //            out.writeBytes(new byte[] {CougarProtocol.TRANSPORT_PROTOCOL_VERSION_TIME_CONSTRAINTS});
 //        }
 		writeExecutionContext(request.getExecutionContext(), out, identityResolver, protocolVersion);
-		writeOperationKey(request.getOperationKey(), out);
-		writeArgs(request.getParameters(), request.getArgs(), out);
+		writeOperationHeader(request.getOperationKey(), request.getParameters(), operationId, defineOperationId, out, protocolVersion);
+		out.writeObject(request.getArgs());
         writeTimeConstraints(request.getTimeConstraints(), out, protocolVersion);
 	}
 
@@ -247,6 +253,50 @@ public class SocketRMIMarshaller implements RemotableMethodInvocationMarshaller
 		out.writeString(operationKey.getOperationName());
 	}
 
+    /**
+     * From protocol version 6 the operation key and parameter names are preceded by an int: -1 if the operation has
+     * no id, -2 - id when defining an id, or just the id (with nothing following) when referring to a defined one.
+     */
+    void writeOperationHeader(OperationKey operationKey, Parameter[] argTypes, int operationId, boolean defineOperationId, CougarObjectOutput out, byte protocolVersion) throws IOException {
+        if (protocolVersion >= CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS) {
+            if (operationId == OperationHeader.NO_OPERATION_ID) {
+                out.writeInt(-1);
+            }
+            else if (defineOperationId) {
+                out.writeInt(-2 - operationId);
+            }
+            else {
+                out.writeInt(operationId);
+                return;
+            }
+        }
+        writeOperationKey(operationKey, out);
+        writeArgNames(argTypes, out);
+    }
+
+    @Override
+    public OperationHeader readOperationHeader(CougarObjectInput in, byte protocolVersion) throws IOException {
+        int operationId = OperationHeader.NO_OPERATION_ID;
+        if (protocolVersion >= CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS) {
+            int ref = in.readInt();
+            if (ref >= 0) {
+                return new OperationHeader(checkOperationId(ref), null, null);
+            }
+            if (ref != -1) {
+                operationId = checkOperationId(-2 - ref);
+            }
+        }
+        OperationKey operationKey = readOperationKey(in);
+        return new OperationHeader(operationId, operationKey, readArgNames(in));
+    }
+
+    private int checkOperationId(int operationId) throws IOException {
+        if (operationId >= OperationHeader.MAX_OPERATION_IDS) {
+            throw new IOException("Operation id " + operationId + " is out of range");
+        }
+        return operationId;
+    }
+
 	public OperationKey readOperationKey(CougarObjectInput in) throws IOException {
         EnumUtils.setHardFailureForThisThread(hardFailEnumDeserialisation);
 		return new OperationKey(
@@ -256,11 +306,24 @@ public class SocketRMIMarshaller implements RemotableMethodInvocationMarshaller
 	}
 
 	void writeArgs(Parameter [] argTypes, Object [] args, CougarObjectOutput out) throws IOException {
+		writeArgNames(argTypes, out);
+		out.writeObject(args);
+	}
+
+	private void writeArgNames(Parameter [] argTypes, CougarObjectOutput out) throws IOException {
 		out.writeInt(argTypes.length);
 		for (int i=0;i<argTypes.length; i++) {
 			out.writeString(argTypes[i].getName());
 		}
-		out.writeObject(args);
+	}
+
+	private String[] readArgNames(CougarObjectInput in) throws IOException {
+		int numArgs = in.readInt();
+		String[] paramNames = new String[numArgs];
+		for (int i=0;i<numArgs;i++) {
+			paramNames[i] = in.readString();
+		}
+		return paramNames;
 	}
 
     void writeTimeConstraints(TimeConstraints timeConstraints, CougarObjectOutput out, byte protocolVersion) throws IOException {
@@ -276,11 +339,7 @@ public class SocketRMIMarshaller implements RemotableMethodInvocationMarshaller
 	public Object [] readArgs(Parameter [] argTypes, CougarObjectInput in) throws IOException {
         EnumUtils.setHardFailureForThisThread(hardFailEnumDeserialisation);
 		try {
-			int numArgs = in.readInt();
-			String[] paramNames = new String[numArgs];
-			for (int i=0;i<numArgs;i++) {
-				paramNames[i] = in.readString();
-			}
+			String[] paramNames = readArgNames(in);
 			return ArgumentMatcher.getArgumentValues(argTypes, paramNames, (Object[])in.readObject());
 		}
 		catch (IOException e) {
@@ -291,6 +350,20 @@ public class SocketRMIMarshaller implements RemotableMethodInvocationMarshaller
 		}
 	}
 
+    @Override
+	public Object [] readArgValues(CougarObjectInput in) throws IOException {
+        EnumUtils.setHardFailureForThisThread(hardFailEnumDeserialisation);
+		try {
+			return (Object[])in.readObject();
+		}
+		catch (IOException e) {
+			throw new TranscriptionException(e);
+		}
+		catch (ClassNotFoundException e) {
+			throw new TranscriptionException(e);
+		}
+	}
+
 	private void writeExecutionContext(ExecutionContext ctx, CougarObjectOutput out, IdentityResolver identityResolver, byte protocolVersion) throws IOException {
 		writeGeoLocation(ctx.getLocation(), out, protocolVersion);
 		writeIdentity(ctx.getIdentity(), out, identityResolver);
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio.message;
+
+import org.apache.mina.common.ByteBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Base for messages which carry an opaque payload (MESSAGE_REQUEST, MESSAGE_RESPONSE, EVENT and EVENT_BATCH). The payload
+ * is either a plain byte array, or a MINA buffer obtained from the (pooled) allocator, in which case whoever
+ * consumes the message must call {@link #release()} once they've finished reading from it.
+ */
+public abstract class AbstractPayloadMessage extends AbstractMessage {
+
+    private byte[] payload;
+    private final ByteBuffer payloadBuffer;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    protected AbstractPayloadMessage(byte[] payload) {//NOSONAR
+        this.payload = payload;
+        this.payloadBuffer = null;
+    }
+
+    protected AbstractPayloadMessage(ByteBuffer payloadBuffer) {
+        this.payloadBuffer = payloadBuffer;
+    }
+
+    /**
+     * Returns the payload as a byte array. For buffer backed messages this takes a copy of the buffer contents
+     * the first time it is called, so prefer {@link #getPayloadInputStream()} or {@link #getPayloadBuffer()}.
+     */
+    public byte[] getPayload() {
+        if (payload == null) {
+            ByteBuffer bb = payloadBuffer.duplicate();
+            byte[] copy = new byte[bb.remaining()];
+            bb.get(copy);
+            payload = copy;
+        }
+        return payload;
+    }
+
+    public int getPayloadLength() {
+        return payloadBuffer != null ? payloadBuffer.remaining() : payload.length;
+    }
+
+    /**
+     * Returns a view of the payload ready for reading, sharing content with this message.
+     */
+    public ByteBuffer getPayloadBuffer() {
+        return payloadBuffer != null ? payloadBuffer.duplicate() : ByteBuffer.wrap(payload);
+    }
+
+    public InputStream getPayloadInputStream() {
+        return payloadBuffer != null ? payloadBuffer.duplicate().asInputStream() : new ByteArrayInputStream(payload);
+    }
+
+    public boolean isBufferBacked() {
+        return payloadBuffer != null;
+    }
+
+    /**
+     * Returns the payload buffer to the allocator it came from. Safe to call more than once, and a no-op for
+     * byte array backed messages.
+     */
+    public void release() {
+        if (payloadBuffer != null && released.compareAndSet(false, true)) {
+            payloadBuffer.release();
+        }
+    }
+}
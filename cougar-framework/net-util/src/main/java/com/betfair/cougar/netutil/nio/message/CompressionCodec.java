@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio.message;
+
+/**
+ * Payload compression codecs which may be negotiated for a session (from protocol version 5).
+ */
+public enum CompressionCodec {
+    NONE((byte)0), DEFLATE((byte)1);
+
+    private byte value;
+
+    private CompressionCodec(byte value) {
+        this.value = value;
+    }
+
+    public byte getValue() {
+        return value;
+    }
+
+    public static CompressionCodec getByValue(byte value) {
+        for (CompressionCodec codec : values()) {
+            if (codec.value == value) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown value " + value);
+    }
+}
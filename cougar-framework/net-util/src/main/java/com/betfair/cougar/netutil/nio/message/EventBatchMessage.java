@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio.message;
+
+import com.betfair.cougar.netutil.nio.CougarProtocol;
+import org.apache.mina.common.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several events for the same session packed into a single frame. The payload is each event's payload in turn,
+ * prefixed with its length. The receiving decoder splits it back into the individual events, so nothing beyond
+ * the codec ever sees one of these.
+ */
+public class EventBatchMessage extends AbstractPayloadMessage implements ProtocolMessage {
+
+    private final int numEvents;
+
+    public EventBatchMessage(List<EventMessage> events) {
+        super(pack(events));
+        this.numEvents = events.size();
+    }
+
+    private static byte[] pack(List<EventMessage> events) {
+        int length = 0;
+        for (EventMessage event : events) {
+            length += 4 + event.getPayloadLength();
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        for (EventMessage event : events) {
+            buffer.putInt(event.getPayloadLength());
+            buffer.put(event.getPayloadBuffer());
+        }
+        return payload;
+    }
+
+    /**
+     * Splits a received batch payload back into its events.
+     */
+    public static List<EventMessage> unpack(ByteBuffer payload) {
+        List<EventMessage> ret = new ArrayList<EventMessage>();
+        while (payload.hasRemaining()) {
+            byte[] event = new byte[payload.getInt()];
+            payload.get(event);
+            ret.add(new EventMessage(event));
+        }
+        return ret;
+    }
+
+    public int getNumEvents() {
+        return numEvents;
+    }
+
+    @Override
+    public ProtocolMessage.ProtocolMessageType getProtocolMessageType() {
+        return ProtocolMessage.ProtocolMessageType.EVENT_BATCH;
+    }
+
+    @Override
+    public ByteBuffer getSerialisedForm(byte protocolVersion) {
+        if (protocolVersion < CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES) {
+            return null;
+        }
+        return super.getSerialisedForm(protocolVersion);
+    }
+}
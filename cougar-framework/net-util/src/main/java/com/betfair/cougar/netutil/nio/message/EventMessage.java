@@ -17,30 +17,26 @@
 package com.betfair.cougar.netutil.nio.message;
 
 import com.betfair.cougar.netutil.nio.CougarProtocol;
-import com.betfair.cougar.netutil.nio.CougarProtocolEncoder;
 import org.apache.mina.common.ByteBuffer;
 
-import java.util.HashMap;
-import java.util.Map;
+public class EventMessage extends AbstractPayloadMessage implements ProtocolMessage {
 
-public class EventMessage extends AbstractMessage implements ProtocolMessage {
-
-    private Map<Byte, ByteBuffer> serialisedForms = new HashMap<Byte, ByteBuffer>();
-    private byte[] payload;
+    // framed once, the first time it's written, and shared read only by every session the event is fanned out to
+    private volatile ByteBuffer frame;
+    // likewise for sessions which have negotiated compression
+    private volatile ByteBuffer compressibleFrame;
+    // deflated once and shared by every compressing session the event is fanned out to
+    private volatile byte[] compressedPayload;
 
     public EventMessage(byte[] payload) {//NOSONAR
-        this.payload = payload;
-        serialise();
-    }
-
-    private void serialise() {
-        for (byte b=CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MIN_SUPPORTED; b<=CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED; b++) {
-            serialisedForms.put(b, CougarProtocolEncoder.encode(this, b));
-        }
+        super(payload);
     }
 
-    public byte[] getPayload() {
-        return payload;
+    /**
+     * Used for received events, which are never written back out.
+     */
+    public EventMessage(ByteBuffer payloadBuffer) {
+        super(payloadBuffer);
     }
 
     @Override
@@ -50,6 +46,58 @@ public class EventMessage extends AbstractMessage implements ProtocolMessage {
 
     @Override
     public ByteBuffer getSerialisedForm(byte protocolVersion) {
-        return serialisedForms.get(protocolVersion).duplicate();
+        if (protocolVersion < CougarProtocol.TRANSPORT_PROTOCOL_VERSION_BIDIRECTION_RPC) {
+            return null;
+        }
+        // events are framed the same way for every protocol version which supports them
+        ByteBuffer shared = frame;
+        if (shared == null) {
+            int payloadLength = getPayloadLength();
+            // wrapped rather than allocated, so it's never returned to the pool whilst sessions are still writing it
+            ByteBuffer buffer = ByteBuffer.wrap(new byte[5 + payloadLength]);
+            buffer.putInt(payloadLength + 1);
+            buffer.put(getProtocolMessageType().getMessageType());
+            buffer.put(getPayloadBuffer());
+            buffer.flip();
+            shared = buffer.asReadOnlyBuffer();
+            frame = shared;
+        }
+        return writtenView(shared);
+    }
+
+    /**
+     * Returns the frame cached by the encoder for compressing sessions, or null if it hasn't been framed yet.
+     */
+    public ByteBuffer getCompressibleFrame() {
+        ByteBuffer shared = compressibleFrame;
+        return shared != null ? writtenView(shared) : null;
+    }
+
+    /**
+     * @param frame the frame, ready for reading
+     */
+    public void setCompressibleFrame(ByteBuffer frame) {
+        this.compressibleFrame = frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the compressed payload cached by the encoder, or null if it hasn't been compressed yet.
+     */
+    public byte[] getCompressedPayload() {
+        return compressedPayload;//NOSONAR
+    }
+
+    public void setCompressedPayload(byte[] compressedPayload) {//NOSONAR
+        this.compressedPayload = compressedPayload;
+    }
+
+    /**
+     * A view of a shared frame in the same state as a freshly encoded one (positioned after the last byte written),
+     * so the encoder can flip it as usual without disturbing anyone else's view.
+     */
+    private static ByteBuffer writtenView(ByteBuffer shared) {
+        ByteBuffer view = shared.duplicate();
+        view.position(view.limit());
+        return view;
     }
-}
\ No newline at end of file
+}
@@ -37,7 +37,8 @@ public interface ProtocolMessage {
         EVENT((byte)8),
         SUSPEND((byte)9),
         START_TLS_REQUEST((byte)10),
-        START_TLS_RESPONSE((byte)11);
+        START_TLS_RESPONSE((byte)11),
+        EVENT_BATCH((byte)12);
 
         private byte messageType;
 
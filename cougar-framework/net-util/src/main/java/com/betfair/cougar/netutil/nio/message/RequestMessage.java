@@ -16,21 +16,23 @@
 
 package com.betfair.cougar.netutil.nio.message;
 
+import org.apache.mina.common.ByteBuffer;
+
 /**
  *
  */
-public class RequestMessage extends AbstractMessage implements ProtocolMessage {
+public class RequestMessage extends AbstractPayloadMessage implements ProtocolMessage {
 
-    private byte[] payload;
     private long correlationId;
 
     public RequestMessage(long correlationId, byte[] payload) {//NOSONAR
+        super(payload);
         this.correlationId = correlationId;
-        this.payload = payload;
     }
 
-    public byte[] getPayload() {
-        return payload;
+    public RequestMessage(long correlationId, ByteBuffer payloadBuffer) {
+        super(payloadBuffer);
+        this.correlationId = correlationId;
     }
 
     @Override
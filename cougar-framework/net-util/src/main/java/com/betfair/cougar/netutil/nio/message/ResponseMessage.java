@@ -16,21 +16,23 @@
 
 package com.betfair.cougar.netutil.nio.message;
 
+import org.apache.mina.common.ByteBuffer;
+
 /**
  *
  */
-public class ResponseMessage extends AbstractMessage implements ProtocolMessage {
+public class ResponseMessage extends AbstractPayloadMessage implements ProtocolMessage {
 
-    private byte[] payload;
     private long correlationId;
 
     public ResponseMessage(long correlationId, byte[] payload) {//NOSONAR
+        super(payload);
         this.correlationId = correlationId;
-        this.payload = payload;
     }
 
-    public byte[] getPayload() {
-        return payload;
+    public ResponseMessage(long correlationId, ByteBuffer payloadBuffer) {
+        super(payloadBuffer);
+        this.correlationId = correlationId;
     }
 
     @Override
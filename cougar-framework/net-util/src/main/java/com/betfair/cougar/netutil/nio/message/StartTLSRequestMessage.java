@@ -21,16 +21,32 @@ package com.betfair.cougar.netutil.nio.message;
  */
 public class StartTLSRequestMessage extends AbstractMessage implements ProtocolMessage{
 
+    private static final CompressionCodec[] NO_CODECS = new CompressionCodec[0];
+
     private final TLSRequirement requirement;
+    // only sent from version 5 onwards
+    private final CompressionCodec[] compressionCodecs;
 
     public StartTLSRequestMessage(TLSRequirement requirement) {
+        this(requirement, NO_CODECS);
+    }
+
+    public StartTLSRequestMessage(TLSRequirement requirement, CompressionCodec[] compressionCodecs) {//NOSONAR
         this.requirement = requirement;
+        this.compressionCodecs = compressionCodecs;
     }
 
     public TLSRequirement getRequirement() {
         return requirement;
     }
 
+    /**
+     * The payload compression codecs the client is willing to use, in order of preference.
+     */
+    public CompressionCodec[] getCompressionCodecs() {
+        return compressionCodecs;//NOSONAR
+    }
+
     @Override
     public ProtocolMessageType getProtocolMessageType() {
         return ProtocolMessageType.START_TLS_REQUEST;
@@ -22,9 +22,16 @@ package com.betfair.cougar.netutil.nio.message;
 public class StartTLSResponseMessage extends AbstractMessage implements ProtocolMessage{
 
     private TLSResult result;
+    // only sent from version 5 onwards
+    private CompressionCodec compressionCodec;
 
     public StartTLSResponseMessage(TLSResult result) {
+        this(result, CompressionCodec.NONE);
+    }
+
+    public StartTLSResponseMessage(TLSResult result, CompressionCodec compressionCodec) {
         this.result = result;
+        this.compressionCodec = compressionCodec;
     }
 
     @Override
@@ -35,4 +42,8 @@ public class StartTLSResponseMessage extends AbstractMessage implements Protocol
     public TLSResult getResult() {
         return result;
     }
+
+    public CompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
 }
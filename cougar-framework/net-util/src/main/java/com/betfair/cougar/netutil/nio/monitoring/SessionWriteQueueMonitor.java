@@ -26,6 +26,8 @@ import java.util.concurrent.atomic.AtomicLong;
 public class SessionWriteQueueMonitor implements SessionWriteQueueMonitorMBean {
 
     private AtomicLong queueDepth = new AtomicLong();
+    private AtomicLong writes = new AtomicLong();
+    private AtomicLong messagesWritten = new AtomicLong();
     private IoSession session;
 
     public SessionWriteQueueMonitor(IoSession session) {
@@ -37,6 +39,22 @@ public class SessionWriteQueueMonitor implements SessionWriteQueueMonitorMBean {
         return queueDepth.get();
     }
 
+    @Override
+    public long getWrites() {
+        return writes.get();
+    }
+
+    @Override
+    public long getMessagesWritten() {
+        return messagesWritten.get();
+    }
+
+    @Override
+    public double getMessagesPerWrite() {
+        long w = writes.get();
+        return w == 0 ? 0 : (double) messagesWritten.get() / w;
+    }
+
     String getRemoteHost() {
         InetSocketAddress socketAddress = (InetSocketAddress) session.getRemoteAddress();
         // todo: replace with socketAddress.getHostAddress() when we move to java 1.7
@@ -60,4 +78,12 @@ public class SessionWriteQueueMonitor implements SessionWriteQueueMonitorMBean {
     public long countOut() {
         return queueDepth.decrementAndGet();
     }
+
+    /**
+     * Records a write of one or more (when coalesced) protocol messages to the session.
+     */
+    public void countWrite(int messages) {
+        writes.incrementAndGet();
+        messagesWritten.addAndGet(messages);
+    }
 }
@@ -20,4 +20,10 @@ package com.betfair.cougar.netutil.nio.monitoring;
  */
 public interface SessionWriteQueueMonitorMBean {
     long getQueueDepth();
+
+    long getWrites();
+
+    long getMessagesWritten();
+
+    double getMessagesPerWrite();
 }
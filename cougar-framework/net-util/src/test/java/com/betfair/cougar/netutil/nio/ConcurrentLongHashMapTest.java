@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ *
+ */
+public class ConcurrentLongHashMapTest {
+
+    @Test
+    public void putGetRemove() {
+        ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>();
+        assertNull(map.put(1L, "one"));
+        assertEquals("one", map.put(1L, "uno"));
+        assertEquals("uno", map.get(1L));
+        assertNull(map.get(2L));
+        assertEquals(1, map.size());
+
+        assertEquals("uno", map.remove(1L));
+        assertNull(map.remove(1L));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void matchesHashMapThroughGrowthAndDeletes() {
+        ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<Long>(2);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random r = new Random(1234);
+        for (int i = 0; i < 20000; i++) {
+            long key = r.nextInt(2000);
+            if (r.nextBoolean()) {
+                assertEquals(expected.put(key, key), map.put(key, key));
+            }
+            else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 2000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void clearReturnsContents() {
+        ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>();
+        for (long i = 0; i < 100; i++) {
+            map.put(i, "v" + i);
+        }
+        List<String> values = map.clear();
+        assertEquals(100, values.size());
+        assertEquals(0, map.size());
+        assertNull(map.get(50L));
+    }
+}
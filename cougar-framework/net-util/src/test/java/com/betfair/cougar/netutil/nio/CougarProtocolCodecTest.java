@@ -0,0 +1,311 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio;
+
+import com.betfair.cougar.netutil.nio.message.CompressionCodec;
+import com.betfair.cougar.netutil.nio.message.EventBatchMessage;
+import com.betfair.cougar.netutil.nio.message.EventMessage;
+import com.betfair.cougar.netutil.nio.message.RequestMessage;
+import com.betfair.cougar.netutil.nio.message.ResponseMessage;
+import com.betfair.cougar.netutil.nio.message.StartTLSRequestMessage;
+import com.betfair.cougar.netutil.nio.message.TLSRequirement;
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFilter;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ */
+public class CougarProtocolCodecTest {
+
+    // where the declared uncompressed length sits in a compressed response frame, after the frame length, message
+    // type, correlation id and compression codec
+    private static final int UNCOMPRESSED_LENGTH_OFFSET = 14;
+
+    private NioLogger logger;
+    private IoSession session;
+
+    @Before
+    public void before() {
+        logger = new NioLogger("ALL");
+        session = mock(IoSession.class);
+        when(session.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME)).thenReturn(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED);
+        when(session.getAttribute(CougarProtocol.IS_SERVER_ATTR_NAME)).thenReturn(true);
+    }
+
+    @Test
+    public void pooledFramingWritesHeaderAndPayloadSeparately() throws Exception {
+        List<ByteBuffer> written = encode(new CougarProtocolEncoder(logger, true), new RequestMessage(12345L, "payload".getBytes()), 2);
+
+        assertEquals(13, written.get(0).remaining());
+        assertEquals(7, written.get(1).remaining());
+    }
+
+    @Test
+    public void pooledFramingMatchesDefaultOnTheWire() throws Exception {
+        List<ByteBuffer> pooled = encode(new CougarProtocolEncoder(logger, true), new RequestMessage(12345L, "payload".getBytes()), 2);
+        List<ByteBuffer> unpooled = encode(new CougarProtocolEncoder(logger), new RequestMessage(12345L, "payload".getBytes()), 1);
+
+        assertEquals(unpooled.get(0), join(pooled));
+    }
+
+    @Test
+    public void pooledFramingRoundTrip() throws Exception {
+        List<ByteBuffer> written = encode(new CougarProtocolEncoder(logger, true), new RequestMessage(12345L, "payload".getBytes()), 2);
+
+        RequestMessage req = (RequestMessage) decode(new CougarProtocolDecoder(logger, true), join(written));
+        assertTrue(req.isBufferBacked());
+        assertEquals(12345L, req.getCorrelationId());
+        assertEquals(7, req.getPayloadLength());
+        assertEquals("payload", new String(req.getPayload()));
+        req.release();
+        // second release must be harmless
+        req.release();
+    }
+
+    @Test
+    public void defaultFramingDecodesToByteArrays() throws Exception {
+        List<ByteBuffer> written = encode(new CougarProtocolEncoder(logger), new EventMessage("event".getBytes()), 1);
+
+        EventMessage em = (EventMessage) decode(new CougarProtocolDecoder(logger), written.get(0));
+        assertFalse(em.isBufferBacked());
+        assertEquals("event", new String(em.getPayload()));
+    }
+
+    @Test
+    public void coalescedBatchIsOneBuffer() throws Exception {
+        RequestMessage req = new RequestMessage(1L, "first".getBytes());
+        ResponseMessage resp = new ResponseMessage(2L, "second".getBytes());
+        WriteCoalescer.Batch batch = new WriteCoalescer.Batch(Arrays.asList(new IoFilter.WriteRequest(req), new IoFilter.WriteRequest(resp)));
+
+        // framing of the batch is the same whether or not the codec frames payloads separately
+        List<ByteBuffer> written = encode(new CougarProtocolEncoder(logger, true), batch, 1);
+        List<ByteBuffer> expected = new ArrayList<ByteBuffer>(encode(new CougarProtocolEncoder(logger), req, 1));
+        expected.addAll(encode(new CougarProtocolEncoder(logger), resp, 1));
+
+        assertEquals(join(expected), written.get(0));
+    }
+
+    @Test
+    public void compressedRoundTrip() throws Exception {
+        when(session.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME)).thenReturn(CompressionCodec.DEFLATE);
+        byte[] payload = new byte[4096];
+        Arrays.fill(payload, (byte) 'a');
+        CougarProtocolEncoder encoder = new CougarProtocolEncoder(logger, true, 1024);
+        List<ByteBuffer> written = encode(encoder, new ResponseMessage(12345L, payload), 1);
+
+        assertTrue(written.get(0).remaining() < payload.length);
+        assertEquals(1, encoder.getCompressedMessagesSent());
+
+        CougarProtocolDecoder decoder = new CougarProtocolDecoder(logger, true);
+        ResponseMessage resp = (ResponseMessage) decode(decoder, written.get(0));
+        assertEquals(12345L, resp.getCorrelationId());
+        assertTrue(Arrays.equals(payload, resp.getPayload()));
+        assertEquals(1, decoder.getCompressedMessagesReceived());
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void compressedPayloadOverMaxUncompressedSizeRejected() throws Exception {
+        ByteBuffer frame = compressedResponseFrame();
+        decode(new CougarProtocolDecoder(logger, true, 1024), frame);
+    }
+
+    @Test
+    public void hugeDeclaredUncompressedLengthRejected() throws Exception {
+        ByteBuffer frame = compressedResponseFrame();
+        frame.putInt(UNCOMPRESSED_LENGTH_OFFSET, Integer.MAX_VALUE);
+        assertMalformed(frame);
+    }
+
+    @Test
+    public void negativeDeclaredUncompressedLengthRejected() throws Exception {
+        ByteBuffer frame = compressedResponseFrame();
+        frame.putInt(UNCOMPRESSED_LENGTH_OFFSET, -1);
+        assertMalformed(frame);
+    }
+
+    @Test
+    public void smallPayloadsAreFlaggedButNotCompressed() throws Exception {
+        when(session.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME)).thenReturn(CompressionCodec.DEFLATE);
+        CougarProtocolEncoder encoder = new CougarProtocolEncoder(logger, true, 1024);
+        List<ByteBuffer> written = encode(encoder, new RequestMessage(12345L, "payload".getBytes()), 2);
+
+        // header now carries the compression flag
+        assertEquals(14, written.get(0).remaining());
+        assertEquals(0, encoder.getCompressedMessagesSent());
+
+        RequestMessage req = (RequestMessage) decode(new CougarProtocolDecoder(logger), join(written));
+        assertEquals("payload", new String(req.getPayload()));
+    }
+
+    @Test
+    public void eventsAreCompressedOnceForAllSessions() throws Exception {
+        when(session.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME)).thenReturn(CompressionCodec.DEFLATE);
+        byte[] payload = new byte[4096];
+        Arrays.fill(payload, (byte) 'e');
+        EventMessage em = new EventMessage(payload);
+        CougarProtocolEncoder encoder = new CougarProtocolEncoder(logger, false, 1024);
+        List<ByteBuffer> first = encode(encoder, em, 1);
+        byte[] compressed = em.getCompressedPayload();
+        assertNotNull(compressed);
+        List<ByteBuffer> second = encode(encoder, em, 1);
+        assertSame(compressed, em.getCompressedPayload());
+        assertEquals(first.get(0), second.get(0));
+
+        EventMessage decoded = (EventMessage) decode(new CougarProtocolDecoder(logger), first.get(0));
+        assertTrue(Arrays.equals(payload, decoded.getPayload()));
+    }
+
+    @Test
+    public void eventsAreFramedOnceForAllSessions() throws Exception {
+        EventMessage em = new EventMessage("event".getBytes());
+        CougarProtocolEncoder encoder = new CougarProtocolEncoder(logger);
+        ByteBuffer first = encode(encoder, em, 1).get(0);
+        ByteBuffer second = encode(encoder, em, 1).get(0);
+
+        // each session gets its own view onto the same read only frame
+        assertEquals(10, first.remaining());
+        assertTrue(first.isReadOnly());
+        assertEquals(first, second);
+
+        EventMessage decoded = (EventMessage) decode(new CougarProtocolDecoder(logger), first);
+        assertEquals("event", new String(decoded.getPayload()));
+        assertEquals(10, second.remaining());
+    }
+
+    @Test
+    public void tlsRequestCarriesCompressionCodecs() throws Exception {
+        List<ByteBuffer> written = encode(new CougarProtocolEncoder(logger), new StartTLSRequestMessage(TLSRequirement.SUPPORTED, new CompressionCodec[] { CompressionCodec.DEFLATE }), 1);
+
+        StartTLSRequestMessage req = (StartTLSRequestMessage) decode(new CougarProtocolDecoder(logger), written.get(0));
+        assertEquals(TLSRequirement.SUPPORTED, req.getRequirement());
+        assertTrue(Arrays.equals(new CompressionCodec[] { CompressionCodec.DEFLATE }, req.getCompressionCodecs()));
+    }
+
+    @Test
+    public void eventBatchIsSplitBackIntoEvents() throws Exception {
+        EventBatchMessage batch = new EventBatchMessage(Arrays.asList(new EventMessage("first".getBytes()), new EventMessage("second".getBytes())));
+        CougarProtocolEncoder encoder = new CougarProtocolEncoder(logger);
+        List<ByteBuffer> written = encode(encoder, batch, 1);
+        assertEquals(1, encoder.getEventBatchesSent());
+        assertEquals(2, encoder.getEventsSent());
+
+        CougarProtocolDecoder decoder = new CougarProtocolDecoder(logger);
+        List<Object> events = decodeAll(decoder, written.get(0), 2);
+        assertEquals("first", new String(((EventMessage) events.get(0)).getPayload()));
+        assertEquals("second", new String(((EventMessage) events.get(1)).getPayload()));
+        assertEquals(1, decoder.getEventBatchesReceived());
+        assertEquals(2, decoder.getEventsReceived());
+    }
+
+    @Test
+    public void compressedEventBatchRoundTrip() throws Exception {
+        when(session.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME)).thenReturn(CompressionCodec.DEFLATE);
+        byte[] payload = new byte[4096];
+        Arrays.fill(payload, (byte) 'a');
+        EventBatchMessage batch = new EventBatchMessage(Arrays.asList(new EventMessage(payload), new EventMessage("small".getBytes())));
+        List<ByteBuffer> written = encode(new CougarProtocolEncoder(logger, true, 1024), batch, 1);
+        assertTrue(written.get(0).remaining() < payload.length);
+
+        List<Object> events = decodeAll(new CougarProtocolDecoder(logger, true), written.get(0), 2);
+        assertTrue(Arrays.equals(payload, ((EventMessage) events.get(0)).getPayload()));
+        assertEquals("small", new String(((EventMessage) events.get(1)).getPayload()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void eventBatchNotWrittenToOlderVersions() throws Exception {
+        when(session.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME)).thenReturn(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS);
+        encode(new CougarProtocolEncoder(logger), new EventBatchMessage(Arrays.asList(new EventMessage("event".getBytes()))), 1);
+    }
+
+    private ByteBuffer compressedResponseFrame() throws Exception {
+        when(session.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME)).thenReturn(CompressionCodec.DEFLATE);
+        byte[] payload = new byte[4096];
+        Arrays.fill(payload, (byte) 'a');
+        return encode(new CougarProtocolEncoder(logger, true, 1024), new ResponseMessage(12345L, payload), 1).get(0);
+    }
+
+    private void assertMalformed(ByteBuffer frame) throws Exception {
+        CougarProtocolDecoder decoder = new CougarProtocolDecoder(logger, true);
+        try {
+            decoder.doDecode(session, frame, mock(ProtocolDecoderOutput.class));
+            fail("Expected a DataFormatException");
+        }
+        catch (DataFormatException e) {
+            // expected
+        }
+        assertEquals(1, decoder.getBadMessagesReceived());
+    }
+
+    private List<ByteBuffer> encode(CougarProtocolEncoder encoder, Object message, int expectedBuffers) throws Exception {
+        ProtocolEncoderOutput out = mock(ProtocolEncoderOutput.class);
+        encoder.encode(session, message, out);
+        ArgumentCaptor<ByteBuffer> captor = ArgumentCaptor.forClass(ByteBuffer.class);
+        verify(out, times(expectedBuffers)).write(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private Object decode(CougarProtocolDecoder decoder, ByteBuffer frame) throws Exception {
+        ProtocolDecoderOutput out = mock(ProtocolDecoderOutput.class);
+        assertTrue(decoder.doDecode(session, frame, out));
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(out).write(captor.capture());
+        return captor.getValue();
+    }
+
+    private List<Object> decodeAll(CougarProtocolDecoder decoder, ByteBuffer frame, int expectedMessages) throws Exception {
+        ProtocolDecoderOutput out = mock(ProtocolDecoderOutput.class);
+        assertTrue(decoder.doDecode(session, frame, out));
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(out, times(expectedMessages)).write(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private ByteBuffer join(List<ByteBuffer> buffers) {
+        int length = 0;
+        for (ByteBuffer bb : buffers) {
+            length += bb.remaining();
+        }
+        ByteBuffer ret = ByteBuffer.allocate(length);
+        for (ByteBuffer bb : buffers) {
+            ret.put(bb.duplicate());
+        }
+        ret.flip();
+        return ret;
+    }
+}
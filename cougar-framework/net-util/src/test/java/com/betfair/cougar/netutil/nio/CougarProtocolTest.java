@@ -16,6 +16,7 @@
 
 package com.betfair.cougar.netutil.nio;
 
+import com.betfair.cougar.netutil.nio.message.CompressionCodec;
 import com.betfair.cougar.netutil.nio.message.TLSResult;
 import org.apache.mina.common.CloseFuture;
 import org.apache.mina.common.IdleStatus;
@@ -42,6 +43,7 @@ import java.util.Set;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -93,6 +95,16 @@ public class CougarProtocolTest {
             client = new CougarProtocol3(false, logger, 2000, 5000, clientSslFilter, clientSupportsTls, clientRequiresTls, 0);
         } else if (clientVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_TIME_CONSTRAINTS) {
             client = new CougarProtocol4(false, logger, 2000, 5000, clientSslFilter, clientSupportsTls, clientRequiresTls, 0);
+        } else if (clientVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION) {
+            client = new CougarProtocol5(false, logger, 2000, 5000, clientSslFilter, clientSupportsTls, clientRequiresTls, 0);
+        } else if (clientVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS) {
+            client = new CougarProtocol6(false, logger, 2000, 5000, clientSslFilter, clientSupportsTls, clientRequiresTls, 0);
+        } else if (clientVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION) {
+            client = new CougarProtocol7(false, logger, 2000, 5000, clientSslFilter, clientSupportsTls, clientRequiresTls, 0);
+        } else if (clientVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS) {
+            client = new CougarProtocol8(false, logger, 2000, 5000, clientSslFilter, clientSupportsTls, clientRequiresTls, 0);
+        } else if (clientVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES) {
+            client = new CougarProtocol9(false, logger, 2000, 5000, clientSslFilter, clientSupportsTls, clientRequiresTls, 0);
         } else {
             throw new IllegalArgumentException("Unsupported client version: " + clientVersion);
         }
@@ -110,6 +122,16 @@ public class CougarProtocolTest {
             server = new CougarProtocol3(true, logger, 2000, 5000, serverSslFilter, serverSupportsTls, serverRequiresTls, 0);
         } else if (serverVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_TIME_CONSTRAINTS) {
             server = new CougarProtocol4(true, logger, 2000, 5000, serverSslFilter, serverSupportsTls, serverRequiresTls, 0);
+        } else if (serverVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION) {
+            server = new CougarProtocol5(true, logger, 2000, 5000, serverSslFilter, serverSupportsTls, serverRequiresTls, 0);
+        } else if (serverVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS) {
+            server = new CougarProtocol6(true, logger, 2000, 5000, serverSslFilter, serverSupportsTls, serverRequiresTls, 0);
+        } else if (serverVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION) {
+            server = new CougarProtocol7(true, logger, 2000, 5000, serverSslFilter, serverSupportsTls, serverRequiresTls, 0);
+        } else if (serverVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS) {
+            server = new CougarProtocol8(true, logger, 2000, 5000, serverSslFilter, serverSupportsTls, serverRequiresTls, 0);
+        } else if (serverVersion == CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES) {
+            server = new CougarProtocol9(true, logger, 2000, 5000, serverSslFilter, serverSupportsTls, serverRequiresTls, 0);
         } else {
             throw new IllegalArgumentException("Unsupported client version: " + clientVersion);
         }
@@ -593,6 +615,167 @@ public class CougarProtocolTest {
         assertFalse(handshake.successful());
     }
 
+    // ============= Compression =====
+    @Test
+    public void compressionNegotiatedV5_V5() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION);
+        ((CougarProtocol5) client).setCompressionCodec(CompressionCodec.DEFLATE);
+        ((CougarProtocol5) server).setCompressionCodec(CompressionCodec.DEFLATE);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION, clientSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+        assertEquals(CompressionCodec.DEFLATE, clientSession.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME));
+        assertEquals(CompressionCodec.DEFLATE, serverSession.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME));
+    }
+
+    @Test
+    public void compressionNotNegotiatedServerDoesntSupportV5_V5() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION);
+        ((CougarProtocol5) client).setCompressionCodec(CompressionCodec.DEFLATE);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertNull(clientSession.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME));
+        assertNull(serverSession.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME));
+    }
+
+    @Test
+    public void compressionNotNegotiatedServerTooOldV5_V4() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_TIME_CONSTRAINTS);
+        ((CougarProtocol5) client).setCompressionCodec(CompressionCodec.DEFLATE);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_TIME_CONSTRAINTS, clientSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+        assertNull(clientSession.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME));
+        assertNull(serverSession.getAttribute(CougarProtocol.COMPRESSION_CODEC_ATTR_NAME));
+    }
+
+
+    // ============= Operation ids =====
+    @Test
+    public void operationIdsNegotiatedV6_V6() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS, clientSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS, serverSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+    }
+
+    @Test
+    public void operationIdsNotNegotiatedServerTooOldV6_V5() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPRESSION, clientSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+    }
+
+    // ============= Heap resumption =====
+    @Test
+    public void heapResumptionNegotiatedV7_V7() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION, clientSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION, serverSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+    }
+
+    @Test
+    public void heapResumptionNotNegotiatedServerTooOldV7_V6() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS, clientSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+    }
+
+    // ============= Compact heap deltas =====
+    @Test
+    public void compactHeapDeltasNegotiatedV8_V8() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS, clientSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS, serverSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+    }
+
+    @Test
+    public void compactHeapDeltasNotNegotiatedServerTooOldV8_V7() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION, clientSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+    }
+
+    // ============= Event batches =====
+    @Test
+    public void eventBatchesNegotiatedV9_V9() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES, clientSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES, serverSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+    }
+
+    @Test
+    public void eventBatchesNotNegotiatedServerTooOldV9_V8() throws Exception {
+        setupProtocol(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS);
+
+        client.sessionOpened(nextFilter, clientSession);
+
+        ClientHandshake handshake = (ClientHandshake) clientSession.getAttribute(ClientHandshake.HANDSHAKE);
+        assertTrue(handshake.await(5000));
+        assertTrue(handshake.successful());
+
+        assertEquals(CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS, clientSession.getAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME));
+    }
 
     private PseudoIoSessionMock createSession(ICougarProtocol otherEnd) {
 //        when(session.write())
@@ -25,7 +25,9 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -72,6 +74,59 @@ public class RequestResponseManagerImplTest {
         // just want no exceptions
     }
 
+    @Test
+    public void responseCancelsTimeout() throws IOException, InterruptedException {
+        IoSession session = mock(IoSession.class);
+        NioLogger logger = new NioLogger("ALL");
+        RequestResponseManagerImpl impl = new RequestResponseManagerImpl(session, logger, 1);
+
+        WaitableResponseHandler responseHandler = new WaitableResponseHandler();
+        long correlationId = impl.sendRequest(new byte[0], responseHandler);
+        assertEquals(1, impl.getOutstandingRequestCount());
+
+        impl.messageReceived(session, new ResponseMessage(correlationId, new byte[0]));
+        assertEquals(0, impl.getOutstandingRequestCount());
+
+        Thread.sleep(2); // 2ms > 1ms
+        impl.checkForExpiredRequests();
+
+        assertEquals(WaitableResponseHandler.ResponseType.Response, responseHandler.getResponseType());
+    }
+
+    @Test
+    public void cancelledRequestIgnoresResponse() throws IOException, InterruptedException {
+        IoSession session = mock(IoSession.class);
+        NioLogger logger = new NioLogger("ALL");
+        RequestResponseManagerImpl impl = new RequestResponseManagerImpl(session, logger, 1);
+
+        WaitableResponseHandler responseHandler = new WaitableResponseHandler();
+        long correlationId = impl.sendRequest(new byte[0], responseHandler);
+        assertTrue(impl.cancelRequest(correlationId));
+        assertFalse(impl.cancelRequest(correlationId));
+        assertEquals(0, impl.getOutstandingRequestCount());
+
+        impl.messageReceived(session, new ResponseMessage(correlationId, new byte[0]));
+        Thread.sleep(2); // 2ms > 1ms
+        impl.checkForExpiredRequests();
+
+        assertNull(responseHandler.getResponseType());
+    }
+
+    @Test
+    public void noTimeoutsWhenDisabled() throws IOException, InterruptedException {
+        IoSession session = mock(IoSession.class);
+        NioLogger logger = new NioLogger("ALL");
+        RequestResponseManagerImpl impl = new RequestResponseManagerImpl(session, logger, 0);
+
+        WaitableResponseHandler responseHandler = new WaitableResponseHandler();
+        impl.sendRequest(new byte[0], responseHandler);
+        Thread.sleep(2);
+        impl.checkForExpiredRequests();
+
+        assertNull(responseHandler.getResponseType());
+        assertEquals(1, impl.getOutstandingRequestCount());
+    }
+
     private static class WaitableResponseHandler implements RequestResponseManager.ResponseHandler {
         private CountDownLatch latch = new CountDownLatch(1);
 
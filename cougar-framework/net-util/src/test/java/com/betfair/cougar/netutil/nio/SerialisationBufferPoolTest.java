@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+
+/**
+ *
+ */
+public class SerialisationBufferPoolTest {
+
+    @Test
+    public void roundsUpToSizeClass() {
+        SerialisationBufferPool pool = new SerialisationBufferPool(null, 64, 1024, 4096);
+        assertEquals(64, pool.acquire(1).length);
+        assertEquals(64, pool.acquire(64).length);
+        assertEquals(128, pool.acquire(65).length);
+        assertEquals(1024, pool.acquire(1000).length);
+        // bigger than the largest class is allocated exactly
+        assertEquals(1025, pool.acquire(1025).length);
+        assertEquals(1, pool.getOversizeRequests());
+        assertEquals(4, pool.getMisses());
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        SerialisationBufferPool pool = new SerialisationBufferPool(null, 64, 1024, 4096);
+        byte[] first = pool.acquire(100);
+        pool.release(first);
+        assertEquals(128, pool.getRetainedBytes());
+
+        assertSame(first, pool.acquire(128));
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getRetainedBytes());
+        // different size class doesn't get it
+        pool.release(first);
+        assertNotSame(first, pool.acquire(64));
+    }
+
+    @Test
+    public void capsRetainedBytes() {
+        SerialisationBufferPool pool = new SerialisationBufferPool(null, 64, 1024, 1024);
+        pool.release(new byte[1024]);
+        pool.release(new byte[1024]);
+        // not a size class
+        pool.release(new byte[100]);
+        assertEquals(1024, pool.getRetainedBytes());
+        assertEquals(1, pool.getDiscards());
+    }
+
+    @Test
+    public void streamReturnsArraysToPool() {
+        SerialisationBufferPool pool = new SerialisationBufferPool(null, 64, 1024, 4096);
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(pool);
+        out.write(new byte[50], 0, 50);
+        // growing hands the smaller array back
+        out.write(new byte[50], 0, 50);
+        assertEquals(64, pool.getRetainedBytes());
+        assertEquals(100, out.size());
+
+        ByteBuffer bb = out.detachPayloadBuffer();
+        assertEquals(100, bb.remaining());
+        assertEquals(0, out.size());
+        bb.release();
+        assertEquals(64 + 128, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void unpooledStream() {
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(null);
+        out.write("hello".getBytes(), 0, 5);
+        ByteBuffer bb = out.detachPayloadBuffer();
+        byte[] read = new byte[bb.remaining()];
+        bb.get(read);
+        assertEquals("hello", new String(read));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio;
+
+import com.betfair.cougar.netutil.nio.message.KeepAliveMessage;
+import com.betfair.cougar.netutil.nio.message.RequestMessage;
+import org.apache.mina.common.IoFilter;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.support.DefaultWriteFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ */
+public class WriteCoalescerTest {
+
+    private IoSession session;
+    private IoFilter.NextFilter nextFilter;
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void before() {
+        session = mock(IoSession.class);
+        nextFilter = mock(IoFilter.NextFilter.class);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void after() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void flushesWhenMaxBytesReached() {
+        WriteCoalescer coalescer = new WriteCoalescer(session, 10, 10000000, scheduler);
+        coalescer.add(nextFilter, writeRequest(new RequestMessage(1L, new byte[5])), 5);
+        verify(nextFilter, never()).filterWrite(any(IoSession.class), any(IoFilter.WriteRequest.class));
+
+        coalescer.add(nextFilter, writeRequest(new RequestMessage(2L, new byte[5])), 5);
+        ArgumentCaptor<IoFilter.WriteRequest> captor = ArgumentCaptor.forClass(IoFilter.WriteRequest.class);
+        verify(nextFilter, times(1)).filterWrite(same(session), captor.capture());
+        assertEquals(2, ((WriteCoalescer.Batch) captor.getValue().getMessage()).getRequests().size());
+    }
+
+    @Test
+    public void flushesAfterLinger() throws Exception {
+        WriteCoalescer coalescer = new WriteCoalescer(session, 1000, 100, scheduler);
+        IoFilter.WriteRequest request = writeRequest(new RequestMessage(1L, new byte[5]));
+        coalescer.add(nextFilter, request, 5);
+
+        verify(nextFilter, timeout(1000)).filterWrite(session, request);
+    }
+
+    @Test
+    public void batchCompletionCompletesEachWrite() {
+        WriteCoalescer coalescer = new WriteCoalescer(session, 10, 10000000, scheduler);
+        IoFilter.WriteRequest first = writeRequest(new RequestMessage(1L, new byte[5]));
+        IoFilter.WriteRequest second = writeRequest(new RequestMessage(2L, new byte[5]));
+        coalescer.add(nextFilter, first, 5);
+        coalescer.add(nextFilter, second, 5);
+
+        ArgumentCaptor<IoFilter.WriteRequest> captor = ArgumentCaptor.forClass(IoFilter.WriteRequest.class);
+        verify(nextFilter).filterWrite(same(session), captor.capture());
+        captor.getValue().getFuture().setWritten(true);
+
+        assertTrue(first.getFuture().isWritten());
+        assertTrue(second.getFuture().isWritten());
+    }
+
+    @Test
+    public void protocolFlushesPendingBeforeOtherMessages() throws Exception {
+        CougarProtocol protocol = CougarProtocol.getServerInstance(new NioLogger("NONE"), 5, 10, null, false, false);
+        protocol.setWriteCoalescing(1000, 10000000, scheduler);
+        when(session.getAttribute(WriteCoalescer.SESSION_KEY)).thenReturn(new WriteCoalescer(session, 1000, 10000000, scheduler));
+
+        IoFilter.WriteRequest request = writeRequest(new RequestMessage(1L, new byte[5]));
+        IoFilter.WriteRequest keepAlive = writeRequest(new KeepAliveMessage());
+        protocol.filterWrite(nextFilter, session, request);
+        verify(nextFilter, never()).filterWrite(any(IoSession.class), any(IoFilter.WriteRequest.class));
+
+        protocol.filterWrite(nextFilter, session, keepAlive);
+        ArgumentCaptor<IoFilter.WriteRequest> captor = ArgumentCaptor.forClass(IoFilter.WriteRequest.class);
+        verify(nextFilter, times(2)).filterWrite(same(session), captor.capture());
+        assertSame(request, captor.getAllValues().get(0));
+        assertSame(keepAlive, captor.getAllValues().get(1));
+    }
+
+    @Test
+    public void flushesImmediatelyOnceSchedulerShutDown() {
+        scheduler.shutdown();
+        WriteCoalescer coalescer = new WriteCoalescer(session, 1000, 10000000, scheduler);
+        IoFilter.WriteRequest request = writeRequest(new RequestMessage(1L, new byte[5]));
+        coalescer.add(nextFilter, request, 5);
+
+        verify(nextFilter).filterWrite(session, request);
+    }
+
+    @Test
+    public void configSharesOneSchedulerUntilDestroyed() {
+        NioConfig config = new NioConfig();
+        assertNull(config.getWriteCoalescingScheduler());
+
+        config.setWriteCoalescingMaxBytes(1000);
+        ScheduledExecutorService shared = config.getWriteCoalescingScheduler();
+        assertSame(shared, config.getWriteCoalescingScheduler());
+
+        config.destroy();
+        assertTrue(shared.isShutdown());
+    }
+
+    private IoFilter.WriteRequest writeRequest(Object message) {
+        return new IoFilter.WriteRequest(message, new DefaultWriteFuture(session));
+    }
+}
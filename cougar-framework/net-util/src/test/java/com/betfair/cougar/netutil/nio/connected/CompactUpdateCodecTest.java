@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.netutil.nio.connected;
+
+import com.betfair.cougar.netutil.nio.CougarProtocol;
+import com.betfair.cougar.netutil.nio.HeapDelta;
+import com.betfair.cougar.netutil.nio.hessian.HessianObjectIOFactory;
+import com.betfair.cougar.transport.api.protocol.CougarObjectInput;
+import com.betfair.cougar.transport.api.protocol.CougarObjectOutput;
+import com.betfair.platform.virtualheap.NodeType;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class CompactUpdateCodecTest {
+
+    private HessianObjectIOFactory ioFactory = new HessianObjectIOFactory();
+
+    @Test
+    public void allActionsRoundTrip() throws Exception {
+        List<Update> updates = new ArrayList<Update>();
+        updates.add(new InitialUpdate(update(
+                new InstallRoot(0, NodeType.OBJECT),
+                new InstallField(0, 1, "name", NodeType.SCALAR),
+                new InstallIndex(0, 200, 3, NodeType.OBJECT),
+                new SetScalar(1, "some value"))));
+        updates.add(update(
+                new RemoveField(0, 1, "name", Collections.<Integer>emptySet()),
+                new RemoveIndex(0, 200, 3, Collections.<Integer>emptySet()),
+                new RemoveChildren(0, Collections.<Integer>emptySet()),
+                new TerminateHeap()));
+
+        List<Update> decoded = CompactUpdateCodec.decode(CompactUpdateCodec.encode(updates));
+
+        assertEquals(updates, decoded);
+        assertTrue(decoded.get(0) instanceof InitialUpdate);
+        assertEquals(Update.class, decoded.get(1).getClass());
+    }
+
+    @Test
+    public void scalarsRoundTripWithTheirTypes() throws Exception {
+        Object[] values = new Object[] { null, true, false, 0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 5L, Long.MIN_VALUE,
+                1.5d, Double.NaN, 2.5f, "", "héllo", (byte) -3, (short) 300, 'x', new Date(1234567890L) };
+        List<UpdateAction> actions = new ArrayList<UpdateAction>();
+        for (int i = 0; i < values.length; i++) {
+            actions.add(new SetScalar(i, values[i]));
+        }
+        List<Update> updates = Collections.singletonList(update(actions.toArray(new UpdateAction[actions.size()])));
+
+        List<Update> decoded = CompactUpdateCodec.decode(CompactUpdateCodec.encode(updates));
+
+        assertEquals(updates, decoded);
+        List<UpdateAction> decodedActions = decoded.get(0).getActions();
+        for (int i = 0; i < values.length; i++) {
+            Object value = ((com.betfair.platform.virtualheap.updates.SetScalar) decodedActions.get(i).getHeapRepresentation()).getValue();
+            if (values[i] != null) {
+                assertEquals(values[i].getClass(), value.getClass());
+            }
+        }
+    }
+
+    @Test
+    public void enumScalarsWrittenAsNames() throws Exception {
+        List<Update> updates = Collections.singletonList(update(new SetScalar(1, NodeType.SCALAR)));
+
+        List<Update> decoded = CompactUpdateCodec.decode(CompactUpdateCodec.encode(updates));
+
+        assertEquals(Collections.singletonList(update(new SetScalar(1, "SCALAR"))), decoded);
+    }
+
+    @Test
+    public void heapDeltaRoundTripsAtEveryProtocolVersion() throws Exception {
+        for (byte v = CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MIN_SUPPORTED; v <= CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED; v++) {
+            HeapDelta delta = new HeapDelta(7, 12, Collections.singletonList(update(new SetScalar(3, 42), new SetScalar(4, "x"))));
+
+            HeapDelta decoded = (HeapDelta) read(write(delta, v), v);
+
+            assertEquals("protocol version " + v, 7, decoded.getHeapId());
+            assertEquals("protocol version " + v, 12, decoded.getUpdateId());
+            assertEquals("protocol version " + v, delta.getUpdates(), decoded.getUpdates());
+        }
+    }
+
+    @Test
+    public void conflatedHeapDeltaKeepsItsRange() throws Exception {
+        byte v = CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS;
+        HeapDelta delta = new HeapDelta(7, 10, 12, Collections.singletonList(update(new SetScalar(3, 42))));
+
+        HeapDelta decoded = (HeapDelta) read(write(delta, v), v);
+
+        assertTrue(decoded.isConflated());
+        assertEquals(10, decoded.getFirstUpdateId());
+        assertEquals(12, decoded.getUpdateId());
+    }
+
+    @Test
+    public void smallUpdatesAreSmallerThanWithHessian() throws Exception {
+        HeapDelta delta = new HeapDelta(7, 12, Collections.singletonList(update(new SetScalar(3, 42))));
+
+        int hessianSize = write(delta, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_HEAP_RESUMPTION).length;
+        int compactSize = write(delta, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS).length;
+
+        assertTrue("compact: " + compactSize + ", hessian: " + hessianSize, compactSize < hessianSize);
+    }
+
+    private Update update(UpdateAction... actions) {
+        Update u = new Update();
+        u.setActions(new ArrayList<UpdateAction>(Arrays.asList(actions)));
+        return u;
+    }
+
+    private byte[] write(Object o, byte protocolVersion) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CougarObjectOutput out = ioFactory.newCougarObjectOutput(baos, protocolVersion);
+        out.writeObject(o);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private Object read(byte[] bytes, byte protocolVersion) throws Exception {
+        CougarObjectInput in = ioFactory.newCougarObjectInput(new ByteArrayInputStream(bytes), protocolVersion);
+        return in.readObject();
+    }
+}
@@ -43,6 +43,7 @@ import com.betfair.cougar.marshalling.impl.RandomException;
 import com.betfair.cougar.marshalling.impl.SimpleApplicationException;
 import com.betfair.cougar.marshalling.impl.SimpleExecutionContext;
 import com.betfair.cougar.marshalling.impl.SimpleGeoLocationDetails;
+import com.betfair.cougar.marshalling.api.socket.OperationHeader;
 import com.betfair.cougar.netutil.nio.CougarProtocol;
 import com.betfair.cougar.util.RequestUUIDImpl;
 import com.betfair.cougar.util.UUIDGeneratorImpl;
@@ -403,14 +404,63 @@ public class SocketRMIMarshallerTest {
         Mockito.when(geoIpLocator.getGeoLocation("10.20.30.40", RemoteAddressUtils.parse("10.20.30.40", resolvedAddresses), null)).thenReturn(ctx.getLocation());
         CougarObjectInput in = ioFactory.newCougarObjectInput(new ByteArrayInputStream(outputStream.toByteArray()), protocolVersion);
         ExecutionContextWithTokens actualContext = cut.readExecutionContext(in, "10.20.30.40", new X509Certificate[0], 0, protocolVersion);
-        OperationKey actualKey = cut.readOperationKey(in);
-        Object[] actualArgs = cut.readArgs(params, in);
+        OperationHeader header = cut.readOperationHeader(in, protocolVersion);
+        OperationKey actualKey = header.getOperationKey();
+        Object[] actualArgs = ArgumentMatcher.getArgumentValues(ArgumentMatcher.getArgumentIndexes(params, header.getArgNames()), cut.readArgValues(in));
 
         assertNotNull(actualContext);
         assertEquals(key, actualKey);
         assertArrayEquals(args, actualArgs);
     }
 
+    @Test
+    public void testOperationHeaderIds() throws IOException {
+        final OperationKey key = new OperationKey(new ServiceVersion("v1.0"), "UnitTestService", "myUnitTestMethod");
+        final Parameter[] params = new Parameter[] {
+            new Parameter("param1", new ParameterType(String.class, null), true)
+        };
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        CougarObjectOutput cougarObjectOutput = ioFactory.newCougarObjectOutput(outputStream, protocolVersion);
+        cut.writeOperationHeader(key, params, 7, true, cougarObjectOutput, protocolVersion);
+        cut.writeOperationHeader(key, params, 7, false, cougarObjectOutput, protocolVersion);
+        cut.writeOperationHeader(key, params, OperationHeader.NO_OPERATION_ID, false, cougarObjectOutput, protocolVersion);
+        cougarObjectOutput.flush();
+        cougarObjectOutput.close();
+
+        CougarObjectInput in = ioFactory.newCougarObjectInput(new ByteArrayInputStream(outputStream.toByteArray()), protocolVersion);
+        OperationHeader definition = cut.readOperationHeader(in, protocolVersion);
+        OperationHeader reference = cut.readOperationHeader(in, protocolVersion);
+        OperationHeader noId = cut.readOperationHeader(in, protocolVersion);
+
+        assertEquals(key, definition.getOperationKey());
+        assertArrayEquals(new String[] { "param1" }, definition.getArgNames());
+        assertEquals(key, noId.getOperationKey());
+        assertEquals(OperationHeader.NO_OPERATION_ID, noId.getOperationId());
+        if (protocolVersion >= CougarProtocol.TRANSPORT_PROTOCOL_VERSION_OPERATION_IDS) {
+            assertEquals(7, definition.getOperationId());
+            assertTrue(reference.isReference());
+            assertEquals(7, reference.getOperationId());
+        }
+        else {
+            // older versions always carry the full operation key
+            assertEquals(OperationHeader.NO_OPERATION_ID, definition.getOperationId());
+            assertEquals(key, reference.getOperationKey());
+        }
+    }
+
+    @Test
+    public void testArgumentIndexesOutOfOrder() {
+        Parameter[] expected = new Parameter[] {
+            new Parameter("a", new ParameterType(String.class, null), true),
+            new Parameter("b", new ParameterType(String.class, null), false),
+            new Parameter("c", new ParameterType(String.class, null), false)
+        };
+        int[] indexes = ArgumentMatcher.getArgumentIndexes(expected, new String[] { "c", "a", "d" });
+        assertArrayEquals(new int[] { 1, -1, 0 }, indexes);
+        assertArrayEquals(new Object[] { "A", null, "C" }, ArgumentMatcher.getArgumentValues(indexes, new Object[] { "C", "A", "D" }));
+    }
+
     @Test
     public void testResponseMarshallingWithReturnedValue() throws IOException {
         ParameterType resultType = new ParameterType(String.class, null);
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.transport.nio;
+
+import com.betfair.cougar.util.jmx.Exportable;
+import com.betfair.cougar.util.jmx.JMXControl;
+import org.apache.mina.common.IoSession;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of rpc requests the server will have in flight at any one time, so that under overload requests
+ * are turned away quickly rather than queueing up behind each other until they all time out.
+ * <p/>
+ * The limit adapts using AIMD: whilst the time requests spend in the server stays close to the best seen recently the
+ * limit grows by roughly one per limit's worth of completions, and when it rises beyond <code>latencyTolerance</code>
+ * times that the limit is cut by <code>backoffRatio</code> (at most once per window).
+ * <p/>
+ * Once the server is more than half full, a single session may not hold more than its fair share (the limit divided
+ * by the number of open sessions), so one busy client can't starve the others.
+ */
+@ManagedResource
+public class AdmissionController implements Exportable {
+
+    private static final String SESSION_STATE_ATTR = AdmissionController.class.getName() + ".SESSION_STATE";
+
+    private volatile boolean enabled;
+    private volatile int minLimit = 8;
+    private volatile int maxLimit = 1000;
+    private volatile double backoffRatio = 0.9;
+    private volatile double latencyTolerance = 2.0;
+    private volatile long windowNanos = TimeUnit.SECONDS.toNanos(1);
+
+    // limit state, guarded by this
+    private double limit = 100;
+    private long baselineNanos;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private long windowStartNanos = System.nanoTime();
+    private long lastDecreaseNanos;
+
+    private volatile int currentLimit = 100;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicInteger openSessions = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong rejectedForFairness = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalTimeInServerNanos = new AtomicLong();
+
+    /**
+     * Attempts to admit a request from the given session.
+     * @return a permit which must be released once the response has been written, or null if the request should be
+     * rejected
+     */
+    public Permit tryAcquire(IoSession session) {
+        int limit = currentLimit;
+        SessionState state = (SessionState) session.getAttribute(SESSION_STATE_ATTR);
+
+        int nowInflight = inflight.incrementAndGet();
+        if (nowInflight > limit) {
+            inflight.decrementAndGet();
+            rejected.incrementAndGet();
+            return null;
+        }
+        if (state != null) {
+            int sessionInflight = state.inflight.incrementAndGet();
+            if (nowInflight > limit / 2 && sessionInflight > fairShare(limit)) {
+                state.inflight.decrementAndGet();
+                inflight.decrementAndGet();
+                rejected.incrementAndGet();
+                rejectedForFairness.incrementAndGet();
+                return null;
+            }
+        }
+        admitted.incrementAndGet();
+        return new Permit(state, nowInflight);
+    }
+
+    private int fairShare(int limit) {
+        return Math.max(1, limit / Math.max(1, openSessions.get()));
+    }
+
+    public void sessionOpened(IoSession session) {
+        session.setAttribute(SESSION_STATE_ATTR, new SessionState());
+        openSessions.incrementAndGet();
+    }
+
+    /**
+     * Returns the capacity held by a closed session's outstanding requests, whose responses may never be written.
+     */
+    public void sessionClosed(IoSession session) {
+        SessionState state = (SessionState) session.removeAttribute(SESSION_STATE_ATTR);
+        if (state != null) {
+            openSessions.decrementAndGet();
+            synchronized (state) {
+                state.closed = true;
+                inflight.addAndGet(-state.inflight.get());
+            }
+        }
+    }
+
+    private void onComplete(SessionState state, int inflightAtAdmission, long timeInServerNanos) {
+        if (state != null) {
+            synchronized (state) {
+                state.inflight.decrementAndGet();
+                if (!state.closed) {
+                    inflight.decrementAndGet();
+                }
+            }
+        }
+        else {
+            inflight.decrementAndGet();
+        }
+        completed.incrementAndGet();
+        totalTimeInServerNanos.addAndGet(timeInServerNanos);
+        updateLimit(inflightAtAdmission, timeInServerNanos, System.nanoTime());
+    }
+
+    // package private for testing
+    synchronized void updateLimit(int inflightAtAdmission, long sampleNanos, long now) {
+        if (sampleNanos < windowMinNanos) {
+            windowMinNanos = sampleNanos;
+        }
+        if (now - windowStartNanos >= windowNanos) {
+            // let the baseline drift upwards slowly so a permanent change in service time doesn't pin the limit down
+            if (baselineNanos == 0 || windowMinNanos < baselineNanos) {
+                baselineNanos = windowMinNanos;
+            }
+            else {
+                baselineNanos += (windowMinNanos - baselineNanos) / 20;
+            }
+            windowMinNanos = Long.MAX_VALUE;
+            windowStartNanos = now;
+        }
+
+        long baseline = baselineNanos == 0 ? windowMinNanos : baselineNanos;
+        if (sampleNanos > baseline * latencyTolerance) {
+            if (now - lastDecreaseNanos >= windowNanos) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecreaseNanos = now;
+            }
+        }
+        else if (inflightAtAdmission * 2 >= (int) limit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        currentLimit = (int) limit;
+    }
+
+    /**
+     * Exports this service as an MBean, if the JMXControl is available
+     */
+    @Override
+    public void export(JMXControl jmxControl) {
+        if (jmxControl != null) {
+            jmxControl.registerMBean("CoUGAR.socket.transport:name=admissionControl", this);
+        }
+    }
+
+    public class Permit implements Runnable {
+        private final SessionState state;
+        private final int inflightAtAdmission;
+        private final long admittedAt = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(SessionState state, int inflightAtAdmission) {
+            this.state = state;
+            this.inflightAtAdmission = inflightAtAdmission;
+        }
+
+        /**
+         * Releases this permit, only the first call has any effect.
+         */
+        @Override
+        public void run() {
+            if (released.compareAndSet(false, true)) {
+                onComplete(state, inflightAtAdmission, System.nanoTime() - admittedAt);
+            }
+        }
+    }
+
+    private static class SessionState {
+        private final AtomicInteger inflight = new AtomicInteger();
+        // guarded by this
+        private boolean closed;
+    }
+
+    @ManagedAttribute
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @ManagedAttribute
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    @ManagedAttribute
+    public void setMinLimit(int minLimit) {
+        if (minLimit < 1) {
+            throw new IllegalArgumentException("minLimit must be at least 1");
+        }
+        this.minLimit = minLimit;
+    }
+
+    @ManagedAttribute
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    @ManagedAttribute
+    public void setMaxLimit(int maxLimit) {
+        if (maxLimit < 1) {
+            throw new IllegalArgumentException("maxLimit must be at least 1");
+        }
+        this.maxLimit = maxLimit;
+    }
+
+    public synchronized void setInitialLimit(int initialLimit) {
+        if (initialLimit < 1) {
+            throw new IllegalArgumentException("initialLimit must be at least 1");
+        }
+        limit = initialLimit;
+        currentLimit = initialLimit;
+    }
+
+    @ManagedAttribute
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    @ManagedAttribute
+    public void setBackoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+        }
+        this.backoffRatio = backoffRatio;
+    }
+
+    @ManagedAttribute
+    public double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    @ManagedAttribute
+    public void setLatencyTolerance(double latencyTolerance) {
+        if (latencyTolerance < 1) {
+            throw new IllegalArgumentException("latencyTolerance must be at least 1");
+        }
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    @ManagedAttribute
+    public long getWindowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(windowNanos);
+    }
+
+    public void setWindowMillis(long windowMillis) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    @ManagedAttribute
+    public int getCurrentLimit() {
+        return currentLimit;
+    }
+
+    @ManagedAttribute
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    @ManagedAttribute
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    @ManagedAttribute
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @ManagedAttribute
+    public long getRejectedForFairness() {
+        return rejectedForFairness.get();
+    }
+
+    @ManagedAttribute
+    public double getAverageTimeInServerMillis() {
+        long count = completed.get();
+        return count == 0 ? 0 : (double) totalTimeInServerNanos.get() / count / 1000000;
+    }
+}
@@ -100,6 +100,7 @@ public class ExecutionVenueNioServer extends AbstractRegisterableTransport {
 
             SocketAcceptorConfig config = socketAcceptor.getDefaultConfig();
             nioConfig.configureSocketAcceptorConfig(config);
+            serverHandler.setSerialisationBufferPool(nioConfig.getSerialisationBufferPool());
             socketAcceptor.bind(nioConfig.getServerSocketAddress(), serverHandler, config);
 
             socketAddress = (InetSocketAddress) socketAcceptor.getManagedServiceAddresses().iterator().next();
@@ -16,6 +16,8 @@
 
 package com.betfair.cougar.transport.nio;
 
+import com.betfair.cougar.api.fault.ServerFaultCode;
+import com.betfair.cougar.core.api.exception.CougarServiceException;
 import com.betfair.cougar.netutil.nio.*;
 import com.betfair.cougar.netutil.nio.message.EventMessage;
 import com.betfair.cougar.netutil.nio.message.RequestMessage;
@@ -40,7 +42,6 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.List;
@@ -69,6 +70,8 @@ public class ExecutionVenueServerHandler extends IoHandlerAdapter implements Exp
     private final CougarObjectIOFactory objectIOFactory;
     private List<HandlerListener> listeners = new CopyOnWriteArrayList<HandlerListener>();
     private final ConcurrentHashMap<IoSession, String> sessions = new ConcurrentHashMap<IoSession, String>();
+    private SerialisationBufferPool serialisationBufferPool;
+    private AdmissionController admissionController;
 
     public void addListener(HandlerListener listener) {
         listeners.add(listener);
@@ -91,30 +94,59 @@ public class ExecutionVenueServerHandler extends IoHandlerAdapter implements Exp
     @Override
     public void messageReceived(IoSession session, Object message) throws Exception {
         if (message instanceof ResponseMessage) {
-            ((IoHandler) session.getAttribute(RequestResponseManager.SESSION_KEY)).messageReceived(session, message);
+            try {
+                ((IoHandler) session.getAttribute(RequestResponseManager.SESSION_KEY)).messageReceived(session, message);
+            }
+            finally {
+                ((ResponseMessage) message).release();
+            }
         }
         else if (message instanceof RequestMessage) {
             RequestMessage req = (RequestMessage) message;
 
-            final CougarObjectOutput out = objectIOFactory.newCougarObjectOutput(new ByteArrayOutputStreamWithIoSession(session, req.getCorrelationId()), CougarProtocol.getProtocolVersion(session));
-            final CougarObjectInput in = objectIOFactory.newCougarObjectInput(new ByteArrayInputStream(req.getPayload()), CougarProtocol.getProtocolVersion(session));
-            final String remoteAddress = ((InetSocketAddress) session.getRemoteAddress()).getAddress().getHostAddress();
-            final SocketTransportCommandImpl command = new SocketTransportRPCCommandImpl(in, out, remoteAddress, session);
-
-            requestsReceived.incrementAndGet();
-            processor.process(command);
+            // the command processor reads the whole request before returning, so we can release the payload after
+            try {
+                final CougarObjectOutput out = objectIOFactory.newCougarObjectOutput(new ByteArrayOutputStreamWithIoSession(session, req.getCorrelationId(), serialisationBufferPool), CougarProtocol.getProtocolVersion(session));
+                final CougarObjectInput in = objectIOFactory.newCougarObjectInput(req.getPayloadInputStream(), CougarProtocol.getProtocolVersion(session));
+                final String remoteAddress = ((InetSocketAddress) session.getRemoteAddress()).getAddress().getHostAddress();
+
+                requestsReceived.incrementAndGet();
+                AdmissionController admissionController = this.admissionController;
+                if (admissionController != null && admissionController.isEnabled()) {
+                    AdmissionController.Permit permit = admissionController.tryAcquire(session);
+                    if (permit == null) {
+                        // answer straight away from the io thread, rather than queueing work we can't keep up with
+                        ((SocketTransportCommandProcessor) processor).rejectCommand(new SocketTransportRPCCommandImpl(in, out, remoteAddress, session),
+                                new CougarServiceException(ServerFaultCode.RemoteCougarCommunicationFailure, "Server overloaded, request rejected"));
+                        sessionLogger.log(ALL, session, "ExecutionVenueServerHandler - Message %s rejected by admission control", req.getCorrelationId());
+                        return;
+                    }
+                    processor.process(new SocketTransportRPCCommandImpl(in, out, remoteAddress, session, permit));
+                }
+                else {
+                    processor.process(new SocketTransportRPCCommandImpl(in, out, remoteAddress, session));
+                }
+            }
+            finally {
+                req.release();
+            }
 
             sessionLogger.log(ALL, session, "ExecutionVenueServerHandler - Message %s processed", req.getCorrelationId());
         }
         else if (message instanceof EventMessage) {
             EventMessage em = (EventMessage) message;
 
-            final CougarObjectInput in = objectIOFactory.newCougarObjectInput(new ByteArrayInputStream(em.getPayload()), CougarProtocol.getProtocolVersion(session));
-            final String remoteAddress = ((InetSocketAddress) session.getRemoteAddress()).getAddress().getHostAddress();
-            final SocketTransportCommandImpl command = new SocketTransportCommandImpl(in, remoteAddress, session);
-
-            eventsReceived.incrementAndGet();
-            processor.process(command);
+            try {
+                final CougarObjectInput in = objectIOFactory.newCougarObjectInput(em.getPayloadInputStream(), CougarProtocol.getProtocolVersion(session));
+                final String remoteAddress = ((InetSocketAddress) session.getRemoteAddress()).getAddress().getHostAddress();
+                final SocketTransportCommandImpl command = new SocketTransportCommandImpl(in, remoteAddress, session);
+
+                eventsReceived.incrementAndGet();
+                processor.process(command);
+            }
+            finally {
+                em.release();
+            }
         } else {
             LOG.warn("ExecutionVenueServerHandler - Received unexpected message type: " + message + " - closing session");
             sessionLogger.log(NioLogger.LoggingLevel.SESSION, session, "ExecutionVenueServerHandler - Received unexpected message type: %s - closing session", message);
@@ -129,6 +161,9 @@ public class ExecutionVenueServerHandler extends IoHandlerAdapter implements Exp
 
         sessionsClosed.incrementAndGet();
         sessions.remove(session);
+        if (admissionController != null) {
+            admissionController.sessionClosed(session);
+        }
         sessionLogger.log(SESSION, session, "ExecutionVenueServerHandler: Session closed");
 
         for (HandlerListener listener : listeners) {
@@ -142,6 +177,9 @@ public class ExecutionVenueServerHandler extends IoHandlerAdapter implements Exp
 
         sessionsOpened.incrementAndGet();
         sessions.put(session, "");
+        if (admissionController != null) {
+            admissionController.sessionOpened(session);
+        }
         sessionLogger.log(SESSION, session, "ExecutionVenueServerHandler: Session opened");
 
         for (HandlerListener listener : listeners) {
@@ -166,6 +204,15 @@ public class ExecutionVenueServerHandler extends IoHandlerAdapter implements Exp
         session.close();
     }
 
+    public void setSerialisationBufferPool(SerialisationBufferPool serialisationBufferPool) {
+        this.serialisationBufferPool = serialisationBufferPool;
+    }
+
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+        admissionController.export(sessionLogger.getJmxControl());
+    }
+
     public void notify(SocketBindingDescriptor bindingDescriptor) {
         processor.bind(bindingDescriptor);
     }
@@ -25,6 +25,7 @@ import com.betfair.cougar.core.api.ev.OperationDefinition;
 import com.betfair.cougar.core.api.ev.Subscription;
 import com.betfair.cougar.core.api.exception.CougarFrameworkException;
 import com.betfair.cougar.core.api.logging.EventLogger;
+import com.betfair.cougar.core.api.transcription.TranscribableParams;
 import com.betfair.cougar.core.impl.logging.ConnectedObjectLogEvent;
 import com.betfair.cougar.logging.CougarLogger;
 import com.betfair.cougar.logging.CougarLoggingUtils;
@@ -32,24 +33,33 @@ import com.betfair.cougar.netutil.nio.*;
 import com.betfair.cougar.netutil.nio.connected.InitialUpdate;
 import com.betfair.cougar.netutil.nio.connected.TerminateHeap;
 import com.betfair.cougar.netutil.nio.connected.Update;
+import com.betfair.cougar.netutil.nio.connected.UpdateAction;
+import com.betfair.cougar.netutil.nio.message.EventBatchMessage;
 import com.betfair.cougar.netutil.nio.message.EventMessage;
 import com.betfair.cougar.transport.api.protocol.CougarObjectIOFactory;
 import com.betfair.cougar.transport.api.protocol.CougarObjectOutput;
 import com.betfair.cougar.transport.api.protocol.socket.NewHeapSubscription;
 import com.betfair.cougar.util.UUIDGeneratorImpl;
 import com.betfair.platform.virtualheap.Heap;
+import com.betfair.platform.virtualheap.conflate.Conflater;
+import com.betfair.platform.virtualheap.conflate.SimpleConflater;
+import com.betfair.platform.virtualheap.conflate.SmartConflater;
+import com.betfair.platform.virtualheap.updates.UpdateBlock;
 import org.apache.mina.common.IoSession;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
+import java.util.regex.Pattern;
 
 import static com.betfair.cougar.core.api.ev.Subscription.CloseReason.*;
 
@@ -60,25 +70,63 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
 
     private static final AtomicLong heapStateInstanceIdSource = new AtomicLong();
 
+    private static final int DEFAULT_NUM_HEAP_STRIPES = 16;
+
+    private static final String HEAP_RESUMPTIONS_ATTR_NAME = "PooledServerConnectedObjectManager.heapResumptions";
+
     private EventLogger eventLogger;
     private NioLogger nioLogger;
 
-    private BlockingDeque<String> heapsWaitingForUpdate = new LinkedBlockingDeque<String>();
-
-    // mods of these 2 for writes were handled. removals are more problematic.. so let's into a r/w lock over their interactions
-    private ReentrantLock subTermLock = new ReentrantLock();
-    private Map<String, HeapState> heapStates = new HashMap<String, HeapState>();
-    private Map<Long, String> heapUris = new HashMap<Long, String>();
-    private Map<IoSession, Multiset<String>> heapsByClient = new HashMap<IoSession, Multiset<String>>();
+    // heap states are partitioned by heap uri, each stripe has its own lock over the subscription/termination of its heaps
+    // and is always pushed by the same pusher thread
+    private HeapStripe[] stripes = newStripes(DEFAULT_NUM_HEAP_STRIPES);
+    private Map<Long, String> heapUris = new ConcurrentHashMap<Long, String>();
+    // modifications to each multiset are made whilst synchronized on it, see addHeapForSession/removeHeapsForSessionIfEmpty
+    private ConcurrentMap<IoSession, Multiset<String>> heapsByClient = new ConcurrentHashMap<IoSession, Multiset<String>>();
 
     private AtomicLong heapIdGenerator = new AtomicLong(0);
     private CougarObjectIOFactory objectIOFactory;
 
     private int numProcessingThreads;
-    private List<ConnectedObjectPusher> pushers = new ArrayList<ConnectedObjectPusher>();
+    // created up front and kept across stop/start, so nothing queued for push is lost while there's no thread running
+    private volatile List<ConnectedObjectPusher> pushers = new CopyOnWriteArrayList<ConnectedObjectPusher>();
 
     private int maxUpdateActionsPerMessage;
 
+    // conflation of updates for sessions whose write queue has backed up
+    private boolean conflationEnabled;
+    private int conflationThresholdBytes;
+    private long conflationCheckIntervalMillis;
+    private Conflater conflater;
+    private Set<String> heapsWithHeldBackUpdates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private ScheduledExecutorService conflationChecker;
+    private final AtomicLong conflatedUpdateCount = new AtomicLong();
+    private final AtomicLong conflatedDeltaCount = new AtomicLong();
+    // sharing of initial heap state between subscriptions
+    private final AtomicLong builtSnapshotCount = new AtomicLong();
+    private final AtomicLong sharedSnapshotCount = new AtomicLong();
+    private final AtomicLong sharedSnapshotSerialisationCount = new AtomicLong();
+
+    // heap ids are only meaningful to a client for the lifetime of this instance
+    private final long epoch = new Random().nextLong();
+    private int resumptionBufferSize;
+    private final AtomicLong resumedSubscriptionCount = new AtomicLong();
+    private final AtomicLong resumedDeltaCount = new AtomicLong();
+
+    // packing of events from several heaps for the same session into a single frame
+    private long eventBatchWindowMillis;
+    private int eventBatchMaxBytes = 65536;
+    private ConcurrentMap<IoSession, EventBatch> eventBatches = new ConcurrentHashMap<IoSession, EventBatch>();
+    private volatile ScheduledExecutorService eventBatchFlusher;
+    private final AtomicLong eventBatchesSent = new AtomicLong();
+    private final AtomicLong batchedEventCount = new AtomicLong();
+
+    // publication of busy heaps at most once per interval, with the updates in between conflated
+    private Map<Pattern, Long> publicationIntervals = new LinkedHashMap<Pattern, Long>();
+    private volatile ScheduledExecutorService publicationTicker;
+    private final AtomicLong receivedUpdateCount = new AtomicLong();
+    private final AtomicLong publishedUpdateCount = new AtomicLong();
+
     private UUIDGenerator uuidGenerator = new UUIDGeneratorImpl();
 
     private Thread shutdownHook = new Thread(new Runnable() {
@@ -91,7 +139,11 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
 
     // used for testing
     Map<String, HeapState> getHeapStates() {
-        return heapStates;
+        Map<String, HeapState> ret = new HashMap<String, HeapState>();
+        for (HeapStripe stripe : stripes) {
+            ret.putAll(stripe.heapStates);
+        }
+        return ret;
     }
 
     public Map<Long, String> getHeapUris() {
@@ -103,27 +155,63 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
         return heapsByClient;
     }
 
-    BlockingDeque<String> getHeapsWaitingForUpdate() {
-        return heapsWaitingForUpdate;
+    // used for testing
+    boolean hasHeapsWaitingForUpdate() {
+        for (ConnectedObjectPusher pusher : pushers) {
+            if (!pusher.heapsWaitingForUpdate.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     // used for monitoring
     public List<String> getHeapsForSession(IoSession session) {
         List<String> ret = new ArrayList<String>();
-        try {
-            subTermLock.lock();
-            Multiset<String> s = heapsByClient.get(session);
-            if (s != null) {
+        Multiset<String> s = heapsByClient.get(session);
+        if (s != null) {
+            synchronized (s) {
                 ret.addAll(s.keySet());
             }
-        } finally {
-            subTermLock.unlock();
         }
         return ret;
     }
 
     public HeapStateMonitoring getHeapStateForMonitoring(String uri) {
-        return heapStates.get(uri);
+        return getHeapState(uri);
+    }
+
+    private static HeapStripe[] newStripes(int numStripes) {
+        HeapStripe[] ret = new HeapStripe[numStripes];
+        for (int i=0; i<numStripes; i++) {
+            ret[i] = new HeapStripe(i);
+        }
+        return ret;
+    }
+
+    private HeapStripe getStripe(String heapUri) {
+        int h = heapUri.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    private HeapState getHeapState(String heapUri) {
+        return getStripe(heapUri).heapStates.get(heapUri);
+    }
+
+    /**
+     * Each stripe is pinned to a single pusher, so a heap is only ever pushed by one thread.
+     */
+    private ConnectedObjectPusher getPusher(String heapUri) {
+        List<ConnectedObjectPusher> pushers = this.pushers;
+        if (pushers.isEmpty()) {
+            throw new IllegalStateException("No connected object pushers, numProcessingThreads must be set");
+        }
+        return pushers.get(getStripe(heapUri).index % pushers.size());
+    }
+
+    private void queueForPush(String heapUri) {
+        getPusher(heapUri).heapsWaitingForUpdate.add(heapUri);
     }
 
     @Override
@@ -137,6 +225,24 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
 
     public void setNumProcessingThreads(int i) {
         this.numProcessingThreads = i;
+        List<ConnectedObjectPusher> oldPushers = pushers;
+        List<ConnectedObjectPusher> newPushers = new ArrayList<ConnectedObjectPusher>();
+        for (int j = 0; j < i; j++) {
+            newPushers.add(new ConnectedObjectPusher());
+        }
+        pushers = new CopyOnWriteArrayList<ConnectedObjectPusher>(newPushers);
+        // anything already queued moves to whichever pusher its stripe is now pinned to
+        for (ConnectedObjectPusher pusher : oldPushers) {
+            pusher.stop();
+            String uri;
+            while ((uri = pusher.heapsWaitingForUpdate.poll()) != null) {
+                queueForPush(uri);
+            }
+        }
+    }
+
+    public void setNumHeapStripes(int numHeapStripes) {
+        this.stripes = newStripes(numHeapStripes);
     }
 
     public void setEventLogger(EventLogger eventLogger) {
@@ -147,11 +253,145 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
         this.maxUpdateActionsPerMessage = maxUpdateActionsPerMessage;
     }
 
+    public void setConflationEnabled(boolean conflationEnabled) {
+        this.conflationEnabled = conflationEnabled;
+    }
+
+    public void setConflationThresholdBytes(int conflationThresholdBytes) {
+        this.conflationThresholdBytes = conflationThresholdBytes;
+    }
+
+    public void setConflationCheckIntervalMillis(long conflationCheckIntervalMillis) {
+        this.conflationCheckIntervalMillis = conflationCheckIntervalMillis;
+    }
+
+    /**
+     * Valid values are: "none", "simple", "smart" or the fully qualified class name of a virtual heap conflater.
+     * "none" sends all the held back updates in a single delta without conflating them.
+     */
+    public void setConflater(String conflater) {
+        if (conflater.equals("none")) {
+            this.conflater = null;
+        }
+        else if (conflater.equals("simple")) {
+            this.conflater = new SimpleConflater();
+        }
+        else if (conflater.equals("smart")) {
+            this.conflater = new SmartConflater();
+        }
+        else {
+            try {
+                this.conflater = (Conflater) Class.forName(conflater).newInstance();
+            }
+            catch (Exception e) {
+                throw new IllegalStateException("Can't initialise conflater: "+conflater, e);
+            }
+        }
+    }
+
+    /**
+     * The number of recent deltas kept for each heap so clients can resume after reconnecting, 0 disables resumption.
+     */
+    public void setResumptionBufferSize(int resumptionBufferSize) {
+        this.resumptionBufferSize = resumptionBufferSize;
+    }
+
+    /**
+     * How long events for a session may be held back to be packed into a single frame with others for it, 0 disables
+     * batching. Only applies to sessions which have negotiated protocol version 9 or later.
+     */
+    public void setEventBatchWindowMillis(long eventBatchWindowMillis) {
+        this.eventBatchWindowMillis = eventBatchWindowMillis;
+    }
+
+    /**
+     * A session's batch is sent straight away once its events reach this size, rather than waiting out the window.
+     */
+    public void setEventBatchMaxBytes(int eventBatchMaxBytes) {
+        this.eventBatchMaxBytes = eventBatchMaxBytes;
+    }
+
+    /**
+     * Comma separated list of heapUriRegex=intervalMillis. Heaps whose uri matches one of the patterns (the first match
+     * wins) have their updates published at most once per interval, those made in between being conflated into one.
+     */
+    public void setPublicationIntervals(String publicationIntervals) {
+        Map<Pattern, Long> intervals = new LinkedHashMap<Pattern, Long>();
+        if (publicationIntervals != null && !"".equals(publicationIntervals.trim())) {
+            for (String entry : publicationIntervals.split(",")) {
+                int separator = entry.lastIndexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Invalid publication interval: " + entry);
+                }
+                try {
+                    intervals.put(Pattern.compile(entry.substring(0, separator).trim()), Long.parseLong(entry.substring(separator + 1).trim()));
+                }
+                catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Invalid publication interval: " + entry, e);
+                }
+            }
+        }
+        this.publicationIntervals = intervals;
+    }
+
+    private long getPublicationInterval(String heapUri) {
+        for (Map.Entry<Pattern, Long> entry : publicationIntervals.entrySet()) {
+            if (entry.getKey().matcher(heapUri).matches()) {
+                return entry.getValue();
+            }
+        }
+        return 0;
+    }
+
     public void start() {
-        for (int i = 0; i < numProcessingThreads; i++) {
-            ConnectedObjectPusher pusher = new ConnectedObjectPusher();
-            pushers.add(pusher);
-            new Thread(pusher, "ConnectedObjectPusher-" + (i + 1)).start();
+        List<ConnectedObjectPusher> pushers = this.pushers;
+        if (pushers.isEmpty()) {
+            throw new IllegalStateException("No connected object pushers, numProcessingThreads must be set");
+        }
+        for (int i = 0; i < pushers.size(); i++) {
+            pushers.get(i).start("ConnectedObjectPusher-" + (i + 1));
+        }
+        if (conflationEnabled) {
+            conflationChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ConnectedObjectConflationChecker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            // sessions which have caught up won't otherwise get their held back updates until the heap next changes
+            conflationChecker.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (String uri : heapsWithHeldBackUpdates) {
+                        BlockingDeque<String> queue = getPusher(uri).heapsWaitingForUpdate;
+                        if (!queue.contains(uri)) {
+                            queue.add(uri);
+                        }
+                    }
+                }
+            }, conflationCheckIntervalMillis, conflationCheckIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (!publicationIntervals.isEmpty()) {
+            publicationTicker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ConnectedObjectPublicationTicker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        if (eventBatchWindowMillis > 0) {
+            eventBatchFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ConnectedObjectEventBatcher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
         Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
@@ -160,34 +400,75 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
         for (ConnectedObjectPusher pusher : pushers) {
             pusher.stop();
         }
+        if (conflationChecker != null) {
+            conflationChecker.shutdown();
+        }
+        ScheduledExecutorService ticker = publicationTicker;
+        if (ticker != null) {
+            publicationTicker = null;
+            ticker.shutdown();
+        }
 
         Runtime.getRuntime().removeShutdownHook(shutdownHook);
         shutdownHook.run();
+
+        ScheduledExecutorService flusher = eventBatchFlusher;
+        if (flusher != null) {
+            eventBatchFlusher = null;
+            flusher.shutdown();
+            // make sure everyone sees their terminations
+            for (EventBatch batch : eventBatches.values()) {
+                batch.flush();
+            }
+        }
     }
 
     private void terminateAllSubscriptions(Subscription.CloseReason reason) {
-        if (heapsByClient != null) {
-            List<IoSession> sessions;
-            try {
-                subTermLock.lock();
-                // take a copy in case it's being modified as we shutdown
-                sessions = new ArrayList<IoSession>(heapsByClient.keySet());
-            } finally {
-                subTermLock.unlock();
+        // take a copy in case it's being modified as we shutdown
+        List<IoSession> sessions = new ArrayList<IoSession>(heapsByClient.keySet());
+        for (IoSession session : sessions) {
+            terminateSubscriptions(session, reason);
+        }
+    }
+
+    /**
+     * @return whether this is the first time the session has been added for this heap
+     */
+    private boolean addHeapForSession(IoSession session, String heapUri) {
+        while (true) {
+            Multiset<String> heapsForThisClient = heapsByClient.get(session);
+            if (heapsForThisClient == null) {
+                heapsForThisClient = new Multiset<String>();
+                Multiset<String> existing = heapsByClient.putIfAbsent(session, heapsForThisClient);
+                if (existing != null) {
+                    heapsForThisClient = existing;
+                }
+            }
+            synchronized (heapsForThisClient) {
+                // if it's been removed since we got it then go round again and get a live one
+                if (heapsByClient.get(session) == heapsForThisClient) {
+                    boolean first = heapsForThisClient.count(heapUri) == 0;
+                    heapsForThisClient.add(heapUri);
+                    return first;
+                }
             }
+        }
+    }
 
-            for (IoSession session : sessions) {
-                terminateSubscriptions(session, reason);
+    private void removeHeapsForSessionIfEmpty(IoSession session, Multiset<String> heapsForSession) {
+        synchronized (heapsForSession) {
+            if (heapsForSession.isEmpty()) {
+                heapsByClient.remove(session, heapsForSession);
             }
         }
     }
 
-    // note, you must have the subterm lock before calling this method
-    private HeapState processHeapStateCreation(final ConnectedResponse result, final String heapUri) {
-        if (!subTermLock.isHeldByCurrentThread()) {
-            throw new IllegalStateException("You must have the subTermLock before calling this method");
+    // note, you must have the stripe lock before calling this method
+    private HeapState processHeapStateCreation(final ConnectedResponse result, final String heapUri, HeapStripe stripe) {
+        if (!stripe.lock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("You must have the stripe lock before calling this method");
         }
-        final HeapState newState = new HeapState(result.getHeap());
+        final HeapState newState = new HeapState(result.getHeap(), stripe);
         // we're safe to lock this out of normal order as the HeapState isn't visible to other threads until the
         // end of this block. We have to have the lock before we make it visible..
         newState.getUpdateLock().lock();
@@ -197,43 +478,84 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
             @Override
             protected void doUpdate(Update u) {
                 if (u.getActions().size() > 0) {
+                    // any snapshot taken before now no longer reflects the heap
+                    newState.heapChanged();
                     newState.getQueuedChanges().add(new QueuedHeapChange(u));
+                    newState.updateReceived();
+                    receivedUpdateCount.incrementAndGet();
                     // bad luck, we just added the heap and it's just about to get terminated...
-                    if (u.getActions().contains(TerminateHeap.INSTANCE)) {
+                    boolean terminating = u.getActions().contains(TerminateHeap.INSTANCE);
+                    if (terminating) {
                         newState.getQueuedChanges().add(new HeapTermination());
                     }
-                    heapsWaitingForUpdate.add(heapUri);
+                    // terminations never wait for the next publication
+                    if (terminating || newState.getPublicationIntervalMillis() == 0) {
+                        queueForPush(heapUri);
+                    }
+                    else {
+                        schedulePublication(heapUri, newState);
+                    }
                 }
             }
         };
         newState.setHeapListener(listener);
         result.getHeap().addListener(listener, false);
-        heapStates.put(heapUri, newState);
+        stripe.heapStates.put(heapUri, newState);
         heapUris.put(newState.getHeapId(), heapUri);
         return newState;
     }
 
+    /**
+     * Queues the heap for push once its publication interval has passed since it was last published, unless that's
+     * already been arranged.
+     */
+    private void schedulePublication(final String heapUri, final HeapState heapState) {
+        ScheduledExecutorService ticker = publicationTicker;
+        if (ticker == null) {
+            queueForPush(heapUri);
+            return;
+        }
+        if (heapState.claimPublication()) {
+            long delay = heapState.getLastPublicationTime() + heapState.getPublicationIntervalMillis() - System.currentTimeMillis();
+            try {
+                ticker.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        heapState.publicationDue();
+                        queueForPush(heapUri);
+                    }
+                }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                // we're stopping
+                heapState.publicationDue();
+                queueForPush(heapUri);
+            }
+        }
+    }
+
     @Override
     public void addSubscription(final SocketTransportCommandProcessor commandProcessor, final SocketTransportRPCCommand command, final ConnectedResponse result, final OperationDefinition operationDefinition, final ExecutionContextWithTokens context, final LogExtension connectedObjectLogExtension) {
         final String heapUri = result.getHeap().getUri();
+        final HeapStripe stripe = getStripe(heapUri);
         HeapState heapState = null;
         try {
             boolean readyToContinue = false;
 
             while (!readyToContinue) {
                 // only need this lock to modify the heapStates map, we need the state lock to modify the contained state later..
-                subTermLock.lock();
-                heapState = heapStates.get(heapUri);
+                stripe.lock.lock();
+                heapState = stripe.heapStates.get(heapUri);
                 boolean wasNewHeapState = heapState == null;
                 if (wasNewHeapState) {
-                    heapState = processHeapStateCreation(result, heapUri);
+                    heapState = processHeapStateCreation(result, heapUri, stripe);
                     readyToContinue = true;
                 }
                 // for existing heaps we lock in the same way as usual
                 else {
                     // we have to release this lock now so we can get them in the right order, otherwise we could deadlock
                     // this is safe since we know that at this moment in time there is a live heap state for this heapuri
-                    subTermLock.unlock();
+                    stripe.lock.unlock();
 
                     // between these 2 calls one of 3 things can happen:
                     // 1: nothing
@@ -245,18 +567,20 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
 
                     // now get them in the right order
                     heapState.getUpdateLock().lock();
-                    subTermLock.lock();
+                    stripe.lock.lock();
 
 
                     // so, in case 2 above the heap is now not in the map.. in which case we're going to subscribe to something just as it goes..
                     // so, lets do that new state check once more
-                    if (!heapStates.containsKey(heapUri)) {
-                        heapState = processHeapStateCreation(result, heapUri);
+                    HeapState latestState = stripe.heapStates.get(heapUri);
+                    if (latestState == null) {
+                        // we're still holding the lock on the dead heap, which we don't need
+                        heapState.getUpdateLock().unlock();
+                        heapState = processHeapStateCreation(result, heapUri, stripe);
                         readyToContinue = true;
                     }
                     // ok, so it's still there, now we need to check if it's the same one..
                     else {
-                        HeapState latestState = heapStates.get(heapUri);
                         // case 1 above
                         if (latestState.getInstanceId() == heapState.getInstanceId()) {
                             readyToContinue = true;
@@ -265,6 +589,8 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
                         else {
                             // this shouldn't matter anymore as we've got a lock on a dead heap
                             heapState.getUpdateLock().unlock();
+                            // we take the stripe lock again at the top of the loop
+                            stripe.lock.unlock();
                             // reset our check state and go back round until we're happy
                             heapState = latestState;
                         }
@@ -275,70 +601,130 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
             // right, now we've got both locks, in the right order and we've definitely got a heap state which everyone else can also get/has got
 
             final HeapState finalHeapState = heapState;
-            // hmm,
             final Subscription subscription = result.getSubscription();
-            result.getHeap().traverse(new UpdateProducingHeapListener() {
-                @Override
-                protected void doUpdate(Update u) {
-                    boolean updateContainsTermination = u.getActions().contains(TerminateHeap.INSTANCE);
-                    if (updateContainsTermination) {
-                        // note this won't notify this sub, which never got started. the publisher code won't expect a call back for this since
-                        // it's just terminated the heap, which implies it wants to disconnect all clients anyway
-                        terminateSubscriptions(command.getSession(), heapUri, REQUESTED_BY_PUBLISHER);
-                        commandProcessor.writeErrorResponse(command, context, new CougarFrameworkException("Subscription requested for terminated heap: " + heapUri));
-                        return;
-                    }
+            // subscribers arriving before the heap next changes can all share the same initial state
+            HeapSnapshot snapshot = heapState.getSnapshot();
+            if (snapshot != null) {
+                sharedSnapshotCount.incrementAndGet();
+                subscribe(commandProcessor, command, context, connectedObjectLogExtension, heapUri, finalHeapState, subscription, snapshot);
+            }
+            else {
+                final long changeCount = heapState.getChangeCount();
+                result.getHeap().traverse(new UpdateProducingHeapListener() {
+                    @Override
+                    protected void doUpdate(Update u) {
+                        boolean updateContainsTermination = u.getActions().contains(TerminateHeap.INSTANCE);
+                        if (updateContainsTermination) {
+                            // note this won't notify this sub, which never got started. the publisher code won't expect a call back for this since
+                            // it's just terminated the heap, which implies it wants to disconnect all clients anyway
+                            terminateSubscriptions(command.getSession(), heapUri, REQUESTED_BY_PUBLISHER);
+                            commandProcessor.writeErrorResponse(command, context, new CougarFrameworkException("Subscription requested for terminated heap: " + heapUri));
+                            return;
+                        }
 
-                    Multiset<String> heapsForThisClient = heapsByClient.get(command.getSession());
-                    if (heapsForThisClient == null) {
-                        heapsForThisClient = new Multiset<String>();
-                        heapsByClient.put(command.getSession(), heapsForThisClient);
+                        builtSnapshotCount.incrementAndGet();
+                        HeapSnapshot built = new HeapSnapshot(changeCount, new InitialUpdate(u));
+                        finalHeapState.setSnapshot(built);
+                        subscribe(commandProcessor, command, context, connectedObjectLogExtension, heapUri, finalHeapState, subscription, built);
                     }
+                });
+            }
+        } finally {
+            stripe.lock.unlock();
+            assert heapState != null;
+            heapState.getUpdateLock().unlock();
+        }
+    }
 
-                    long heapId = finalHeapState.getHeapId();
+    // note, you must have both the update lock and the stripe lock for the heap before calling this method
+    private void subscribe(final SocketTransportCommandProcessor commandProcessor, final SocketTransportRPCCommand command, ExecutionContextWithTokens context, final LogExtension connectedObjectLogExtension,
+                           final String heapUri, final HeapState heapState, Subscription subscription, HeapSnapshot snapshot) {
+        long heapId = heapState.getHeapId();
 
-                    final String subscriptionId = finalHeapState.addSubscription(connectedObjectLogExtension, subscription, command.getSession());
-                    subscription.addListener(new Subscription.SubscriptionListener() {
-                        @Override
-                        public void subscriptionClosed(Subscription subscription, Subscription.CloseReason reason) {
-                            if (reason == REQUESTED_BY_PUBLISHER) {
-                                PooledServerConnectedObjectManager.this.terminateSubscription(command.getSession(), heapUri, subscriptionId, reason);
-                            }
-                            // log end regardless of the reason
-                            finalHeapState.logSubscriptionEnd(subscriptionId, connectedObjectLogExtension, reason);
-                        }
-                    });
-                    boolean newHeapDefinition = heapsForThisClient.count(heapUri) == 0;
-                    heapsForThisClient.add(heapUri);
+        final String subscriptionId = heapState.addSubscription(connectedObjectLogExtension, subscription, command.getSession());
+        subscription.addListener(new Subscription.SubscriptionListener() {
+            @Override
+            public void subscriptionClosed(Subscription subscription, Subscription.CloseReason reason) {
+                if (reason == REQUESTED_BY_PUBLISHER) {
+                    PooledServerConnectedObjectManager.this.terminateSubscription(command.getSession(), heapUri, subscriptionId, reason);
+                }
+                // log end regardless of the reason
+                heapState.logSubscriptionEnd(subscriptionId, connectedObjectLogExtension, reason);
+            }
+        });
+        boolean newHeapDefinition = addHeapForSession(command.getSession(), heapUri);
+
+        NewHeapSubscription response;
+        long resumeFrom = -1;
+        if (newHeapDefinition) {
+            response = new NewHeapSubscription(heapId, subscriptionId, heapUri);
+            resumeFrom = getResumptionPoint(command.getSession(), heapUri, heapState);
+            response.setResumed(resumeFrom >= 0);
+        } else {
+            response = new NewHeapSubscription(heapId, subscriptionId);
+        }
+        response.setEpoch(epoch);
+
+        // first tell the client about the heap
+        ExecutionResult executionResult = new ExecutionResult(response);
+        boolean successfulResponse = commandProcessor.writeSuccessResponse(command, executionResult);
+        // so if we couldn't send the response it means we know the client isn't going to have a sub response, which means we need to clean up on our
+        // end so we don't get warnings on the client about receiving updates for something it knows nothing about..
+        if (!successfulResponse) {
+            terminateSubscriptions(command.getSession(), heapUri, INTERNAL_ERROR);
+        }
+
+        if (newHeapDefinition) {
+            // then add the sub initialisation to the update queue
+            if (resumeFrom >= 0) {
+                heapState.resumptionPending();
+                heapState.getQueuedChanges().add(new QueuedHeapChange(new QueuedSubscription(command.getSession(), resumeFrom)));
+            }
+            else {
+                heapState.getQueuedChanges().add(new QueuedHeapChange(new QueuedSubscription(command.getSession(), snapshot)));
+            }
+            queueForPush(heapUri);
+        }
+    }
 
-                    NewHeapSubscription response;
-                    if (newHeapDefinition) {
-                        response = new NewHeapSubscription(heapId, subscriptionId, heapUri);
-                    } else {
-                        response = new NewHeapSubscription(heapId, subscriptionId);
-                    }
+    @Override
+    public void resumeHeap(IoSession session, HeapResumption resumption) {
+        if (resumptionBufferSize <= 0) {
+            return;
+        }
+        nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Client would like to resume heap %s from updateId = %s", resumption.getHeapUri(), resumption.getLastUpdateId());
+        getHeapResumptions(session).put(resumption.getHeapUri(), resumption);
+    }
 
-                    // first tell the client about the heap
-                    ExecutionResult executionResult = new ExecutionResult(response);
-                    boolean successfulResponse = commandProcessor.writeSuccessResponse(command, executionResult);
-                    // so if we couldn't send the response it means we know the client isn't going to have a sub response, which means we need to clean up on our
-                    // end so we don't get warnings on the client about receiving updates for something it knows nothing about..
-                    if (!successfulResponse) {
-                        terminateSubscriptions(command.getSession(), heapUri, INTERNAL_ERROR);
-                    }
+    private Map<String, HeapResumption> getHeapResumptions(IoSession session) {
+        synchronized (session) {
+            @SuppressWarnings("unchecked")
+            Map<String, HeapResumption> ret = (Map<String, HeapResumption>) session.getAttribute(HEAP_RESUMPTIONS_ATTR_NAME);
+            if (ret == null) {
+                ret = new ConcurrentHashMap<String, HeapResumption>();
+                session.setAttribute(HEAP_RESUMPTIONS_ATTR_NAME, ret);
+            }
+            return ret;
+        }
+    }
 
-                    if (newHeapDefinition) {
-                        // then add the sub initialisation to the update queue
-                        finalHeapState.getQueuedChanges().add(new QueuedHeapChange(new QueuedSubscription(command.getSession(), new InitialUpdate(u))));
-                        heapsWaitingForUpdate.add(heapUri);
-                    }
-                }
-            });
-        } finally {
-            subTermLock.unlock();
-            assert heapState != null;
-            heapState.getUpdateLock().unlock();
+    /**
+     * Returns the update id the client can be caught up from, or -1 if it needs the full heap state.
+     */
+    // note, you must have the update lock for the heap before calling this method
+    private long getResumptionPoint(IoSession session, String heapUri, HeapState heapState) {
+        if (resumptionBufferSize <= 0 || session.getAttribute(HEAP_RESUMPTIONS_ATTR_NAME) == null) {
+            return -1;
+        }
+        HeapResumption resumption = getHeapResumptions(session).remove(heapUri);
+        if (resumption == null) {
+            return -1;
+        }
+        if (resumption.getEpoch() == epoch && resumption.getHeapId() == heapState.getHeapId() && heapState.canResumeFrom(resumption.getLastUpdateId())) {
+            return resumption.getLastUpdateId();
         }
+        nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Unable to resume heap %s from updateId = %s, sending full heap state", heapUri, resumption.getLastUpdateId());
+        return -1;
     }
 
     @Override
@@ -356,14 +742,12 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
      * Terminates a single subscription to a single heap
      */
     public void terminateSubscription(IoSession session, String heapUri, String subscriptionId, Subscription.CloseReason reason) {
-        Lock heapUpdateLock = null;
+        HeapState state = heapUri != null ? getHeapState(heapUri) : null;
+        if (state != null) {
+            state.getUpdateLock().lock();
+            state.getStripe().lock.lock();
+        }
         try {
-            HeapState state = heapStates.get(heapUri);
-            if (state != null) {
-                heapUpdateLock = state.getUpdateLock();
-                heapUpdateLock.lock();
-            }
-            subTermLock.lock();
 
             if (state != null) {
                 if (!state.isTerminated()) {
@@ -372,7 +756,7 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
                     if (reason == REQUESTED_BY_PUBLISHER || reason == Subscription.CloseReason.REQUESTED_BY_PUBLISHER_ADMINISTRATOR) {
                         try {
                             nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Notifying client that publisher has terminated subscription %s", subscriptionId);
-                            NioUtils.writeEventMessageToSession(session, new TerminateSubscription(state.getHeapId(), subscriptionId, reason.name()), objectIOFactory);
+                            writeEvent(session, new TerminateSubscription(state.getHeapId(), subscriptionId, reason.name()));
                         } catch (Exception e) {
                             // if we can't tell them about it then something more serious has just happened.
                             // the client will likely find out anyway since this will likely mean a dead session
@@ -394,15 +778,15 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
 
             Multiset<String> heapsForSession = heapsByClient.get(session);
             if (heapsForSession != null) {
-                heapsForSession.remove(heapUri);
-                if (heapsForSession.isEmpty()) {
-                    terminateSubscriptions(session, reason);
+                synchronized (heapsForSession) {
+                    heapsForSession.remove(heapUri);
                 }
+                removeHeapsForSessionIfEmpty(session, heapsForSession);
             }
         } finally {
-            subTermLock.unlock();
-            if (heapUpdateLock != null) {
-                heapUpdateLock.unlock();
+            if (state != null) {
+                state.getStripe().lock.unlock();
+                state.getUpdateLock().unlock();
             }
         }
     }
@@ -411,20 +795,18 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
      * Terminates all subscriptions to a given heap from a single session
      */
     private void terminateSubscriptions(IoSession session, String heapUri, Subscription.CloseReason reason) {
-        terminateSubscriptions(session, heapStates.get(heapUri), heapUri, reason);
+        terminateSubscriptions(session, getHeapState(heapUri), heapUri, reason);
     }
 
     /**
      * Terminates all subscriptions to a given heap from a single session
      */
     private void terminateSubscriptions(IoSession session, HeapState state, String heapUri, Subscription.CloseReason reason) {
-        Lock heapUpdateLock = null;
+        if (state != null) {
+            state.getUpdateLock().lock();
+            state.getStripe().lock.lock();
+        }
         try {
-            if (state != null) {
-                heapUpdateLock = state.getUpdateLock();
-                heapUpdateLock.lock();
-            }
-            subTermLock.lock();
 
             if (state != null) {
                 if (!state.isTerminated()) {
@@ -437,16 +819,16 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
 
             Multiset<String> heapsForSession = heapsByClient.get(session);
             if (heapsForSession != null) {
-                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Terminating subscription on %s heaps", heapsForSession.keySet().size());
-                heapsForSession.removeAll(heapUri);
-                if (heapsForSession.isEmpty()) {
-                    terminateSubscriptions(session, reason);
+                synchronized (heapsForSession) {
+                    nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Terminating subscription on %s heaps", heapsForSession.keySet().size());
+                    heapsForSession.removeAll(heapUri);
                 }
+                removeHeapsForSessionIfEmpty(session, heapsForSession);
             }
         } finally {
-            subTermLock.unlock();
-            if (heapUpdateLock != null) {
-                heapUpdateLock.unlock();
+            if (state != null) {
+                state.getStripe().lock.unlock();
+                state.getUpdateLock().unlock();
             }
         }
     }
@@ -455,16 +837,13 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
      * Terminates all subscriptions for a given client
      */
     private void terminateSubscriptions(IoSession session, Subscription.CloseReason reason) {
-        Multiset<String> heapsForThisClient;
-        try {
-            subTermLock.lock();
-            heapsForThisClient = heapsByClient.remove(session);
-        } finally {
-            subTermLock.unlock();
-        }
-
+        Multiset<String> heapsForThisClient = heapsByClient.remove(session);
         if (heapsForThisClient != null) {
-            for (String s : heapsForThisClient.keySet()) {
+            List<String> heapUris;
+            synchronized (heapsForThisClient) {
+                heapUris = new ArrayList<String>(heapsForThisClient.keySet());
+            }
+            for (String s : heapUris) {
                 terminateSubscriptions(session, s, reason);
             }
         }
@@ -474,14 +853,15 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
      * Terminates all subscriptions for a given heap
      */
     private void terminateSubscriptions(String heapUri, Subscription.CloseReason reason) {
-        HeapState state = heapStates.get(heapUri);
+        HeapState state = getHeapState(heapUri);
         if (state != null) {
+            HeapStripe stripe = state.getStripe();
             try {
                 state.getUpdateLock().lock();
-                subTermLock.lock();
+                stripe.lock.lock();
                 // if someone got here first, don't bother doing the work
                 if (!state.isTerminated()) {
-                    heapStates.remove(heapUri);
+                    stripe.heapStates.remove(heapUri);
                     heapUris.remove(state.getHeapId());
                     List<IoSession> sessions = state.getSessions();
                     for (IoSession session : sessions) {
@@ -492,25 +872,29 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
                     state.removeListener();
                 }
             } finally {
-                subTermLock.unlock();
+                stripe.lock.unlock();
                 state.getUpdateLock().unlock();
             }
         }
     }
 
     private class ConnectedObjectPusher implements Runnable {
-        private volatile boolean running = true;
+        // the thread currently pushing, any other thread still running from before a restart exits on its next poll
+        private volatile Thread thread;
+        // only heaps from the stripes pinned to this pusher
+        private final BlockingDeque<String> heapsWaitingForUpdate = new LinkedBlockingDeque<String>();
 
         public void run() {
             try {
-                while (running) {
+                while (thread == Thread.currentThread()) {
                     try {
                         String uri = heapsWaitingForUpdate.pollFirst(1000, TimeUnit.MILLISECONDS);
                         if (uri == null) {
                             continue;
                         }
-                        HeapState heapState = heapStates.get(uri);
+                        HeapState heapState = getHeapState(uri);
                         if (heapState == null) {
+                            heapsWithHeldBackUpdates.remove(uri);
                             continue;
                         }
                         Lock lock = heapState.getUpdateLock();
@@ -521,6 +905,8 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
                                 logger.log(Level.SEVERE, "heapState.isTerminated()");
                                 continue;
                             }
+                            // sessions which have caught up get everything we held back for them before anything new
+                            flushHeldBackUpdates(uri, heapState, false);
                             // cleanly dequeue everything waiting in the queue
                             List<QueuedHeapChange> changes = new LinkedList<QueuedHeapChange>();
                             Iterator<QueuedHeapChange> changeIterator = heapState.getQueuedChanges().iterator();
@@ -541,9 +927,24 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
                                         // because we write it with the last update id (because this session has never seen this
                                         //   heap before) the new client will just continue after with everyone else.
 
-                                        long updateId = heapState.getLastUpdateId();
-                                        nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "ConnectedObjectPusher: Sending initial heap state with updateId = %s for heapId = %s", updateId, heapState.getHeapId());
-                                        NioUtils.writeEventMessageToSession(session, new HeapDelta(heapState.getHeapId(), updateId, Collections.<Update>singletonList(sub.getInitialState())), objectIOFactory);
+                                        // and anything held back for it must go first, otherwise it'd skip those updates
+                                        flushHeldBackUpdates(heapState, session);
+                                        if (sub.isResumption()) {
+                                            // a reconnecting client only needs what it missed
+                                            List<HeapDelta> missed = heapState.getRecentDeltasSince(sub.getResumeFrom());
+                                            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "ConnectedObjectPusher: Resuming from updateId = %s with %s deltas for heapId = %s", sub.getResumeFrom(), missed.size(), heapState.getHeapId());
+                                            for (HeapDelta delta : missed) {
+                                                writeEvent(session, delta);
+                                            }
+                                            heapState.resumptionComplete();
+                                            resumedSubscriptionCount.incrementAndGet();
+                                            resumedDeltaCount.addAndGet(missed.size());
+                                        }
+                                        else {
+                                            long updateId = heapState.getLastUpdateId();
+                                            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "ConnectedObjectPusher: Sending initial heap state with updateId = %s for heapId = %s", updateId, heapState.getHeapId());
+                                            writeEvent(session, sub.getSnapshot().getSerialisedForm(heapState.getHeapId(), updateId, CougarProtocol.getProtocolVersion(session)));
+                                        }
 
                                         heapState.addSession(session);
                                         it.remove();
@@ -565,6 +966,15 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
                                     }
                                 }
 
+                                if (updatesThisCycle.size() > 1 && heapState.getPublicationIntervalMillis() > 0) {
+                                    // only the net effect of everything since the heap was last published goes out
+                                    List<Update> conflated = new ArrayList<Update>();
+                                    conflated.add(conflate(null, updatesThisCycle));
+                                    updatesThisCycle = conflated;
+                                }
+                                heapState.updatesPublished(updatesThisCycle.size());
+                                publishedUpdateCount.addAndGet(updatesThisCycle.size());
+
                                 if (!updatesThisCycle.isEmpty()) {
                                     // send all the updates in a set of batch messages to each session that is listening to this heap
 
@@ -596,17 +1006,25 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
                                         }
                                         Map<Byte, EventMessage> serialisedUpdatesByProtocolVersion = new HashMap<Byte, EventMessage>();
                                         long updateId = heapState.getNextUpdateId();
+                                        HeapDelta delta = new HeapDelta(heapState.getHeapId(), updateId, updatesThisBatch);
+                                        if (resumptionBufferSize > 0) {
+                                            heapState.addRecentDelta(delta, resumptionBufferSize);
+                                        }
                                         for (Byte version : protocolVersions) {
                                             ByteArrayOutputStream baos = new ByteArrayOutputStream();
                                             CougarObjectOutput out = objectIOFactory.newCougarObjectOutput(baos, version);
-                                            out.writeObject(new HeapDelta(heapState.getHeapId(), updateId, updatesThisBatch));
+                                            out.writeObject(delta);
                                             out.flush();
                                             serialisedUpdatesByProtocolVersion.put(version, new EventMessage(baos.toByteArray()));
                                         }
                                         // now write these out for each session
                                         for (IoSession session : heapState.getSessions()) {
+                                            if (isConflating(heapState, session)) {
+                                                holdBackUpdates(uri, heapState, session, updateId, updatesThisBatch);
+                                                continue;
+                                            }
                                             nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Sending heap delta of size %s and with updateId = %s for heapId = %s", updatesThisBatch.size(), updateId, heapState.getHeapId());
-                                            session.write(serialisedUpdatesByProtocolVersion.get(CougarProtocol.getProtocolVersion(session)));
+                                            writeEvent(session, serialisedUpdatesByProtocolVersion.get(CougarProtocol.getProtocolVersion(session)));
                                         }
 
                                         numQueuedHeapChangesSent += updatesThisBatch.size();
@@ -617,6 +1035,8 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
                                 // time to kill the heap..
                                 if (!changes.isEmpty() && changes.get(0).isTermination()) {
                                     changes.remove(0);
+                                    // make sure everyone sees the termination
+                                    flushHeldBackUpdates(uri, heapState, true);
                                     terminateSubscriptions(uri, REQUESTED_BY_PUBLISHER);
                                 }
                             }
@@ -638,9 +1058,120 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
             }
         }
 
+        public void start(String threadName) {
+            Thread t = new Thread(this, threadName);
+            thread = t;
+            t.start();
+        }
+
         public void stop() {
-            running = false;
+            thread = null;
+        }
+    }
+
+    private boolean isConflating(HeapState heapState, IoSession session) {
+        // once we've started holding back updates for a session, everything else must follow them
+        if (heapState.getHeldBackUpdates().containsKey(session)) {
+            return true;
+        }
+        return conflationEnabled
+                && session.getScheduledWriteBytes() > conflationThresholdBytes
+                && CougarProtocol.getTranscribableParamSet(session).contains(TranscribableParams.HeapDeltaUpdateRanges);
+    }
+
+    private void holdBackUpdates(String uri, HeapState heapState, IoSession session, long updateId, List<Update> updates) {
+        HeldBackUpdates held = heapState.getHeldBackUpdates().get(session);
+        if (held == null) {
+            nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Write queue backed up, conflating updates from updateId = %s for heapId = %s", updateId, heapState.getHeapId());
+            heapState.getHeldBackUpdates().put(session, new HeldBackUpdates(updateId, conflate(null, updates)));
+            heapsWithHeldBackUpdates.add(uri);
+        }
+        else {
+            held.lastUpdateId = updateId;
+            held.update = conflate(held.update, updates);
         }
+        conflatedUpdateCount.addAndGet(updates.size());
+    }
+
+    private Update conflate(Update held, List<Update> updates) {
+        if (conflater == null) {
+            // we always own the held update, so can just append to it
+            Update ret = held;
+            if (ret == null) {
+                ret = new Update();
+                ret.setActions(new ArrayList<UpdateAction>());
+            }
+            for (Update u : updates) {
+                ret.getActions().addAll(u.getActions());
+            }
+            return ret;
+        }
+        List<UpdateBlock> blocks = new ArrayList<UpdateBlock>(updates.size() + 1);
+        if (held != null) {
+            blocks.add(held.getHeapRepresentation());
+        }
+        for (Update u : updates) {
+            blocks.add(u.getHeapRepresentation());
+        }
+        return UpdateProducingHeapListener.toUpdate(conflater.conflate(blocks.toArray(new UpdateBlock[blocks.size()])));
+    }
+
+    /**
+     * Sends held back updates to each session which has drained its write queue, or to all of them if forced.
+     */
+    private void flushHeldBackUpdates(String uri, HeapState heapState, boolean force) throws IOException {
+        Iterator<Map.Entry<IoSession, HeldBackUpdates>> it = heapState.getHeldBackUpdates().entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<IoSession, HeldBackUpdates> entry = it.next();
+            if (force || entry.getKey().getScheduledWriteBytes() <= conflationThresholdBytes) {
+                writeHeldBackUpdates(heapState, entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+        if (heapState.getHeldBackUpdates().isEmpty()) {
+            heapsWithHeldBackUpdates.remove(uri);
+        }
+    }
+
+    private void flushHeldBackUpdates(HeapState heapState, IoSession session) throws IOException {
+        HeldBackUpdates held = heapState.getHeldBackUpdates().remove(session);
+        if (held != null) {
+            writeHeldBackUpdates(heapState, session, held);
+        }
+    }
+
+    private void writeHeldBackUpdates(HeapState heapState, IoSession session, HeldBackUpdates held) throws IOException {
+        nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Sending conflated heap delta for updateIds %s to %s for heapId = %s", held.firstUpdateId, held.lastUpdateId, heapState.getHeapId());
+        HeapDelta delta = new HeapDelta(heapState.getHeapId(), held.firstUpdateId, held.lastUpdateId, Collections.singletonList(held.update));
+        writeEvent(session, delta);
+        conflatedDeltaCount.incrementAndGet();
+    }
+
+    private void writeEvent(IoSession session, Object event) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CougarObjectOutput out = objectIOFactory.newCougarObjectOutput(baos, CougarProtocol.getProtocolVersion(session));
+        out.writeObject(event);
+        out.flush();
+        writeEvent(session, new EventMessage(baos.toByteArray()));
+    }
+
+    /**
+     * Everything we send a session goes through here, so that events held back in its batch can't be overtaken.
+     */
+    private void writeEvent(IoSession session, EventMessage message) {
+        if (eventBatchFlusher == null || CougarProtocol.getProtocolVersion(session) < CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES) {
+            session.write(message);
+            return;
+        }
+        EventBatch batch = eventBatches.get(session);
+        if (batch == null) {
+            batch = new EventBatch(session);
+            EventBatch existing = eventBatches.putIfAbsent(session, batch);
+            if (existing != null) {
+                batch = existing;
+            }
+        }
+        batch.add(message);
     }
 
     @Override
@@ -651,6 +1182,7 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
     public void sessionClosed(IoSession session) {
         nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Session closed, terminating live subscriptions");
         terminateSubscriptions(session, CONNECTION_CLOSED);
+        eventBatches.remove(session);
     }
 
     private class QueuedHeapChange {
@@ -698,19 +1230,143 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
 
     private class QueuedSubscription {
         private IoSession session;
-        private InitialUpdate initialState;
+        private HeapSnapshot snapshot;
+        private long resumeFrom = -1;
 
-        private QueuedSubscription(IoSession session, InitialUpdate initialState) {
+        private QueuedSubscription(IoSession session, HeapSnapshot snapshot) {
             this.session = session;
-            this.initialState = initialState;
+            this.snapshot = snapshot;
+        }
+
+        private QueuedSubscription(IoSession session, long resumeFrom) {
+            this.session = session;
+            this.resumeFrom = resumeFrom;
+        }
+
+        public boolean isResumption() {
+            return resumeFrom >= 0;
+        }
+
+        public long getResumeFrom() {
+            return resumeFrom;
         }
 
         public IoSession getSession() {
             return session;
         }
 
-        public InitialUpdate getInitialState() {
-            return initialState;
+        public HeapSnapshot getSnapshot() {
+            return snapshot;
+        }
+    }
+
+    /**
+     * The initial state of a heap, shared by every subscription which arrives before the heap next changes. It's
+     * serialised at most once per protocol version for each update id it's sent with.
+     */
+    private class HeapSnapshot {
+        private final long changeCount;
+        private final InitialUpdate initialState;
+        private final Map<Byte, EventMessage> serialisedForms = new HashMap<Byte, EventMessage>();
+        private long serialisedUpdateId = -1;
+
+        private HeapSnapshot(long changeCount, InitialUpdate initialState) {
+            this.changeCount = changeCount;
+            this.initialState = initialState;
+        }
+
+        public synchronized EventMessage getSerialisedForm(long heapId, long updateId, byte protocolVersion) throws IOException {
+            if (updateId != serialisedUpdateId) {
+                serialisedForms.clear();
+                serialisedUpdateId = updateId;
+            }
+            EventMessage ret = serialisedForms.get(protocolVersion);
+            if (ret == null) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                CougarObjectOutput out = objectIOFactory.newCougarObjectOutput(baos, protocolVersion);
+                out.writeObject(new HeapDelta(heapId, updateId, Collections.<Update>singletonList(initialState)));
+                out.flush();
+                ret = new EventMessage(baos.toByteArray());
+                serialisedForms.put(protocolVersion, ret);
+            }
+            else {
+                sharedSnapshotSerialisationCount.incrementAndGet();
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Events waiting to go to a session in a single frame. Sent once the first of them has waited for the batch
+     * window, or sooner if they reach the max batch size.
+     */
+    private class EventBatch implements Runnable {
+        private final IoSession session;
+        private List<EventMessage> events = new ArrayList<EventMessage>();
+        private int bytes;
+
+        private EventBatch(IoSession session) {
+            this.session = session;
+        }
+
+        public synchronized void add(EventMessage message) {
+            events.add(message);
+            bytes += message.getPayloadLength();
+            ScheduledExecutorService flusher = eventBatchFlusher;
+            if (flusher == null || bytes >= eventBatchMaxBytes) {
+                flush();
+            }
+            else if (events.size() == 1) {
+                flusher.schedule(this, eventBatchWindowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            flush();
+        }
+
+        public synchronized void flush() {
+            if (events.isEmpty()) {
+                return;
+            }
+            if (session.isClosing()) {
+                // nothing more will be added once it's gone, so don't hang on to it
+                eventBatches.remove(session, this);
+            }
+            else if (events.size() == 1) {
+                session.write(events.get(0));
+            }
+            else {
+                nioLogger.log(NioLogger.LoggingLevel.TRANSPORT, session, "Sending batch of %s events", events.size());
+                session.write(new EventBatchMessage(events));
+                eventBatchesSent.incrementAndGet();
+                batchedEventCount.addAndGet(events.size());
+            }
+            events = new ArrayList<EventMessage>();
+            bytes = 0;
+        }
+    }
+
+    private static class HeldBackUpdates {
+        private final long firstUpdateId;
+        private long lastUpdateId;
+        private Update update;
+
+        private HeldBackUpdates(long updateId, Update update) {
+            this.firstUpdateId = updateId;
+            this.lastUpdateId = updateId;
+            this.update = update;
+        }
+    }
+
+    static class HeapStripe {
+        private final int index;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, HeapState> heapStates = new ConcurrentHashMap<String, HeapState>();
+
+        private HeapStripe(int index) {
+            this.index = index;
         }
     }
 
@@ -723,6 +1379,12 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
         int getSubscriptionCount();
 
         int getSessionCount();
+
+        long getPublicationIntervalMillis();
+
+        long getReceivedUpdateCount();
+
+        long getPublishedUpdateCount();
     }
 
     class HeapState implements HeapStateMonitoring {
@@ -736,14 +1398,28 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
         private volatile boolean terminated;
         private final Map<String, SubscriptionDetails> subscriptions = new HashMap<String, SubscriptionDetails>();
         private final Map<IoSession, List<String>> sessionSubscriptions = new HashMap<IoSession, List<String>>();
+        // only accessed whilst holding the update lock
+        private final Map<IoSession, HeldBackUpdates> heldBackUpdates = new HashMap<IoSession, HeldBackUpdates>();
         private final long instanceId = heapStateInstanceIdSource.incrementAndGet();
+        private final HeapStripe stripe;
+        // bumped by the heap listener as changes are queued, invalidating any snapshot taken before
+        private final AtomicLong changeCount = new AtomicLong();
+        private volatile HeapSnapshot snapshot;
+        // only accessed whilst holding the update lock
+        private final Deque<HeapDelta> recentDeltas = new ArrayDeque<HeapDelta>();
+        private int pendingResumptions;
+        private final long publicationIntervalMillis;
+        private final AtomicBoolean publicationScheduled = new AtomicBoolean();
+        private volatile long lastPublicationTime = System.currentTimeMillis();
+        private final AtomicLong receivedUpdates = new AtomicLong();
+        private final AtomicLong publishedUpdates = new AtomicLong();
 
         @Override
         public SortedMap<String, List<String>> getSubscriptionIdsBySessionId() {
             SortedMap<String, List<String>> ret = new TreeMap<String, List<String>>();
             try {
                 updateLock.lock();
-                subTermLock.lock();
+                stripe.lock.lock();
 
                 for (IoSession key : sessionSubscriptions.keySet()) {
                     String sessionId = NioUtils.getSessionId(key);
@@ -755,7 +1431,7 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
                     updateLock.unlock();
                 }
                 finally {
-                    subTermLock.unlock();
+                    stripe.lock.unlock();
                 }
             }
 
@@ -777,9 +1453,54 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
             return sessions.size();
         }
 
-        public HeapState(Heap heap) {
+        @Override
+        public long getPublicationIntervalMillis() {
+            return publicationIntervalMillis;
+        }
+
+        @Override
+        public long getReceivedUpdateCount() {
+            return receivedUpdates.get();
+        }
+
+        @Override
+        public long getPublishedUpdateCount() {
+            return publishedUpdates.get();
+        }
+
+        public HeapState(Heap heap, HeapStripe stripe) {
             this.heap = heap;
+            this.stripe = stripe;
             heapId = heapIdGenerator.incrementAndGet();
+            publicationIntervalMillis = getPublicationInterval(heap.getUri());
+        }
+
+        public void updateReceived() {
+            receivedUpdates.incrementAndGet();
+        }
+
+        public void updatesPublished(int updates) {
+            publishedUpdates.addAndGet(updates);
+        }
+
+        /**
+         * Returns true if the caller should arrange the next publication, false if it's already been arranged.
+         */
+        public boolean claimPublication() {
+            return publicationScheduled.compareAndSet(false, true);
+        }
+
+        public void publicationDue() {
+            lastPublicationTime = System.currentTimeMillis();
+            publicationScheduled.set(false);
+        }
+
+        public long getLastPublicationTime() {
+            return lastPublicationTime;
+        }
+
+        public HeapStripe getStripe() {
+            return stripe;
         }
 
         public Queue<QueuedHeapChange> getQueuedChanges() {
@@ -798,10 +1519,76 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
             return sessions;
         }
 
+        Map<IoSession, HeldBackUpdates> getHeldBackUpdates() {
+            return heldBackUpdates;
+        }
+
         public long getNextUpdateId() {
             return updateIdGenerator.incrementAndGet();
         }
 
+        public long getChangeCount() {
+            return changeCount.get();
+        }
+
+        public void heapChanged() {
+            changeCount.incrementAndGet();
+            snapshot = null;
+        }
+
+        /**
+         * Returns the snapshot of this heap if nothing has changed since it was taken, otherwise null.
+         */
+        public HeapSnapshot getSnapshot() {
+            HeapSnapshot ret = snapshot;
+            return ret != null && ret.changeCount == changeCount.get() ? ret : null;
+        }
+
+        public void setSnapshot(HeapSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public void addRecentDelta(HeapDelta delta, int maxDeltas) {
+            recentDeltas.addLast(delta);
+            // sessions waiting to be caught up still need everything they were promised
+            while (recentDeltas.size() > maxDeltas && pendingResumptions == 0) {
+                recentDeltas.removeFirst();
+            }
+        }
+
+        /**
+         * Whether a client which last saw the given update id can be caught up from the recent deltas.
+         */
+        public boolean canResumeFrom(long lastUpdateId) {
+            long current = getLastUpdateId();
+            if (lastUpdateId < 0 || lastUpdateId > current) {
+                return false;
+            }
+            if (lastUpdateId == current) {
+                return true;
+            }
+            HeapDelta oldest = recentDeltas.peekFirst();
+            return oldest != null && oldest.getUpdateId() <= lastUpdateId + 1;
+        }
+
+        public List<HeapDelta> getRecentDeltasSince(long lastUpdateId) {
+            List<HeapDelta> ret = new ArrayList<HeapDelta>();
+            for (HeapDelta delta : recentDeltas) {
+                if (delta.getUpdateId() > lastUpdateId) {
+                    ret.add(delta);
+                }
+            }
+            return ret;
+        }
+
+        public void resumptionPending() {
+            pendingResumptions++;
+        }
+
+        public void resumptionComplete() {
+            pendingResumptions--;
+        }
+
         public void addSession(IoSession session) {
             if (!sessions.contains(session)) {
                 sessions.add(session);
@@ -874,6 +1661,7 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
 
         public void terminateSubscriptions(IoSession session, Subscription.CloseReason reason) {
             sessions.remove(session);
+            heldBackUpdates.remove(session);
             // find each Subscription object for this session and delete all the subs
             List<String> ids = sessionSubscriptions.remove(session);
             if (ids != null) {
@@ -930,63 +1718,55 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
 
     @ManagedAttribute(description = "Number of active heaps")
     public int getNumberOfHeaps() {
-        if (heapUris != null) {
-            return heapUris.size();
-        }
-        return 0;
+        return heapUris.size();
+    }
+
+    @ManagedAttribute(description = "Number of stripes heap states are partitioned into")
+    public int getNumHeapStripes() {
+        return stripes.length;
     }
 
     @ManagedOperation(description = "Number of subscriptions for the given heap URI")
     public int getHeapSubscriptionCount(String heapUri) {
-        if (heapStates != null) {
-            final HeapState heapState = heapStates.get(heapUri);
-            if (heapState != null) {
-                return heapState.getSubscriptionCount();
-            }
+        final HeapState heapState = getHeapState(heapUri);
+        if (heapState != null) {
+            return heapState.getSubscriptionCount();
         }
         return -1;
     }
 
     @ManagedOperation(description = "Number of sessions subscribed for the given heap URI")
     public int getHeapSessionCount(String heapUri) {
-        if (heapStates != null) {
-            final HeapState heapState = heapStates.get(heapUri);
-            if (heapState != null) {
-                return heapState.getSessionCount();
-            }
+        final HeapState heapState = getHeapState(heapUri);
+        if (heapState != null) {
+            return heapState.getSessionCount();
         }
         return -1;
     }
 
     @ManagedOperation(description = "Has the specified heap terminated")
     public boolean hasHeapTerminated(String heapUri) {
-        if (heapStates != null) {
-            final HeapState heapState = heapStates.get(heapUri);
-            if (heapState != null) {
-                return heapState.isTerminated();
-            }
+        final HeapState heapState = getHeapState(heapUri);
+        if (heapState != null) {
+            return heapState.isTerminated();
         }
         return true;
     }
 
     @ManagedOperation(description = "Last received update Id")
     public long getLastUpdateId(String heapUri) {
-        if (heapStates != null) {
-            final HeapState heapState = heapStates.get(heapUri);
-            if (heapState != null) {
-                return heapState.getLastUpdateId();
-            }
+        final HeapState heapState = getHeapState(heapUri);
+        if (heapState != null) {
+            return heapState.getLastUpdateId();
         }
         return -1;
     }
 
     @ManagedOperation(description = "Number of updates queued for the specified heap")
     public long showNumOfQueuedChanges(String heapUri) {
-        if (heapStates != null) {
-            final HeapState heapState = heapStates.get(heapUri);
-            if (heapState != null) {
-                return heapState.getQueuedChanges().size();
-            }
+        final HeapState heapState = getHeapState(heapUri);
+        if (heapState != null) {
+            return heapState.getQueuedChanges().size();
         }
         return -1;
     }
@@ -996,6 +1776,91 @@ public class PooledServerConnectedObjectManager implements ServerConnectedObject
         return numProcessingThreads;
     }
 
+    @ManagedAttribute(description = "Is conflation of updates for slow sessions enabled")
+    public boolean isConflationEnabled() {
+        return conflationEnabled;
+    }
+
+    @ManagedAttribute(description = "Number of updates held back for slow sessions and conflated")
+    public long getConflatedUpdateCount() {
+        return conflatedUpdateCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of conflated deltas sent to slow sessions")
+    public long getConflatedDeltaCount() {
+        return conflatedDeltaCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of heaps currently holding back updates for slow sessions")
+    public int getHeapsWithHeldBackUpdates() {
+        return heapsWithHeldBackUpdates.size();
+    }
+
+    @ManagedAttribute(description = "Number of initial heap snapshots built for new subscriptions")
+    public long getBuiltSnapshotCount() {
+        return builtSnapshotCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of new subscriptions which reused an existing heap snapshot")
+    public long getSharedSnapshotCount() {
+        return sharedSnapshotCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of initial heap states sent without serialising the snapshot again")
+    public long getSharedSnapshotSerialisationCount() {
+        return sharedSnapshotSerialisationCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of recent deltas kept per heap for reconnecting clients")
+    public int getResumptionBufferSize() {
+        return resumptionBufferSize;
+    }
+
+    @ManagedAttribute(description = "Number of subscriptions from reconnecting clients which were caught up without a full heap state")
+    public long getResumedSubscriptionCount() {
+        return resumedSubscriptionCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of deltas resent to reconnecting clients")
+    public long getResumedDeltaCount() {
+        return resumedDeltaCount.get();
+    }
+
+    @ManagedAttribute
+    public String getPublicationIntervals() {
+        return String.valueOf(publicationIntervals);
+    }
+
+    @ManagedAttribute(description = "Number of updates made to heaps by their publishers")
+    public long getReceivedUpdateCount() {
+        return receivedUpdateCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of updates published to subscribers, after conflation of rate limited heaps")
+    public long getPublishedUpdateCount() {
+        return publishedUpdateCount.get();
+    }
+
+    @ManagedAttribute
+    public long getEventBatchWindowMillis() {
+        return eventBatchWindowMillis;
+    }
+
+    @ManagedAttribute
+    public int getEventBatchMaxBytes() {
+        return eventBatchMaxBytes;
+    }
+
+    @ManagedAttribute(description = "Number of frames sent carrying events from several heaps")
+    public long getEventBatchesSent() {
+        return eventBatchesSent.get();
+    }
+
+    @ManagedAttribute(description = "Number of events sent within multi-event frames")
+    public long getBatchedEventCount() {
+        return batchedEventCount.get();
+    }
+
     static class Multiset<T> {
 
         private final Map<T, Integer> map = new HashMap<T, Integer>();
@@ -22,6 +22,7 @@ import com.betfair.cougar.api.RequestContext;
 import com.betfair.cougar.core.api.ev.ConnectedResponse;
 import com.betfair.cougar.core.api.ev.OperationDefinition;
 import com.betfair.cougar.core.api.ev.Subscription;
+import com.betfair.cougar.netutil.nio.HeapResumption;
 import com.betfair.cougar.netutil.nio.NioLogger;
 import com.betfair.cougar.netutil.nio.TerminateSubscription;
 import com.betfair.cougar.netutil.nio.HandlerListener;
@@ -37,4 +38,6 @@ public interface ServerConnectedObjectManager extends HandlerListener {
     public void addSubscription(final SocketTransportCommandProcessor commandProcessor, final SocketTransportRPCCommand command, final ConnectedResponse result, final OperationDefinition operationDefinition, final ExecutionContextWithTokens context, final LogExtension connectedObjectLogExtension);
 
     void terminateSubscription(IoSession session, TerminateSubscription subscription);
+
+    void resumeHeap(IoSession session, HeapResumption resumption);
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.transport.socket;
+
+import com.betfair.cougar.core.api.ev.OperationDefinition;
+
+/**
+ * The operations a client has defined ids for on a session, together with how the arguments it sends map onto
+ * the ones the local operation expects. Ids are small and allocated sequentially by the client, so they index
+ * straight into an array.
+ */
+class ServerOperationIdTable {
+
+    static final String SESSION_KEY = ServerOperationIdTable.class.getName();
+
+    private ResolvedOperation[] operations = new ResolvedOperation[16];
+
+    synchronized ResolvedOperation get(int operationId) {
+        return operationId < operations.length ? operations[operationId] : null;
+    }
+
+    synchronized void put(int operationId, ResolvedOperation operation) {
+        if (operationId >= operations.length) {
+            int newLength = operations.length;
+            while (newLength <= operationId) {
+                newLength <<= 1;
+            }
+            ResolvedOperation[] newOperations = new ResolvedOperation[newLength];
+            System.arraycopy(operations, 0, newOperations, 0, operations.length);
+            operations = newOperations;
+        }
+        operations[operationId] = operation;
+    }
+
+    static class ResolvedOperation {
+        private final OperationDefinition operationDefinition;
+        private final int[] argumentIndexes;
+
+        ResolvedOperation(OperationDefinition operationDefinition, int[] argumentIndexes) {
+            this.operationDefinition = operationDefinition;
+            this.argumentIndexes = argumentIndexes;
+        }
+
+        OperationDefinition getOperationDefinition() {
+            return operationDefinition;
+        }
+
+        int[] getArgumentIndexes() {
+            return argumentIndexes;
+        }
+    }
+}
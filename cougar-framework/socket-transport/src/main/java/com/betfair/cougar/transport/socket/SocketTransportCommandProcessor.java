@@ -31,11 +31,14 @@ import com.betfair.cougar.core.impl.DefaultTimeConstraints;
 import com.betfair.cougar.logging.CougarLogger;
 import com.betfair.cougar.logging.CougarLoggingUtils;
 import com.betfair.cougar.logging.EventLoggingRegistry;
+import com.betfair.cougar.marshalling.api.socket.OperationHeader;
 import com.betfair.cougar.marshalling.api.socket.RemotableMethodInvocationMarshaller;
 import com.betfair.cougar.netutil.nio.CougarProtocol;
+import com.betfair.cougar.netutil.nio.HeapResumption;
 import com.betfair.cougar.netutil.nio.NioLogger;
 import com.betfair.cougar.netutil.nio.NioUtils;
 import com.betfair.cougar.netutil.nio.TerminateSubscription;
+import com.betfair.cougar.netutil.nio.marshalling.ArgumentMatcher;
 import com.betfair.cougar.transport.api.CommandResolver;
 import com.betfair.cougar.transport.api.CommandValidator;
 import com.betfair.cougar.transport.api.ExecutionCommand;
@@ -44,6 +47,7 @@ import com.betfair.cougar.transport.api.protocol.CougarObjectOutput;
 import com.betfair.cougar.transport.impl.AbstractCommandProcessor;
 import com.betfair.cougar.transport.impl.protocol.SSLCipherUtils;
 import com.betfair.cougar.util.X509CertificateUtils;
+import org.apache.mina.common.IoSession;
 import org.apache.mina.filter.SSLFilter;
 import org.springframework.beans.factory.annotation.Required;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
@@ -103,6 +107,8 @@ public class SocketTransportCommandProcessor extends AbstractCommandProcessor<So
 
                 if (eventPayload instanceof TerminateSubscription) {
                     connectedObjectManager.terminateSubscription(command.getSession(), (TerminateSubscription) eventPayload);
+                } else if (eventPayload instanceof HeapResumption) {
+                    connectedObjectManager.resumeHeap(command.getSession(), (HeapResumption) eventPayload);
                 } else {
                     logger.log(Level.SEVERE, "SocketTransportCommandProcessor - Received unexpected event type: " + eventPayload + " - closing session");
                     nioLogger.log(NioLogger.LoggingLevel.SESSION, command.getSession(), "SocketTransportCommandProcessor - Received unexpected event type: %s - closing session", eventPayload);
@@ -167,14 +173,10 @@ public class SocketTransportCommandProcessor extends AbstractCommandProcessor<So
                 byte protocolVersion = CougarProtocol.getProtocolVersion(command.getSession());
                 ExecutionContextWithTokens context = marshaller.readExecutionContext(in, command.getRemoteAddress(), clientCertChain, transportSecurityStrengthFactor, protocolVersion);
                 final SocketRequestContextImpl requestContext = new SocketRequestContextImpl(context);
-                OperationKey remoteOperationKey = marshaller.readOperationKey(in);
-                OperationDefinition opDef = findCompatibleBinding(remoteOperationKey);
-                if (opDef == null) {
-                    throw new CougarFrameworkException("Can't find operation definition in bindings for operation named '" + remoteOperationKey.getOperationName() + "'");
-                }
-                final OperationKey operationKey = opDef.getOperationKey(); // safer to read it from locally
-                final OperationDefinition operationDefinition = getExecutionVenue().getOperationDefinition(operationKey);
-                final Object[] args = marshaller.readArgs(operationDefinition.getParameters(), in);
+                ServerOperationIdTable.ResolvedOperation resolvedOperation = resolveOperation(marshaller.readOperationHeader(in, protocolVersion), rpcCommand.getSession());
+                final OperationDefinition operationDefinition = resolvedOperation.getOperationDefinition();
+                final OperationKey operationKey = operationDefinition.getOperationKey();
+                final Object[] args = ArgumentMatcher.getArgumentValues(resolvedOperation.getArgumentIndexes(), marshaller.readArgValues(in));
                 TimeConstraints rawTimeConstraints = marshaller.readTimeConstraintsIfPresent(in, protocolVersion);
                 final TimeConstraints timeConstraints = DefaultTimeConstraints.rebaseFromNewStartTime(context.getRequestTime(), rawTimeConstraints);
                 final ExecutionCommand exec = new ExecutionCommand() {
@@ -244,6 +246,43 @@ public class SocketTransportCommandProcessor extends AbstractCommandProcessor<So
 
     }
 
+    /**
+     * Finds the local operation a request header refers to, remembering it against the session if the client has
+     * given it an id.
+     */
+    private ServerOperationIdTable.ResolvedOperation resolveOperation(OperationHeader header, IoSession session) {
+        if (header.isReference()) {
+            ServerOperationIdTable table = (ServerOperationIdTable) session.getAttribute(ServerOperationIdTable.SESSION_KEY);
+            ServerOperationIdTable.ResolvedOperation ret = table != null ? table.get(header.getOperationId()) : null;
+            if (ret == null) {
+                throw new CougarFrameworkException("Request refers to operation id " + header.getOperationId() + " which hasn't been defined on this session");
+            }
+            return ret;
+        }
+
+        OperationKey remoteOperationKey = header.getOperationKey();
+        OperationDefinition opDef = findCompatibleBinding(remoteOperationKey);
+        if (opDef == null) {
+            throw new CougarFrameworkException("Can't find operation definition in bindings for operation named '" + remoteOperationKey.getOperationName() + "'");
+        }
+        // safer to read the key from locally
+        OperationDefinition operationDefinition = getExecutionVenue().getOperationDefinition(opDef.getOperationKey());
+        ServerOperationIdTable.ResolvedOperation ret = new ServerOperationIdTable.ResolvedOperation(operationDefinition,
+                ArgumentMatcher.getArgumentIndexes(operationDefinition.getParameters(), header.getArgNames()));
+        if (header.getOperationId() != OperationHeader.NO_OPERATION_ID) {
+            ServerOperationIdTable table;
+            synchronized (session) {
+                table = (ServerOperationIdTable) session.getAttribute(ServerOperationIdTable.SESSION_KEY);
+                if (table == null) {
+                    table = new ServerOperationIdTable();
+                    session.setAttribute(ServerOperationIdTable.SESSION_KEY, table);
+                }
+            }
+            table.put(header.getOperationId(), ret);
+        }
+        return ret;
+    }
+
     private OperationDefinition findCompatibleBinding(OperationKey remoteOperationKey) {
         OperationDefinition ret = bindings.get(remoteOperationKey);
         if (ret != null) {
@@ -276,6 +315,7 @@ public class SocketTransportCommandProcessor extends AbstractCommandProcessor<So
             return false;
         } finally {
             decrementOutstandingRequests();
+            command.onResponseWritten();
         }
 
     }
@@ -296,6 +336,7 @@ public class SocketTransportCommandProcessor extends AbstractCommandProcessor<So
                 logger.log(Level.SEVERE, "Unable to stream error response to client", ex);
             } finally {
                 decrementOutstandingRequests();
+                rpcCommand.onResponseWritten();
             }
         } else {
             logger.log(Level.SEVERE, "SocketTransportCommandProcessor - Trying to write an error response for an event, closing session");
@@ -304,6 +345,23 @@ public class SocketTransportCommandProcessor extends AbstractCommandProcessor<So
         }
     }
 
+    /**
+     * Writes an error response for a request which is not going to be processed at all, for example because the
+     * server is overloaded. The request is never read, so this is cheap enough to do on the io thread.
+     */
+    public void rejectCommand(SocketTransportRPCCommand command, CougarException e) {
+        incrementErrorsWritten();
+        CougarObjectOutput out = command.getOutput();
+        try {
+            synchronized (out) {
+                marshaller.writeInvocationResponse(new InvocationResponseImpl(null, e), out, CougarProtocol.getProtocolVersion(command.getSession()));
+                out.flush();
+            }
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Unable to stream rejection response to client", ex);
+        }
+    }
+
     @Override
     protected List<CommandValidator<SocketTransportCommand>> getCommandValidators() {
         return Collections.emptyList();
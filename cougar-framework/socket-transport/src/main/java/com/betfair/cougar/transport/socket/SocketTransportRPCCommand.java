@@ -25,5 +25,10 @@ public interface SocketTransportRPCCommand extends SocketTransportCommand {
 
 	public CougarObjectOutput getOutput();
 
+    /**
+     * Called once the response to this command has been written, or writing it has failed.
+     */
+    public void onResponseWritten();
+
 }
 
@@ -28,17 +28,30 @@ import java.util.concurrent.atomic.AtomicReference;
 public class SocketTransportRPCCommandImpl extends SocketTransportCommandImpl implements SocketTransportRPCCommand {
 
 	private final CougarObjectOutput output;
+    private final Runnable responseWrittenCallback;
 
     private RequestTimer timer = new RequestTimer();
     private IoSession session;
 
     public SocketTransportRPCCommandImpl(CougarObjectInput input, CougarObjectOutput output, String remoteAddress, IoSession session) {
+        this(input, output, remoteAddress, session, null);
+	}
+
+    public SocketTransportRPCCommandImpl(CougarObjectInput input, CougarObjectOutput output, String remoteAddress, IoSession session, Runnable responseWrittenCallback) {
         super(input, remoteAddress, session);
 		this.output = output;
+        this.responseWrittenCallback = responseWrittenCallback;
 	}
 
 	@Override
 	public CougarObjectOutput getOutput() {
 		return output;
 	}
+
+    @Override
+    public void onResponseWritten() {
+        if (responseWrittenCallback != null) {
+            responseWrittenCallback.run();
+        }
+    }
 }
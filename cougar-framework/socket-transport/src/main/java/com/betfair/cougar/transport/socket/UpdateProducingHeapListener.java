@@ -43,6 +43,10 @@ abstract class UpdateProducingHeapListener implements HeapListener {
 
     @Override
     public void applyUpdate(UpdateBlock update) {
+        doUpdate(toUpdate(update));
+    }
+
+    static Update toUpdate(UpdateBlock update) {
         List<UpdateAction> actions = new ArrayList<UpdateAction>();
         // Convert from heap representation to our wire representation
         for (com.betfair.platform.virtualheap.updates.Update u : update.list()) {
@@ -77,7 +81,7 @@ abstract class UpdateProducingHeapListener implements HeapListener {
         }
         Update u = new Update();
         u.setActions(actions);
-        doUpdate(u);
+        return u;
     }
 
     protected abstract void doUpdate(Update u);
@@ -177,12 +177,13 @@ public class ServerSocketTransportInfo implements JMXHttpParser, HandlerListener
             heapUris = new TreeSet<String>(heapUrisCollection);
         }
         if (heapUris != null) {
-            result.append("<table border='1'><tr><th>Heap</th><th>Connection count</th><th>Last delta sent</th><th>Num subscribers</th><th></th></tr>\n");
+            result.append("<table border='1'><tr><th>Heap</th><th>Connection count</th><th>Last delta sent</th><th>Num subscribers</th><th>Updates received</th><th>Updates published</th><th></th></tr>\n");
 
             for (String heapUri : heapUris) {
                 PooledServerConnectedObjectManager.HeapStateMonitoring heapState = connectedObjectManager.getHeapStateForMonitoring(heapUri);
                 if (heapState != null) {
                     result.append("<tr><td>").append(heapUri).append("</td><td>").append(heapState.getSessionCount()).append("</td><td>").append(heapState.getLastUpdateId()).append("</td><td>").append(heapState.getSubscriptionCount()).append("</td>");
+                    result.append("<td>").append(heapState.getReceivedUpdateCount()).append("</td><td>").append(heapState.getPublishedUpdateCount()).append("</td>");
                     if (heapState.getSessionCount() != 0) {
                         result.append("<td><a href='").append(getPath()).append("?heapUri=").append(URLEncoder.encode(heapUri)).append("&detailedSession=").append(showDetailedSessionBreakdown).append("&detailedHeap=").append(showDetailedHeapBreakdown).append("&killLinks=").append(showKillLinks).append("'>Show connections</a></td>");
                     }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013, The Sporting Exchange Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.betfair.cougar.transport.nio;
+
+import org.apache.mina.common.IoSession;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdmissionControllerTest {
+
+    private AdmissionController controller;
+
+    @Before
+    public void before() {
+        controller = new AdmissionController();
+        controller.setEnabled(true);
+        controller.setMinLimit(1);
+        controller.setMaxLimit(100);
+        controller.setInitialLimit(4);
+    }
+
+    @Test
+    public void rejectsBeyondLimit() {
+        IoSession session = newSession();
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(controller.tryAcquire(session));
+        }
+        assertNull(controller.tryAcquire(session));
+        assertEquals(4, controller.getAdmitted());
+        assertEquals(1, controller.getRejected());
+        assertEquals(4, controller.getInflight());
+    }
+
+    @Test
+    public void releaseFreesCapacityOnce() {
+        IoSession session = newSession();
+        AdmissionController.Permit permit = controller.tryAcquire(session);
+        assertEquals(1, controller.getInflight());
+        permit.run();
+        permit.run();
+        assertEquals(0, controller.getInflight());
+    }
+
+    @Test
+    public void busySessionLimitedToFairShare() {
+        IoSession busy = newSession();
+        IoSession quiet = newSession();
+        controller.sessionOpened(busy);
+        controller.sessionOpened(quiet);
+
+        // fair share is 4 / 2 sessions, enforced once the server is half full
+        assertNotNull(controller.tryAcquire(busy));
+        assertNotNull(controller.tryAcquire(busy));
+        assertNull(controller.tryAcquire(busy));
+        assertEquals(1, controller.getRejectedForFairness());
+
+        assertNotNull(controller.tryAcquire(quiet));
+    }
+
+    @Test
+    public void closedSessionReturnsItsCapacity() {
+        IoSession session = newSession();
+        controller.sessionOpened(session);
+        AdmissionController.Permit permit = controller.tryAcquire(session);
+        controller.tryAcquire(session);
+        assertEquals(2, controller.getInflight());
+
+        controller.sessionClosed(session);
+        assertEquals(0, controller.getInflight());
+
+        // a response written after the close mustn't free the capacity again
+        permit.run();
+        assertEquals(0, controller.getInflight());
+    }
+
+    @Test
+    public void limitBacksOffWhenLatencyRises() {
+        controller.setWindowMillis(1);
+        controller.setInitialLimit(50);
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            now += 2000000;
+            controller.updateLimit(50, 1000000, now);
+        }
+        int before = controller.getCurrentLimit();
+        assertTrue(before >= 50);
+
+        now += 2000000;
+        controller.updateLimit(50, 10000000, now);
+        assertEquals((int) (before * 0.9), controller.getCurrentLimit(), 1);
+    }
+
+    @Test
+    public void limitGrowsWhenBusyAndFast() {
+        controller.setInitialLimit(10);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            controller.updateLimit(10, 1000000, now++);
+        }
+        assertTrue(controller.getCurrentLimit() > 10);
+    }
+
+    @Test
+    public void limitDoesntGrowWhenIdle() {
+        controller.setInitialLimit(10);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            controller.updateLimit(1, 1000000, now++);
+        }
+        assertEquals(10, controller.getCurrentLimit());
+    }
+
+    private IoSession newSession() {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        IoSession session = mock(IoSession.class);
+        when(session.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return attributes.get(invocation.getArguments()[0]);
+            }
+        });
+        when(session.setAttribute(anyString(), anyObject())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+            }
+        });
+        when(session.removeAttribute(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return attributes.remove(invocation.getArguments()[0]);
+            }
+        });
+        return session;
+    }
+}
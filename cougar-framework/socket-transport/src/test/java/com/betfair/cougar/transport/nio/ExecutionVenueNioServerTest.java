@@ -162,6 +162,11 @@ public class ExecutionVenueNioServerTest {
 		public ParameterType getReturnType() {
 			return RETURN_PARAM_TYPE;
 		}
+
+		@Override
+		public boolean isIdempotent() {
+			return false;
+		}
 	};
 
 	
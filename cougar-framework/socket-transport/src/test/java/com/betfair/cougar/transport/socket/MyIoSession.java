@@ -54,6 +54,7 @@ public class MyIoSession implements IoSession {
     private Map<String, Object> attributes = new HashMap<String, Object>();
     private boolean closed;
     private boolean throwExceptionOnNextWrite;
+    private volatile int scheduledWriteBytes;
 
     MyIoSession(String sessionId) {
         this.sessionId = sessionId;
@@ -295,7 +296,11 @@ public class MyIoSession implements IoSession {
 
     @Override
     public int getScheduledWriteBytes() {
-        return 0;
+        return scheduledWriteBytes;
+    }
+
+    public void setScheduledWriteBytes(int scheduledWriteBytes) {
+        this.scheduledWriteBytes = scheduledWriteBytes;
     }
 
     @Override
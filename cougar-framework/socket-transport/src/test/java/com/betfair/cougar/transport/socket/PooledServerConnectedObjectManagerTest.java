@@ -29,8 +29,12 @@ import com.betfair.cougar.core.impl.ev.DefaultSubscription;
 import com.betfair.cougar.logging.CougarLogger;
 import com.betfair.cougar.logging.CougarLoggingUtils;
 import com.betfair.cougar.netutil.nio.CougarProtocol;
+import com.betfair.cougar.netutil.nio.HeapDelta;
+import com.betfair.cougar.netutil.nio.HeapResumption;
 import com.betfair.cougar.netutil.nio.NioLogger;
 import com.betfair.cougar.netutil.nio.TerminateSubscription;
+import com.betfair.cougar.netutil.nio.message.EventBatchMessage;
+import com.betfair.cougar.netutil.nio.message.EventMessage;
 import com.betfair.cougar.netutil.nio.connected.*;
 import com.betfair.cougar.test.ParameterizedMultiRunner;
 import com.betfair.cougar.transport.api.protocol.CougarObjectIOFactory;
@@ -52,7 +56,6 @@ import org.mockito.ArgumentCaptor;
 import java.io.ByteArrayOutputStream;
 import java.lang.reflect.Field;
 import java.util.*;
-import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
@@ -89,7 +92,12 @@ public class PooledServerConnectedObjectManagerTest {
 
     @Before
     public void defaults() throws Exception {
-        subject = new PooledServerConnectedObjectManager();
+        subject = createSubject();
+        subject.start();
+    }
+
+    private PooledServerConnectedObjectManager createSubject() {
+        PooledServerConnectedObjectManager subject = new PooledServerConnectedObjectManager();
         subject.setNumProcessingThreads(numThreads);
         subject.setNioLogger(new NioLogger("ALL"));
         CougarObjectIOFactory ioFactory;
@@ -105,7 +113,7 @@ public class PooledServerConnectedObjectManagerTest {
         });
         cougarOutput = new ExpectingOutput(1000L);
         doReturn(cougarOutput).when(ioFactory).newCougarObjectOutput(any(ByteArrayOutputStream.class),anyByte());
-        subject.start();
+        return subject;
     }
 
     @After
@@ -222,6 +230,75 @@ public class PooledServerConnectedObjectManagerTest {
         assertEquals("secondHeap", response1.getUri());
     }
 
+    @Test
+    public void eventsForDifferentHeapsBatchedIntoOneFrame() throws Exception {
+        subject.stop();
+        subject = createSubject();
+        subject.setEventBatchWindowMillis(500);
+        subject.start();
+
+        SocketTransportCommandProcessor commandProcessor = mock(SocketTransportCommandProcessor.class);
+        when(commandProcessor.writeSuccessResponse(any(SocketTransportRPCCommand.class), any(ExecutionResult.class))).thenReturn(true);
+
+        SocketTransportRPCCommand command = mock(SocketTransportRPCCommand.class);
+        MyIoSession session = new MyIoSession(String.valueOf(ioSessionId++));
+        session.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_EVENT_BATCHES);
+        when(command.getSession()).thenReturn(session);
+        MyIoSession oldSession = new MyIoSession(String.valueOf(ioSessionId++));
+        oldSession.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_COMPACT_HEAP_DELTAS);
+        SocketTransportRPCCommand oldCommand = mock(SocketTransportRPCCommand.class);
+        when(oldCommand.getSession()).thenReturn(oldSession);
+
+        ExecutionContextWithTokens requestContext = mock(ExecutionContextWithTokens.class);
+        OperationDefinition operationDefinition = mock(OperationDefinition.class);
+        Subscription sub = mock(Subscription.class);
+        MutableHeap firstHeap = new MutableHeap("firstBatchedHeap");
+        MutableHeap secondHeap = new MutableHeap("secondBatchedHeap");
+        subject.addSubscription(commandProcessor, command, new ConnectedResponseImpl(firstHeap, sub), operationDefinition, requestContext, null);
+        subject.addSubscription(commandProcessor, command, new ConnectedResponseImpl(secondHeap, sub), operationDefinition, requestContext, null);
+        subject.addSubscription(commandProcessor, oldCommand, new ConnectedResponseImpl(firstHeap, sub), operationDefinition, requestContext, null);
+        subject.addSubscription(commandProcessor, oldCommand, new ConnectedResponseImpl(secondHeap, sub), operationDefinition, requestContext, null);
+
+        // both initial states go out together to the session which understands batches
+        assertExpectedSessionWrites(session, 1);
+        assertTrue(session.getWritten().get(0) instanceof EventBatchMessage);
+        assertEquals(2, ((EventBatchMessage) session.getWritten().get(0)).getNumEvents());
+        assertEquals(1, subject.getEventBatchesSent());
+        assertEquals(2, subject.getBatchedEventCount());
+
+        // but separately to the one which doesn't
+        assertExpectedSessionWrites(oldSession, 2);
+        assertTrue(oldSession.getWritten().get(0) instanceof EventMessage);
+        assertTrue(oldSession.getWritten().get(1) instanceof EventMessage);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void startWithoutProcessingThreadsFailsClearly() {
+        new PooledServerConnectedObjectManager().start();
+    }
+
+    @Test
+    public void updatesQueuedBeforeStartPushedOnceStarted() throws Exception {
+        subject.stop();
+        subject = createSubject();
+
+        SocketTransportCommandProcessor commandProcessor = mock(SocketTransportCommandProcessor.class);
+        when(commandProcessor.writeSuccessResponse(any(SocketTransportRPCCommand.class), any(ExecutionResult.class))).thenReturn(true);
+
+        SocketTransportRPCCommand command = mock(SocketTransportRPCCommand.class);
+        MyIoSession session = new MyIoSession(String.valueOf(ioSessionId++));
+        session.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED);
+        when(command.getSession()).thenReturn(session);
+
+        MutableHeap heap = new MutableHeap("updatesQueuedBeforeStartPushedOnceStarted");
+        subject.addSubscription(commandProcessor, command, new ConnectedResponseImpl(heap, mock(Subscription.class)), mock(OperationDefinition.class), mock(ExecutionContextWithTokens.class), null);
+        assertTrue(subject.hasHeapsWaitingForUpdate());
+
+        // the initial state waits for a pusher thread rather than being dropped
+        subject.start();
+        assertExpectedSessionWrites(session, 1);
+    }
+
     @Test
     public void subscribeToTerminatedHeap() throws Exception {
         SocketTransportCommandProcessor commandProcessor = mock(SocketTransportCommandProcessor.class);
@@ -419,7 +496,8 @@ public class PooledServerConnectedObjectManagerTest {
 
         assertExpectedUpdatesWritten();
 
-        assertEquals(3, cougarOutput.getAllValues().size());
+        // one initial state shared by both sessions, plus the update
+        assertEquals(2, cougarOutput.getAllValues().size());
 
         assertExpectedSessionWrites(session, 2);
         assertExpectedSessionWrites(session2, 2);
@@ -478,7 +556,8 @@ public class PooledServerConnectedObjectManagerTest {
         assertExpectedUpdatesWritten();
 
         // might be related to the optimisation whereby if we need to send the same message to multiple clients we serialise it only once
-        int updatesWritten = cougarOutput.getAllValues().size() - 2;
+        // (both sessions subscribed before any updates, so share the serialised initial state too)
+        int updatesWritten = cougarOutput.getAllValues().size() - 1;
 
         // +1 to include the initial update for that session
         assertExpectedSessionWrites(session, updatesWritten + 1);
@@ -785,7 +864,8 @@ public class PooledServerConnectedObjectManagerTest {
         assertExpectedUpdatesWritten();
 
         // might be related to the optimisation whereby if we need to send the same message to multiple clients we serialise it only once
-        int updatesWritten = cougarOutput.getAllValues().size() - 2;
+        // (both sessions subscribed before any updates, so share the serialised initial state too)
+        int updatesWritten = cougarOutput.getAllValues().size() - 1;
 
         // +1 to include the initial update for that session
         assertExpectedSessionWrites(session2, updatesWritten + 1);
@@ -1099,6 +1179,294 @@ public class PooledServerConnectedObjectManagerTest {
         assertEquals(0, getHeapListeners(heap).size());
     }
 
+    @Test
+    public void heapsPartitionedAcrossStripes() throws Exception {
+        SocketTransportCommandProcessor commandProcessor = mock(SocketTransportCommandProcessor.class);
+        when(commandProcessor.writeSuccessResponse(any(SocketTransportRPCCommand.class), any(ExecutionResult.class))).thenReturn(true);
+
+        SocketTransportRPCCommand command = mock(SocketTransportRPCCommand.class);
+        MyIoSession session = new MyIoSession(String.valueOf(ioSessionId++));
+        session.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED);
+        when(command.getSession()).thenReturn(session);
+
+        ExecutionContextWithTokens requestContext = mock(ExecutionContextWithTokens.class);
+        OperationDefinition operationDefinition = mock(OperationDefinition.class);
+
+        int numHeaps = 32;
+        for (int i=0; i<numHeaps; i++) {
+            MutableHeap heap = new MutableHeap("heapsPartitionedAcrossStripes-" + i);
+            subject.addSubscription(commandProcessor, command, new ConnectedResponseImpl(heap, mock(Subscription.class)), operationDefinition, requestContext, null);
+        }
+
+        // each heap gets its own initial update
+        assertExpectedSessionWrites(session, numHeaps);
+
+        Map<String, PooledServerConnectedObjectManager.HeapState> heapStates = subject.getHeapStates();
+        assertEquals(numHeaps, heapStates.size());
+        Set<PooledServerConnectedObjectManager.HeapStripe> stripes = new HashSet<PooledServerConnectedObjectManager.HeapStripe>();
+        for (PooledServerConnectedObjectManager.HeapState heapState : heapStates.values()) {
+            stripes.add(heapState.getStripe());
+        }
+        assertTrue(stripes.size() > 1);
+        assertEquals(numHeaps, subject.getHeapsForSession(session).size());
+
+        subject.sessionClosed(session);
+
+        assertNull(subject.getHeapsByClient().get(session));
+        assertEquals(0, subject.getHeapStates().size());
+    }
+
+    @Test
+    public void conflatedUpdatesForSlowSession() throws Exception {
+        subject.stop();
+        subject.setConflationEnabled(true);
+        subject.setConflationThresholdBytes(100);
+        subject.setConflationCheckIntervalMillis(10);
+        subject.start();
+
+        SocketTransportCommandProcessor commandProcessor = mock(SocketTransportCommandProcessor.class);
+        when(commandProcessor.writeSuccessResponse(any(SocketTransportRPCCommand.class), any(ExecutionResult.class))).thenReturn(true);
+
+        SocketTransportRPCCommand command = mock(SocketTransportRPCCommand.class);
+        MyIoSession session = new MyIoSession(String.valueOf(ioSessionId++));
+        session.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED);
+        when(command.getSession()).thenReturn(session);
+
+        ExecutionContextWithTokens requestContext = mock(ExecutionContextWithTokens.class);
+
+        MutableHeap heap = new MutableHeap("conflatedUpdatesForSlowSession");
+        Subscription sub = mock(Subscription.class);
+        ConnectedResponse subscriptionResult = new ConnectedResponseImpl(heap, sub);
+        OperationDefinition operationDefinition = mock(OperationDefinition.class);
+
+        List<Update> expectedUpdates = new ArrayList<Update>();
+        expectedUpdates.add(createInitial());
+        expectedUpdates.add(createUpdate(new InstallRoot(0, NodeType.OBJECT), new InstallField(0, 1, "value", NodeType.SCALAR), new SetScalar(1, 1), new SetScalar(1, 2)));
+        cougarOutput.setExpectedUpdates(expectedUpdates);
+
+        subject.addSubscription(commandProcessor, command, subscriptionResult, operationDefinition, requestContext, null);
+        assertExpectedSessionWrites(session, 1);
+
+        // now the session falls behind
+        session.setScheduledWriteBytes(1000);
+
+        heap.beginUpdate();
+        SimpleConnectedObject object = objectProjector(SimpleConnectedObject.class).project(heap.ensureRoot(NodeType.OBJECT));
+        object.value().set(1);
+        heap.endUpdate();
+        // make sure the updates go out as separate deltas
+        awaitConflatedUpdates(1);
+
+        heap.beginUpdate();
+        object.value().set(2);
+        heap.endUpdate();
+        awaitConflatedUpdates(2);
+
+        assertEquals(1, session.getWritten().size());
+
+        // and catches up again, at which point it gets everything it missed in one go
+        session.setScheduledWriteBytes(0);
+
+        assertExpectedSessionWrites(session, 2);
+        assertExpectedUpdatesWritten();
+
+        HeapDelta conflated = (HeapDelta) cougarOutput.getAllValues().get(cougarOutput.getAllValues().size() - 1);
+        assertTrue(conflated.isConflated());
+        assertEquals(1, conflated.getFirstUpdateId());
+        assertEquals(2, conflated.getUpdateId());
+        assertEquals(1, subject.getConflatedDeltaCount());
+        assertEquals(0, subject.getHeapsWithHeldBackUpdates());
+
+        verify(sub, never()).close();
+        verify(sub, never()).close(any(Subscription.CloseReason.class));
+    }
+
+    @Test
+    public void rateLimitedHeapPublishedOncePerInterval() throws Exception {
+        subject.stop();
+        subject.setPublicationIntervals("rateLimited.*=500");
+        subject.start();
+
+        SocketTransportCommandProcessor commandProcessor = mock(SocketTransportCommandProcessor.class);
+        when(commandProcessor.writeSuccessResponse(any(SocketTransportRPCCommand.class), any(ExecutionResult.class))).thenReturn(true);
+
+        SocketTransportRPCCommand command = mock(SocketTransportRPCCommand.class);
+        MyIoSession session = new MyIoSession(String.valueOf(ioSessionId++));
+        session.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED);
+        when(command.getSession()).thenReturn(session);
+
+        ExecutionContextWithTokens requestContext = mock(ExecutionContextWithTokens.class);
+
+        MutableHeap heap = new MutableHeap("rateLimitedHeapPublishedOncePerInterval");
+        Subscription sub = mock(Subscription.class);
+        ConnectedResponse subscriptionResult = new ConnectedResponseImpl(heap, sub);
+        OperationDefinition operationDefinition = mock(OperationDefinition.class);
+
+        List<Update> expectedUpdates = new ArrayList<Update>();
+        expectedUpdates.add(createInitial());
+        expectedUpdates.add(createUpdate(new InstallRoot(0, NodeType.OBJECT), new InstallField(0, 1, "value", NodeType.SCALAR), new SetScalar(1, 1), new SetScalar(1, 2), new SetScalar(1, 3)));
+        cougarOutput.setExpectedUpdates(expectedUpdates);
+
+        subject.addSubscription(commandProcessor, command, subscriptionResult, operationDefinition, requestContext, null);
+        assertExpectedSessionWrites(session, 1);
+
+        heap.beginUpdate();
+        SimpleConnectedObject object = objectProjector(SimpleConnectedObject.class).project(heap.ensureRoot(NodeType.OBJECT));
+        object.value().set(1);
+        heap.endUpdate();
+
+        heap.beginUpdate();
+        object.value().set(2);
+        heap.endUpdate();
+
+        heap.beginUpdate();
+        object.value().set(3);
+        heap.endUpdate();
+
+        // all three go out in a single delta once the interval is up
+        assertExpectedSessionWrites(session, 2);
+        assertExpectedUpdatesWritten();
+
+        HeapDelta published = (HeapDelta) cougarOutput.getAllValues().get(cougarOutput.getAllValues().size() - 1);
+        assertEquals(1, published.getUpdateId());
+        assertEquals(3, subject.getReceivedUpdateCount());
+        assertEquals(1, subject.getPublishedUpdateCount());
+
+        PooledServerConnectedObjectManager.HeapStateMonitoring heapState = subject.getHeapStateForMonitoring("rateLimitedHeapPublishedOncePerInterval");
+        assertEquals(500, heapState.getPublicationIntervalMillis());
+        assertEquals(3, heapState.getReceivedUpdateCount());
+        assertEquals(1, heapState.getPublishedUpdateCount());
+
+        verify(sub, never()).close();
+        verify(sub, never()).close(any(Subscription.CloseReason.class));
+    }
+
+    @Test
+    public void burstOfSubscriptionsShareSnapshot() throws Exception {
+        SocketTransportCommandProcessor commandProcessor = mock(SocketTransportCommandProcessor.class);
+        when(commandProcessor.writeSuccessResponse(any(SocketTransportRPCCommand.class), any(ExecutionResult.class))).thenReturn(true);
+
+        SocketTransportRPCCommand command = mock(SocketTransportRPCCommand.class);
+        ExecutionContextWithTokens requestContext = mock(ExecutionContextWithTokens.class);
+
+        MutableHeap heap = new MutableHeap("burstOfSubscriptionsShareSnapshot");
+        Subscription sub = mock(Subscription.class);
+        ConnectedResponse subscriptionResult = new ConnectedResponseImpl(heap, sub);
+        OperationDefinition operationDefinition = mock(OperationDefinition.class);
+
+        List<MyIoSession> sessions = new ArrayList<MyIoSession>();
+        for (int i=0; i<3; i++) {
+            MyIoSession session = new MyIoSession(String.valueOf(ioSessionId++));
+            session.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED);
+            when(command.getSession()).thenReturn(session);
+            subject.addSubscription(commandProcessor, command, subscriptionResult, operationDefinition, requestContext, null);
+            sessions.add(session);
+        }
+
+        for (MyIoSession session : sessions) {
+            assertExpectedSessionWrites(session, 1);
+            // the very same serialised initial state goes to everyone
+            assertSame(sessions.get(0).getWritten().get(0), session.getWritten().get(0));
+        }
+        assertEquals(1, cougarOutput.getAllValues().size());
+        assertEquals(1, subject.getBuiltSnapshotCount());
+        assertEquals(2, subject.getSharedSnapshotCount());
+        assertEquals(2, subject.getSharedSnapshotSerialisationCount());
+
+        heap.beginUpdate();
+        SimpleConnectedObject object = objectProjector(SimpleConnectedObject.class).project(heap.ensureRoot(NodeType.OBJECT));
+        object.value().set(1);
+        heap.endUpdate();
+        assertExpectedSessionWrites(sessions.get(0), 2);
+
+        // the heap has moved on, so the next subscriber needs a new snapshot
+        MyIoSession lateSession = new MyIoSession(String.valueOf(ioSessionId++));
+        lateSession.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED);
+        when(command.getSession()).thenReturn(lateSession);
+        subject.addSubscription(commandProcessor, command, subscriptionResult, operationDefinition, requestContext, null);
+
+        assertExpectedSessionWrites(lateSession, 1);
+        assertEquals(2, subject.getBuiltSnapshotCount());
+        assertEquals(2, subject.getSharedSnapshotCount());
+    }
+
+    @Test
+    public void reconnectingSessionResumesFromLastUpdate() throws Exception {
+        subject.setResumptionBufferSize(10);
+        SocketTransportCommandProcessor commandProcessor = mock(SocketTransportCommandProcessor.class);
+        when(commandProcessor.writeSuccessResponse(any(SocketTransportRPCCommand.class), any(ExecutionResult.class))).thenReturn(true);
+
+        SocketTransportRPCCommand command = mock(SocketTransportRPCCommand.class);
+        ExecutionContextWithTokens requestContext = mock(ExecutionContextWithTokens.class);
+
+        MutableHeap heap = new MutableHeap("reconnectingSessionResumesFromLastUpdate");
+        Subscription sub = mock(Subscription.class);
+        ConnectedResponse subscriptionResult = new ConnectedResponseImpl(heap, sub);
+        OperationDefinition operationDefinition = mock(OperationDefinition.class);
+
+        MyIoSession session1 = new MyIoSession(String.valueOf(ioSessionId++));
+        session1.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED);
+        when(command.getSession()).thenReturn(session1);
+        subject.addSubscription(commandProcessor, command, subscriptionResult, operationDefinition, requestContext, null);
+
+        for (int i=1; i<=3; i++) {
+            heap.beginUpdate();
+            objectProjector(SimpleConnectedObject.class).project(heap.ensureRoot(NodeType.OBJECT)).value().set(i);
+            heap.endUpdate();
+        }
+        assertExpectedSessionWrites(session1, 4);
+
+        ArgumentCaptor<ExecutionResult> resultCaptor = ArgumentCaptor.forClass(ExecutionResult.class);
+        verify(commandProcessor).writeSuccessResponse(any(SocketTransportRPCCommand.class), resultCaptor.capture());
+        NewHeapSubscription firstResponse = (NewHeapSubscription) resultCaptor.getValue().getResult();
+        assertFalse(firstResponse.isResumed());
+
+        // a client which saw update 1 before reconnecting only needs updates 2 and 3
+        MyIoSession session2 = new MyIoSession(String.valueOf(ioSessionId++));
+        session2.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED);
+        subject.resumeHeap(session2, new HeapResumption(heap.getUri(), firstResponse.getHeapId(), firstResponse.getEpoch(), 1));
+        when(command.getSession()).thenReturn(session2);
+        int valuesBefore = cougarOutput.getAllValues().size();
+        subject.addSubscription(commandProcessor, command, subscriptionResult, operationDefinition, requestContext, null);
+
+        assertExpectedSessionWrites(session2, 2);
+        List<Object> resent = new ArrayList<Object>(cougarOutput.getAllValues().subList(valuesBefore, valuesBefore + 2));
+        assertEquals(2, ((HeapDelta) resent.get(0)).getUpdateId());
+        assertEquals(3, ((HeapDelta) resent.get(1)).getUpdateId());
+        verify(commandProcessor, times(2)).writeSuccessResponse(any(SocketTransportRPCCommand.class), resultCaptor.capture());
+        assertTrue(((NewHeapSubscription) resultCaptor.getValue().getResult()).isResumed());
+        assertEquals(1, subject.getResumedSubscriptionCount());
+        assertEquals(2, subject.getResumedDeltaCount());
+
+        // heap ids from another server instance mean nothing here, so that client gets the full state
+        MyIoSession session3 = new MyIoSession(String.valueOf(ioSessionId++));
+        session3.setAttribute(CougarProtocol.PROTOCOL_VERSION_ATTR_NAME, CougarProtocol.TRANSPORT_PROTOCOL_VERSION_MAX_SUPPORTED);
+        subject.resumeHeap(session3, new HeapResumption(heap.getUri(), firstResponse.getHeapId(), firstResponse.getEpoch() + 1, 1));
+        when(command.getSession()).thenReturn(session3);
+        subject.addSubscription(commandProcessor, command, subscriptionResult, operationDefinition, requestContext, null);
+
+        assertExpectedSessionWrites(session3, 1);
+        verify(commandProcessor, times(3)).writeSuccessResponse(any(SocketTransportRPCCommand.class), resultCaptor.capture());
+        assertFalse(((NewHeapSubscription) resultCaptor.getValue().getResult()).isResumed());
+        assertEquals(1, subject.getResumedSubscriptionCount());
+
+        // everyone carries on together from here
+        heap.beginUpdate();
+        objectProjector(SimpleConnectedObject.class).project(heap.ensureRoot(NodeType.OBJECT)).value().set(4);
+        heap.endUpdate();
+        assertExpectedSessionWrites(session1, 5);
+        assertExpectedSessionWrites(session2, 3);
+        assertExpectedSessionWrites(session3, 2);
+    }
+
+    private void awaitConflatedUpdates(long updates) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 2000;
+        while (subject.getConflatedUpdateCount() < updates && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(updates, subject.getConflatedUpdateCount());
+    }
+
     private String getSubscriptionId(PooledServerConnectedObjectManager.HeapState heapState, Subscription sub) {
         Map<String, PooledServerConnectedObjectManager.HeapState.SubscriptionDetails> subs = heapState.getSubscriptions();
         String subscriptionId = null;
@@ -1130,8 +1498,7 @@ public class PooledServerConnectedObjectManagerTest {
 
         cougarOutput.start();
 
-        BlockingDeque queue = subject.getHeapsWaitingForUpdate();
-        while (!queue.isEmpty()) {
+        while (subject.hasHeapsWaitingForUpdate()) {
             Thread.sleep(10);
         }
         // queue empty, now check the heap stats
@@ -39,6 +39,7 @@ import com.betfair.cougar.core.api.transcription.ParameterType;
 import com.betfair.cougar.core.impl.DefaultTimeConstraints;
 import com.betfair.cougar.logging.CougarLoggingUtils;
 import com.betfair.cougar.logging.EventLoggingRegistry;
+import com.betfair.cougar.marshalling.api.socket.OperationHeader;
 import com.betfair.cougar.marshalling.api.socket.RemotableMethodInvocationMarshaller;
 import com.betfair.cougar.netutil.nio.CougarProtocol;
 import com.betfair.cougar.transport.api.CommandResolver;
@@ -84,6 +85,12 @@ public class SocketTransportCommandProcessorTest {
     private static final ParameterType returnType = new ParameterType(String.class, null);
 
     private static final Object[] args = { "arg1", new Integer(2), Boolean.TRUE};
+    private static final String[] ARG_NAMES = { "a", "b", "c" };
+    private static final Parameter[] PARAMETERS = {
+            new Parameter("a", new ParameterType(String.class, null), true),
+            new Parameter("b", new ParameterType(Integer.class, null), true),
+            new Parameter("c", new ParameterType(Boolean.class, null), true)
+    };
 
     private static final long CORRELATION_ID = 9999L;
 
@@ -326,14 +333,15 @@ public class SocketTransportCommandProcessorTest {
         when(command.getSession()).thenReturn(session);
 
         when(marshaller.readExecutionContext(any(CougarObjectInput.class), any(String.class), any(X509Certificate[].class), anyInt(), anyByte())).thenReturn(ctx);
-        when(marshaller.readOperationKey(any(CougarObjectInput.class))).thenReturn(key);
-        when(marshaller.readArgs(any(Parameter[].class), any(CougarObjectInput.class))).thenReturn(args);
+        when(marshaller.readOperationHeader(any(CougarObjectInput.class), anyByte())).thenReturn(new OperationHeader(OperationHeader.NO_OPERATION_ID, key, ARG_NAMES));
+        when(marshaller.readArgValues(any(CougarObjectInput.class))).thenReturn(args);
         when(marshaller.readTimeConstraintsIfPresent(any(CougarObjectInput.class), anyByte())).thenReturn(toReturn);
 
         final OperationKey opKey = new OperationKey(new ServiceVersion(1,0), "TestingService", "TestCall");
         OperationDefinition opDef = Mockito.mock(OperationDefinition.class);
         when(opDef.getReturnType()).thenReturn(returnType);
         when(opDef.getOperationKey()).thenReturn(opKey);
+        when(opDef.getParameters()).thenReturn(PARAMETERS);
         when(ev.getOperationDefinition(key)).thenReturn(opDef);
 
         SocketTransportCommandProcessorDelegator d = new SocketTransportCommandProcessorDelegator();